@@ -0,0 +1,58 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.store.test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.infogrid.store.Store;
+import org.infogrid.store.StoreValue;
+
+/**
+ * Counts the values obtained from a Store, in addition to printing out Store events.
+ */
+public class CountingStoreListener
+    extends
+        TestStoreListener
+{
+    /**
+     * A get operation was performed.
+     *
+     * @param store the Store that emitted this event
+     * @param value the StoreValue that was obtained
+     */
+    @Override
+    public void getPerformed(
+            Store      store,
+            StoreValue value )
+    {
+        theGetCount.incrementAndGet();
+
+        super.getPerformed( store, value );
+    }
+
+    /**
+     * Obtain the number of get operations performed so far.
+     *
+     * @return the number of get operations
+     */
+    public int getGetCount()
+    {
+        return theGetCount.get();
+    }
+
+    /**
+     * The number of get operations performed.
+     */
+    protected final AtomicInteger theGetCount = new AtomicInteger();
+}
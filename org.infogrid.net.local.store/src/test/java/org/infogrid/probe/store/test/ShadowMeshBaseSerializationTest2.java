@@ -0,0 +1,323 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+// 
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.store.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.zip.Deflater;
+import org.diet4j.core.ModuleRegistry;
+import org.diet4j.core.ModuleRequirement;
+import org.diet4j.inclasspath.InClasspathModuleRegistry;
+import org.infogrid.mesh.net.externalized.ParserFriendlyExternalizedNetMeshObject;
+import org.infogrid.mesh.net.externalized.ParserFriendlyExternalizedNetMeshObjectFactory;
+import org.infogrid.meshbase.net.DefaultNetMeshBaseAccessSpecificationFactory;
+import org.infogrid.meshbase.net.DefaultNetMeshBaseIdentifierFactory;
+import org.infogrid.meshbase.net.DefaultNetMeshObjectAccessSpecificationFactory;
+import org.infogrid.meshbase.net.NetMeshBaseAccessSpecificationFactory;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifierFactory;
+import org.infogrid.meshbase.net.NetMeshObjectAccessSpecificationFactory;
+import org.infogrid.meshbase.net.NetMeshObjectIdentifierFactory;
+import org.infogrid.mesh.net.a.DefaultAnetMeshObjectIdentifierFactory;
+import org.infogrid.modelbase.MeshTypeIdentifierFactory;
+import org.infogrid.modelbase.ModelBase;
+import org.infogrid.modelbase.ModelBaseSingleton;
+import org.infogrid.modelbase.m.MMeshTypeIdentifierFactory;
+import org.infogrid.probe.httpmapping.TraditionalInfoGridHttpMappingPolicy;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.probe.shadow.externalized.ExternalizedShadowMeshBase;
+import org.infogrid.probe.shadow.externalized.xml.CompressedExternalizedShadowMeshBaseXmlEncoder;
+import org.infogrid.probe.shadow.externalized.xml.ExternalizedShadowMeshBaseXmlEncoder;
+import org.infogrid.probe.shadow.m.MShadowMeshBase;
+import org.infogrid.testharness.AbstractTest;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.context.Context;
+import org.infogrid.util.context.SimpleContext;
+import org.infogrid.util.logging.Log;
+import org.infogrid.util.logging.log4j.Log4jLog;
+import org.infogrid.util.logging.log4j.Log4jLogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that ShadowMeshBases survive a round trip through the compressed encoding, whether or
+ * not they are deflated, and that streaming the plain XML encoding produces the same bytes as
+ * appending it.
+ */
+public class ShadowMeshBaseSerializationTest2
+        extends
+            AbstractTest
+{
+    /**
+     * Initialize Module Framework, and initialize statics.
+     * 
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @BeforeClass
+    public static void initialize()
+        throws
+            Exception
+    {
+        ClassLoader    cl       = ShadowMeshBaseSerializationTest2.class.getClassLoader();
+        ModuleRegistry registry = InClasspathModuleRegistry.instantiateOrGet( cl );
+
+        registry.resolve( registry.determineSingleResolutionCandidate( ModuleRequirement.create( "org.infogrid", "org.infogrid.probe.store" ))).activateRecursively();
+        
+        Log4jLog.configure( "org/infogrid/probe/store/test/Log.properties", cl );
+        Log.setLogFactory( new Log4jLogFactory());
+        
+        ResourceHelper.setApplicationResourceBundle( ResourceBundle.getBundle(
+                "org/infogrid/probe/store/test/ResourceHelper",
+                Locale.getDefault(),
+                cl ));
+
+        theModelBase = ModelBaseSingleton.getSingleton();
+    }
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        File thisDir = new File( "src/test/resources/org/infogrid/probe/store/test" );
+
+        String [] inputFiles = {
+            "ShadowMeshBaseSerializationTest1_1.xml"
+        };
+
+        for( int i=0 ; i<inputFiles.length ; ++i ) {
+            runTest( thisDir, inputFiles[i] );
+        }
+    }
+
+    /**
+     * Run one test.
+     *
+     * @param parentDir the parent directory
+     * @param inputFile name of the XML file to start with
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    protected void runTest(
+            File   parentDir,
+            String inputFile )
+        throws
+            Exception
+    {
+        log.debug( "Now running testcase " + inputFile );
+
+        File theFile = new File( parentDir, inputFile );
+
+        ExternalizedShadowMeshBase original = new ExternalizedShadowMeshBaseXmlEncoder().decodeShadowMeshBase(
+                new FileInputStream( theFile ),
+                theShadowMeshBase );
+
+        //
+
+        log.info( "Streaming plain XML, which must be the same as appending it" );
+
+        ExternalizedShadowMeshBaseXmlEncoder xmlEncoder = new ExternalizedShadowMeshBaseXmlEncoder();
+        StringBuilder                        appended   = new StringBuilder();
+        xmlEncoder.appendShadowMeshBase( original, true, appended );
+
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        xmlEncoder.encodeShadowMeshBase( original, true, streamed );
+
+        checkCondition(
+                Arrays.equals( streamed.toByteArray(), appended.toString().getBytes( "UTF-8" )),
+                inputFile + ": streamed form differs from appended form" );
+
+        //
+
+        log.info( "Encoding small content, which is not deflated" );
+
+        byte [] encoded = checkRoundTrip( CompressedExternalizedShadowMeshBaseXmlEncoder.create(), original, inputFile + " (small)" );
+        checkEquals( encoded[0], (byte) 0, inputFile + ": small content deflated" );
+
+        //
+
+        log.info( "Encoding content over the threshold, which is deflated" );
+
+        encoded = checkRoundTrip( CompressedExternalizedShadowMeshBaseXmlEncoder.create( Deflater.BEST_SPEED, 0 ), original, inputFile + " (large)" );
+        checkEquals( encoded[0], (byte) 1, inputFile + ": large content not deflated" );
+    }
+
+    /**
+     * Encode and decode with an encoder, and check that the result is the same as the original.
+     *
+     * @param encoder the encoder
+     * @param original the original
+     * @param msg the message to print if the result is different
+     * @return the encoded form
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    protected byte [] checkRoundTrip(
+            CompressedExternalizedShadowMeshBaseXmlEncoder encoder,
+            ExternalizedShadowMeshBase                     original,
+            String                                         msg )
+        throws
+            Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.encodeShadowMeshBase( original, true, out );
+
+        checkCondition( out.size() > 0, msg + ": nothing written" );
+
+        ExternalizedShadowMeshBase restored = encoder.decodeShadowMeshBase(
+                new ByteArrayInputStream( out.toByteArray() ),
+                theShadowMeshBase );
+
+        checkSame( restored, original, msg );
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Check that a decoded ExternalizedShadowMeshBase has the same content as the original.
+     *
+     * @param restored the decoded ExternalizedShadowMeshBase
+     * @param original the original
+     * @param msg the message to print if the content is different
+     */
+    protected void checkSame(
+            ExternalizedShadowMeshBase restored,
+            ExternalizedShadowMeshBase original,
+            String                     msg )
+    {
+        checkEquals( restored.getNetworkIdentifier(), original.getNetworkIdentifier(), msg + ": NetworkIdentifier wrong" );
+
+        checkEqualsOutOfSequence( restored.getExternalizedProxies(),        original.getExternalizedProxies(),        msg + ": Proxies wrong" );
+        checkEqualsOutOfSequence( restored.getExternalizedNetMeshObjects(), original.getExternalizedNetMeshObjects(), msg + ": MeshObjects wrong" );
+    }
+
+    /**
+     * Setup.
+     * 
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @Before
+    public void setup()
+        throws
+            Exception
+    {
+        nmbid1 = theMeshBaseIdentifierFactory.fromExternalForm( "https://foo.example.com/%27" );
+        
+        theMeshBaseIdentifierFactory = DefaultNetMeshBaseIdentifierFactory.create();
+        theExternalizedMeshObjectFactory
+                = new ParserFriendlyExternalizedNetMeshObjectFactory() {
+                        public ParserFriendlyExternalizedNetMeshObject createParserFriendlyExternalizedMeshObject() {
+                            return new ParserFriendlyExternalizedNetMeshObject();
+                        }
+                };
+        theNetMeshObjectIdentifierFactory
+                = DefaultAnetMeshObjectIdentifierFactory.create( nmbid1, theMeshBaseIdentifierFactory );
+
+        theMeshTypeIdentifierFactory = MMeshTypeIdentifierFactory.create();
+    
+        theNetMeshBaseAccessSpecificationFactory = DefaultNetMeshBaseAccessSpecificationFactory.create(
+                    theMeshBaseIdentifierFactory );
+
+        theNetMeshObjectAccessSpecificationFactory
+                = DefaultNetMeshObjectAccessSpecificationFactory.create(
+                        theNetMeshObjectIdentifierFactory,
+                        theMeshBaseIdentifierFactory,
+                        theNetMeshBaseAccessSpecificationFactory );
+
+        theShadowMeshBase = MShadowMeshBase.create(
+                nmbid1,
+                theMeshBaseIdentifierFactory,
+                theNetMeshObjectAccessSpecificationFactory,
+                null,
+                theModelBase,
+                null,
+                null,
+                System.currentTimeMillis(),
+                TraditionalInfoGridHttpMappingPolicy.SINGLETON,
+                theApplicationContext );
+    }
+    
+    /**
+     * Tear-down.
+     */
+    @After
+    public void cleanup()
+    {
+        theShadowMeshBase.die();
+        theShadowMeshBase = null;
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( ShadowMeshBaseSerializationTest2.class );
+    
+    /**
+     * Factory for NetMeshBaseIdentifiers.
+     */
+    protected NetMeshBaseIdentifierFactory theMeshBaseIdentifierFactory = DefaultNetMeshBaseIdentifierFactory.create();
+    
+    /**
+     * A NetMeshBaseIdentifier for the test.
+     */
+    protected NetMeshBaseIdentifier nmbid1;
+
+    /**
+     * A ExternalizedNetMeshObjectFactory for the test.
+     */
+    protected ParserFriendlyExternalizedNetMeshObjectFactory theExternalizedMeshObjectFactory;
+    
+    /**
+     * A NetMeshObjectIdentifierFactory for the test.
+     */
+    protected NetMeshObjectIdentifierFactory theNetMeshObjectIdentifierFactory;
+
+    /**
+     * A MeshTypeIdentifierFactory for the test.
+     */
+    protected MeshTypeIdentifierFactory theMeshTypeIdentifierFactory;
+    
+    /**
+     * a factory for NetMeshBaseAccessSpecifications for the test.
+     */
+    protected NetMeshBaseAccessSpecificationFactory theNetMeshBaseAccessSpecificationFactory;
+    /**
+     * A factory for NetMeshObjectAccessSpecifications for the test.
+     */
+    protected NetMeshObjectAccessSpecificationFactory theNetMeshObjectAccessSpecificationFactory;
+    
+    /**
+     * Our ModelBase.
+     */
+    protected static ModelBase theModelBase;
+    
+    /**
+     * Root application context.
+     */
+    protected static Context theApplicationContext = SimpleContext.createRoot( "root" );
+    
+    /**
+     * ShadowMeshBase to be serialized into.
+     */
+    protected ShadowMeshBase theShadowMeshBase;
+}
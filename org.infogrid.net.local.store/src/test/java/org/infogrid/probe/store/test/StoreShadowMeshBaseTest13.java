@@ -0,0 +1,275 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.store.test;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.mesh.MeshObject;
+import org.infogrid.meshbase.net.CoherenceSpecification;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.model.primitives.IntegerValue;
+import org.infogrid.model.Probe.ProbeSubjectArea;
+import org.infogrid.model.Test.TestSubjectArea;
+import org.infogrid.meshbase.net.proxy.m.MPingPongNetMessageEndpointFactory;
+import org.infogrid.probe.manager.store.StoreProbeManagerMapper;
+import org.infogrid.probe.manager.store.StoreScheduledExecutorProbeManager;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.probe.shadow.externalized.xml.CompressedExternalizedShadowMeshBaseXmlEncoder;
+import org.infogrid.probe.shadow.store.StoreShadowMeshBaseFactory;
+import org.infogrid.store.StoreValue;
+import org.infogrid.store.prefixing.IterablePrefixingStore;
+import org.infogrid.testharness.AbstractTest;
+import org.infogrid.util.logging.Log;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Tests that StoreProbeManagerMapper writes in its preferred encoding, and decodes according to
+ * the encoding id stored with each value, including ShadowMeshBases stored in the plain XML format
+ * before there was more than one format.
+ */
+@RunWith(Parameterized.class)
+public class StoreShadowMeshBaseTest13
+        extends
+            AbstractStoreProbeTest
+{
+    /**
+     * Test parameters.
+     *
+     * @return test parameters
+     */
+    @Parameterized.Parameters
+    public static Collection<Object[]> parameters()
+    {
+        return Arrays.asList( new Object[][] {
+                {
+                    AbstractTest.tempInputFileName( StoreShadowMeshBaseTest13.class, "test13-active.xml" ),
+                    AbstractTest.fileSystemFileName( StoreShadowMeshBaseTest13.class, "StoreProbeTest3_1.xml" ),
+                    AbstractTest.fileSystemFileName( StoreShadowMeshBaseTest13.class, "StoreProbeTest3_2.xml" )
+                }
+        });
+    }
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        copyFile( theTestFile1, theTestFile0 );
+
+        String key = theTestFile0Id.toExternalForm();
+
+        //
+
+        log.info( "accessing test file with meshBase, which is written in the preferred encoding" );
+
+        ShadowMeshBase meshBase1 = theProbeManager1.obtainFor( theTestFile0Id, CoherenceSpecification.ONE_TIME_ONLY );
+        checkObject( meshBase1, "MeshBase1 not created" );
+
+        StoreValue value = theShadowStore.get( key );
+        checkEquals( value.getEncodingId(), CompressedExternalizedShadowMeshBaseXmlEncoder.ENCODING_ID, "not written in the preferred encoding" );
+
+        //
+
+        log.info( "Replacing the stored ShadowMeshBase with its plain XML form, as written by earlier versions" );
+
+        StoreProbeManagerMapper xmlMapper = new StoreProbeManagerMapper( theShadowFactory ); // plain XML is the default
+        checkEquals( xmlMapper.getPreferredEncodingId(), StoreProbeManagerMapper.XML_ENCODING_ID, "plain XML is not the default" );
+
+        byte [] xml = xmlMapper.asBytes( meshBase1 );
+        checkEquals( (char) xml[0], '<', "not plain XML" );
+
+        long now = System.currentTimeMillis();
+        theShadowStore.putOrUpdate(
+                key,
+                StoreProbeManagerMapper.XML_ENCODING_ID,
+                now,
+                now,
+                now,
+                -1L,
+                xml );
+
+        WeakReference<ShadowMeshBase> meshBase1Ref = new WeakReference<ShadowMeshBase>( meshBase1 );
+        meshBase1 = null;
+
+        sleepUntilIsGone( meshBase1Ref, 12000L, "ShadowMeshBase still here, should have been garbage collected" );
+
+        //
+
+        log.info( "Restoring from the plain XML form" );
+
+        ShadowMeshBase meshBase2 = theProbeManager1.get( theTestFile0Id );
+        checkObject( meshBase2, "MeshBase2 not restored" );
+
+        MeshObject home2 = meshBase2.getHomeObject();
+        checkObject( home2, "no home object found" );
+        checkCondition( home2.isBlessedBy( TestSubjectArea.AA ), "Home object not blessed" );
+        checkEquals( home2.getPropertyValue( ProbeSubjectArea.PROBEUPDATESPECIFICATION_PROBERUNCOUNTER ), IntegerValue.create( 1 ), "Wrong number of probe runs" );
+        checkEquals( home2.traverseToNeighborMeshObjects().size(), 1, "wrong number of neighbors restored" );
+
+        //
+
+        log.info( "Updating, which writes in the preferred encoding again" );
+
+        copyFile( theTestFile2, theTestFile0 );
+
+        meshBase2.doUpdateNow();
+
+        checkEquals( home2.getPropertyValue( ProbeSubjectArea.PROBEUPDATESPECIFICATION_PROBERUNCOUNTER ), IntegerValue.create( 2 ), "Wrong number of probe runs" );
+
+        value = theShadowStore.get( key );
+        checkEquals( value.getEncodingId(), CompressedExternalizedShadowMeshBaseXmlEncoder.ENCODING_ID, "not rewritten in the preferred encoding" );
+    }
+
+    /**
+     * Constructor with parameters.
+     *
+     * @param testFile0 filename of the test file in the read position
+     * @param testFile1 filename of the first version of the test file
+     * @param testFile2 filename of the second version of the test file
+     */
+    public StoreShadowMeshBaseTest13(
+            String testFile0,
+            String testFile1,
+            String testFile2 )
+    {
+        theTestFile0 = testFile0;
+        theTestFile1 = testFile1;
+        theTestFile2 = testFile2;
+    }
+
+    /**
+     * Setup.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @Before
+    @Override
+    public void setup()
+        throws
+            Exception
+    {
+        super.setup();
+
+        theTestFile0Id = theMeshBaseIdentifierFactory.obtain( new File( theTestFile0 ) );
+
+        //
+
+        log.info( "Deleting old database and creating new database" );
+
+        theSqlStore.initializeHard();
+
+        theShadowStore      = IterablePrefixingStore.create( "Shadow",      theSqlStore );
+        theShadowProxyStore = IterablePrefixingStore.create( "ShadowProxy", theSqlStore );
+
+        //
+
+        exec = createThreadPool( 1 );
+
+        MPingPongNetMessageEndpointFactory shadowEndpointFactory = MPingPongNetMessageEndpointFactory.create( exec );
+
+        theShadowFactory = StoreShadowMeshBaseFactory.create(
+                theMeshBaseIdentifierFactory,
+                shadowEndpointFactory,
+                theModelBase,
+                theShadowStore,
+                theShadowProxyStore,
+                rootContext );
+
+        theProbeManager1 = StoreScheduledExecutorProbeManager.create(
+                theShadowFactory,
+                theProbeDirectory,
+                theShadowStore,
+                null,
+                null,
+                CompressedExternalizedShadowMeshBaseXmlEncoder.ENCODING_ID );
+        shadowEndpointFactory.setNameServer( theProbeManager1.getNetMeshBaseNameServer() );
+        theShadowFactory.setProbeManager( theProbeManager1 );
+
+        theProbeManager1.start( exec );
+    }
+
+    /**
+     * Clean up after the test.
+     */
+    @After
+    public void cleanup()
+    {
+        theProbeManager1.die( true );
+        theProbeManager1 = null;
+
+        exec.shutdown();
+        exec = null;
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( StoreShadowMeshBaseTest13.class);
+
+    /**
+     * Our ThreadPool.
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * File name of the test file in the read position.
+     */
+    protected String theTestFile0;
+
+    /**
+     * File name of the first version of the test file.
+     */
+    protected String theTestFile1;
+
+    /**
+     * File name of the second version of the test file.
+     */
+    protected String theTestFile2;
+
+    /**
+     * The NetworkIdentifer of the test file in the read position.
+     */
+    protected NetMeshBaseIdentifier theTestFile0Id;
+
+    /**
+     * The Store for the ShadowMeshBases.
+     */
+    protected IterablePrefixingStore theShadowStore;
+
+    /**
+     * The Store for the ShadowMeshBases' Proxies.
+     */
+    protected IterablePrefixingStore theShadowProxyStore;
+
+    /**
+     * The factory for StoreShadowMeshBases.
+     */
+    protected StoreShadowMeshBaseFactory theShadowFactory;
+
+    /**
+     * The ProbeManager.
+     */
+    protected StoreScheduledExecutorProbeManager theProbeManager1;
+}
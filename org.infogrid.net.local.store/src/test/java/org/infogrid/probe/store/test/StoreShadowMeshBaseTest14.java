@@ -0,0 +1,344 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.store.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.mesh.MeshObject;
+import org.infogrid.meshbase.net.CoherenceSpecification;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.model.primitives.IntegerValue;
+import org.infogrid.model.Probe.ProbeSubjectArea;
+import org.infogrid.model.Test.TestSubjectArea;
+import org.infogrid.meshbase.net.proxy.m.MPingPongNetMessageEndpointFactory;
+import org.infogrid.probe.ProbeDirectory;
+import org.infogrid.probe.manager.store.ShadowDeltaLog;
+import org.infogrid.probe.manager.store.StoreProbeManagerMapper;
+import org.infogrid.probe.manager.store.StoreScheduledExecutorProbeManager;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.probe.shadow.externalized.xml.CompressedExternalizedShadowMeshBaseXmlEncoder;
+import org.infogrid.probe.shadow.store.StoreShadowMeshBase;
+import org.infogrid.probe.shadow.store.StoreShadowMeshBaseFactory;
+import org.infogrid.store.IterableStore;
+import org.infogrid.store.prefixing.IterablePrefixingStore;
+import org.infogrid.store.util.IterableStoreBackedSwappingHashMap;
+import org.infogrid.testharness.AbstractTest;
+import org.infogrid.util.logging.Log;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Tests that the delta records of a shadow are kept if writing its snapshot fails,
+ * and that the shadow is restored from the previous snapshot and those delta records.
+ */
+@RunWith(Parameterized.class)
+public class StoreShadowMeshBaseTest14
+        extends
+            AbstractStoreProbeTest
+{
+    /**
+     * Test parameters.
+     *
+     * @return test parameters
+     */
+    @Parameterized.Parameters
+    public static Collection<Object[]> parameters()
+    {
+        return Arrays.asList( new Object[][] {
+                {
+                    AbstractTest.tempInputFileName( StoreShadowMeshBaseTest14.class, "test14-1.xml" ),
+                    AbstractTest.fileSystemFileName( StoreShadowMeshBaseTest14.class, "StoreShadowMeshBaseTest4_1a.xml" ),
+                    AbstractTest.fileSystemFileName( StoreShadowMeshBaseTest14.class, "StoreShadowMeshBaseTest4_1b.xml" )
+                }
+        });
+    }
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        copyFile( theTestFile1a, theTestFile1 );
+
+        //
+
+        log.info( "accessing test file with meshBase" );
+
+        ShadowMeshBase meshBase1 = theProbeManager1.obtainFor( testFile1Id, CoherenceSpecification.ONE_TIME_ONLY );
+        checkObject( meshBase1, "MeshBase1 not created" );
+
+        MeshObject home1 = meshBase1.getHomeObject();
+        checkCondition( !home1.isBlessedBy( TestSubjectArea.AA ), "Home object 1 incorrectly blessed" );
+
+        //
+
+        log.info( "First update writes a snapshot, as the persisted state is not known yet" );
+
+        meshBase1.doUpdateNow();
+
+        checkEquals( home1.getPropertyValue( ProbeSubjectArea.PROBEUPDATESPECIFICATION_PROBERUNCOUNTER ), IntegerValue.create( 2 ), "Wrong number of probe runs" );
+        checkEquals( theDeltaStore.size(), 0, "Deltas written instead of a snapshot" );
+
+        //
+
+        log.info( "Second update writes a delta" );
+
+        copyFile( theTestFile1b, theTestFile1 );
+
+        meshBase1.doUpdateNow();
+
+        checkCondition( home1.isBlessedBy( TestSubjectArea.AA ), "Home object 1 incorrectly not blessed" );
+        checkEquals( theDeltaStore.size(), 2, "Wrong number of records in the delta Store: one delta plus the time of the next update" );
+
+        //
+
+        log.info( "Third update would write a snapshot, but the put fails" );
+
+        theProbeManager1.theFailPuts = true;
+
+        meshBase1.doUpdateNow();
+
+        checkEquals( home1.getPropertyValue( ProbeSubjectArea.PROBEUPDATESPECIFICATION_PROBERUNCOUNTER ), IntegerValue.create( 4 ), "Wrong number of probe runs" );
+        checkEquals( theProbeManager1.theFailedPutCount, 1, "Put did not fail" );
+        checkEquals( theDeltaStore.size(), 2, "Deltas lost although the snapshot was not written" );
+
+        //
+
+        log.info( "Checking that the Shadow is restored from the previous snapshot and the delta" );
+
+        WeakReference<ShadowMeshBase> meshBase1Ref = new WeakReference<ShadowMeshBase>( meshBase1 );
+        meshBase1 = null;
+        home1     = null;
+
+        sleepUntilIsGone( meshBase1Ref, 12000L, "ShadowMeshBase still here, should have been garbage collected" );
+
+        ShadowMeshBase meshBase2 = theProbeManager1.get( testFile1Id );
+        checkObject( meshBase2, "MeshBase1 not recovered" );
+
+        MeshObject home2 = meshBase2.getHomeObject();
+        checkCondition( home2.isBlessedBy( TestSubjectArea.AA ), "Change in delta lost" );
+        checkEquals( home2.getPropertyValue( ProbeSubjectArea.PROBEUPDATESPECIFICATION_PROBERUNCOUNTER ), IntegerValue.create( 3 ), "Wrong number of probe runs" );
+
+        //
+
+        log.info( "Once the put succeeds again, the snapshot replaces the deltas" );
+
+        theProbeManager1.theFailPuts = false;
+
+        meshBase2.doUpdateNow();
+
+        checkEquals( home2.getPropertyValue( ProbeSubjectArea.PROBEUPDATESPECIFICATION_PROBERUNCOUNTER ), IntegerValue.create( 4 ), "Wrong number of probe runs" );
+        checkEquals( theDeltaStore.size(), 0, "Deltas not deleted after snapshot" );
+    }
+
+    /**
+     * Constructor with parameters.
+     *
+     * @param testFile1 filename of the test file in the read position
+     * @param testFile1a filename of the first version of the test file
+     * @param testFile1b filename of the second version of the test file
+     */
+    public StoreShadowMeshBaseTest14(
+            String testFile1,
+            String testFile1a,
+            String testFile1b )
+    {
+        theTestFile1  = testFile1;
+        theTestFile1a = testFile1a;
+        theTestFile1b = testFile1b;
+    }
+
+    /**
+     * Setup.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @Before
+    @Override
+    public void setup()
+        throws
+            Exception
+    {
+        super.setup();
+
+        testFile1Id = theMeshBaseIdentifierFactory.obtain( new File( theTestFile1 ) );
+
+        //
+
+        log.info( "Deleting old database and creating new database" );
+
+        theSqlStore.initializeHard();
+
+        IterablePrefixingStore theShadowStore      = IterablePrefixingStore.create( "Shadow",      theSqlStore );
+        IterablePrefixingStore theShadowProxyStore = IterablePrefixingStore.create( "ShadowProxy", theSqlStore );
+
+        theDeltaStore = IterablePrefixingStore.create( "ShadowDelta", theSqlStore );
+
+        //
+
+        exec = createThreadPool( 1 );
+
+        MPingPongNetMessageEndpointFactory shadowEndpointFactory = MPingPongNetMessageEndpointFactory.create( exec );
+
+        StoreShadowMeshBaseFactory shadowFactory = StoreShadowMeshBaseFactory.create(
+                theMeshBaseIdentifierFactory,
+                shadowEndpointFactory,
+                theModelBase,
+                theShadowStore,
+                theShadowProxyStore,
+                rootContext );
+
+        ShadowDeltaLog          deltaLog = ShadowDeltaLog.create( theDeltaStore, 1 ); // a snapshot after every delta
+        StoreProbeManagerMapper mapper   = new StoreProbeManagerMapper(
+                shadowFactory,
+                CompressedExternalizedShadowMeshBaseXmlEncoder.ENCODING_ID,
+                deltaLog );
+
+        theProbeManager1 = new FailingPutProbeManager(
+                shadowFactory,
+                IterableStoreBackedSwappingHashMap.createWeak( mapper, theShadowStore ),
+                theProbeDirectory,
+                theShadowStore,
+                mapper,
+                deltaLog );
+        shadowEndpointFactory.setNameServer( theProbeManager1.getNetMeshBaseNameServer() );
+        shadowFactory.setProbeManager( theProbeManager1 );
+
+        theProbeManager1.start( exec );
+    }
+
+    /**
+     * Clean up after the test.
+     */
+    @After
+    public void cleanup()
+    {
+        theProbeManager1.die( true );
+        theProbeManager1 = null;
+
+        exec.shutdown();
+        exec = null;
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( StoreShadowMeshBaseTest14.class);
+
+    /**
+     * Our ThreadPool.
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * File name of the test file in the read position.
+     */
+    protected String theTestFile1;
+
+    /**
+     * File name of the first version of the test file.
+     */
+    protected String theTestFile1a;
+
+    /**
+     * File name of the second version of the test file.
+     */
+    protected String theTestFile1b;
+
+    /**
+     * The NetworkIdentifer of the test file in the read position.
+     */
+    protected NetMeshBaseIdentifier testFile1Id;
+
+    /**
+     * The ProbeManager.
+     */
+    protected FailingPutProbeManager theProbeManager1;
+
+    /**
+     * The Store for the deltas.
+     */
+    protected IterablePrefixingStore theDeltaStore;
+
+    /**
+     * A StoreScheduledExecutorProbeManager whose snapshot puts can be made to fail.
+     */
+    protected static class FailingPutProbeManager
+            extends
+                StoreScheduledExecutorProbeManager
+    {
+        /**
+         * Constructor.
+         *
+         * @param delegate the underlying factory for StoreShadowMeshBases
+         * @param storage the storage to use
+         * @param dir the ProbeDirectory to use
+         * @param shadowStore the Store in which serialized ShadowMeshBases are kept
+         * @param mapper the StoreProbeManagerMapper used with the storage
+         * @param deltaLog the ShadowDeltaLog to write changes to
+         */
+        public FailingPutProbeManager(
+                StoreShadowMeshBaseFactory                                               delegate,
+                IterableStoreBackedSwappingHashMap<NetMeshBaseIdentifier,ShadowMeshBase> storage,
+                ProbeDirectory                                                           dir,
+                IterableStore                                                            shadowStore,
+                StoreProbeManagerMapper                                                  mapper,
+                ShadowDeltaLog                                                           deltaLog )
+        {
+            super( delegate, storage, dir, shadowStore, mapper, deltaLog, null );
+        }
+
+        /**
+         * Put the encoded snapshot of a ShadowMeshBase into the Store, or fail.
+         *
+         * @param shadow the ShadowMeshBase
+         * @param data the encoded snapshot
+         * @throws IOException thrown if puts have been set to fail
+         */
+        @Override
+        protected void putSnapshot(
+                StoreShadowMeshBase shadow,
+                byte []             data )
+            throws
+                IOException
+        {
+            if( theFailPuts ) {
+                ++theFailedPutCount;
+                throw new IOException( "Failing put for testing" );
+            }
+            super.putSnapshot( shadow, data );
+        }
+
+        /**
+         * If true, puts of snapshots fail.
+         */
+        protected volatile boolean theFailPuts;
+
+        /**
+         * The number of puts that have failed.
+         */
+        protected volatile int theFailedPutCount;
+    }
+}
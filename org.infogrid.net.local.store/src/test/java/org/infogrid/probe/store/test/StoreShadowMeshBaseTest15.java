@@ -0,0 +1,315 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.store.test;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import org.infogrid.mesh.MeshObject;
+import org.infogrid.meshbase.net.CoherenceSpecification;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.model.primitives.IntegerValue;
+import org.infogrid.model.Probe.ProbeSubjectArea;
+import org.infogrid.meshbase.net.proxy.m.MPingPongNetMessageEndpointFactory;
+import org.infogrid.probe.manager.store.StoreScheduledExecutorProbeManager;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.probe.shadow.store.StoreShadowMeshBaseFactory;
+import org.infogrid.store.StoreValue;
+import org.infogrid.store.prefixing.IterablePrefixingStore;
+import org.infogrid.testharness.AbstractTest;
+import org.infogrid.util.logging.Log;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Tests that a restarted ProbeManager that writes deltas schedules stored shadows from the
+ * time of the next update recorded with the most recent delta, not from the older snapshot,
+ * and without getting the snapshot from the Store.
+ */
+@RunWith(Parameterized.class)
+public class StoreShadowMeshBaseTest15
+        extends
+            AbstractStoreProbeTest
+{
+    /**
+     * Test parameters.
+     *
+     * @return test parameters
+     */
+    @Parameterized.Parameters
+    public static Collection<Object[]> parameters()
+    {
+        return Arrays.asList( new Object[][] {
+                {
+                    AbstractTest.tempInputFileName( StoreShadowMeshBaseTest15.class, "test15-1.xml" ),
+                    AbstractTest.fileSystemFileName( StoreShadowMeshBaseTest15.class, "StoreShadowMeshBaseTest4_1a.xml" )
+                }
+        });
+    }
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        copyFile( theTestFile1a, theTestFile1 );
+
+        //
+
+        startClock();
+
+        log.info( "accessing test file with meshBase: " + testFile1Id.toExternalForm() );
+
+        ShadowMeshBase meshBase1 = theProbeManager1.obtainFor(
+                    testFile1Id,
+                    new CoherenceSpecification.Periodic( 3000L ));
+        checkObject( meshBase1, "MeshBase1 not created" );
+
+        MeshObject home1 = meshBase1.getHomeObject();
+        checkObject( home1, "no home object found" );
+
+        sleepUntil( 3000L * 2 + 1000L );
+
+        checkCondition( theDeltaStore.size() > 1, "No deltas written" );
+
+        //
+
+        log.info( "Stopping, and marking the snapshot as never to be updated, as a stale snapshot would be" );
+
+        theProbeManager1.stop();
+
+        IntegerValue runs1 = (IntegerValue) home1.getPropertyValue( ProbeSubjectArea.PROBEUPDATESPECIFICATION_PROBERUNCOUNTER );
+
+        WeakReference<ShadowMeshBase> meshBase1Ref = new WeakReference<ShadowMeshBase>( meshBase1 );
+
+        meshBase1 = null;
+        home1     = null;
+
+        sleepUntilIsGone( meshBase1Ref, 2000L, "ShadowMeshBase still here, should have been garbage collected" );
+
+        String     key      = testFile1Id.toExternalForm();
+        StoreValue snapshot = theShadowStore.get( key );
+        theShadowStore.putOrUpdate(
+                key,
+                snapshot.getEncodingId(),
+                snapshot.getTimeCreated(),
+                snapshot.getTimeUpdated(),
+                snapshot.getTimeRead(),
+                -1L,
+                snapshot.getData() );
+
+        //
+
+        log.info( "Restarting with a new ProbeManager, whose only Thread is busy until it has started" );
+
+        final CountDownLatch started = new CountDownLatch( 1 );
+        exec2 = createThreadPool( 1 );
+        exec2.submit( new Runnable() {
+                public void run() {
+                    try {
+                        started.await();
+                    } catch( InterruptedException ex ) {
+                        log.error( ex );
+                    }
+                }
+        });
+
+        CountingStoreListener listener = new CountingStoreListener();
+        theShadowStore.addDirectStoreListener( listener );
+
+        theProbeManager2 = createProbeManager();
+        theProbeManager2.start( exec2 );
+
+        checkEquals( listener.getGetCount(), 0, "Snapshot read to schedule" );
+
+        started.countDown();
+
+        sleepFor( 3000L + 1000L );
+
+        //
+
+        log.info( "Checking that updates have been performed" );
+
+        ShadowMeshBase meshBase2 = theProbeManager2.get( testFile1Id );
+        checkObject( meshBase2, "MeshBase1 not recovered" );
+
+        MeshObject   home2 = meshBase2.getHomeObject();
+        IntegerValue runs2 = (IntegerValue) home2.getPropertyValue( ProbeSubjectArea.PROBEUPDATESPECIFICATION_PROBERUNCOUNTER );
+
+        checkCondition( runs2.value() > runs1.value(), "Not updated after restart: " + runs1 + " vs. " + runs2 );
+    }
+
+    /**
+     * Constructor with parameters.
+     *
+     * @param testFile1 filename of the test file in the read position
+     * @param testFile1a filename of the version of the test file
+     */
+    public StoreShadowMeshBaseTest15(
+            String testFile1,
+            String testFile1a )
+    {
+        theTestFile1  = testFile1;
+        theTestFile1a = testFile1a;
+    }
+
+    /**
+     * Setup.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @Before
+    @Override
+    public void setup()
+        throws
+            Exception
+    {
+        super.setup();
+
+        testFile1Id = theMeshBaseIdentifierFactory.obtain( new File( theTestFile1 ) );
+
+        //
+
+        log.info( "Deleting old database and creating new database" );
+
+        theSqlStore.initializeHard();
+
+        theShadowStore      = IterablePrefixingStore.create( "Shadow",      theSqlStore );
+        theShadowProxyStore = IterablePrefixingStore.create( "ShadowProxy", theSqlStore );
+        theDeltaStore       = IterablePrefixingStore.create( "ShadowDelta", theSqlStore );
+
+        //
+
+        exec = createThreadPool( 1 );
+
+        theProbeManager1 = createProbeManager();
+
+        theProbeManager1.start( exec );
+    }
+
+    /**
+     * Create a ProbeManager on the Stores.
+     *
+     * @return the ProbeManager
+     */
+    protected StoreScheduledExecutorProbeManager createProbeManager()
+    {
+        MPingPongNetMessageEndpointFactory shadowEndpointFactory = MPingPongNetMessageEndpointFactory.create( exec );
+
+        StoreShadowMeshBaseFactory shadowFactory = StoreShadowMeshBaseFactory.create(
+                theMeshBaseIdentifierFactory,
+                shadowEndpointFactory,
+                theModelBase,
+                theShadowStore,
+                theShadowProxyStore,
+                rootContext );
+
+        StoreScheduledExecutorProbeManager ret = StoreScheduledExecutorProbeManager.create(
+                shadowFactory,
+                theProbeDirectory,
+                theShadowStore,
+                theDeltaStore );
+        ret.setSchedulesFromDeltaLog( true );
+        shadowEndpointFactory.setNameServer( ret.getNetMeshBaseNameServer() );
+        shadowFactory.setProbeManager( ret );
+
+        return ret;
+    }
+
+    /**
+     * Clean up after the test.
+     */
+    @After
+    public void cleanup()
+    {
+        if( theProbeManager2 != null ) {
+            theProbeManager2.die( true );
+            theProbeManager2 = null;
+        }
+        theProbeManager1 = null;
+
+        exec.shutdown();
+        exec = null;
+
+        if( exec2 != null ) {
+            exec2.shutdown();
+            exec2 = null;
+        }
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( StoreShadowMeshBaseTest15.class);
+
+    /**
+     * Our ThreadPool.
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * The ThreadPool of the ProbeManager after the restart.
+     */
+    protected ScheduledExecutorService exec2;
+
+    /**
+     * File name of the test file in the read position.
+     */
+    protected String theTestFile1;
+
+    /**
+     * File name of the version of the test file.
+     */
+    protected String theTestFile1a;
+
+    /**
+     * The NetworkIdentifer of the test file in the read position.
+     */
+    protected NetMeshBaseIdentifier testFile1Id;
+
+    /**
+     * The Store for the ShadowMeshBases.
+     */
+    protected IterablePrefixingStore theShadowStore;
+
+    /**
+     * The Store for the ShadowMeshBases' Proxies.
+     */
+    protected IterablePrefixingStore theShadowProxyStore;
+
+    /**
+     * The Store for the deltas.
+     */
+    protected IterablePrefixingStore theDeltaStore;
+
+    /**
+     * The ProbeManager before the restart.
+     */
+    protected StoreScheduledExecutorProbeManager theProbeManager1;
+
+    /**
+     * The ProbeManager after the restart.
+     */
+    protected StoreScheduledExecutorProbeManager theProbeManager2;
+}
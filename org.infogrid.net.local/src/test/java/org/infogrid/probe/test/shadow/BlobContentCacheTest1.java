@@ -0,0 +1,140 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.test.shadow;
+
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.ResourceBundle;
+import org.diet4j.core.ModuleRegistry;
+import org.diet4j.core.ModuleRequirement;
+import org.diet4j.inclasspath.InClasspathModuleRegistry;
+import org.infogrid.model.Blob.BlobSubjectArea;
+import org.infogrid.model.primitives.BlobValue;
+import org.infogrid.probe.ContentInputStream;
+import org.infogrid.probe.ProbeDispatcher;
+import org.infogrid.probe.blob.BlobContentCache;
+import org.infogrid.testharness.AbstractTest;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.logging.Log;
+import org.infogrid.util.logging.log4j.Log4jLog;
+import org.infogrid.util.logging.log4j.Log4jLogFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+  * Tests that the BlobContentCache shares BlobValues with identical content, also if the digest
+  * is given, and that a ContentInputStream hands out its content without copying, and its digest
+  * only while nothing has been read.
+  */
+public class BlobContentCacheTest1
+    extends
+        AbstractTest
+{
+    /**
+     * Initialize Module Framework, and initialize statics.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @BeforeClass
+    public static void initialize()
+        throws
+            Exception
+    {
+        ClassLoader    cl       = BlobContentCacheTest1.class.getClassLoader();
+        ModuleRegistry registry = InClasspathModuleRegistry.instantiateOrGet( cl );
+
+        registry.resolve( registry.determineSingleResolutionCandidate( ModuleRequirement.create( "org.infogrid", "org.infogrid.probe" ))).activateRecursively();
+
+        Log4jLog.configure( "org/infogrid/probe/test/Log.properties", cl );
+        Log.setLogFactory( new Log4jLogFactory());
+
+        ResourceHelper.setApplicationResourceBundle( ResourceBundle.getBundle(
+                "org/infogrid/probe/test/ResourceHelper",
+                Locale.getDefault(),
+                cl ));
+    }
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things can go wrong during a test
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        BlobContentCache cache = BlobContentCache.create();
+
+        byte [] content1  = "Some content".getBytes( "UTF-8" );
+        byte [] content1b = "Some content".getBytes( "UTF-8" );
+        byte [] content2  = "Other content".getBytes( "UTF-8" );
+
+        //
+
+        log.info( "Sharing" );
+
+        BlobValue value1  = cache.obtainFor( BlobSubjectArea.BLOBOBJECT_CONTENT_type, content1,  "text/plain" );
+        BlobValue value1b = cache.obtainFor( BlobSubjectArea.BLOBOBJECT_CONTENT_type, content1b, "text/plain" );
+        BlobValue value1c = cache.obtainFor( BlobSubjectArea.BLOBOBJECT_CONTENT_type, content1b, "application/octet-stream" );
+        BlobValue value2  = cache.obtainFor( BlobSubjectArea.BLOBOBJECT_CONTENT_type, content2,  "text/plain" );
+
+        checkIdentity( value1b, value1, "identical content not shared" );
+        checkCondition( value1c != value1, "different MIME type shared" );
+        checkCondition( value2  != value1, "different content shared" );
+        checkEquals( cache.size(), 3, "wrong size" );
+
+        byte [] digest1 = MessageDigest.getInstance( ProbeDispatcher.CONTENT_DIGEST_ALGORITHM ).digest( content1 );
+        checkIdentity(
+                cache.obtainFor( BlobSubjectArea.BLOBOBJECT_CONTENT_type, content1b, digest1, "text/plain" ),
+                value1,
+                "identical content with a given digest not shared" );
+
+        //
+
+        log.info( "Forgetting" );
+
+        value1  = null;
+        value1b = null;
+        value1c = null;
+        value2  = null;
+
+        for( int i=0 ; i<10 && cache.size() > 0 ; ++i ) {
+            System.gc();
+            Thread.sleep( 100L );
+        }
+        checkEquals( cache.size(), 0, "BlobValues not released" );
+
+        //
+
+        log.info( "Consuming content" );
+
+        ContentInputStream stream = new ContentInputStream( content1 );
+        checkIdentity( stream.consumeContent(), content1, "content copied" );
+        checkEquals( stream.read(), -1, "content not consumed" );
+
+        stream = new ContentInputStream( content1 );
+        stream.read();
+        checkEquals( stream.consumeContent().length, content1.length - 1, "wrong remaining content" );
+
+        stream = new ContentInputStream( content1, digest1 );
+        checkIdentity( stream.getContentDigest(), digest1, "digest not passed on" );
+        stream.read();
+        checkCondition( stream.getContentDigest() == null, "digest of partially read content passed on" );
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( BlobContentCacheTest1.class );
+}
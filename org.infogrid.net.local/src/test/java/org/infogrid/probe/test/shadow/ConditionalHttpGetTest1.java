@@ -0,0 +1,253 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.test.shadow;
+
+import org.infogrid.httpd.HttpEntity;
+import org.infogrid.httpd.HttpEntityResponse;
+import org.infogrid.httpd.HttpErrorResponse;
+import org.infogrid.httpd.HttpRequest;
+import org.infogrid.httpd.HttpResponse;
+import org.infogrid.httpd.HttpResponseFactory;
+import org.infogrid.httpd.SnapshotHttpEntity;
+import org.infogrid.mesh.net.NetMeshObject;
+import org.infogrid.meshbase.net.CoherenceSpecification;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.model.Probe.ProbeSubjectArea;
+import org.infogrid.model.Web.WebSubjectArea;
+import org.infogrid.model.primitives.IntegerValue;
+import org.infogrid.model.primitives.StringValue;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.probe.shadow.ShadowMeshBaseEvent;
+import org.infogrid.probe.shadow.ShadowMeshBaseListener;
+import org.infogrid.util.logging.Log;
+import org.junit.Test;
+
+/**
+  * Tests that an HTTP data source, which returned an ETag, is accessed with a conditional GET
+  * at the next run, that a 304 Not Modified response skips the update, and that the data source
+  * is accessed only once per run regardless of the response.
+  */
+public class ConditionalHttpGetTest1
+        extends
+            AbstractRedirectTest
+{
+    private static final Log log = Log.getLogInstance( ConditionalHttpGetTest1.class ); // our own, private logger
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things may happen during a test
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        MyConditionalResponseFactory factory = new MyConditionalResponseFactory();
+        theServer.setResponseFactory( factory );
+
+        NetMeshBaseIdentifier id = theMeshBase.getMeshBaseIdentifierFactory().fromExternalForm( WEB_SERVER_IDENTIFIER + CONDITIONAL );
+
+        //
+
+        log.info( "Accessing the data source for the first time" );
+
+        NetMeshObject  shadowHome = theMeshBase.accessLocally( id, CoherenceSpecification.ONE_TIME_ONLY );
+        ShadowMeshBase shadow     = theMeshBase.getShadowMeshBaseFor( id );
+
+        checkObject( shadowHome, "No shadow home" );
+        checkObject( shadow,     "No shadow" );
+        checkEquals( factory.theRequestCount, 1, "Wrong number of requests" );
+        checkEquals( factory.theConditionalRequestCount, 0, "First request was conditional" );
+        checkEquals(
+                shadow.getHomeObject().getPropertyValue( ProbeSubjectArea.PROBEUPDATESPECIFICATION_HTTPETAG ),
+                StringValue.create( ETAG ),
+                "ETag not recorded" );
+
+        MyShadowListener listener = new MyShadowListener();
+        shadow.addDirectShadowListener( listener );
+
+        //
+
+        log.info( "Data source has not changed" );
+
+        factory.theMode = NOT_MODIFIED;
+        shadow.doUpdateNow();
+
+        checkEquals( factory.theRequestCount, 2, "Wrong number of requests" );
+        checkEquals( factory.theConditionalRequestCount, 1, "Second request was not conditional" );
+        checkEquals( listener.theSkippedCount, 1, "Update was not skipped" );
+        checkEquals(
+                shadow.getHomeObject().getPropertyValue( ProbeSubjectArea.PROBEUPDATESPECIFICATION_HTTPETAG ),
+                StringValue.create( ETAG ),
+                "ETag not kept" );
+
+        //
+
+        log.info( "Data source responds with an error" );
+
+        factory.theMode = ERROR;
+        shadow.doUpdateNow();
+
+        checkEquals( factory.theRequestCount, 3, "Data source accessed more than once" );
+        checkEquals( factory.theConditionalRequestCount, 2, "Third request was not conditional" );
+        checkEquals( listener.theSkippedCount, 1, "Update was skipped" );
+        checkEquals(
+                shadow.getHomeObject().getPropertyValue( WebSubjectArea.WEBRESOURCE_HTTPSTATUSCODE ),
+                IntegerValue.create( 500 ),
+                "Status code of the response to the conditional GET not recorded" );
+    }
+
+    /**
+     * Relative URL of the data source.
+     */
+    protected static final String CONDITIONAL = "conditional";
+
+    /**
+     * The ETag returned by the data source.
+     */
+    protected static final String ETAG = "\"v1\"";
+
+    /**
+     * Mode in which the data source returns its content.
+     */
+    protected static final int CONTENT = 0;
+
+    /**
+     * Mode in which the data source returns 304 Not Modified.
+     */
+    protected static final int NOT_MODIFIED = 1;
+
+    /**
+     * Mode in which the data source returns 500 Internal Server Error.
+     */
+    protected static final int ERROR = 2;
+
+    /**
+     * A HttpResponseFactory that acts as the data source, and counts the requests.
+     */
+    static class MyConditionalResponseFactory
+        implements
+            HttpResponseFactory
+    {
+        /**
+          * Factory method for a HttpResponse.
+          *
+          * @param request the HttpRequest for which we create a HttpResponse
+          * @return the created HttpResponse
+          */
+        public HttpResponse createResponse(
+                HttpRequest request )
+        {
+            log.debug( "Incoming request", request );
+
+            HttpResponse ret;
+            if( "GET".equals( request.getMethod() ) && request.getRelativeBaseUri().equals( "/" + CONDITIONAL )) {
+                ++theRequestCount;
+                if( theRequestCount > 1 ) {
+                    // the data source has not been asked for anything but the first time
+                    ++theConditionalRequestCount;
+                }
+
+                switch( theMode ) {
+                    case NOT_MODIFIED:
+                        ret = HttpErrorResponse.create( request, "304", null );
+                        ret.addHeader( "ETag", ETAG );
+                        break;
+
+                    case ERROR:
+                        ret = HttpErrorResponse.create( request, "500", null );
+                        break;
+
+                    default:
+                        HttpEntity entity = new SnapshotHttpEntity( "text/html", HTML, true );
+                        ret = HttpEntityResponse.create( request, true, entity );
+                        ret.addHeader( "ETag", ETAG );
+                        break;
+                }
+
+            } else {
+                ret = HttpErrorResponse.create( request, "500", null );
+            }
+            return ret;
+        }
+
+        /**
+         * How to respond.
+         */
+        protected volatile int theMode = CONTENT;
+
+        /**
+         * The number of requests for the data source.
+         */
+        protected volatile int theRequestCount;
+
+        /**
+         * The number of requests for the data source after the first.
+         */
+        protected volatile int theConditionalRequestCount;
+    }
+
+    /**
+     * Counts the skipped updates.
+     */
+    static class MyShadowListener
+        implements
+            ShadowMeshBaseListener
+    {
+        /**
+          * An update of the information in the ShadowMeshBase is about to start.
+          *
+          * @param theEvent the event
+          */
+        public void updateStarting(
+                ShadowMeshBaseEvent theEvent )
+        {}
+
+        /**
+          * An update of the information in the ShadowMeshBase was skipped.
+          *
+          * @param theEvent the event
+          */
+        public void updateSkipped(
+                ShadowMeshBaseEvent theEvent )
+        {
+            ++theSkippedCount;
+        }
+
+        /**
+          * An update of the information in the ShadowMeshBase has just finished successfully.
+          *
+          * @param theEvent the event
+          */
+        public void updateFinishedSuccessfully(
+                ShadowMeshBaseEvent theEvent )
+        {}
+
+        /**
+          * An update of the information in the ShadowMeshBase has just finished unsuccessfully.
+          *
+          * @param theEvent the event
+          */
+        public void updateFinishedUnsuccessfully(
+                ShadowMeshBaseEvent theEvent )
+        {}
+
+        /**
+         * The number of skipped updates.
+         */
+        protected int theSkippedCount;
+    }
+}
@@ -0,0 +1,324 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.test.shadow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Collection;
+import org.infogrid.mesh.EntityBlessedAlreadyException;
+import org.infogrid.mesh.EntityNotBlessedException;
+import org.infogrid.mesh.IllegalPropertyTypeException;
+import org.infogrid.mesh.IllegalPropertyValueException;
+import org.infogrid.mesh.IsAbstractException;
+import org.infogrid.mesh.MeshObjectIdentifierNotUniqueException;
+import org.infogrid.mesh.NotPermittedException;
+import org.infogrid.mesh.NotRelatedException;
+import org.infogrid.mesh.RelatedAlreadyException;
+import org.infogrid.mesh.RoleTypeBlessedAlreadyException;
+import org.infogrid.meshbase.net.CoherenceSpecification;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.meshbase.transaction.TransactionException;
+import org.infogrid.model.Probe.ProbeSubjectArea;
+import org.infogrid.probe.ProbeDirectory.StreamProbeDescriptor;
+import org.infogrid.probe.ProbeException;
+import org.infogrid.probe.StagingMeshBase;
+import org.infogrid.probe.blob.BlobProbe;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.probe.shadow.ShadowMeshBaseEvent;
+import org.infogrid.probe.shadow.ShadowMeshBaseListener;
+import org.infogrid.testharness.AbstractTest;
+import org.infogrid.util.logging.Log;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Tests that a data source, whose modification time changed but whose content did not, neither
+ * runs the Probe nor the differencer, and that the content digest is kept.
+ */
+@RunWith(Parameterized.class)
+public class ContentDigestTest1
+        extends
+            AbstractShadowTest
+{
+    /**
+     * Test parameters.
+     *
+     * @return test parameters
+     */
+    @Parameterized.Parameters
+    public static Collection<Object[]> parameters()
+    {
+        return Arrays.asList( new Object[][] {
+                {
+                    AbstractTest.tempInputFileName( ContentDigestTest1.class, "digest-active.txt" ),
+                    AbstractTest.fileSystemFileName( ContentDigestTest1.class, "ContentDigestTest1_1.txt" ),
+                    AbstractTest.fileSystemFileName( ContentDigestTest1.class, "ContentDigestTest1_2.txt" )
+                }
+        });
+    }
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things may happen during a test
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        copyFile( theTestFile1, theTestFile0 );
+
+        log.info( "accessing test file 1" );
+
+        base.accessLocally( theTestFile0Id, CoherenceSpecification.ONE_TIME_ONLY );
+
+        ShadowMeshBase shadow = base.getShadowMeshBaseFor( theTestFile0Id );
+        checkObject( shadow, "could not find shadow" );
+        checkEquals( CountingProbe.theRunCount, 1, "Probe did not run" );
+
+        Object digest1 = shadow.getHomeObject().getPropertyValue( ProbeSubjectArea.PROBEUPDATESPECIFICATION_CONTENTDIGEST );
+        checkObject( digest1, "no content digest" );
+
+        MyShadowListener listener = new MyShadowListener();
+        shadow.addDirectShadowListener( listener );
+
+        sleepFor( 1001L ); // make sure time advances even on virtualized machines
+
+        //
+
+        log.info( "writing the same content again, and updating" );
+
+        copyFile( theTestFile1, theTestFile0 );
+        checkCondition( new File( theTestFile0 ).setLastModified( System.currentTimeMillis() ), "could not touch test file" );
+
+        shadow.doUpdateNow();
+
+        checkEquals( CountingProbe.theRunCount, 1, "Probe ran although the content was unchanged" );
+        checkEquals( listener.theSkippedCount, 1, "update was not skipped" );
+        checkEquals( listener.theFinishedCount, 0, "differencer was run" );
+        checkEquals(
+                shadow.getHomeObject().getPropertyValue( ProbeSubjectArea.PROBEUPDATESPECIFICATION_CONTENTDIGEST ),
+                digest1,
+                "content digest changed" );
+
+        sleepFor( 1001L ); // make sure time advances even on virtualized machines
+
+        //
+
+        log.info( "writing different content, and updating" );
+
+        copyFile( theTestFile2, theTestFile0 );
+
+        shadow.doUpdateNow();
+
+        checkEquals( CountingProbe.theRunCount, 2, "Probe did not run although the content changed" );
+        checkEquals( listener.theSkippedCount, 1, "update was skipped" );
+        checkEquals( listener.theFinishedCount, 1, "update did not finish" );
+        checkCondition(
+                !digest1.equals( shadow.getHomeObject().getPropertyValue( ProbeSubjectArea.PROBEUPDATESPECIFICATION_CONTENTDIGEST )),
+                "content digest did not change" );
+    }
+
+    /**
+     * Setup.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @Before
+    @Override
+    public void setup()
+        throws
+            Exception
+    {
+        super.setup();
+
+        CountingProbe.theRunCount = 0;
+
+        theProbeDirectory.addStreamProbe( new StreamProbeDescriptor( "text/plain", CountingProbe.class ));
+    }
+
+    /**
+     * Constructor with parameters.
+     *
+     * @param testFile0 filename of the test file in the read position
+     * @param testFile1 filename of the first version of the test file
+     * @param testFile2 filename of the second version of the test file
+     * @throws Exception all sorts of things may happen during a test
+     */
+    public ContentDigestTest1(
+            String testFile0,
+            String testFile1,
+            String testFile2 )
+        throws
+            Exception
+    {
+        theTestFile0 = testFile0;
+        theTestFile1 = testFile1;
+        theTestFile2 = testFile2;
+
+        theTestFile0Id = theMeshBaseIdentifierFactory.obtain( new File( theTestFile0 ));
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( ContentDigestTest1.class );
+
+    /**
+     * File name of the test file in the read position.
+     */
+    protected String theTestFile0;
+
+    /**
+     * File name of the first version of the test file.
+     */
+    protected String theTestFile1;
+
+    /**
+     * File name of the second version of the test file.
+     */
+    protected String theTestFile2;
+
+    /**
+     * The NetworkIdentifer of the test file in the read position.
+     */
+    protected NetMeshBaseIdentifier theTestFile0Id;
+
+    /**
+     * A BlobProbe that counts how often it has been run.
+     */
+    public static class CountingProbe
+            extends
+                BlobProbe
+    {
+        /**
+         * Read from the InputStream and instantiate corresponding MeshObjects.
+         *
+         * @param dataSourceIdentifier identifies the data source that is being accessed
+         * @param coherenceSpecification the type of data coherence that is requested by the application
+         * @param stream the InputStream to read from
+         * @param contentType the content type (MIME) if known
+         * @param freshMeshBase the StagingMeshBase in which the corresponding MeshObjects are to be instantiated
+         * @throws EntityBlessedAlreadyException should not be thrown
+         * @throws EntityNotBlessedException should not be thrown
+         * @throws IllegalPropertyTypeException should not be thrown
+         * @throws IllegalPropertyValueException should not be thrown
+         * @throws IOException an input/output error occurred during execution of the Probe
+         * @throws IsAbstractException should not be thrown
+         * @throws MeshObjectIdentifierNotUniqueException should not be thrown
+         * @throws NotPermittedException should not be thrown
+         * @throws NotRelatedException should not be thrown
+         * @throws ProbeException a Probe error occurred
+         * @throws RelatedAlreadyException should not be thrown
+         * @throws RoleTypeBlessedAlreadyException should not be thrown
+         * @throws TransactionException should not be thrown
+         * @throws URISyntaxException should not be thrown
+         */
+        @Override
+        public void readFromStream(
+                NetMeshBaseIdentifier  dataSourceIdentifier,
+                CoherenceSpecification coherenceSpecification,
+                InputStream            stream,
+                String                 contentType,
+                StagingMeshBase        freshMeshBase )
+            throws
+                EntityBlessedAlreadyException,
+                EntityNotBlessedException,
+                IllegalPropertyTypeException,
+                IllegalPropertyValueException,
+                IOException,
+                IsAbstractException,
+                MeshObjectIdentifierNotUniqueException,
+                NotPermittedException,
+                NotRelatedException,
+                ProbeException,
+                RelatedAlreadyException,
+                RoleTypeBlessedAlreadyException,
+                TransactionException,
+                URISyntaxException
+        {
+            ++theRunCount;
+
+            super.readFromStream( dataSourceIdentifier, coherenceSpecification, stream, contentType, freshMeshBase );
+        }
+
+        /**
+         * The number of times the Probe has been run.
+         */
+        public static int theRunCount;
+    }
+
+    /**
+     * Counts the skipped and the finished updates.
+     */
+    static class MyShadowListener
+        implements
+            ShadowMeshBaseListener
+    {
+        /**
+          * An update of the information in the ShadowMeshBase is about to start.
+          *
+          * @param theEvent the event
+          */
+        public void updateStarting(
+                ShadowMeshBaseEvent theEvent )
+        {}
+
+        /**
+          * An update of the information in the ShadowMeshBase was skipped.
+          *
+          * @param theEvent the event
+          */
+        public void updateSkipped(
+                ShadowMeshBaseEvent theEvent )
+        {
+            ++theSkippedCount;
+        }
+
+        /**
+          * An update of the information in the ShadowMeshBase has just finished successfully.
+          *
+          * @param theEvent the event
+          */
+        public void updateFinishedSuccessfully(
+                ShadowMeshBaseEvent theEvent )
+        {
+            ++theFinishedCount;
+        }
+
+        /**
+          * An update of the information in the ShadowMeshBase has just finished unsuccessfully.
+          *
+          * @param theEvent the event
+          */
+        public void updateFinishedUnsuccessfully(
+                ShadowMeshBaseEvent theEvent )
+        {}
+
+        /**
+         * The number of skipped updates.
+         */
+        protected int theSkippedCount;
+
+        /**
+         * The number of updates that finished successfully with changes.
+         */
+        protected int theFinishedCount;
+    }
+}
@@ -0,0 +1,233 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.test.shadow;
+
+import java.util.Locale;
+import java.util.ResourceBundle;
+import org.diet4j.core.ModuleRegistry;
+import org.diet4j.core.ModuleRequirement;
+import org.diet4j.inclasspath.InClasspathModuleRegistry;
+import org.infogrid.probe.HostPolitenessPolicy;
+import org.infogrid.probe.HttpDateParser;
+import org.infogrid.testharness.AbstractTest;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.logging.Log;
+import org.infogrid.util.logging.log4j.Log4jLog;
+import org.infogrid.util.logging.log4j.Log4jLogFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+  * Tests the HostPolitenessPolicy's in-flight cap, jitter, Retry-After handling and circuit breaker,
+  * and the parsing of HTTP and RFC 822 dates.
+  */
+public class HostPolitenessPolicyTest1
+    extends
+        AbstractTest
+{
+    /**
+     * Initialize Module Framework, and initialize statics.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @BeforeClass
+    public static void initialize()
+        throws
+            Exception
+    {
+        ClassLoader    cl       = HostPolitenessPolicyTest1.class.getClassLoader();
+        ModuleRegistry registry = InClasspathModuleRegistry.instantiateOrGet( cl );
+
+        registry.resolve( registry.determineSingleResolutionCandidate( ModuleRequirement.create( "org.infogrid", "org.infogrid.probe" ))).activateRecursively();
+
+        Log4jLog.configure( "org/infogrid/probe/test/Log.properties", cl );
+        Log.setLogFactory( new Log4jLogFactory());
+
+        ResourceHelper.setApplicationResourceBundle( ResourceBundle.getBundle(
+                "org/infogrid/probe/test/ResourceHelper",
+                Locale.getDefault(),
+                cl ));
+    }
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things can go wrong during a test
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        HostPolitenessPolicy policy = HostPolitenessPolicy.create( 2, MIN_DEFERRAL, MAX_JITTER, MAX_RETRY_AFTER );
+        long                 now    = System.currentTimeMillis();
+
+        //
+
+        log.info( "Checking in-flight cap" );
+
+        checkEquals( policy.tryAdmit( "a.example.com", now ), 0L, "first run not admitted" );
+        checkEquals( policy.tryAdmit( "a.example.com", now ), 0L, "second run not admitted" );
+        checkEquals( policy.getInFlightCount( "a.example.com" ), 2, "wrong in-flight count" );
+
+        long deferral = policy.tryAdmit( "a.example.com", now );
+        checkCondition( deferral >= MIN_DEFERRAL && deferral <= MIN_DEFERRAL + MAX_JITTER, "third run not deferred correctly: " + deferral );
+
+        checkEquals( policy.tryAdmit( "b.example.com", now ), 0L, "other host not admitted" );
+
+        policy.release( "a.example.com" );
+        checkEquals( policy.tryAdmit( "a.example.com", now ), 0L, "run not admitted after release" );
+
+        policy.release( "a.example.com" );
+        policy.release( "a.example.com" );
+        policy.release( "b.example.com" );
+        checkEquals( policy.getInFlightCount( "a.example.com" ), 0, "wrong in-flight count" );
+
+        //
+
+        log.info( "Checking Retry-After" );
+
+        checkEquals( HostPolitenessPolicy.parseRetryAfter( "120", now ), now + 120000L, "wrong seconds" );
+        checkEquals( HostPolitenessPolicy.parseRetryAfter( "Wed, 21 Oct 2015 07:28:00 GMT", now ), 1445412480000L, "wrong date" );
+        checkEquals( HostPolitenessPolicy.parseRetryAfter( "soon", now ), -1L, "parsed garbage" );
+
+        checkEquals( HttpDateParser.parse( "21 Oct 2015 07:28:00 GMT" ),        1445412480000L, "wrong date without day of the week" );
+        checkEquals( HttpDateParser.parse( "Wed, 21 Oct 15 07:28 +0000" ),      1445412480000L, "wrong date with short year, no seconds" );
+        checkEquals( HttpDateParser.parse( "21 Oct 2015 09:28:00 +0200" ),      1445412480000L, "wrong date with offset" );
+        checkEquals( HttpDateParser.parse( "Wednesday, 21-Oct-15 07:28:00 GMT" ), 1445412480000L, "wrong RFC 850 date" );
+        checkEquals( HttpDateParser.parse( "Wed Oct 21 07:28:00 2015" ),        1445412480000L, "wrong asctime date" );
+
+        policy.retryAfter( "c.example.com", now + 5000L );
+
+        deferral = policy.tryAdmit( "c.example.com", now );
+        checkCondition( deferral >= 5000L && deferral <= 5000L + MAX_JITTER, "not deferred until Retry-After: " + deferral );
+
+        checkEquals( policy.tryAdmit( "c.example.com", now + 5001L ), 0L, "not admitted after Retry-After" );
+        policy.release( "c.example.com" );
+
+        policy.retryAfter( "d.example.com", now + 10L * MAX_RETRY_AFTER );
+
+        deferral = policy.tryAdmit( "d.example.com", System.currentTimeMillis() );
+        checkCondition( deferral <= MAX_RETRY_AFTER + MAX_JITTER, "Retry-After not capped: " + deferral );
+
+        //
+
+        log.info( "Checking that there is no circuit breaker by default" );
+
+        for( int i=0 ; i<10 ; ++i ) {
+            checkEquals( policy.tryAdmit( "e.example.com", System.currentTimeMillis() ), 0L, "run " + i + " not admitted" );
+            policy.release( "e.example.com", false );
+        }
+        checkCondition( !policy.isCircuitOpen( "e.example.com", System.currentTimeMillis() ), "circuit open by default" );
+    }
+
+    /**
+     * Test the circuit breaker.
+     *
+     * @throws Exception all sorts of things can go wrong during a test
+     */
+    @Test
+    public void runCircuitBreaker()
+        throws
+            Exception
+    {
+        final HostPolitenessPolicy policy = HostPolitenessPolicy.create( 10, MIN_DEFERRAL, MAX_JITTER, MAX_RETRY_AFTER, 3, OPEN_DURATION, 4 * OPEN_DURATION );
+        final String               host   = "dead.example.com";
+
+        //
+
+        log.info( "Failing until the circuit opens" );
+
+        for( int i=0 ; i<3 ; ++i ) {
+            checkEquals( policy.tryAdmit( host, System.currentTimeMillis() ), 0L, "run " + i + " not admitted" );
+            policy.release( host, false );
+        }
+        long now = System.currentTimeMillis();
+        checkCondition( policy.isCircuitOpen( host, now ), "circuit not open" );
+        checkCondition( policy.tryAdmit( host, now ) >= OPEN_DURATION - 100L, "admitted while circuit open" );
+
+        //
+
+        log.info( "Half-open: one trial, which fails" );
+
+        Thread.sleep( OPEN_DURATION + 100L );
+
+        now = System.currentTimeMillis();
+        checkCondition( !policy.isCircuitOpen( host, now ), "circuit still open" );
+        checkEquals( policy.tryAdmit( host, now ), 0L, "trial not admitted" );
+        checkCondition( policy.tryAdmit( host, now ) > 0L, "second trial admitted" );
+
+        log.info( "Half-open: a forced run fails while the trial is in flight" );
+
+        Thread forced = new Thread() {
+                @Override
+                public void run()
+                {
+                    policy.admit( host );
+                    policy.release( host, false );
+                }
+        };
+        forced.start();
+        forced.join();
+
+        now = System.currentTimeMillis();
+        checkCondition( !policy.isCircuitOpen( host, now ), "forced run opened the circuit" );
+        checkCondition( policy.tryAdmit( host, now ) > 0L, "second trial admitted after forced run" );
+
+        policy.release( host, false );
+
+        now = System.currentTimeMillis();
+        checkCondition( policy.isCircuitOpen( host, now + OPEN_DURATION + 100L ), "circuit not open twice as long" );
+
+        //
+
+        log.info( "Half-open: one trial, which succeeds" );
+
+        Thread.sleep( 2 * OPEN_DURATION + 100L );
+
+        now = System.currentTimeMillis();
+        checkEquals( policy.tryAdmit( host, now ), 0L, "trial not admitted" );
+        policy.release( host, true );
+
+        checkCondition( !policy.isCircuitOpen( host, now ), "circuit still open" );
+        checkEquals( policy.tryAdmit( host, now ), 0L, "run not admitted after circuit closed" );
+        checkEquals( policy.tryAdmit( host, now ), 0L, "run not admitted after circuit closed" );
+        policy.release( host, true );
+        policy.release( host, true );
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( HostPolitenessPolicyTest1.class );
+
+    /**
+     * The minimum deferral used in this test.
+     */
+    protected static final long MIN_DEFERRAL = 1000L;
+
+    /**
+     * The maximum jitter used in this test.
+     */
+    protected static final long MAX_JITTER = 500L;
+
+    /**
+     * The maximum Retry-After used in this test.
+     */
+    protected static final long MAX_RETRY_AFTER = 60000L;
+
+    /**
+     * The time for which the circuit opens first in this test.
+     */
+    protected static final long OPEN_DURATION = 500L;
+}
@@ -0,0 +1,192 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.test.shadow;
+
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.regex.Pattern;
+import org.diet4j.core.ModuleRegistry;
+import org.diet4j.core.ModuleRequirement;
+import org.diet4j.inclasspath.InClasspathModuleRegistry;
+import org.infogrid.probe.ProbeDirectory;
+import org.infogrid.probe.UrlPatternIndex;
+import org.infogrid.probe.m.MIndexedProbeDirectory;
+import org.infogrid.probe.m.MProbeDirectory;
+import org.infogrid.testharness.AbstractTest;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.logging.Log;
+import org.infogrid.util.logging.log4j.Log4jLog;
+import org.infogrid.util.logging.log4j.Log4jLogFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that MIndexedProbeDirectory finds the same Probes as MProbeDirectory.
+ */
+public class IndexedProbeDirectoryTest1
+        extends
+            AbstractTest
+{
+    /**
+     * Initialize Module Framework, and initialize statics.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @BeforeClass
+    public static void initialize()
+        throws
+            Exception
+    {
+        ClassLoader    cl       = IndexedProbeDirectoryTest1.class.getClassLoader();
+        ModuleRegistry registry = InClasspathModuleRegistry.instantiateOrGet( cl );
+
+        registry.resolve( registry.determineSingleResolutionCandidate( ModuleRequirement.create( "org.infogrid", "org.infogrid.probe" ))).activateRecursively();
+
+        Log4jLog.configure( "org/infogrid/probe/test/Log.properties", cl );
+        Log.setLogFactory( new Log4jLogFactory());
+
+        ResourceHelper.setApplicationResourceBundle( ResourceBundle.getBundle(
+                "org/infogrid/probe/test/ResourceHelper",
+                Locale.getDefault(),
+                cl ));
+    }
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things can go wrong during a test
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        log.info( "Checking literal prefixes" );
+
+        checkEquals( UrlPatternIndex.determineLiteralPrefix( Pattern.compile( "http://example\\.com/.*" )), "http://example.com/", "wrong prefix" );
+        checkEquals( UrlPatternIndex.determineLiteralPrefix( Pattern.compile( "^https?://x" )),             "http",                "wrong prefix" );
+        checkEquals( UrlPatternIndex.determineLiteralPrefix( Pattern.compile( "a(b)c" )),                   "a",                   "wrong prefix" );
+        checkEquals( UrlPatternIndex.determineLiteralPrefix( Pattern.compile( "abc|abd" )),                 "",                    "wrong prefix" );
+        checkEquals( UrlPatternIndex.determineLiteralPrefix( Pattern.compile( "\\dabc" )),                  "",                    "wrong prefix" );
+        checkEquals( UrlPatternIndex.determineLiteralPrefix( Pattern.compile( "abc", Pattern.CASE_INSENSITIVE )), "",              "wrong prefix" );
+
+        //
+
+        log.info( "Populating ProbeDirectories" );
+
+        MProbeDirectory        linear  = MProbeDirectory.createEmpty();
+        MIndexedProbeDirectory indexed = MIndexedProbeDirectory.createEmpty();
+
+        String [] patterns = {
+                "http://example\\.com/a/.*",
+                "http://example\\.com/.*",
+                "https?://example\\.com/a/b",
+                ".*\\.xml",
+                "http://example\\.org/(x|y)/.*",
+                "http://example\\.com/a/b"
+        };
+        for( int i=0 ; i<patterns.length ; ++i ) {
+            ProbeDirectory.PatternMatchDescriptor desc = new ProbeDirectory.PatternMatchDescriptor(
+                    Pattern.compile( patterns[i] ),
+                    "Pattern" + i,
+                    null );
+            linear.addPatternUrlMatch( desc );
+            indexed.addPatternUrlMatch( desc );
+        }
+        for( int i=0 ; i<N_EXACT ; ++i ) {
+            ProbeDirectory.ExactMatchDescriptor desc = new ProbeDirectory.ExactMatchDescriptor(
+                    "http://example.com/exact/" + i,
+                    "Exact" + i,
+                    null );
+            linear.addExactUrlMatch( desc );
+            indexed.addExactUrlMatch( desc );
+        }
+        ProbeDirectory.StreamProbeDescriptor [] streams = {
+                new ProbeDirectory.StreamProbeDescriptor( new String[] { "text/plain", "text/csv" }, "Stream0", null ),
+                new ProbeDirectory.StreamProbeDescriptor( new String[] { "text/csv", "text/vcard" }, "Stream1", null )
+        };
+        for( ProbeDirectory.StreamProbeDescriptor current : streams ) {
+            linear.addStreamProbe( current );
+            indexed.addStreamProbe( current );
+        }
+        ProbeDirectory.XmlDomProbeDescriptor xml = new ProbeDirectory.XmlDomProbeDescriptor(
+                new String[] { "doc1", "doc2" },
+                new String[] { "http://example.com/ns", null },
+                new String[] { "root", "root" },
+                "Xml0",
+                null );
+        linear.addXmlDomProbe( xml );
+        indexed.addXmlDomProbe( xml );
+
+        ProbeDirectory.ApiProbeDescriptor api = new ProbeDirectory.ApiProbeDescriptor( new String[] { "jdbc", "ldap" }, "Api0", null );
+        linear.addApiProbe( api );
+        indexed.addApiProbe( api );
+
+        //
+
+        log.info( "Comparing lookups" );
+
+        String [] urls = {
+                "http://example.com/a/b",
+                "https://example.com/a/b",
+                "http://example.com/a/c",
+                "http://example.com/",
+                "http://example.com",
+                "http://example.org/x/1",
+                "http://example.org/z/1",
+                "http://example.org/z/1.xml",
+                "http://example.com/exact/0",
+                "http://example.com/exact/" + ( N_EXACT-1 ),
+                "http://example.com/exact/" + N_EXACT,
+                "",
+                "ftp://nowhere"
+        };
+        for( String url : urls ) {
+            checkIdentity( indexed.getApiProbeDescriptorByMatchedUrl( url ), linear.getApiProbeDescriptorByMatchedUrl( url ), "different match for " + url );
+        }
+
+        for( String mime : new String[] { "text/plain", "text/csv", "text/vcard", "text/html" } ) {
+            checkIdentity( indexed.getStreamProbeDescriptorByMimeType( mime ), linear.getStreamProbeDescriptorByMimeType( mime ), "different match for " + mime );
+        }
+        for( String docType : new String[] { "doc1", "doc2", "doc3" } ) {
+            checkIdentity( indexed.getXmlDomProbeDescriptorByDocumentType( docType ), linear.getXmlDomProbeDescriptorByDocumentType( docType ), "different match for " + docType );
+        }
+        checkIdentity( indexed.getXmlDomProbeDescriptorByTagType( "http://example.com/ns", "root" ), xml, "tag type not found" );
+        checkIdentity( indexed.getXmlDomProbeDescriptorByTagType( null, "root" ),                    xml, "tag type not found" );
+        checkEquals(   indexed.getXmlDomProbeDescriptorByTagType( "http://example.com/other", "root" ), null, "wrong tag type found" );
+
+        checkIdentity( indexed.getApiProbeDescriptorByProtocol( "ldap" ), api, "protocol not found" );
+        checkEquals(   indexed.getApiProbeDescriptorByProtocol( "http" ), null, "wrong protocol found" );
+
+        //
+
+        log.info( "Checking duplicates are rejected" );
+
+        try {
+            indexed.addExactUrlMatch( new ProbeDirectory.ExactMatchDescriptor( "http://example.com/exact/0", "Duplicate", null ));
+            reportError( "Duplicate exact match accepted" );
+        } catch( IllegalArgumentException ex ) {
+            // expected
+        }
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( IndexedProbeDirectoryTest1.class );
+
+    /**
+     * The number of exact matches used in this test.
+     */
+    protected static final int N_EXACT = 500;
+}
@@ -0,0 +1,161 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.test.shadow;
+
+import java.util.Locale;
+import java.util.ResourceBundle;
+import org.diet4j.core.ModuleRegistry;
+import org.diet4j.core.ModuleRequirement;
+import org.diet4j.inclasspath.InClasspathModuleRegistry;
+import org.infogrid.meshbase.net.CoherenceSpecification;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.probe.ApiProbe;
+import org.infogrid.probe.ProbeDirectory;
+import org.infogrid.probe.ProbeFactoryCache;
+import org.infogrid.probe.ReusableProbe;
+import org.infogrid.probe.StagingMeshBase;
+import org.infogrid.testharness.AbstractTest;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.logging.Log;
+import org.infogrid.util.logging.log4j.Log4jLog;
+import org.infogrid.util.logging.log4j.Log4jLogFactory;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+  * Tests that the ProbeFactoryCache resolves ProbeDescriptors once, and reuses ReusableProbes.
+  */
+public class ProbeFactoryCacheTest1
+    extends
+        AbstractTest
+{
+    /**
+     * Initialize Module Framework, and initialize statics.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @BeforeClass
+    public static void initialize()
+        throws
+            Exception
+    {
+        ClassLoader    cl       = ProbeFactoryCacheTest1.class.getClassLoader();
+        ModuleRegistry registry = InClasspathModuleRegistry.instantiateOrGet( cl );
+
+        registry.resolve( registry.determineSingleResolutionCandidate( ModuleRequirement.create( "org.infogrid", "org.infogrid.probe" ))).activateRecursively();
+
+        Log4jLog.configure( "org/infogrid/probe/test/Log.properties", cl );
+        Log.setLogFactory( new Log4jLogFactory());
+
+        ResourceHelper.setApplicationResourceBundle( ResourceBundle.getBundle(
+                "org/infogrid/probe/test/ResourceHelper",
+                Locale.getDefault(),
+                cl ));
+
+        theModuleRegistry = registry;
+    }
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things can go wrong during a test
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        ProbeFactoryCache cache = ProbeFactoryCache.create();
+
+        ProbeDirectory.ExactMatchDescriptor byClass = new ProbeDirectory.ExactMatchDescriptor(
+                "test://here.local/a",
+                RegularProbe.class );
+        ProbeDirectory.ExactMatchDescriptor byName = new ProbeDirectory.ExactMatchDescriptor(
+                "test://here.local/b",
+                SharedProbe.class.getName(),
+                (ModuleRequirement) null );
+
+        //
+
+        log.info( "Resolving" );
+
+        ProbeFactoryCache.ProbeFactory factory1 = cache.obtainFactoryFor( byClass, theModuleRegistry );
+        ProbeFactoryCache.ProbeFactory factory2 = cache.obtainFactoryFor( byName,  theModuleRegistry );
+
+        checkEquals( factory1.getProbeClass(), RegularProbe.class, "wrong class" );
+        checkEquals( factory2.getProbeClass(), SharedProbe.class,  "wrong class" );
+
+        checkIdentity( cache.obtainFactoryFor( byClass, theModuleRegistry ), factory1, "not cached" );
+        checkIdentity( cache.obtainFactoryFor( byName,  theModuleRegistry ), factory2, "not cached" );
+
+        //
+
+        log.info( "Instantiating" );
+
+        checkCondition( factory1.obtainProbe() != factory1.obtainProbe(), "regular Probe reused" );
+        checkIdentity( factory2.obtainProbe(), factory2.obtainProbe(), "ReusableProbe not reused" );
+
+        //
+
+        log.info( "Invalidating" );
+
+        cache.invalidate( byName );
+        checkCondition( cache.obtainFactoryFor( byName, theModuleRegistry ) != factory2, "not invalidated" );
+
+        cache.invalidateAll();
+        checkCondition( cache.obtainFactoryFor( byClass, theModuleRegistry ) != factory1, "not invalidated" );
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( ProbeFactoryCacheTest1.class );
+
+    /**
+     * The ModuleRegistry.
+     */
+    protected static ModuleRegistry theModuleRegistry;
+
+    /**
+     * A regular test Probe.
+     */
+    public static class RegularProbe
+            implements
+                ApiProbe
+    {
+        public void readFromApi(
+                NetMeshBaseIdentifier  networkId,
+                CoherenceSpecification coherence,
+                StagingMeshBase        mb )
+        {
+            // nothing
+        }
+    }
+
+    /**
+     * A test Probe that can be reused.
+     */
+    public static class SharedProbe
+            implements
+                ApiProbe,
+                ReusableProbe
+    {
+        public void readFromApi(
+                NetMeshBaseIdentifier  networkId,
+                CoherenceSpecification coherence,
+                StagingMeshBase        mb )
+        {
+            // nothing
+        }
+    }
+}
@@ -0,0 +1,206 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.test.shadow;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import org.infogrid.meshbase.net.CoherenceSpecification;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.probe.ProbeDirectory;
+import org.infogrid.probe.ProbeDirectory.StreamProbeDescriptor;
+import org.infogrid.probe.ProbeDispatcher;
+import org.infogrid.probe.blob.BlobProbe;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.testharness.AbstractTest;
+import org.infogrid.util.logging.Log;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Tests that the ProbeDispatcher's cached replication index is reused while nothing changes,
+ * and rebuilt when the replication epoch changes or when the set of Proxies changes.
+ */
+@RunWith(Parameterized.class)
+public class ReplicationIndexTest1
+        extends
+            AbstractShadowTest
+{
+    /**
+     * Test parameters.
+     *
+     * @return test parameters
+     */
+    @Parameterized.Parameters
+    public static Collection<Object[]> parameters()
+    {
+        return Arrays.asList( new Object[][] {
+                {
+                    AbstractTest.fileSystemFileName( ReplicationIndexTest1.class, "ContentDigestTest1_1.txt" )
+                }
+        });
+    }
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things may happen during a test
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        log.info( "accessing test file" );
+
+        base.accessLocally( theTestFileId, CoherenceSpecification.ONE_TIME_ONLY );
+
+        ShadowMeshBase shadow = base.getShadowMeshBaseFor( theTestFileId );
+        checkObject( shadow, "could not find shadow" );
+
+        MyProbeDispatcher dispatcher = new MyProbeDispatcher( shadow, theProbeDirectory );
+
+        //
+
+        log.info( "indexing, and indexing again without changes" );
+
+        Object index1 = dispatcher.obtainCurrentReplicationIndex();
+        checkObject( index1, "no index" );
+        checkCondition( dispatcher.isNeeded(), "shadow replicated to base, but not needed" );
+
+        Object index2 = dispatcher.obtainCurrentReplicationIndex();
+        checkCondition( index1 == index2, "rescanned although nothing changed" );
+
+        //
+
+        log.info( "invalidating by epoch" );
+
+        dispatcher.replicationMayHaveChanged();
+
+        Object index3 = dispatcher.obtainCurrentReplicationIndex();
+        checkCondition( index3 != index2, "not rescanned although the epoch changed" );
+        checkCondition( index3 == dispatcher.obtainCurrentReplicationIndex(), "rescanned twice for the same epoch" );
+
+        //
+
+        log.info( "invalidating by a different set of Proxies" );
+
+        dispatcher.theExtraPartner = theMeshBaseIdentifierFactory.fromExternalForm( "http://elsewhere.local/" );
+
+        Object index4 = dispatcher.obtainCurrentReplicationIndex();
+        checkCondition( index4 != index3, "not rescanned although a Proxy was added" );
+        checkCondition( index4 == dispatcher.obtainCurrentReplicationIndex(), "rescanned twice for the same Proxies" );
+
+        dispatcher.theExtraPartner = null;
+
+        Object index5 = dispatcher.obtainCurrentReplicationIndex();
+        checkCondition( index5 != index4, "not rescanned although a Proxy went away" );
+        checkCondition( dispatcher.isNeeded(), "shadow replicated to base, but not needed after rescans" );
+    }
+
+    /**
+     * Setup.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @Before
+    @Override
+    public void setup()
+        throws
+            Exception
+    {
+        super.setup();
+
+        theProbeDirectory.addStreamProbe( new StreamProbeDescriptor( "text/plain", BlobProbe.class ));
+    }
+
+    /**
+     * Constructor with parameters.
+     *
+     * @param testFile filename of the test file
+     * @throws Exception all sorts of things may happen during a test
+     */
+    public ReplicationIndexTest1(
+            String testFile )
+        throws
+            Exception
+    {
+        theTestFileId = theMeshBaseIdentifierFactory.obtain( new File( testFile ));
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( ReplicationIndexTest1.class );
+
+    /**
+     * The NetworkIdentifer of the test file.
+     */
+    protected NetMeshBaseIdentifier theTestFileId;
+
+    /**
+     * Gives the test access to the replication index, and lets it pretend that there is
+     * a Proxy to another NetMeshBase.
+     */
+    static class MyProbeDispatcher
+            extends
+                ProbeDispatcher
+    {
+        /**
+         * Constructor.
+         *
+         * @param meshBase the ShadowMeshBase whose replication is indexed
+         * @param directory the ProbeDirectory to use
+         */
+        public MyProbeDispatcher(
+                ShadowMeshBase meshBase,
+                ProbeDirectory directory )
+        {
+            super( meshBase, directory, System.currentTimeMillis(), -1L, null, null );
+        }
+
+        /**
+         * Obtain the current replication index.
+         *
+         * @return the replication index
+         */
+        public Object obtainCurrentReplicationIndex()
+        {
+            return obtainReplicationIndex();
+        }
+
+        /**
+         * Determine the identifiers of the NetMeshBases to which the ShadowMeshBase currently has Proxies,
+         * plus the pretend one, if any.
+         *
+         * @return the identifiers
+         */
+        @Override
+        protected Set<NetMeshBaseIdentifier> determineProxyPartners()
+        {
+            Set<NetMeshBaseIdentifier> ret = super.determineProxyPartners();
+            if( theExtraPartner != null ) {
+                ret.add( theExtraPartner );
+            }
+            return ret;
+        }
+
+        /**
+         * Identifier of the NetMeshBase to which we pretend there is a Proxy, if any.
+         */
+        protected volatile NetMeshBaseIdentifier theExtraPartner;
+    }
+}
@@ -0,0 +1,375 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.test.shadow;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import org.diet4j.core.ModuleException;
+import org.diet4j.core.ModuleRegistry;
+import org.diet4j.core.ModuleRequirement;
+import org.diet4j.inclasspath.InClasspathModuleRegistry;
+import org.infogrid.mesh.EntityBlessedAlreadyException;
+import org.infogrid.mesh.EntityNotBlessedException;
+import org.infogrid.mesh.IllegalPropertyTypeException;
+import org.infogrid.mesh.IllegalPropertyValueException;
+import org.infogrid.mesh.IsAbstractException;
+import org.infogrid.mesh.MeshObjectIdentifierNotUniqueException;
+import org.infogrid.mesh.NotPermittedException;
+import org.infogrid.mesh.NotRelatedException;
+import org.infogrid.mesh.RelatedAlreadyException;
+import org.infogrid.meshbase.net.CoherenceSpecification;
+import org.infogrid.meshbase.net.DefaultNetMeshBaseIdentifierFactory;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifierFactory;
+import org.infogrid.meshbase.net.proxy.m.MPingPongNetMessageEndpointFactory;
+import org.infogrid.meshbase.net.schemes.HttpScheme;
+import org.infogrid.meshbase.net.schemes.Scheme;
+import org.infogrid.meshbase.net.schemes.StrictRegexScheme;
+import org.infogrid.meshbase.transaction.TransactionException;
+import org.infogrid.modelbase.ModelBase;
+import org.infogrid.modelbase.ModelBaseSingleton;
+import org.infogrid.probe.ApiProbe;
+import org.infogrid.probe.ProbeDirectory;
+import org.infogrid.probe.ProbeException;
+import org.infogrid.probe.StagingMeshBase;
+import org.infogrid.probe.m.MProbeDirectory;
+import org.infogrid.probe.manager.ScheduledExecutorProbeManager;
+import org.infogrid.probe.manager.m.MScheduledExecutorProbeManager;
+import org.infogrid.probe.shadow.m.MShadowMeshBaseFactory;
+import org.infogrid.testharness.AbstractTest;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.context.Context;
+import org.infogrid.util.context.SimpleContext;
+import org.infogrid.util.logging.Log;
+import org.infogrid.util.logging.log4j.Log4jLog;
+import org.infogrid.util.logging.log4j.Log4jLogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+  * Tests that a ScheduledExecutorProbeManager with a separate run ExecutorService performs
+  * slow Probe runs concurrently, while a single Thread does the scheduling.
+  */
+public class RunExecutorProbeManagerTest1
+    extends
+        AbstractTest
+{
+    /**
+     * Initialize Module Framework, and initialize statics.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @BeforeClass
+    public static void initialize()
+        throws
+            Exception
+    {
+        ClassLoader    cl       = RunExecutorProbeManagerTest1.class.getClassLoader();
+        ModuleRegistry registry = InClasspathModuleRegistry.instantiateOrGet( cl );
+
+        registry.resolve( registry.determineSingleResolutionCandidate( ModuleRequirement.create( "org.infogrid", "org.infogrid.probe" ))).activateRecursively();
+
+        Log4jLog.configure( "org/infogrid/probe/test/Log.properties", cl );
+        Log.setLogFactory( new Log4jLogFactory());
+
+        ResourceHelper.setApplicationResourceBundle( ResourceBundle.getBundle(
+                "org/infogrid/probe/test/ResourceHelper",
+                Locale.getDefault(),
+                cl ));
+
+        theModelBase = ModelBaseSingleton.getSingleton();
+    }
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things can go wrong during a test
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        MPingPongNetMessageEndpointFactory shadowEndpointFactory = MPingPongNetMessageEndpointFactory.create( exec );
+
+        MShadowMeshBaseFactory shadowFactory = MShadowMeshBaseFactory.create(
+                theMeshBaseIdentifierFactory,
+                shadowEndpointFactory,
+                theModelBase,
+                rootContext );
+
+        ScheduledExecutorProbeManager probeManager = MScheduledExecutorProbeManager.create( shadowFactory, theProbeDirectory );
+        shadowEndpointFactory.setNameServer( probeManager.getNetMeshBaseNameServer() );
+        shadowFactory.setProbeManager( probeManager );
+        probeManager.start( exec, runExec );
+
+        //
+
+        log.info( "Creating " + theDataSources.length + " slow Shadows" );
+
+        for( int i=0 ; i<theDataSources.length ; ++i ) {
+            probeManager.obtainFor( theDataSources[i], new CoherenceSpecification.Periodic( PERIOD ));
+        }
+
+        Thread.sleep( 4 * PERIOD + PERIOD / 2 );
+
+        //
+
+        log.info( "Checking that all Shadows kept up with their schedule" );
+
+        for( int i=0 ; i<theDataSources.length ; ++i ) {
+            AtomicInteger count = theInvocationCounts.get( theDataSources[i].toExternalForm() );
+
+            checkCondition( count != null && count.get() >= 4, "Shadow " + i + " run too rarely: " + count );
+        }
+
+        //
+
+        log.info( "Removing Shadows" );
+
+        for( int i=0 ; i<theDataSources.length ; ++i ) {
+            probeManager.remove( theDataSources[i] );
+        }
+
+        Thread.sleep( 2 * PROBE_DURATION );
+
+        checkEquals( probeManager.getInFlightCount(), 0, "Probe runs still in flight" );
+        checkEquals( probeManager.getBacklogCount(),  0, "Probe runs still in backlog" );
+    }
+
+    /**
+     * Run the test with a run ExecutorService that initially rejects Probe runs.
+     *
+     * @throws Exception all sorts of things can go wrong during a test
+     */
+    @Test
+    public void runRejected()
+        throws
+            Exception
+    {
+        runExec.shutdown();
+
+        final AtomicInteger rejectCount = new AtomicInteger( 2 * theDataSources.length );
+        runExec = new ThreadPoolExecutor( 4, 4, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>() ) {
+                @Override
+                public void execute(
+                        Runnable command )
+                {
+                    if( rejectCount.getAndDecrement() > 0 ) {
+                        throw new RejectedExecutionException( "rejecting for test purposes" );
+                    }
+                    super.execute( command );
+                }
+        };
+
+        MPingPongNetMessageEndpointFactory shadowEndpointFactory = MPingPongNetMessageEndpointFactory.create( exec );
+
+        MShadowMeshBaseFactory shadowFactory = MShadowMeshBaseFactory.create(
+                theMeshBaseIdentifierFactory,
+                shadowEndpointFactory,
+                theModelBase,
+                rootContext );
+
+        ScheduledExecutorProbeManager probeManager = MScheduledExecutorProbeManager.create( shadowFactory, theProbeDirectory );
+        shadowEndpointFactory.setNameServer( probeManager.getNetMeshBaseNameServer() );
+        shadowFactory.setProbeManager( probeManager );
+        probeManager.start( exec, runExec );
+
+        //
+
+        log.info( "Creating " + theDataSources.length + " slow Shadows" );
+
+        for( int i=0 ; i<theDataSources.length ; ++i ) {
+            probeManager.obtainFor( theDataSources[i], new CoherenceSpecification.Periodic( PERIOD ));
+        }
+
+        Thread.sleep( 6 * PERIOD );
+
+        //
+
+        log.info( "Checking that rejected Probe runs were scheduled again" );
+
+        checkCondition( rejectCount.get() < 0, "Nothing was rejected" );
+
+        for( int i=0 ; i<theDataSources.length ; ++i ) {
+            AtomicInteger count = theInvocationCounts.get( theDataSources[i].toExternalForm() );
+
+            checkCondition( count != null && count.get() >= 2, "Shadow " + i + " not run again after rejection: " + count );
+        }
+
+        //
+
+        for( int i=0 ; i<theDataSources.length ; ++i ) {
+            probeManager.remove( theDataSources[i] );
+        }
+    }
+
+    /**
+     * Setup.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @Before
+    public void setup()
+        throws
+            Exception
+    {
+        theProbeDirectory = MProbeDirectory.create();
+        exec              = createThreadPool( 1 );
+        runExec           = ScheduledExecutorProbeManager.createDefaultRunExecutorService();
+
+        theInvocationCounts.clear();
+
+        theDataSources = new NetMeshBaseIdentifier[ 8 ];
+        for( int i=0 ; i<theDataSources.length ; ++i ) {
+            theDataSources[i] = theMeshBaseIdentifierFactory.fromExternalForm( PROTOCOL_NAME + "://here.local/slow" + i );
+
+            theProbeDirectory.addExactUrlMatch( new ProbeDirectory.ExactMatchDescriptor(
+                    theDataSources[i].toExternalForm(),
+                    SlowProbe.class ));
+        }
+    }
+
+    /**
+     * Clean up after the test.
+     */
+    @After
+    public void cleanup()
+    {
+        exec.shutdown();
+        exec = null;
+
+        runExec.shutdown();
+        runExec = null;
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( RunExecutorProbeManagerTest1.class );
+
+    /**
+     * The period with which the Shadows are supposed to be updated.
+     */
+    protected static final long PERIOD = 1000L;
+
+    /**
+     * The duration of each Probe run. This is chosen so that running all Probes sequentially
+     * on a single Thread would not be able to keep up with PERIOD.
+     */
+    protected static final long PROBE_DURATION = 600L;
+
+    /**
+     * Counts the number of invocations per data source.
+     */
+    protected static final ConcurrentHashMap<String,AtomicInteger> theInvocationCounts = new ConcurrentHashMap<String,AtomicInteger>();
+
+    /**
+     * The data sources.
+     */
+    protected NetMeshBaseIdentifier [] theDataSources;
+
+    /**
+     * The root context for these tests.
+     */
+    protected static final Context rootContext = SimpleContext.createRoot( "root-context" );
+
+    /**
+     * The test protocol. In the real world this would be something like "jdbc".
+     */
+    protected static final String PROTOCOL_NAME = "test";
+
+    /**
+     * Factory for NetMeshBaseIdentifiers.
+     */
+    protected static final NetMeshBaseIdentifierFactory theMeshBaseIdentifierFactory = DefaultNetMeshBaseIdentifierFactory.create(
+            new Scheme [] {
+                    new HttpScheme(),
+                    new StrictRegexScheme( PROTOCOL_NAME, Pattern.compile( PROTOCOL_NAME + ":.*" ))
+             } );
+
+    /**
+     * The ModelBase.
+     */
+    protected static ModelBase theModelBase;
+
+    /**
+     * The timer Thread.
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * The ExecutorService performing the Probe runs.
+     */
+    protected ExecutorService runExec;
+
+    /**
+     * The ProbeDirectory.
+     */
+    protected MProbeDirectory theProbeDirectory;
+
+    /**
+     * A test Probe that takes a while.
+     */
+    public static class SlowProbe
+            implements
+                ApiProbe
+    {
+        public void readFromApi(
+                NetMeshBaseIdentifier  networkId,
+                CoherenceSpecification coherence,
+                StagingMeshBase        mb )
+            throws
+                IsAbstractException,
+                EntityBlessedAlreadyException,
+                EntityNotBlessedException,
+                RelatedAlreadyException,
+                NotRelatedException,
+                MeshObjectIdentifierNotUniqueException,
+                IllegalPropertyTypeException,
+                IllegalPropertyValueException,
+                TransactionException,
+                NotPermittedException,
+                ProbeException,
+                IOException,
+                ModuleException,
+                URISyntaxException
+        {
+            AtomicInteger count = theInvocationCounts.get( networkId.toExternalForm() );
+            if( count == null ) {
+                theInvocationCounts.putIfAbsent( networkId.toExternalForm(), new AtomicInteger() );
+                count = theInvocationCounts.get( networkId.toExternalForm() );
+            }
+            count.incrementAndGet();
+
+            try {
+                Thread.sleep( PROBE_DURATION );
+            } catch( InterruptedException ex ) {
+                log.error( ex );
+            }
+        }
+    }
+}
@@ -0,0 +1,407 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.test.shadow;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Locale;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import org.diet4j.core.ModuleException;
+import org.diet4j.core.ModuleRegistry;
+import org.diet4j.core.ModuleRequirement;
+import org.diet4j.inclasspath.InClasspathModuleRegistry;
+import org.infogrid.mesh.EntityBlessedAlreadyException;
+import org.infogrid.mesh.EntityNotBlessedException;
+import org.infogrid.mesh.IllegalPropertyTypeException;
+import org.infogrid.mesh.IllegalPropertyValueException;
+import org.infogrid.mesh.IsAbstractException;
+import org.infogrid.mesh.MeshObjectIdentifierNotUniqueException;
+import org.infogrid.mesh.NotPermittedException;
+import org.infogrid.mesh.NotRelatedException;
+import org.infogrid.mesh.RelatedAlreadyException;
+import org.infogrid.meshbase.net.CoherenceSpecification;
+import org.infogrid.meshbase.net.DefaultNetMeshBaseIdentifierFactory;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifierFactory;
+import org.infogrid.meshbase.net.proxy.m.MPingPongNetMessageEndpointFactory;
+import org.infogrid.meshbase.net.schemes.HttpScheme;
+import org.infogrid.meshbase.net.schemes.Scheme;
+import org.infogrid.meshbase.net.schemes.StrictRegexScheme;
+import org.infogrid.meshbase.transaction.TransactionException;
+import org.infogrid.modelbase.ModelBase;
+import org.infogrid.modelbase.ModelBaseSingleton;
+import org.infogrid.probe.ApiProbe;
+import org.infogrid.probe.ProbeDirectory;
+import org.infogrid.probe.ProbeException;
+import org.infogrid.probe.StagingMeshBase;
+import org.infogrid.probe.m.MProbeDirectory;
+import org.infogrid.probe.manager.ScheduledExecutorProbeManager;
+import org.infogrid.probe.manager.TimingWheel;
+import org.infogrid.probe.manager.m.MTimingWheelProbeManager;
+import org.infogrid.probe.shadow.m.MShadowMeshBaseFactory;
+import org.infogrid.testharness.AbstractTest;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.context.Context;
+import org.infogrid.util.context.SimpleContext;
+import org.infogrid.util.logging.Log;
+import org.infogrid.util.logging.log4j.Log4jLog;
+import org.infogrid.util.logging.log4j.Log4jLogFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+  * Tests the TimingWheel, and that a TimingWheelProbeManager keeps many Shadows on schedule.
+  */
+public class TimingWheelProbeManagerTest1
+    extends
+        AbstractTest
+{
+    /**
+     * Initialize Module Framework, and initialize statics.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @BeforeClass
+    public static void initialize()
+        throws
+            Exception
+    {
+        ClassLoader    cl       = TimingWheelProbeManagerTest1.class.getClassLoader();
+        ModuleRegistry registry = InClasspathModuleRegistry.instantiateOrGet( cl );
+
+        registry.resolve( registry.determineSingleResolutionCandidate( ModuleRequirement.create( "org.infogrid", "org.infogrid.probe" ))).activateRecursively();
+
+        Log4jLog.configure( "org/infogrid/probe/test/Log.properties", cl );
+        Log.setLogFactory( new Log4jLogFactory());
+
+        ResourceHelper.setApplicationResourceBundle( ResourceBundle.getBundle(
+                "org/infogrid/probe/test/ResourceHelper",
+                Locale.getDefault(),
+                cl ));
+
+        theModelBase = ModelBaseSingleton.getSingleton();
+    }
+
+    /**
+     * Test the TimingWheel by itself.
+     *
+     * @throws Exception all sorts of things can go wrong during a test
+     */
+    @Test
+    public void runWheel()
+        throws
+            Exception
+    {
+        TimingWheel<String> wheel = TimingWheel.create( 10L );
+        long                start = System.currentTimeMillis();
+
+        log.info( "Scheduling on several levels" );
+
+        wheel.schedule( "a", start + 50L );        // level 0
+        wheel.schedule( "b", start + 5000L );      // level 1
+        wheel.schedule( "c", start + 1000000L );   // level 2
+        wheel.schedule( "d", start + 5000L );
+        wheel.schedule( "d", start + 200L );       // rescheduled
+
+        checkEquals( wheel.size(), 4, "wrong size" );
+
+        List<String> due = wheel.advanceTo( start + 30L );
+        checkEquals( due.size(), 0, "nothing should be due yet" );
+
+        due = wheel.advanceTo( start + 70L );
+        checkEquals( due.size(), 1, "wrong number due" );
+        checkEquals( due.get( 0 ), "a", "wrong key due" );
+
+        due = wheel.advanceTo( start + 220L );
+        checkEquals( due.size(), 1, "wrong number due" );
+        checkEquals( due.get( 0 ), "d", "wrong key due" );
+
+        due = wheel.advanceTo( start + 4980L );
+        checkEquals( due.size(), 0, "nothing should be due yet" );
+
+        due = wheel.advanceTo( start + 5020L );
+        checkEquals( due.size(), 1, "wrong number due" );
+        checkEquals( due.get( 0 ), "b", "wrong key due" );
+
+        //
+
+        log.info( "Cancelling" );
+
+        checkCondition(  wheel.cancel( "c" ), "could not cancel" );
+        checkCondition( !wheel.cancel( "c" ), "cancelled twice" );
+        checkEquals( wheel.size(), 0, "wrong size" );
+
+        due = wheel.advanceTo( start + 1001000L );
+        checkEquals( due.size(), 0, "cancelled key became due" );
+
+        //
+
+        log.info( "Scheduling overdue" );
+
+        wheel.schedule( "e", start );
+        due = wheel.advanceTo( start + 1001020L );
+        checkEquals( due.size(), 1, "wrong number due" );
+        checkEquals( due.get( 0 ), "e", "wrong key due" );
+    }
+
+    /**
+     * Test that keys cascading down from higher levels become due exactly at their tick.
+     *
+     * @throws Exception all sorts of things can go wrong during a test
+     */
+    @Test
+    public void runWheelCascade()
+        throws
+            Exception
+    {
+        TimingWheel<String> wheel = new TimingWheel<String>( 10L, 0L ) {}; // known start time
+
+        long levelOne = 10L * TimingWheel.SLOTS;                      // first tick of level 1
+        long levelTwo = 10L * TimingWheel.SLOTS * TimingWheel.SLOTS;  // first tick of level 2
+
+        wheel.schedule( "f", levelOne );
+        wheel.schedule( "g", levelTwo );
+        wheel.schedule( "h", levelTwo + 10L );
+
+        List<String> due = wheel.advanceTo( levelOne - 1L );
+        checkEquals( due.size(), 0, "nothing should be due yet" );
+
+        due = wheel.advanceTo( levelOne );
+        checkEquals( due.size(), 1, "wrong number due at the level 1 boundary" );
+        checkEquals( due.get( 0 ), "f", "wrong key due" );
+
+        due = wheel.advanceTo( levelTwo - 1L );
+        checkEquals( due.size(), 0, "nothing should be due yet" );
+
+        due = wheel.advanceTo( levelTwo );
+        checkEquals( due.size(), 1, "wrong number due at the level 2 boundary" );
+        checkEquals( due.get( 0 ), "g", "wrong key due" );
+
+        due = wheel.advanceTo( levelTwo + 10L );
+        checkEquals( due.size(), 1, "wrong number due after the level 2 boundary" );
+        checkEquals( due.get( 0 ), "h", "wrong key due" );
+    }
+
+    /**
+     * Test the TimingWheelProbeManager.
+     *
+     * @throws Exception all sorts of things can go wrong during a test
+     */
+    @Test
+    public void runManager()
+        throws
+            Exception
+    {
+        MPingPongNetMessageEndpointFactory shadowEndpointFactory = MPingPongNetMessageEndpointFactory.create( exec );
+
+        MShadowMeshBaseFactory shadowFactory = MShadowMeshBaseFactory.create(
+                theMeshBaseIdentifierFactory,
+                shadowEndpointFactory,
+                theModelBase,
+                rootContext );
+
+        MTimingWheelProbeManager probeManager = MTimingWheelProbeManager.create( shadowFactory, theProbeDirectory, 50L );
+        shadowEndpointFactory.setNameServer( probeManager.getNetMeshBaseNameServer() );
+        shadowFactory.setProbeManager( probeManager );
+        probeManager.start( exec, runExec );
+
+        //
+
+        log.info( "Creating " + theDataSources.length + " Shadows" );
+
+        for( int i=0 ; i<theDataSources.length ; ++i ) {
+            probeManager.obtainFor( theDataSources[i], new CoherenceSpecification.Periodic( PERIOD ));
+        }
+
+        checkEquals( probeManager.getTimingWheel().size(), theDataSources.length, "wrong number of Shadows scheduled" );
+
+        Thread.sleep( 4 * PERIOD + PERIOD / 2 );
+
+        //
+
+        log.info( "Checking that all Shadows kept up with their schedule" );
+
+        for( int i=0 ; i<theDataSources.length ; ++i ) {
+            AtomicInteger count = theInvocationCounts.get( theDataSources[i].toExternalForm() );
+
+            checkCondition( count != null && count.get() >= 4, "Shadow " + i + " run too rarely: " + count );
+        }
+
+        //
+
+        log.info( "Removing Shadows" );
+
+        for( int i=0 ; i<theDataSources.length ; ++i ) {
+            probeManager.remove( theDataSources[i] );
+        }
+
+        Thread.sleep( 2 * PROBE_DURATION );
+
+        checkEquals( probeManager.getTimingWheel().size(), 0, "Shadows still scheduled" );
+
+        probeManager.stop();
+    }
+
+    /**
+     * Setup.
+     *
+     * @throws Exception all sorts of things may go wrong in tests
+     */
+    @Before
+    public void setup()
+        throws
+            Exception
+    {
+        theProbeDirectory = MProbeDirectory.create();
+        exec              = createThreadPool( 1 );
+        runExec           = ScheduledExecutorProbeManager.createDefaultRunExecutorService();
+
+        theInvocationCounts.clear();
+
+        theDataSources = new NetMeshBaseIdentifier[ 100 ];
+        for( int i=0 ; i<theDataSources.length ; ++i ) {
+            theDataSources[i] = theMeshBaseIdentifierFactory.fromExternalForm( PROTOCOL_NAME + "://here.local/shadow" + i );
+
+            theProbeDirectory.addExactUrlMatch( new ProbeDirectory.ExactMatchDescriptor(
+                    theDataSources[i].toExternalForm(),
+                    ShortProbe.class ));
+        }
+    }
+
+    /**
+     * Clean up after the test.
+     */
+    @After
+    public void cleanup()
+    {
+        exec.shutdown();
+        exec = null;
+
+        runExec.shutdown();
+        runExec = null;
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( TimingWheelProbeManagerTest1.class );
+
+    /**
+     * The period with which the Shadows are supposed to be updated.
+     */
+    protected static final long PERIOD = 1000L;
+
+    /**
+     * The duration of each Probe run.
+     */
+    protected static final long PROBE_DURATION = 20L;
+
+    /**
+     * Counts the number of invocations per data source.
+     */
+    protected static final ConcurrentHashMap<String,AtomicInteger> theInvocationCounts = new ConcurrentHashMap<String,AtomicInteger>();
+
+    /**
+     * The data sources.
+     */
+    protected NetMeshBaseIdentifier [] theDataSources;
+
+    /**
+     * The root context for these tests.
+     */
+    protected static final Context rootContext = SimpleContext.createRoot( "root-context" );
+
+    /**
+     * The test protocol. In the real world this would be something like "jdbc".
+     */
+    protected static final String PROTOCOL_NAME = "test";
+
+    /**
+     * Factory for NetMeshBaseIdentifiers.
+     */
+    protected static final NetMeshBaseIdentifierFactory theMeshBaseIdentifierFactory = DefaultNetMeshBaseIdentifierFactory.create(
+            new Scheme [] {
+                    new HttpScheme(),
+                    new StrictRegexScheme( PROTOCOL_NAME, Pattern.compile( PROTOCOL_NAME + ":.*" ))
+             } );
+
+    /**
+     * The ModelBase.
+     */
+    protected static ModelBase theModelBase;
+
+    /**
+     * The timer Thread.
+     */
+    protected ScheduledExecutorService exec;
+
+    /**
+     * The ExecutorService performing the Probe runs.
+     */
+    protected ExecutorService runExec;
+
+    /**
+     * The ProbeDirectory.
+     */
+    protected MProbeDirectory theProbeDirectory;
+
+    /**
+     * A test Probe that takes a little while.
+     */
+    public static class ShortProbe
+            implements
+                ApiProbe
+    {
+        public void readFromApi(
+                NetMeshBaseIdentifier  networkId,
+                CoherenceSpecification coherence,
+                StagingMeshBase        mb )
+            throws
+                IsAbstractException,
+                EntityBlessedAlreadyException,
+                EntityNotBlessedException,
+                RelatedAlreadyException,
+                NotRelatedException,
+                MeshObjectIdentifierNotUniqueException,
+                IllegalPropertyTypeException,
+                IllegalPropertyValueException,
+                TransactionException,
+                NotPermittedException,
+                ProbeException,
+                IOException,
+                ModuleException,
+                URISyntaxException
+        {
+            AtomicInteger count = theInvocationCounts.get( networkId.toExternalForm() );
+            if( count == null ) {
+                theInvocationCounts.putIfAbsent( networkId.toExternalForm(), new AtomicInteger() );
+                count = theInvocationCounts.get( networkId.toExternalForm() );
+            }
+            count.incrementAndGet();
+
+            try {
+                Thread.sleep( PROBE_DURATION );
+            } catch( InterruptedException ex ) {
+                log.error( ex );
+            }
+        }
+    }
+}
@@ -15,6 +15,11 @@
 package org.infogrid.probe.feeds;
 
 import java.text.ParseException;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.infogrid.mesh.EntityBlessedAlreadyException;
 import org.infogrid.mesh.EntityNotBlessedException;
 import org.infogrid.mesh.IllegalPropertyTypeException;
@@ -51,10 +56,15 @@ import org.infogrid.model.primitives.TimeStampValue;
 import org.infogrid.model.primitives.UnknownEnumeratedValueException;
 import org.infogrid.modelbase.MeshTypeWithIdentifierNotFoundException;
 import org.infogrid.modelbase.ModelBase;
+import org.infogrid.probe.EntryRetentionPolicy;
+import org.infogrid.probe.HttpDateParser;
 import org.infogrid.probe.ProbeException;
 import org.infogrid.probe.StagingMeshBase;
 import org.infogrid.probe.xml.MeshObjectSetProbeTags;
 import org.infogrid.probe.xml.XmlDOMProbe;
+import org.infogrid.probe.xml.XmlParserPool;
+import org.infogrid.probe.xml.XmlStreamProbe;
+import org.infogrid.util.ResourceHelper;
 import org.infogrid.util.logging.Log;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -62,11 +72,15 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 /**
- * Factors out common functionality for Web feed probes, such as Atom and RSS probes.
+ * <p>Factors out common functionality for Web feed probes, such as Atom and RSS probes.</p>
+ * <p>Feed probes can read a DOM, or read the feed while it is being parsed. When reading the
+ *    feed while it is being parsed, the InfoGrid-specific extensions of the feed and of one feed
+ *    entry at a time are collected into a small DOM, so the same code interprets them.</p>
  */
 public abstract class AbstractFeedProbe
         implements
-            XmlDOMProbe
+            XmlDOMProbe,
+            XmlStreamProbe
 {
     private static final Log log = Log.getLogInstance( AbstractFeedProbe.class );
 
@@ -607,6 +621,321 @@ public abstract class AbstractFeedProbe
         return null;
     }
 
+    /**
+     * Create the empty Element into which InfoGrid-specific extensions are collected while streaming.
+     *
+     * @param dataSourceIdentifier identifier of the data source being read, for error reporting
+     * @return the Element
+     * @throws ProbeException thrown if no DOM could be created
+     */
+    protected Element createExtensionHolder(
+            NetMeshBaseIdentifier dataSourceIdentifier )
+        throws
+            ProbeException
+    {
+        DocumentBuilder builder = null;
+        try {
+            builder = XmlParserPool.SINGLETON.obtainDocumentBuilder();
+
+            Document doc = builder.newDocument();
+            Element  ret = doc.createElement( "extensions" );
+            doc.appendChild( ret );
+
+            return ret;
+
+        } catch( ParserConfigurationException ex ) {
+            throw new ProbeException.Other( dataSourceIdentifier, ex );
+
+        } finally {
+            XmlParserPool.SINGLETON.releaseDocumentBuilder( builder );
+        }
+    }
+
+    /**
+     * Advance the XMLStreamReader to the start of the next child element of the current element.
+     * Text, comments and processing instructions between child elements are skipped.
+     *
+     * @param reader the XMLStreamReader
+     * @return true if positioned at the start of a child element, false if positioned at the end of the current element
+     * @throws XMLStreamException thrown if the document is not well-formed
+     */
+    protected boolean nextChildElement(
+            XMLStreamReader reader )
+        throws
+            XMLStreamException
+    {
+        while( true ) {
+            switch( reader.next() ) {
+                case XMLStreamConstants.START_ELEMENT:
+                    return true;
+
+                case XMLStreamConstants.END_ELEMENT:
+                case XMLStreamConstants.END_DOCUMENT:
+                    return false;
+
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Determine whether the XMLStreamReader is positioned at the start of an InfoGrid-specific extension.
+     *
+     * @param reader the XMLStreamReader
+     * @return true if this is an InfoGrid-specific extension
+     */
+    protected boolean isInfoGridExtension(
+            XMLStreamReader reader )
+    {
+        return MeshObjectSetProbeTags.INFOGRID_NAMESPACE.equals( reader.getNamespaceURI() );
+    }
+
+    /**
+     * Determine whether the XMLStreamReader is positioned at the start of an element with this tag name,
+     * using the same comparison as {@link #getChildNodeValue}.
+     *
+     * @param reader the XMLStreamReader
+     * @param tag the tag name
+     * @return true if the tag name matches
+     */
+    protected boolean hasTagName(
+            XMLStreamReader reader,
+            String          tag )
+    {
+        String prefix = reader.getPrefix();
+        if( prefix == null || prefix.length() == 0 ) {
+            return tag.equals( reader.getLocalName() );
+        } else {
+            return tag.equals( prefix + ":" + reader.getLocalName() );
+        }
+    }
+
+    /**
+     * Read the current element, and append it to an Element as DOM. Upon return, the
+     * XMLStreamReader is positioned at the end of the current element.
+     *
+     * @param reader the XMLStreamReader, positioned at the start of an element
+     * @param parent the Element to append to
+     * @throws XMLStreamException thrown if the document is not well-formed
+     */
+    protected void appendElement(
+            XMLStreamReader reader,
+            Element         parent )
+        throws
+            XMLStreamException
+    {
+        Document doc = parent.getOwnerDocument();
+
+        String prefix = reader.getPrefix();
+        String qName  = ( prefix == null || prefix.length() == 0 ) ? reader.getLocalName() : ( prefix + ":" + reader.getLocalName() );
+
+        Element here = doc.createElementNS( reader.getNamespaceURI(), qName );
+        for( int i=0 ; i<reader.getAttributeCount() ; ++i ) {
+            String attNamespace = reader.getAttributeNamespace( i );
+            if( attNamespace == null || attNamespace.length() == 0 ) {
+                here.setAttribute( reader.getAttributeLocalName( i ), reader.getAttributeValue( i ));
+            } else {
+                here.setAttributeNS( attNamespace, reader.getAttributePrefix( i ) + ":" + reader.getAttributeLocalName( i ), reader.getAttributeValue( i ));
+            }
+        }
+        parent.appendChild( here );
+
+        while( true ) {
+            switch( reader.next() ) {
+                case XMLStreamConstants.START_ELEMENT:
+                    appendElement( reader, here );
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    here.appendChild( doc.createTextNode( reader.getText() ));
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    return;
+
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Read the text contained in the current element and its descendants, like
+     * Node.getTextContent does. Upon return, the XMLStreamReader is positioned at the end of
+     * the current element.
+     *
+     * @param reader the XMLStreamReader, positioned at the start of an element
+     * @return the text
+     * @throws XMLStreamException thrown if the document is not well-formed
+     */
+    protected String readElementText(
+            XMLStreamReader reader )
+        throws
+            XMLStreamException
+    {
+        StringBuilder ret   = new StringBuilder();
+        int           depth = 1;
+
+        while( depth > 0 ) {
+            switch( reader.next() ) {
+                case XMLStreamConstants.START_ELEMENT:
+                    ++depth;
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    ret.append( reader.getText() );
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    --depth;
+                    break;
+
+                default:
+                    break;
+            }
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Skip the current element and its descendants. Upon return, the XMLStreamReader is
+     * positioned at the end of the current element.
+     *
+     * @param reader the XMLStreamReader, positioned at the start of an element
+     * @throws XMLStreamException thrown if the document is not well-formed
+     */
+    protected void skipElement(
+            XMLStreamReader reader )
+        throws
+            XMLStreamException
+    {
+        int depth = 1;
+
+        while( depth > 0 ) {
+            switch( reader.next() ) {
+                case XMLStreamConstants.START_ELEMENT:
+                    ++depth;
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    --depth;
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Helper method to treat empty Strings like absent ones, as {@link #getChildNodeValue} does.
+     *
+     * @param raw the String
+     * @return the String, or null if it was empty
+     */
+    protected String nonEmptyOrNull(
+            String raw )
+    {
+        if( raw == null || raw.length() == 0 ) {
+            return null;
+        }
+        return raw;
+    }
+
+    /**
+     * Remove all children of an Element, so it can be reused.
+     *
+     * @param here the Element
+     */
+    protected void removeChildren(
+            Element here )
+    {
+        Node child;
+        while( ( child = here.getFirstChild()) != null ) {
+            here.removeChild( child );
+        }
+    }
+
+    /**
+     * Determine the policy that limits which feed entries are instantiated. This is the policy
+     * of the ShadowMeshBase, if it has one, and DEFAULT_RETENTION_POLICY otherwise.
+     * Subclasses may override.
+     *
+     * @param freshMeshBase the StagingMeshBase of the current run
+     * @return the policy
+     */
+    protected EntryRetentionPolicy determineRetentionPolicy(
+            StagingMeshBase freshMeshBase )
+    {
+        EntryRetentionPolicy ret = freshMeshBase.getEntryRetentionPolicy();
+        if( ret == null ) {
+            ret = DEFAULT_RETENTION_POLICY;
+        }
+        return ret;
+    }
+
+    /**
+     * Determine whether a feed entry is to be instantiated.
+     *
+     * @param policy the policy that limits which feed entries are instantiated
+     * @param retainedSoFar the number of entries instantiated so far
+     * @param entryTime the time the entry was published or updated, in System.currentTimeMillis() format, or -1 if not known
+     * @param freshMeshBase the StagingMeshBase of the current run
+     * @return true if the entry is to be instantiated
+     */
+    protected boolean retainEntry(
+            EntryRetentionPolicy policy,
+            int                  retainedSoFar,
+            long                 entryTime,
+            StagingMeshBase      freshMeshBase )
+    {
+        boolean ret = policy.retains( retainedSoFar, entryTime, freshMeshBase.getCurrentUpdateStartedTime() );
+        if( !ret && log.isDebugEnabled() ) {
+            log.debug( this + ": not retaining entry " + retainedSoFar + " with time " + entryTime + " per " + policy );
+        }
+        return ret;
+    }
+
+    /**
+     * Parse the date of an RSS item, which is in RFC 822 format, with or without the day of the week.
+     *
+     * @param raw the date, if any
+     * @return the date, in System.currentTimeMillis() format, or -1 if not given or not parseable
+     */
+    protected long parseRfc822Date(
+            String raw )
+    {
+        return HttpDateParser.parse( raw );
+    }
+
+    /**
+     * Parse the date of an Atom entry, which is in W3C format.
+     *
+     * @param raw the date, if any
+     * @return the date, in System.currentTimeMillis() format, or -1 if not given or not parseable
+     */
+    protected long parseW3cDate(
+            String raw )
+    {
+        if( raw == null ) {
+            return -1L;
+        }
+        try {
+            return TimeStampValue.createFromW3c( raw.trim() ).getAsMillis();
+
+        } catch( ParseException ex ) {
+            if( log.isDebugEnabled() ) {
+                log.debug( "Cannot parse date: " + raw );
+            }
+            return -1L;
+        }
+    }
+
     /**
      * Make sure a GUID is not accidentially interpreted as an external NetMeshObjectIdentifier.
      *
@@ -641,4 +970,16 @@ public abstract class AbstractFeedProbe
         }
         return ret.toString();
     }
+
+    /**
+     * Our ResourceHelper.
+     */
+    private static final ResourceHelper theResourceHelper = ResourceHelper.getInstance( AbstractFeedProbe.class );
+
+    /**
+     * The policy that limits which feed entries are instantiated, unless the ShadowMeshBase specifies one.
+     */
+    public static final EntryRetentionPolicy DEFAULT_RETENTION_POLICY = EntryRetentionPolicy.create(
+            theResourceHelper.getResourceIntegerOrDefault( "MaxEntries",  -1 ),    // unlimited
+            theResourceHelper.getResourceLongOrDefault(    "MaxEntryAge", -1L ));  // unlimited
 }
@@ -17,6 +17,8 @@ package org.infogrid.probe.feeds.atom;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.text.ParseException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.diet4j.core.ModuleException;
 import org.infogrid.mesh.EntityBlessedAlreadyException;
 import org.infogrid.mesh.EntityNotBlessedException;
@@ -33,6 +35,7 @@ import org.infogrid.meshbase.net.CoherenceSpecification;
 import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
 import org.infogrid.meshbase.transaction.TransactionException;
 import org.infogrid.model.Feeds.FeedsSubjectArea;
+import org.infogrid.probe.EntryRetentionPolicy;
 import org.infogrid.probe.ProbeException;
 import org.infogrid.probe.StagingMeshBase;
 import org.infogrid.probe.feeds.AbstractFeedProbe;
@@ -43,7 +46,8 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 /**
- * A Probe for the Atom file format, with optional InfoGrid extensions.
+ * A Probe for the Atom file format, with optional InfoGrid extensions. When invoked as an
+ * XmlStreamProbe, it instantiates the entries one at a time while the feed is being parsed.
  */
 public class AtomProbe
         extends
@@ -148,12 +152,15 @@ public class AtomProbe
 
         handleInfoGridFeedExtensions( dataSourceIdentifier, theDocument, atomNode, home );
         
-        NodeList entryNodes = atomNode.getElementsByTagNameNS( "http://purl.org/atom/ns#", "entry" );
+        NodeList entryNodes = atomNode.getElementsByTagNameNS( ATOM_03_NAMESPACE, "entry" );
         if( entryNodes.getLength() == 0 ) {
             // try without the name space, not all Atom will be well-formatted
             entryNodes = atomNode.getElementsByTagName( "entry" );
         }
-        for ( int j=0 ; j<entryNodes.getLength() ; j++ ) {
+        EntryRetentionPolicy retention = determineRetentionPolicy( freshMeshBase );
+        int                  retained  = 0;
+
+        for ( int j=0 ; j<entryNodes.getLength() && retention.retainsMore( retained ) ; j++ ) {
             Node entryNode = entryNodes.item( j );
 
             if( !( entryNode instanceof Element )) {
@@ -162,6 +169,18 @@ public class AtomProbe
 
             Element realItemNode = (Element) entryNode;
 
+            String entryTime = getChildNodeValue( realItemNode, "updated" );
+            if( entryTime == null ) {
+                entryTime = getChildNodeValue( realItemNode, "modified" ); // Atom 0.3
+            }
+            if( entryTime == null ) {
+                entryTime = getChildNodeValue( realItemNode, "published" );
+            }
+            if( !retainEntry( retention, retained, parseW3cDate( entryTime ), freshMeshBase )) {
+                continue;
+            }
+            ++retained;
+
             String entryGuid        = getChildNodeValue(     realItemNode, "id" );
             String entryTitle       = getChildNodeValue(     realItemNode, "title" );
             String entryContent     = getChildNodeValue(     realItemNode, "content" );
@@ -211,4 +230,283 @@ public class AtomProbe
             }
         }
     }
+
+    /**
+     * <p>Read from the XMLStreamReader and instantiate corresponding MeshObjects, one entry at a time.</p>
+     * <p>This method declares
+     * many different types of Exceptions; that enables the Probe Framework to handle many
+     * possible error conditions out of the box, thereby making Probe programming easier.
+     * Note that many of the declared Exceptions, if actually thrown, indicate a programming
+     * error in the Probe implementation (e.g. IsAbstractException).</p>
+     * <p>The Probe framework invokes this method with an open Transaction on the current Thread;
+     * the Probe developer does not have to worry about Transactions.</p>
+     * 
+     * @param dataSourceIdentifier identifies the data source that is being accessed
+     * @param coherenceSpecification the type of data coherence that is requested by the application. Probe
+     *         implementors may ignore this parameter, letting the Probe framework choose its own policy.
+     *         If the Probe chooses to define its own policy (considering or ignoring this parameter), the
+     *         Probe must bless the Probe's HomeObject with a subtype of <code>ProbeUpdateSpecification</code> (defined
+     *         in the <code>org.infogrid.model.Probe</code> Subject Area) and suitable Property
+     *         values that reflect the policy.
+     * @param documentBytes the raw form of the Document, provided if available only
+     * @param documentMime the MIME type of the Document, provided if available only
+     * @param reader the XMLStreamReader, positioned at the start of the top-level element
+     * @param freshMeshBase the StagingMeshBase in which the corresponding MeshObjects are to be instantiated by the Probe.
+     *         This StagingMeshBase is empty when passed into this call, except for the home object which always exists
+     * @throws EntityBlessedAlreadyException thrown if a MeshObject was incorrectly blessed twice with the same
+     *         EntityType. Throwing this typically indicates a programming error.
+     * @throws EntityNotBlessedException thrown if a MeshObject was not blessed with a required EntityType.
+     *         Throwing this typically indicates a programming error.
+     * @throws IllegalPropertyTypeException thrown if a MeshObject did not carry a PropertyType that it needed
+     *         to carry. Throwing this typically indicates a programming error.
+     * @throws IllegalPropertyValueException thrown if a PropertyValue was assigned to a property that was
+     *         outside of the allowed range. Throwing this typically indicates a programming error.
+     * @throws IOException an input/output error occurred during execution of the Probe
+     * @throws IsAbstractException thrown if an EntityType or a Relationship could not be instantiated because
+     *         it was abstract. Throwing this typically indicates a programming error.
+     * @throws MeshObjectIdentifierNotUniqueException thrown if the Probe developer incorrectly
+     *         assigned duplicate MeshObjectsIdentifiers to created MeshObjects.
+     *         Throwing this typically indicates a programming error.
+     * @throws ModuleException thrown if a Module required by the Probe could not be loaded
+     * @throws NotPermittedException thrown if an operation performed by the Probe was not permitted
+     * @throws NotRelatedException thrown if a relationship was supposed to become blessed, but the relationship
+     *         did not exist. Throwing this typically indicates a programming error.
+     * @throws ProbeException a Probe error occurred per the possible subclasses defined in ProbeException
+     * @throws RelatedAlreadyException thrown if the Probe developer incorrectly attempted to
+     *         relate two already-related MeshObjects. Throwing this typically indicates a programming error.
+     * @throws RoleTypeBlessedAlreadyException thrown if a relationship was incorrectly blessed twice with the same
+     *         RelationshipType, in the same direction. Throwing this typically indicates a programming error.
+     * @throws TransactionException a Transaction problem occurred. Throwing this typically indicates a programming error.
+     * @throws URISyntaxException thrown if a URI was constructed in an invalid way
+     * @throws ParseException thrown if parsing failed
+     * @throws XMLStreamException thrown if the document is not well-formed
+     */
+    public void parseStream(
+            NetMeshBaseIdentifier  dataSourceIdentifier,
+            CoherenceSpecification coherenceSpecification,
+            byte []                documentBytes,
+            String                 documentMime,
+            XMLStreamReader        reader,
+            StagingMeshBase        freshMeshBase )
+        throws
+            EntityBlessedAlreadyException,
+            EntityNotBlessedException,
+            IllegalPropertyTypeException,
+            IllegalPropertyValueException,
+            IOException,
+            IsAbstractException,
+            MeshObjectIdentifierNotUniqueException,
+            ModuleException,
+            NotPermittedException,
+            NotRelatedException,
+            ProbeException,
+            RelatedAlreadyException,
+            RoleTypeBlessedAlreadyException,
+            TransactionException,
+            URISyntaxException,
+            ParseException,
+            XMLStreamException
+    {
+        if ( !"feed".equals( reader.getLocalName())) {
+            throw new ProbeException.SyntaxError( dataSourceIdentifier, "Not an Atom file", null );
+        }
+
+        NetMeshObject home = freshMeshBase.getHomeObject();
+        home.bless( FeedsSubjectArea.ATOMFEED ); // this is an Atom feed
+
+        Element extensions = createExtensionHolder( dataSourceIdentifier );
+
+        String feedTitle       = null;
+        String feedDescription = null;
+        int    j               = 0;
+
+        EntryRetentionPolicy retention = determineRetentionPolicy( freshMeshBase );
+        int                  retained  = 0;
+
+        int nested = 0; // depth below the feed element; like in parseDocument, entries are found at any depth
+        while( true ) {
+            if( !nextChildElement( reader )) {
+                if( nested == 0 ) {
+                    break;
+                }
+                --nested;
+
+            } else if( isEntry( reader )) {
+                if( !retention.retainsMore( retained )) {
+                    skipElement( reader );
+                } else if( parseEntry( dataSourceIdentifier, reader, j++, retention, retained, extensions, home, freshMeshBase )) {
+                    ++retained;
+                }
+
+            } else if( nested > 0 ) {
+                ++nested; // below the feed element, only entries count
+
+            } else if( isInfoGridExtension( reader )) {
+                appendElement( reader, extensions );
+                handleInfoGridFeedExtensions( dataSourceIdentifier, extensions.getOwnerDocument(), extensions, home );
+                removeChildren( extensions );
+
+            } else if( feedTitle == null && hasTagName( reader, "title" )) {
+                feedTitle = nonEmptyOrNull( readElementText( reader ));
+
+            } else if( feedDescription == null && hasTagName( reader, "description" )) {
+                feedDescription = nonEmptyOrNull( readElementText( reader ));
+
+            } else {
+                ++nested;
+            }
+        }
+
+        home.setPropertyValue( FeedsSubjectArea.FEED_TITLE,       FeedsSubjectArea.FEED_TITLE_type.createBlobValueOrNull(       feedTitle,       "text/plain" ));
+        home.setPropertyValue( FeedsSubjectArea.FEED_DESCRIPTION, FeedsSubjectArea.FEED_DESCRIPTION_type.createBlobValueOrNull( feedDescription, "text/plain" ));
+    }
+
+    /**
+     * Determine whether the XMLStreamReader is positioned at the start of an entry. This accepts the
+     * entries that parseDocument looks for: those in the Atom 0.3 namespace, regardless of prefix, and
+     * those whose tag name is entry. Unlike parseDocument, which only uses the latter if there are none
+     * of the former, this accepts both in the same feed.
+     *
+     * @param reader the XMLStreamReader
+     * @return true if this is an entry
+     */
+    protected boolean isEntry(
+            XMLStreamReader reader )
+    {
+        if( ATOM_03_NAMESPACE.equals( reader.getNamespaceURI() ) && "entry".equals( reader.getLocalName() )) {
+            return true;
+        }
+        return hasTagName( reader, "entry" );
+    }
+
+    /**
+     * Read one entry from the XMLStreamReader and instantiate the corresponding MeshObject,
+     * unless the EntryRetentionPolicy says otherwise.
+     *
+     * @param dataSourceIdentifier identifies the data source that is being accessed
+     * @param reader the XMLStreamReader, positioned at the start of the entry
+     * @param j the index of the entry in the feed
+     * @param retention the policy that limits which entries are instantiated
+     * @param retained the number of entries instantiated so far
+     * @param extensions the Element into which to collect the InfoGrid-specific extensions of the entry
+     * @param home the home object of the feed
+     * @param freshMeshBase the StagingMeshBase in which the corresponding MeshObjects are to be instantiated
+     * @return true if the entry was instantiated
+     * @throws EntityBlessedAlreadyException thrown if a MeshObject was incorrectly blessed twice with the same EntityType
+     * @throws EntityNotBlessedException thrown if a MeshObject was not blessed with a required EntityType
+     * @throws IllegalPropertyTypeException thrown if a MeshObject did not carry a PropertyType that it needed to carry
+     * @throws IllegalPropertyValueException thrown if a PropertyValue was assigned to a property that was outside of the allowed range
+     * @throws IsAbstractException thrown if an EntityType or a Relationship could not be instantiated because it was abstract
+     * @throws MeshObjectIdentifierNotUniqueException thrown if the entry's identifier was not unique
+     * @throws NotPermittedException thrown if an operation was not permitted
+     * @throws NotRelatedException thrown if a relationship was supposed to become blessed, but did not exist
+     * @throws ProbeException a Probe error occurred per the possible subclasses defined in ProbeException
+     * @throws RelatedAlreadyException thrown if two MeshObjects were related already
+     * @throws RoleTypeBlessedAlreadyException thrown if a relationship was blessed twice with the same RoleType
+     * @throws TransactionException a Transaction problem occurred
+     * @throws URISyntaxException thrown if a URI was constructed in an invalid way
+     * @throws ParseException thrown if parsing failed
+     * @throws XMLStreamException thrown if the document is not well-formed
+     */
+    protected boolean parseEntry(
+            NetMeshBaseIdentifier dataSourceIdentifier,
+            XMLStreamReader       reader,
+            int                   j,
+            EntryRetentionPolicy  retention,
+            int                   retained,
+            Element               extensions,
+            NetMeshObject         home,
+            StagingMeshBase       freshMeshBase )
+        throws
+            EntityBlessedAlreadyException,
+            EntityNotBlessedException,
+            IllegalPropertyTypeException,
+            IllegalPropertyValueException,
+            IsAbstractException,
+            MeshObjectIdentifierNotUniqueException,
+            NotPermittedException,
+            NotRelatedException,
+            ProbeException,
+            RelatedAlreadyException,
+            RoleTypeBlessedAlreadyException,
+            TransactionException,
+            URISyntaxException,
+            ParseException,
+            XMLStreamException
+    {
+        String entryGuid      = null;
+        String entryTitle     = null;
+        String entryContent   = null;
+        String entryUpdated   = null;
+        String entryPublished = null;
+
+        while( nextChildElement( reader )) {
+            if( isInfoGridExtension( reader )) {
+                appendElement( reader, extensions );
+
+            } else if( entryGuid == null && hasTagName( reader, "id" )) {
+                entryGuid = nonEmptyOrNull( readElementText( reader ));
+
+            } else if( entryTitle == null && hasTagName( reader, "title" )) {
+                entryTitle = nonEmptyOrNull( readElementText( reader ));
+
+            } else if( entryContent == null && hasTagName( reader, "content" )) {
+                entryContent = nonEmptyOrNull( readElementText( reader ));
+
+            } else if( entryUpdated == null && ( hasTagName( reader, "updated" ) || hasTagName( reader, "modified" ))) { // modified: Atom 0.3
+                entryUpdated = nonEmptyOrNull( readElementText( reader ));
+
+            } else if( entryPublished == null && hasTagName( reader, "published" )) {
+                entryPublished = nonEmptyOrNull( readElementText( reader ));
+
+            } else {
+                skipElement( reader );
+            }
+        }
+
+        if( !retainEntry( retention, retained, parseW3cDate( entryUpdated != null ? entryUpdated : entryPublished ), freshMeshBase )) {
+            removeChildren( extensions );
+            return false;
+        }
+
+        if( entryGuid == null ) {
+            entryGuid = String.valueOf( j ); // FIXME? Is this a good default?
+        }
+        entryGuid = ensureLocalGuid( entryGuid );
+
+        NetMeshObject item = createExtendedInfoGridFeedEntryObject(
+                dataSourceIdentifier,
+                extensions.getOwnerDocument(),
+                extensions,
+                freshMeshBase.getMeshObjectIdentifierFactory().guessFromExternalForm( entryGuid ),
+                FeedsSubjectArea.ATOMFEEDITEM,
+                freshMeshBase );
+        removeChildren( extensions );
+
+        item.setPropertyValue( FeedsSubjectArea.FEEDITEM_TITLE,   FeedsSubjectArea.FEEDITEM_TITLE_type.createBlobValueOrNull(   entryTitle,   "text/plain" ));
+        item.setPropertyValue( FeedsSubjectArea.FEEDITEM_CONTENT, FeedsSubjectArea.FEEDITEM_CONTENT_type.createBlobValueOrNull( entryContent, "text/plain" ));
+
+        try {
+            home.relate( item );
+        } catch( RelatedAlreadyException ex ) {
+            // ignore
+            if( log.isDebugEnabled() ) {
+                log.info( ex );
+            }
+        }
+        try {
+            home.blessRelationship( FeedsSubjectArea.FEED_CONTAINS_FEEDITEM.getSource(), item );
+        } catch( RoleTypeBlessedAlreadyException ex ) {
+            // ignore
+            if( log.isDebugEnabled() ) {
+                log.info( ex );
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The namespace of Atom 0.3.
+     */
+    public static final String ATOM_03_NAMESPACE = "http://purl.org/atom/ns#";
 }
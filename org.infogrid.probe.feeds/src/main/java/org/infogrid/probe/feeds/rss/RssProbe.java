@@ -17,6 +17,11 @@ package org.infogrid.probe.feeds.rss;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.text.ParseException;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.diet4j.core.ModuleException;
 import org.infogrid.mesh.EntityBlessedAlreadyException;
 import org.infogrid.mesh.EntityNotBlessedException;
@@ -33,6 +38,7 @@ import org.infogrid.meshbase.net.CoherenceSpecification;
 import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
 import org.infogrid.meshbase.transaction.TransactionException;
 import org.infogrid.model.Feeds.FeedsSubjectArea;
+import org.infogrid.probe.EntryRetentionPolicy;
 import org.infogrid.probe.ProbeException;
 import org.infogrid.probe.StagingMeshBase;
 import org.infogrid.probe.feeds.AbstractFeedProbe;
@@ -43,7 +49,8 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 /**
- * A Probe for the RSS file format, with optional InfoGrid extensions.
+ * A Probe for the RSS file format, with optional InfoGrid extensions. When invoked as an
+ * XmlStreamProbe, it instantiates the items one at a time while the feed is being parsed.
  */
 public class RssProbe
         extends
@@ -164,9 +171,31 @@ public class RssProbe
 
             home.setPropertyValue( FeedsSubjectArea.FEED_TITLE,       FeedsSubjectArea.FEED_TITLE_type.createBlobValueOrNull(       channelTitleTitle,       "text/plain" ));
             home.setPropertyValue( FeedsSubjectArea.FEED_DESCRIPTION, FeedsSubjectArea.FEED_DESCRIPTION_type.createBlobValueOrNull( channelDescription, "text/plain" ));
+
+            boolean [] skipHours = new boolean[ 24 ];
+            boolean [] skipDays  = new boolean[ 8 ];
+            NodeList   children  = realChannelNode.getChildNodes();
+            for( int k=0 ; k<children.getLength() ; ++k ) {
+                Node child = children.item( k );
+                if( "skipHours".equals( child.getNodeName() )) {
+                    NodeList hourNodes = ((Element) child).getElementsByTagName( "hour" );
+                    for( int l=0 ; l<hourNodes.getLength() ; ++l ) {
+                        parseSkipHour( hourNodes.item( l ).getTextContent(), skipHours );
+                    }
+                } else if( "skipDays".equals( child.getNodeName() )) {
+                    NodeList dayNodes = ((Element) child).getElementsByTagName( "day" );
+                    for( int l=0 ; l<dayNodes.getLength() ; ++l ) {
+                        parseSkipDay( dayNodes.item( l ).getTextContent(), skipDays );
+                    }
+                }
+            }
+            addRssFreshnessHint( getChildNodeValue( realChannelNode, "ttl" ), skipHours, skipDays, freshMeshBase );
             
+            EntryRetentionPolicy retention = determineRetentionPolicy( freshMeshBase );
+            int                  retained  = 0;
+
             NodeList itemNodes = realChannelNode.getElementsByTagName( "item" );
-            for ( int j=0 ; j<itemNodes.getLength() ; j++ ) {
+            for ( int j=0 ; j<itemNodes.getLength() && retention.retainsMore( retained ) ; j++ ) {
                 Node itemNode = itemNodes.item( j );
 
                 if( !( itemNode instanceof Element )) {
@@ -175,6 +204,11 @@ public class RssProbe
 
                 Element realItemNode = (Element) itemNode;
 
+                if( !retainEntry( retention, retained, parseRfc822Date( getChildNodeValue( realItemNode, "pubDate" )), freshMeshBase )) {
+                    continue;
+                }
+                ++retained;
+
                 String itemGuid        = getChildNodeValue(     realItemNode, "guid" );
                 String itemTitle       = getChildNodeValue(     realItemNode, "title" );
                 String itemDescription = getChildNodeValue(     realItemNode, "description" );
@@ -215,4 +249,487 @@ public class RssProbe
             break; // only do first channel in the feed for now
         }
     }
+
+    /**
+     * <p>Read from the XMLStreamReader and instantiate corresponding MeshObjects, one item at a time.</p>
+     * <p>This method declares
+     * many different types of Exceptions; that enables the Probe Framework to handle many
+     * possible error conditions out of the box, thereby making Probe programming easier.
+     * Note that many of the declared Exceptions, if actually thrown, indicate a programming
+     * error in the Probe implementation (e.g. IsAbstractException).</p>
+     * <p>The Probe framework invokes this method with an open Transaction on the current Thread;
+     * the Probe developer does not have to worry about Transactions.</p>
+     * 
+     * @param dataSourceIdentifier identifies the data source that is being accessed
+     * @param coherenceSpecification the type of data coherence that is requested by the application. Probe
+     *         implementors may ignore this parameter, letting the Probe framework choose its own policy.
+     *         If the Probe chooses to define its own policy (considering or ignoring this parameter), the
+     *         Probe must bless the Probe's HomeObject with a subtype of <code>ProbeUpdateSpecification</code> (defined
+     *         in the <code>org.infogrid.model.Probe</code> Subject Area) and suitable Property
+     *         values that reflect the policy.
+     * @param documentBytes the raw form of the Document, provided if available only
+     * @param documentMime the MIME type of the Document, provided if available only
+     * @param reader the XMLStreamReader, positioned at the start of the top-level element
+     * @param freshMeshBase the StagingMeshBase in which the corresponding MeshObjects are to be instantiated by the Probe.
+     *         This StagingMeshBase is empty when passed into this call, except for the home object which always exists
+     * @throws EntityBlessedAlreadyException thrown if a MeshObject was incorrectly blessed twice with the same
+     *         EntityType. Throwing this typically indicates a programming error.
+     * @throws EntityNotBlessedException thrown if a MeshObject was not blessed with a required EntityType.
+     *         Throwing this typically indicates a programming error.
+     * @throws IllegalPropertyTypeException thrown if a MeshObject did not carry a PropertyType that it needed
+     *         to carry. Throwing this typically indicates a programming error.
+     * @throws IllegalPropertyValueException thrown if a PropertyValue was assigned to a property that was
+     *         outside of the allowed range. Throwing this typically indicates a programming error.
+     * @throws IOException an input/output error occurred during execution of the Probe
+     * @throws IsAbstractException thrown if an EntityType or a Relationship could not be instantiated because
+     *         it was abstract. Throwing this typically indicates a programming error.
+     * @throws MeshObjectIdentifierNotUniqueException thrown if the Probe developer incorrectly
+     *         assigned duplicate MeshObjectsIdentifiers to created MeshObjects.
+     *         Throwing this typically indicates a programming error.
+     * @throws ModuleException thrown if a Module required by the Probe could not be loaded
+     * @throws NotPermittedException thrown if an operation performed by the Probe was not permitted
+     * @throws NotRelatedException thrown if a relationship was supposed to become blessed, but the relationship
+     *         did not exist. Throwing this typically indicates a programming error.
+     * @throws ProbeException a Probe error occurred per the possible subclasses defined in ProbeException
+     * @throws RelatedAlreadyException thrown if the Probe developer incorrectly attempted to
+     *         relate two already-related MeshObjects. Throwing this typically indicates a programming error.
+     * @throws RoleTypeBlessedAlreadyException thrown if a relationship was incorrectly blessed twice with the same
+     *         RelationshipType, in the same direction. Throwing this typically indicates a programming error.
+     * @throws TransactionException a Transaction problem occurred. Throwing this typically indicates a programming error.
+     * @throws URISyntaxException thrown if a URI was constructed in an invalid way
+     * @throws ParseException thrown if parsing failed
+     * @throws XMLStreamException thrown if the document is not well-formed
+     */
+    public void parseStream(
+            NetMeshBaseIdentifier  dataSourceIdentifier,
+            CoherenceSpecification coherenceSpecification,
+            byte []                documentBytes,
+            String                 documentMime,
+            XMLStreamReader        reader,
+            StagingMeshBase        freshMeshBase )
+        throws
+            EntityBlessedAlreadyException,
+            EntityNotBlessedException,
+            IllegalPropertyTypeException,
+            IllegalPropertyValueException,
+            IOException,
+            IsAbstractException,
+            MeshObjectIdentifierNotUniqueException,
+            ModuleException,
+            NotPermittedException,
+            NotRelatedException,
+            ProbeException,
+            RelatedAlreadyException,
+            RoleTypeBlessedAlreadyException,
+            TransactionException,
+            URISyntaxException,
+            ParseException,
+            XMLStreamException
+    {
+        if ( !"rss".equals( reader.getLocalName())) {
+            throw new ProbeException.SyntaxError( dataSourceIdentifier, "Not an RSS file", null );
+        }
+
+        String version = reader.getAttributeValue( null, "version" );
+        if (    !"0.91".equals( version )
+             && !"2.0".equals( version ) )
+        {
+            log.warn( "RssProbe.parseStream() failed version check, continuing anyway" );
+        }
+
+        NetMeshObject home = freshMeshBase.getHomeObject();
+        home.bless( FeedsSubjectArea.RSSFEED ); // this is an RSS feed
+
+        boolean foundChannel = false;
+        int     nested       = 0; // depth below the rss element; like in parseDocument, the channel is found at any depth
+        while( true ) {
+            if( !nextChildElement( reader )) {
+                if( nested == 0 ) {
+                    break;
+                }
+                --nested;
+
+            } else if( foundChannel ) {
+                skipElement( reader );
+
+            } else if( hasTagName( reader, "channel" )) {
+                parseChannel( dataSourceIdentifier, reader, home, freshMeshBase );
+                foundChannel = true; // only do first channel in the feed for now
+
+            } else {
+                ++nested;
+            }
+        }
+    }
+
+    /**
+     * Read the channel from the XMLStreamReader and instantiate the corresponding MeshObjects,
+     * one item at a time.
+     *
+     * @param dataSourceIdentifier identifies the data source that is being accessed
+     * @param reader the XMLStreamReader, positioned at the start of the channel
+     * @param home the home object of the feed
+     * @param freshMeshBase the StagingMeshBase in which the corresponding MeshObjects are to be instantiated
+     * @throws EntityBlessedAlreadyException thrown if a MeshObject was incorrectly blessed twice with the same EntityType
+     * @throws EntityNotBlessedException thrown if a MeshObject was not blessed with a required EntityType
+     * @throws IllegalPropertyTypeException thrown if a MeshObject did not carry a PropertyType that it needed to carry
+     * @throws IllegalPropertyValueException thrown if a PropertyValue was assigned to a property that was outside of the allowed range
+     * @throws IsAbstractException thrown if an EntityType or a Relationship could not be instantiated because it was abstract
+     * @throws MeshObjectIdentifierNotUniqueException thrown if an item's identifier was not unique
+     * @throws NotPermittedException thrown if an operation was not permitted
+     * @throws NotRelatedException thrown if a relationship was supposed to become blessed, but did not exist
+     * @throws ProbeException a Probe error occurred per the possible subclasses defined in ProbeException
+     * @throws RelatedAlreadyException thrown if two MeshObjects were related already
+     * @throws RoleTypeBlessedAlreadyException thrown if a relationship was blessed twice with the same RoleType
+     * @throws TransactionException a Transaction problem occurred
+     * @throws URISyntaxException thrown if a URI was constructed in an invalid way
+     * @throws ParseException thrown if parsing failed
+     * @throws XMLStreamException thrown if the document is not well-formed
+     */
+    protected void parseChannel(
+            NetMeshBaseIdentifier dataSourceIdentifier,
+            XMLStreamReader       reader,
+            NetMeshObject         home,
+            StagingMeshBase       freshMeshBase )
+        throws
+            EntityBlessedAlreadyException,
+            EntityNotBlessedException,
+            IllegalPropertyTypeException,
+            IllegalPropertyValueException,
+            IsAbstractException,
+            MeshObjectIdentifierNotUniqueException,
+            NotPermittedException,
+            NotRelatedException,
+            ProbeException,
+            RelatedAlreadyException,
+            RoleTypeBlessedAlreadyException,
+            TransactionException,
+            URISyntaxException,
+            ParseException,
+            XMLStreamException
+    {
+        Element extensions = createExtensionHolder( dataSourceIdentifier );
+
+        String     channelTitle       = null;
+        String     channelDescription = null;
+        String     ttl                = null;
+        boolean [] skipHours          = new boolean[ 24 ];
+        boolean [] skipDays           = new boolean[ 8 ];
+        int        j                  = 0;
+
+        EntryRetentionPolicy retention = determineRetentionPolicy( freshMeshBase );
+        int                  retained  = 0;
+
+        int nested = 0; // depth below the channel; like in parseDocument, items are found at any depth
+        while( true ) {
+            if( !nextChildElement( reader )) {
+                if( nested == 0 ) {
+                    break;
+                }
+                --nested;
+
+            } else if( hasTagName( reader, "item" )) {
+                if( !retention.retainsMore( retained )) {
+                    skipElement( reader );
+                } else if( parseItem( dataSourceIdentifier, reader, j++, retention, retained, extensions, home, freshMeshBase )) {
+                    ++retained;
+                }
+
+            } else if( nested > 0 ) {
+                ++nested; // below the channel, only items count
+
+            } else if( isInfoGridExtension( reader )) {
+                appendElement( reader, extensions );
+                handleInfoGridFeedExtensions( dataSourceIdentifier, extensions.getOwnerDocument(), extensions, home );
+                removeChildren( extensions );
+
+            } else if( channelTitle == null && hasTagName( reader, "title" )) {
+                channelTitle = nonEmptyOrNull( readElementText( reader ));
+
+            } else if( channelDescription == null && hasTagName( reader, "description" )) {
+                channelDescription = nonEmptyOrNull( readElementText( reader ));
+
+            } else if( ttl == null && hasTagName( reader, "ttl" )) {
+                ttl = nonEmptyOrNull( readElementText( reader ));
+
+            } else if( hasTagName( reader, "skipHours" )) {
+                while( nextChildElement( reader )) {
+                    if( hasTagName( reader, "hour" )) {
+                        parseSkipHour( readElementText( reader ), skipHours );
+                    } else {
+                        skipElement( reader );
+                    }
+                }
+
+            } else if( hasTagName( reader, "skipDays" )) {
+                while( nextChildElement( reader )) {
+                    if( hasTagName( reader, "day" )) {
+                        parseSkipDay( readElementText( reader ), skipDays );
+                    } else {
+                        skipElement( reader );
+                    }
+                }
+
+            } else {
+                ++nested;
+            }
+        }
+        addRssFreshnessHint( ttl, skipHours, skipDays, freshMeshBase );
+
+        home.setPropertyValue( FeedsSubjectArea.FEED_TITLE,       FeedsSubjectArea.FEED_TITLE_type.createBlobValueOrNull(       channelTitle,       "text/plain" ));
+        home.setPropertyValue( FeedsSubjectArea.FEED_DESCRIPTION, FeedsSubjectArea.FEED_DESCRIPTION_type.createBlobValueOrNull( channelDescription, "text/plain" ));
+    }
+
+    /**
+     * Read one item from the XMLStreamReader and instantiate the corresponding MeshObject,
+     * unless the EntryRetentionPolicy says otherwise.
+     *
+     * @param dataSourceIdentifier identifies the data source that is being accessed
+     * @param reader the XMLStreamReader, positioned at the start of the item
+     * @param j the index of the item in the channel
+     * @param retention the policy that limits which items are instantiated
+     * @param retained the number of items instantiated so far
+     * @param extensions the Element into which to collect the InfoGrid-specific extensions of the item
+     * @param home the home object of the feed
+     * @param freshMeshBase the StagingMeshBase in which the corresponding MeshObjects are to be instantiated
+     * @return true if the item was instantiated
+     * @throws EntityBlessedAlreadyException thrown if a MeshObject was incorrectly blessed twice with the same EntityType
+     * @throws EntityNotBlessedException thrown if a MeshObject was not blessed with a required EntityType
+     * @throws IllegalPropertyTypeException thrown if a MeshObject did not carry a PropertyType that it needed to carry
+     * @throws IllegalPropertyValueException thrown if a PropertyValue was assigned to a property that was outside of the allowed range
+     * @throws IsAbstractException thrown if an EntityType or a Relationship could not be instantiated because it was abstract
+     * @throws MeshObjectIdentifierNotUniqueException thrown if the item's identifier was not unique
+     * @throws NotPermittedException thrown if an operation was not permitted
+     * @throws NotRelatedException thrown if a relationship was supposed to become blessed, but did not exist
+     * @throws ProbeException a Probe error occurred per the possible subclasses defined in ProbeException
+     * @throws RelatedAlreadyException thrown if two MeshObjects were related already
+     * @throws RoleTypeBlessedAlreadyException thrown if a relationship was blessed twice with the same RoleType
+     * @throws TransactionException a Transaction problem occurred
+     * @throws URISyntaxException thrown if a URI was constructed in an invalid way
+     * @throws ParseException thrown if parsing failed
+     * @throws XMLStreamException thrown if the document is not well-formed
+     */
+    protected boolean parseItem(
+            NetMeshBaseIdentifier dataSourceIdentifier,
+            XMLStreamReader       reader,
+            int                   j,
+            EntryRetentionPolicy  retention,
+            int                   retained,
+            Element               extensions,
+            NetMeshObject         home,
+            StagingMeshBase       freshMeshBase )
+        throws
+            EntityBlessedAlreadyException,
+            EntityNotBlessedException,
+            IllegalPropertyTypeException,
+            IllegalPropertyValueException,
+            IsAbstractException,
+            MeshObjectIdentifierNotUniqueException,
+            NotPermittedException,
+            NotRelatedException,
+            ProbeException,
+            RelatedAlreadyException,
+            RoleTypeBlessedAlreadyException,
+            TransactionException,
+            URISyntaxException,
+            ParseException,
+            XMLStreamException
+    {
+        String itemGuid        = null;
+        String itemTitle       = null;
+        String itemDescription = null;
+        String itemPubDate     = null;
+
+        while( nextChildElement( reader )) {
+            if( isInfoGridExtension( reader )) {
+                appendElement( reader, extensions );
+
+            } else if( itemGuid == null && hasTagName( reader, "guid" )) {
+                itemGuid = nonEmptyOrNull( readElementText( reader ));
+
+            } else if( itemTitle == null && hasTagName( reader, "title" )) {
+                itemTitle = nonEmptyOrNull( readElementText( reader ));
+
+            } else if( itemDescription == null && hasTagName( reader, "description" )) {
+                itemDescription = nonEmptyOrNull( readElementText( reader ));
+
+            } else if( itemPubDate == null && hasTagName( reader, "pubDate" )) {
+                itemPubDate = nonEmptyOrNull( readElementText( reader ));
+
+            } else {
+                skipElement( reader );
+            }
+        }
+
+        if( !retainEntry( retention, retained, parseRfc822Date( itemPubDate ), freshMeshBase )) {
+            removeChildren( extensions );
+            return false;
+        }
+
+        if( itemGuid == null ) {
+            itemGuid = "0-" + String.valueOf( j ); // same default as for the first channel in parseDocument
+        }
+        itemGuid = ensureLocalGuid( itemGuid );
+
+        NetMeshObject item = createExtendedInfoGridFeedEntryObject(
+                dataSourceIdentifier,
+                extensions.getOwnerDocument(),
+                extensions,
+                freshMeshBase.getMeshObjectIdentifierFactory().guessFromExternalForm( itemGuid ),
+                FeedsSubjectArea.RSSFEEDITEM,
+                freshMeshBase );
+        removeChildren( extensions );
+
+        item.setPropertyValue( FeedsSubjectArea.FEEDITEM_TITLE,   FeedsSubjectArea.FEEDITEM_TITLE_type.createBlobValueOrNull(   itemTitle,       "text/plain" ));
+        item.setPropertyValue( FeedsSubjectArea.FEEDITEM_CONTENT, FeedsSubjectArea.FEEDITEM_CONTENT_type.createBlobValueOrNull( itemDescription, "text/plain" ));
+
+        try {
+            home.relate( item );
+        } catch( RelatedAlreadyException ex ) {
+            // ignore
+            if( log.isDebugEnabled() ) {
+                log.info( ex );
+            }
+        }
+        try {
+            home.blessRelationship( FeedsSubjectArea.FEED_CONTAINS_FEEDITEM.getSource(), item );
+        } catch( RoleTypeBlessedAlreadyException ex ) {
+            // ignore
+            if( log.isDebugEnabled() ) {
+                log.info( ex );
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tell the framework when the channel will change next at the earliest, according to
+     * the channel's ttl, skipHours and skipDays elements.
+     *
+     * @param ttl the content of the ttl element, in minutes, if any
+     * @param skipHours the hours, in GMT, during which the channel must not be read, indexed by hour
+     * @param skipDays the days, in GMT, on which the channel must not be read, indexed by Calendar.DAY_OF_WEEK
+     * @param freshMeshBase the StagingMeshBase of the current run
+     */
+    protected void addRssFreshnessHint(
+            String          ttl,
+            boolean []      skipHours,
+            boolean []      skipDays,
+            StagingMeshBase freshMeshBase )
+    {
+        long ttlMinutes = 0L;
+        if( ttl != null ) {
+            try {
+                ttlMinutes = Long.parseLong( ttl.trim() );
+            } catch( NumberFormatException ex ) {
+                log.warn( "Cannot parse ttl: " + ttl );
+            }
+        }
+        long notChangedBefore = determineNotChangedBefore(
+                freshMeshBase.getCurrentUpdateStartedTime(),
+                ttlMinutes,
+                skipHours,
+                skipDays );
+
+        if( notChangedBefore > 0L ) {
+            freshMeshBase.addFreshnessHint( notChangedBefore );
+        }
+    }
+
+    /**
+     * Determine the earliest time at which an RSS channel may be read again. This is the end
+     * of the channel's ttl, postponed to the next full hour that is neither listed in skipHours
+     * nor falls on a day listed in skipDays.
+     *
+     * @param start the time at which the channel was read, in System.currentTimeMillis() format
+     * @param ttlMinutes the ttl of the channel, in minutes, or 0 if none
+     * @param skipHours the hours, in GMT, during which the channel must not be read, indexed by hour
+     * @param skipDays the days, in GMT, on which the channel must not be read, indexed by Calendar.DAY_OF_WEEK
+     * @return the time, in System.currentTimeMillis() format, or -1 if the channel does not say
+     */
+    public static long determineNotChangedBefore(
+            long       start,
+            long       ttlMinutes,
+            boolean [] skipHours,
+            boolean [] skipDays )
+    {
+        long ret = start;
+        if( ttlMinutes > 0L ) {
+            ret += ttlMinutes * 60L * 1000L;
+        }
+
+        Calendar cal = Calendar.getInstance( TimeZone.getTimeZone( "GMT" ), Locale.US );
+        cal.setTimeInMillis( ret );
+
+        for( int i=0 ; i<7*24 ; ++i ) { // if everything is skipped, the channel is inconsistent; ignore skipping
+            if( !skipHours[ cal.get( Calendar.HOUR_OF_DAY ) ] && !skipDays[ cal.get( Calendar.DAY_OF_WEEK ) ] ) {
+                ret = cal.getTimeInMillis();
+                break;
+            }
+            cal.add( Calendar.HOUR_OF_DAY, 1 );
+            cal.set( Calendar.MINUTE,      0 );
+            cal.set( Calendar.SECOND,      0 );
+            cal.set( Calendar.MILLISECOND, 0 );
+        }
+        if( ret > start ) {
+            return ret;
+        } else {
+            return -1L;
+        }
+    }
+
+    /**
+     * Parse the content of an hour element in skipHours.
+     *
+     * @param raw the content of the hour element
+     * @param skipHours the hours to skip, indexed by hour, to which the parsed hour is added
+     */
+    protected void parseSkipHour(
+            String     raw,
+            boolean [] skipHours )
+    {
+        try {
+            int hour = Integer.parseInt( raw.trim() );
+            if( hour >= 0 && hour <= 24 ) {
+                skipHours[ hour % 24 ] = true; // some feeds count from 1 to 24
+            } else {
+                log.warn( "Invalid skipHours hour: " + raw );
+            }
+        } catch( NumberFormatException ex ) {
+            log.warn( "Cannot parse skipHours hour: " + raw );
+        }
+    }
+
+    /**
+     * Parse the content of a day element in skipDays.
+     *
+     * @param raw the content of the day element
+     * @param skipDays the days to skip, indexed by Calendar.DAY_OF_WEEK, to which the parsed day is added
+     */
+    protected void parseSkipDay(
+            String     raw,
+            boolean [] skipDays )
+    {
+        String day = raw.trim();
+        for( int i=0 ; i<DAY_NAMES.length ; ++i ) {
+            if( DAY_NAMES[i].equalsIgnoreCase( day )) {
+                skipDays[ Calendar.SUNDAY + i ] = true;
+                return;
+            }
+        }
+        log.warn( "Cannot parse skipDays day: " + raw );
+    }
+
+    /**
+     * The names of the days in skipDays, starting with Calendar.SUNDAY.
+     */
+    protected static final String [] DAY_NAMES = {
+            "Sunday",
+            "Monday",
+            "Tuesday",
+            "Wednesday",
+            "Thursday",
+            "Friday",
+            "Saturday"
+    };
 }
@@ -0,0 +1,180 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.feeds.test.atom;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import org.infogrid.mesh.MeshObject;
+import org.infogrid.meshbase.net.CoherenceSpecification;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.model.Feeds.FeedsSubjectArea;
+import org.infogrid.model.primitives.PropertyValue;
+import org.infogrid.probe.ProbeDirectory;
+import org.infogrid.probe.feeds.atom.AtomProbe;
+import org.infogrid.probe.feeds.test.AbstractFeedTest;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.util.logging.Log;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Tests that the Atom Probe finds the entries of a feed at any depth, also in the Atom 0.3
+ * namespace with a prefix, and that it finds the same entries whether it reads the feed while
+ * parsing, or from a DOM. Documents with a document type declaration are read from a DOM.
+ */
+@RunWith(Parameterized.class)
+public class AtomTest3
+        extends
+            AbstractFeedTest
+{
+    /**
+     * Test parameters.
+     *
+     * @return test parameters
+     */
+    @Parameterized.Parameters
+    public static Collection<Object[]> parameters()
+    {
+        return Arrays.asList( new Object[][] {
+                 { "src/test/resources/org/infogrid/probe/feeds/test/atom/AtomTest3.xml",            3, TITLES }, // parseStream
+                 { "src/test/resources/org/infogrid/probe/feeds/test/atom/AtomTest3_doctype.xml",    3, TITLES }, // parseDocument
+                 { "src/test/resources/org/infogrid/probe/feeds/test/atom/AtomTest3_03.xml",         2, null   }, // parseStream
+                 { "src/test/resources/org/infogrid/probe/feeds/test/atom/AtomTest3_03_doctype.xml", 2, null   }  // parseDocument
+        });
+    }
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things may go wrong during a test
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        log.info( "accessing test file with meshBase" );
+
+        ShadowMeshBase meshBase1 = theProbeManager1.obtainFor( theTestFileId, CoherenceSpecification.ONE_TIME_ONLY );
+
+        checkObject( meshBase1, "could not find meshBase1" );
+        dumpMeshBase( meshBase1, "meshBase1", log );
+
+        MeshObject home1 = meshBase1.getHomeObject();
+
+        checkCondition( home1.isBlessedBy( FeedsSubjectArea.ATOMFEED ), "home object not blessed" );
+
+        checkEquals( home1.traverse( FeedsSubjectArea.FEED_CONTAINS_FEEDITEM.getSource() ).size(), theExpectedNumberEntries, "wrong number of entries" );
+        checkEquals( meshBase1.size(), theExpectedNumberEntries + 1, "Wrong number of MeshObjects found" );
+
+        if( theExpectedTitles != null ) {
+            for( String current : theExpectedTitles ) {
+                checkCondition( hasEntryTitled( home1, current ), "entry not found: " + current );
+            }
+        }
+    }
+
+    /**
+     * Determine whether the feed has an entry with this title.
+     *
+     * @param home the home object of the feed
+     * @param title the title
+     * @return true if an entry with this title was found
+     * @throws Exception all sorts of things may go wrong during a test
+     */
+    protected boolean hasEntryTitled(
+            MeshObject home,
+            String     title )
+        throws
+            Exception
+    {
+        PropertyValue wanted = FeedsSubjectArea.FEEDITEM_TITLE_type.createBlobValue( title, "text/plain" );
+
+        for( MeshObject current : home.traverse( FeedsSubjectArea.FEED_CONTAINS_FEEDITEM.getSource() )) {
+            if( wanted.equals( current.getPropertyValue( FeedsSubjectArea.FEEDITEM_TITLE ))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Constructor that takes parameters.
+     *
+     * @param fileName the Atom file to read
+     * @param expectedNumberEntries the number of entries in the file
+     * @param expectedTitles the titles of the entries in the file, if they shall be checked
+     * @throws Exception all sorts of things may happen during a test
+     */
+    public AtomTest3(
+            String    fileName,
+            int       expectedNumberEntries,
+            String [] expectedTitles )
+        throws
+            Exception
+    {
+        theTestFileId = theMeshBaseIdentifierFactory.obtain( new File( fileName ));
+
+        theExpectedNumberEntries = expectedNumberEntries;
+        theExpectedTitles        = expectedTitles;
+    }
+
+    /**
+     * Setup.
+     *
+     * @throws Exception all sorts of things may happen during a test
+     */
+    @Before
+    @Override
+    public void setup()
+        throws
+            Exception
+    {
+        super.setup();
+
+        theProbeDirectory.addXmlDomProbe( new ProbeDirectory.XmlDomProbeDescriptor( "feed",   "http://www.w3.org/2005/Atom", "feed", AtomProbe.class ));
+        theProbeDirectory.addXmlDomProbe( new ProbeDirectory.XmlDomProbeDescriptor( "a:feed", AtomProbe.ATOM_03_NAMESPACE,  "feed", AtomProbe.class ));
+    }
+
+    /**
+     * The expected number of entries in the test file.
+     */
+    protected int theExpectedNumberEntries;
+
+    /**
+     * The expected titles of the entries in the test file, if they shall be checked.
+     */
+    protected String [] theExpectedTitles;
+
+    /**
+     * The titles of the entries in the Atom 1.0 test files.
+     */
+    protected static final String [] TITLES = {
+            "Directly in the feed",
+            "In an element of the feed",
+            "Directly in the feed again"
+    };
+
+    /**
+     * The NetworkIdentifer of the test file.
+     */
+    protected NetMeshBaseIdentifier theTestFileId;
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( AtomTest3.class );
+}
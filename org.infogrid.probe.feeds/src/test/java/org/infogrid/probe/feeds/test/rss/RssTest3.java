@@ -0,0 +1,85 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.feeds.test.rss;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import org.infogrid.probe.feeds.rss.RssProbe;
+import org.infogrid.probe.feeds.test.AbstractFeedTest;
+import org.infogrid.util.logging.Log;
+import org.junit.Test;
+
+/**
+ * Tests that the RSS Probe determines the earliest time of the next run from ttl, skipHours and skipDays.
+ */
+public class RssTest3
+        extends
+            AbstractFeedTest
+{
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things may go wrong during a test
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        Calendar cal = Calendar.getInstance( TimeZone.getTimeZone( "GMT" ), Locale.US );
+        cal.clear();
+        cal.set( 2015, Calendar.MARCH, 2, 10, 15 ); // a Monday
+        long start = cal.getTimeInMillis();
+
+        boolean [] noHours = new boolean[ 24 ];
+        boolean [] noDays  = new boolean[ 8 ];
+
+        log.info( "nothing specified" );
+
+        checkEquals( RssProbe.determineNotChangedBefore( start, 0L, noHours, noDays ), -1L, "no hint expected" );
+
+        log.info( "ttl only" );
+
+        checkEquals( RssProbe.determineNotChangedBefore( start, 60L, noHours, noDays ), start + 60L * 60L * 1000L, "wrong ttl" );
+
+        log.info( "ttl ends during skipped hours" );
+
+        boolean [] nightHours = new boolean[ 24 ];
+        for( int i=11 ; i<14 ; ++i ) {
+            nightHours[i] = true;
+        }
+        cal.set( 2015, Calendar.MARCH, 2, 14, 0 );
+        checkEquals( RssProbe.determineNotChangedBefore( start, 60L, nightHours, noDays ), cal.getTimeInMillis(), "wrong skipHours" );
+
+        log.info( "ttl ends on a skipped day" );
+
+        boolean [] mondays = new boolean[ 8 ];
+        mondays[ Calendar.MONDAY ] = true;
+        cal.set( 2015, Calendar.MARCH, 3, 0, 0 );
+        checkEquals( RssProbe.determineNotChangedBefore( start, 60L, noHours, mondays ), cal.getTimeInMillis(), "wrong skipDays" );
+
+        log.info( "everything skipped" );
+
+        boolean [] allHours = new boolean[ 24 ];
+        for( int i=0 ; i<allHours.length ; ++i ) {
+            allHours[i] = true;
+        }
+        checkEquals( RssProbe.determineNotChangedBefore( start, 60L, allHours, noDays ), start + 60L * 60L * 1000L, "skipping should have been ignored" );
+    }
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( RssTest3.class );
+}
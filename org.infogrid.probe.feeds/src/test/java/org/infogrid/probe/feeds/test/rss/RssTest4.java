@@ -0,0 +1,119 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.feeds.test.rss;
+
+import java.io.File;
+import org.infogrid.mesh.MeshObject;
+import org.infogrid.meshbase.net.CoherenceSpecification;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.meshbase.net.proxy.m.MPingPongNetMessageEndpointFactory;
+import org.infogrid.model.Feeds.FeedsSubjectArea;
+import org.infogrid.probe.EntryRetentionPolicy;
+import org.infogrid.probe.ProbeDirectory;
+import org.infogrid.probe.feeds.rss.RssProbe;
+import org.infogrid.probe.feeds.test.AbstractFeedTest;
+import org.infogrid.probe.manager.m.MPassiveProbeManager;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.probe.shadow.m.MShadowMeshBaseFactory;
+import org.infogrid.util.context.SimpleContext;
+import org.infogrid.util.logging.Log;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the RSS Probe only instantiates the items permitted by the EntryRetentionPolicy.
+ */
+public class RssTest4
+        extends
+            AbstractFeedTest
+{
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things may go wrong during a test
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        log.info( "checking policy" );
+
+        EntryRetentionPolicy byAge = EntryRetentionPolicy.create( -1, 1000L );
+
+        checkCondition(  byAge.retains( 0, 10000L,  10500L ), "young entry not retained" );
+        checkCondition( !byAge.retains( 0, 10000L,  12000L ), "old entry retained" );
+        checkCondition(  byAge.retains( 0, -1L,     12000L ), "entry of unknown age not retained" );
+        checkCondition(  EntryRetentionPolicy.UNLIMITED.retains( 1000000, 0L, 100000000L ), "unlimited does not retain" );
+
+        log.info( "accessing test file with meshBase" );
+
+        ShadowMeshBase meshBase1 = theProbeManager1.obtainFor( theTestFileId, CoherenceSpecification.ONE_TIME_ONLY );
+
+        checkObject( meshBase1, "could not find meshBase1" );
+        dumpMeshBase( meshBase1, "meshBase1", log );
+
+        MeshObject home1 = meshBase1.getHomeObject();
+
+        checkEquals( home1.traverse( FeedsSubjectArea.FEED_CONTAINS_FEEDITEM.getSource() ).size(), 2, "wrong number of items" );
+        checkEquals( meshBase1.size(), 3, "Wrong number of MeshObjects found" );
+
+        for( MeshObject current : home1.traverse( FeedsSubjectArea.FEED_CONTAINS_FEEDITEM.getSource() )) {
+            checkCondition( !current.getIdentifier().toExternalForm().endsWith( "third" ), "third item should have been dropped" );
+        }
+    }
+
+    /**
+     * Setup.
+     *
+     * @throws Exception all sorts of things may happen during a test
+     */
+    @Before
+    @Override
+    public void setup()
+        throws
+            Exception
+    {
+        super.setup();
+
+        SimpleContext context = SimpleContext.create( rootContext, "retention-context" );
+        context.addContextObject( EntryRetentionPolicy.create( 2, -1L ));
+
+        MPingPongNetMessageEndpointFactory shadowEndpointFactory = MPingPongNetMessageEndpointFactory.create( exec );
+
+        MShadowMeshBaseFactory theShadowFactory = MShadowMeshBaseFactory.create(
+                theMeshBaseIdentifierFactory,
+                shadowEndpointFactory,
+                theModelBase,
+                context );
+
+        theProbeManager1 = MPassiveProbeManager.create( theShadowFactory, theProbeDirectory );
+        shadowEndpointFactory.setNameServer( theProbeManager1.getNetMeshBaseNameServer() );
+
+        theShadowFactory.setProbeManager( theProbeManager1 );
+
+        theProbeDirectory.addXmlDomProbe( new ProbeDirectory.XmlDomProbeDescriptor( null, null, "rss", RssProbe.class ));
+
+        theTestFileId = theMeshBaseIdentifierFactory.obtain( new File( "src/test/resources/org/infogrid/probe/feeds/test/rss/RssTest4.xml" ));
+    }
+
+    /**
+     * The NetworkIdentifer of the test file.
+     */
+    protected NetMeshBaseIdentifier theTestFileId;
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( RssTest4.class );
+}
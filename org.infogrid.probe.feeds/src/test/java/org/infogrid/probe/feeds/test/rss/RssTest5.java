@@ -0,0 +1,160 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.feeds.test.rss;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import org.infogrid.mesh.MeshObject;
+import org.infogrid.meshbase.net.CoherenceSpecification;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.model.Feeds.FeedsSubjectArea;
+import org.infogrid.model.primitives.PropertyValue;
+import org.infogrid.probe.ProbeDirectory;
+import org.infogrid.probe.feeds.rss.RssProbe;
+import org.infogrid.probe.feeds.test.AbstractFeedTest;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.util.logging.Log;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * Tests that the RSS Probe finds the items of a channel at any depth, and that it finds the
+ * same items whether it reads the feed while parsing, or from a DOM. Documents with a document
+ * type declaration are read from a DOM.
+ */
+@RunWith(Parameterized.class)
+public class RssTest5
+        extends
+            AbstractFeedTest
+{
+    /**
+     * Test parameters.
+     *
+     * @return test parameters
+     */
+    @Parameterized.Parameters
+    public static Collection<Object[]> parameters()
+    {
+        return Arrays.asList( new Object[][] {
+                 { "src/test/resources/org/infogrid/probe/feeds/test/rss/RssTest5.xml",         4 }, // parseStream
+                 { "src/test/resources/org/infogrid/probe/feeds/test/rss/RssTest5_doctype.xml", 4 }  // parseDocument
+        });
+    }
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all sorts of things may go wrong during a test
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        log.info( "accessing test file with meshBase" );
+
+        ShadowMeshBase meshBase1 = theProbeManager1.obtainFor( theTestFileId, CoherenceSpecification.ONE_TIME_ONLY );
+
+        checkObject( meshBase1, "could not find meshBase1" );
+        dumpMeshBase( meshBase1, "meshBase1", log );
+
+        MeshObject home1 = meshBase1.getHomeObject();
+
+        checkCondition( home1.isBlessedBy( FeedsSubjectArea.RSSFEED ), "home object not blessed" );
+        checkEquals( home1.getPropertyValue( FeedsSubjectArea.FEED_TITLE ), FeedsSubjectArea.FEED_TITLE_type.createBlobValue( "Items at different depths", "text/plain" ), "wrong feed title" );
+
+        checkEquals( home1.traverse( FeedsSubjectArea.FEED_CONTAINS_FEEDITEM.getSource() ).size(), theExpectedNumberItems, "wrong number of items" );
+        checkEquals( meshBase1.size(), theExpectedNumberItems + 1, "Wrong number of MeshObjects found" );
+
+        checkCondition( hasItemTitled( home1, "Directly in the channel" ),       "first item not found" );
+        checkCondition( hasItemTitled( home1, "In an element of the channel" ),  "second item not found" );
+        checkCondition( hasItemTitled( home1, "Further down" ),                  "third item not found" );
+        checkCondition( hasItemTitled( home1, "Directly in the channel again" ), "fourth item not found" );
+    }
+
+    /**
+     * Determine whether the feed has an item with this title.
+     *
+     * @param home the home object of the feed
+     * @param title the title
+     * @return true if an item with this title was found
+     * @throws Exception all sorts of things may go wrong during a test
+     */
+    protected boolean hasItemTitled(
+            MeshObject home,
+            String     title )
+        throws
+            Exception
+    {
+        PropertyValue wanted = FeedsSubjectArea.FEEDITEM_TITLE_type.createBlobValue( title, "text/plain" );
+
+        for( MeshObject current : home.traverse( FeedsSubjectArea.FEED_CONTAINS_FEEDITEM.getSource() )) {
+            if( wanted.equals( current.getPropertyValue( FeedsSubjectArea.FEEDITEM_TITLE ))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Constructor that takes parameters.
+     *
+     * @param fileName the RSS file to read
+     * @param expectedNumberItems the number of items in the file
+     * @throws Exception all sorts of things may happen during a test
+     */
+    public RssTest5(
+            String fileName,
+            int    expectedNumberItems )
+        throws
+            Exception
+    {
+        theTestFileId = theMeshBaseIdentifierFactory.obtain( new File( fileName ));
+
+        theExpectedNumberItems = expectedNumberItems;
+    }
+
+    /**
+     * Setup.
+     *
+     * @throws Exception all sorts of things may happen during a test
+     */
+    @Before
+    @Override
+    public void setup()
+        throws
+            Exception
+    {
+        super.setup();
+
+        theProbeDirectory.addXmlDomProbe( new ProbeDirectory.XmlDomProbeDescriptor( "rss", null, "rss", RssProbe.class ));
+    }
+
+    /**
+     * The expected number of items in the test file.
+     */
+    protected int theExpectedNumberItems;
+
+    /**
+     * The NetworkIdentifer of the test file.
+     */
+    protected NetMeshBaseIdentifier theTestFileId;
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( RssTest5.class );
+}
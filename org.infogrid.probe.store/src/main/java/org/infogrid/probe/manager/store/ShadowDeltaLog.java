@@ -0,0 +1,513 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.manager.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.infogrid.mesh.net.externalized.ExternalizedNetMeshObject;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.model.primitives.externalized.DecodingException;
+import org.infogrid.model.primitives.externalized.EncodingException;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.probe.shadow.externalized.ExternalizedShadowMeshBase;
+import org.infogrid.probe.shadow.externalized.ParserFriendlyExternalizedShadowMeshBase;
+import org.infogrid.probe.shadow.externalized.xml.CompressedExternalizedShadowMeshBaseXmlEncoder;
+import org.infogrid.probe.shadow.externalized.xml.ExternalizedShadowMeshBaseXmlEncoder;
+import org.infogrid.probe.shadow.store.StoreShadowMeshBase;
+import org.infogrid.store.Store;
+import org.infogrid.store.StoreKeyDoesNotExistException;
+import org.infogrid.store.StoreValue;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.logging.Log;
+
+/**
+ * <p>Persists the changes to ShadowMeshBases as an append-only log of delta records, so that
+ *    a Probe run that changes only a few MeshObjects does not rewrite the entire ShadowMeshBase.</p>
+ * <p>Each delta record contains the MeshObjects that were added or changed, and the identifiers
+ *    of the MeshObjects that were removed, since the previous snapshot or delta record. Delta
+ *    records are kept in their own Store, keyed by the key of the ShadowMeshBase and a counter.
+ *    After a certain number of delta records, the next update writes a full snapshot again,
+ *    and the delta records are deleted.</p>
+ * <p>Changes are detected by comparing hashes of the encoded MeshObjects with those of the
+ *    most recently persisted state. That state is only known for ShadowMeshBases that have
+ *    been written in full since they were loaded; for all others, a full snapshot is written.</p>
+ * <p>As the snapshot is not rewritten when a delta record is written, the time of the next
+ *    scheduled update is kept in an additional, empty record next to the delta records. This
+ *    record is also written with each snapshot, so the schedule can be determined without
+ *    reading either.</p>
+ */
+public class ShadowDeltaLog
+{
+    private static final Log log = Log.getLogInstance( ShadowDeltaLog.class ); // our own, private logger
+
+    /**
+     * Factory method.
+     *
+     * @param deltaStore the Store in which the delta records are kept
+     * @return the created ShadowDeltaLog
+     */
+    public static ShadowDeltaLog create(
+            Store deltaStore )
+    {
+        return new ShadowDeltaLog( deltaStore, DEFAULT_MAX_DELTAS );
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param deltaStore the Store in which the delta records are kept
+     * @param maxDeltas the maximum number of delta records per ShadowMeshBase before a full snapshot is written
+     * @return the created ShadowDeltaLog
+     */
+    public static ShadowDeltaLog create(
+            Store deltaStore,
+            int   maxDeltas )
+    {
+        return new ShadowDeltaLog( deltaStore, maxDeltas );
+    }
+
+    /**
+     * Constructor for subclasses only, use factory method.
+     *
+     * @param deltaStore the Store in which the delta records are kept
+     * @param maxDeltas the maximum number of delta records per ShadowMeshBase before a full snapshot is written
+     */
+    protected ShadowDeltaLog(
+            Store deltaStore,
+            int   maxDeltas )
+    {
+        theDeltaStore = deltaStore;
+        theMaxDeltas  = maxDeltas;
+    }
+
+    /**
+     * Persist the changes to a ShadowMeshBase since its previous snapshot or delta record
+     * as a new delta record, if possible.
+     *
+     * @param shadow the ShadowMeshBase
+     * @param externalized the externalized form of the ShadowMeshBase to persist
+     * @param timeExpires the time of the next scheduled update of the ShadowMeshBase, or -1 if there is none
+     * @return true if the delta record was written, false if a full snapshot needs to be written instead
+     * @throws EncodingException thrown if a problem occurred during encoding
+     * @throws IOException thrown if an I/O error occurred
+     */
+    public boolean appendDelta(
+            StoreShadowMeshBase        shadow,
+            ExternalizedShadowMeshBase externalized,
+            long                       timeExpires )
+        throws
+            EncodingException,
+            IOException
+    {
+        State state;
+        synchronized( theStates ) {
+            state = theStates.get( shadow );
+        }
+        if( state == null ) {
+            return false; // we do not know what has been persisted
+        }
+
+        synchronized( state ) {
+            if( state.theDeltaCount >= theMaxDeltas ) {
+                return false; // time to compact
+            }
+
+            ExternalizedNetMeshObject [] objects = externalized.getExternalizedNetMeshObjects();
+
+            HashMap<String,Long>            newHashes = new HashMap<String,Long>( objects.length * 2 );
+            List<ExternalizedNetMeshObject> changed   = new ArrayList<ExternalizedNetMeshObject>();
+
+            determineHashes( objects, newHashes, state.theHashes, changed );
+
+            List<String> removed = new ArrayList<String>();
+            for( String current : state.theHashes.keySet() ) {
+                if( !newHashes.containsKey( current )) {
+                    removed.add( current );
+                }
+            }
+
+            if( !changed.isEmpty() || !removed.isEmpty() ) {
+                ParserFriendlyExternalizedShadowMeshBase delta = ParserFriendlyExternalizedShadowMeshBase.create();
+                delta.setNetworkIdentifier( externalized.getNetworkIdentifier() );
+                for( ExternalizedNetMeshObject current : changed ) {
+                    delta.addExternalizedNetMeshObject( current );
+                }
+
+                ByteArrayOutputStream out  = new ByteArrayOutputStream();
+                DataOutputStream      data = new DataOutputStream( out );
+
+                data.writeInt( removed.size() );
+                for( String current : removed ) {
+                    data.writeUTF( current );
+                }
+                data.flush();
+
+                theEncoder.encodeShadowMeshBase( delta, false, out );
+
+                long now = System.currentTimeMillis();
+
+                theDeltaStore.putOrUpdate(
+                        deltaKey( shadow, state.theDeltaCount + 1 ),
+                        ENCODING_ID,
+                        now,
+                        now,
+                        now,
+                        -1L,
+                        out.toByteArray() );
+
+                ++state.theDeltaCount;
+
+                if( log.isDebugEnabled() ) {
+                    log.debug( this + ": wrote delta " + state.theDeltaCount + " for " + shadow + ": " + changed.size() + " changed, " + removed.size() + " removed" );
+                }
+            }
+            state.theHashes = newHashes;
+
+            writeTimeExpires( shadow.getIdentifier(), timeExpires );
+        }
+        return true;
+    }
+
+    /**
+     * Notifies this ShadowDeltaLog that a full snapshot of a ShadowMeshBase has been written
+     * successfully, so its delta records are obsolete. This must not be invoked before the
+     * snapshot is in the Store: if writing it failed, the delta records are still needed.
+     *
+     * @param shadow the ShadowMeshBase
+     * @param externalized the externalized form of the ShadowMeshBase that has been written
+     * @param timeExpires the time of the next scheduled update of the ShadowMeshBase, or -1 if there is none
+     * @throws EncodingException thrown if a problem occurred during encoding
+     * @throws IOException thrown if an I/O error occurred
+     */
+    public void snapshotWritten(
+            StoreShadowMeshBase        shadow,
+            ExternalizedShadowMeshBase externalized,
+            long                       timeExpires )
+        throws
+            EncodingException,
+            IOException
+    {
+        ExternalizedNetMeshObject [] objects   = externalized.getExternalizedNetMeshObjects();
+        HashMap<String,Long>         newHashes = new HashMap<String,Long>( objects.length * 2 );
+
+        determineHashes( objects, newHashes, null, null );
+
+        theDeltaStore.deleteAll( deltaKeyPrefix( shadow.getIdentifier() ));
+
+        State state;
+        synchronized( theStates ) {
+            state = theStates.get( shadow );
+            if( state == null ) {
+                state = new State();
+                theStates.put( shadow, state );
+            }
+        }
+        synchronized( state ) {
+            state.theHashes     = newHashes;
+            state.theDeltaCount = 0;
+        }
+
+        writeTimeExpires( shadow.getIdentifier(), timeExpires );
+    }
+
+    /**
+     * Discard the delta records of a ShadowMeshBase, and what is known about its persisted state.
+     * This is invoked when a ShadowMeshBase has been newly created, so any delta records left under
+     * its key belong to a predecessor, and must not be applied to its snapshot.
+     *
+     * @param shadow the ShadowMeshBase
+     * @param timeExpires the time of the next scheduled update of the ShadowMeshBase, or -1 if there is none
+     * @throws IOException thrown if an I/O error occurred
+     */
+    public void discardDeltas(
+            StoreShadowMeshBase shadow,
+            long                timeExpires )
+        throws
+            IOException
+    {
+        synchronized( theStates ) {
+            theStates.remove( shadow );
+        }
+        theDeltaStore.deleteAll( deltaKeyPrefix( shadow.getIdentifier() ));
+
+        writeTimeExpires( shadow.getIdentifier(), timeExpires );
+    }
+
+    /**
+     * Determine the time of the next scheduled update of a ShadowMeshBase, as of the most
+     * recent snapshot or delta record, without reading either.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     * @return the time of the next scheduled update, or -1 if there is none
+     * @throws StoreKeyDoesNotExistException thrown if the time is not known, e.g. because the ShadowMeshBase
+     *         was written before the time was recorded here
+     * @throws IOException thrown if an I/O error occurred
+     */
+    public long getTimeExpires(
+            NetMeshBaseIdentifier key )
+        throws
+            StoreKeyDoesNotExistException,
+            IOException
+    {
+        StoreValue value = theDeltaStore.get( expiresKey( key ));
+
+        return value.getTimeExpires();
+    }
+
+    /**
+     * Record the time of the next scheduled update of a ShadowMeshBase.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     * @param timeExpires the time of the next scheduled update, or -1 if there is none
+     * @throws IOException thrown if an I/O error occurred
+     */
+    protected void writeTimeExpires(
+            NetMeshBaseIdentifier key,
+            long                  timeExpires )
+        throws
+            IOException
+    {
+        long now = System.currentTimeMillis();
+
+        theDeltaStore.putOrUpdate(
+                expiresKey( key ),
+                EXPIRES_ENCODING_ID,
+                now,
+                now,
+                now,
+                timeExpires,
+                new byte[0] ); // the time of the next update is all we need
+    }
+
+    /**
+     * Apply the delta records of a ShadowMeshBase to its most recent snapshot.
+     *
+     * @param shadow the ShadowMeshBase being restored
+     * @param snapshot the most recent snapshot
+     * @return the ExternalizedShadowMeshBase with the delta records applied
+     * @throws DecodingException thrown if a problem occurred during decoding
+     * @throws IOException thrown if an I/O error occurred
+     */
+    public ExternalizedShadowMeshBase applyDeltas(
+            StoreShadowMeshBase        shadow,
+            ExternalizedShadowMeshBase snapshot )
+        throws
+            DecodingException,
+            IOException
+    {
+        LinkedHashMap<String,ExternalizedNetMeshObject> objects = null;
+
+        for( int i=1 ; ; ++i ) {
+            StoreValue value;
+            try {
+                value = theDeltaStore.get( deltaKey( shadow, i ));
+
+            } catch( StoreKeyDoesNotExistException ex ) {
+                break;
+            }
+            if( objects == null ) {
+                objects = new LinkedHashMap<String,ExternalizedNetMeshObject>();
+                for( ExternalizedNetMeshObject current : snapshot.getExternalizedNetMeshObjects() ) {
+                    objects.put( current.getIdentifier().toExternalForm(), current );
+                }
+            }
+
+            DataInputStream data = new DataInputStream( value.getDataAsStream() );
+
+            int nRemoved = data.readInt();
+            for( int j=0 ; j<nRemoved ; ++j ) {
+                objects.remove( data.readUTF() );
+            }
+
+            ExternalizedShadowMeshBase delta = theEncoder.decodeShadowMeshBase( data, shadow );
+            for( ExternalizedNetMeshObject current : delta.getExternalizedNetMeshObjects() ) {
+                objects.put( current.getIdentifier().toExternalForm(), current );
+            }
+        }
+
+        if( objects == null ) {
+            return snapshot; // no deltas
+        }
+
+        ParserFriendlyExternalizedShadowMeshBase ret = ParserFriendlyExternalizedShadowMeshBase.create();
+        ret.setNetworkIdentifier( snapshot.getNetworkIdentifier() );
+        for( ExternalizedNetMeshObject current : objects.values() ) {
+            ret.addExternalizedNetMeshObject( current );
+        }
+        return ret;
+    }
+
+    /**
+     * Determine the hashes of the encoded ExternalizedNetMeshObjects, and which of them changed.
+     *
+     * @param objects the ExternalizedNetMeshObjects
+     * @param hashes the Map into which to write the hashes, keyed by the external form of the MeshObjects' identifiers
+     * @param oldHashes the previous hashes, if changes shall be determined
+     * @param changed the List into which to write the ExternalizedNetMeshObjects that are new or changed, if changes shall be determined
+     * @throws EncodingException thrown if a problem occurred during encoding
+     */
+    protected void determineHashes(
+            ExternalizedNetMeshObject []    objects,
+            Map<String,Long>                hashes,
+            Map<String,Long>                oldHashes,
+            List<ExternalizedNetMeshObject> changed )
+        throws
+            EncodingException
+    {
+        ExternalizedShadowMeshBaseXmlEncoder encoder = new ExternalizedShadowMeshBaseXmlEncoder();
+        StringBuilder                        buf     = new StringBuilder();
+
+        for( ExternalizedNetMeshObject current : objects ) {
+            buf.setLength( 0 );
+            encoder.appendExternalizedNetMeshObject( current, buf );
+
+            String key  = current.getIdentifier().toExternalForm();
+            long   hash = hash( buf );
+
+            hashes.put( key, hash );
+
+            if( changed != null ) {
+                Long oldHash = oldHashes.get( key );
+                if( oldHash == null || oldHash.longValue() != hash ) {
+                    changed.add( current );
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculate a 64-bit FNV-1a hash of a sequence of characters.
+     *
+     * @param chars the characters
+     * @return the hash
+     */
+    protected static long hash(
+            CharSequence chars )
+    {
+        long ret = 0xcbf29ce484222325L;
+        for( int i=0 ; i<chars.length() ; ++i ) {
+            ret ^= chars.charAt( i );
+            ret *= 0x100000001b3L;
+        }
+        return ret;
+    }
+
+    /**
+     * Determine the prefix of the keys of the delta records of a ShadowMeshBase.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     * @return the prefix
+     */
+    protected String deltaKeyPrefix(
+            NetMeshBaseIdentifier key )
+    {
+        // identifiers do not contain unescaped blanks, so one ShadowMeshBase's prefix is never a prefix of another's
+        return key.toExternalForm() + " ";
+    }
+
+    /**
+     * Determine the key of a delta record.
+     *
+     * @param shadow the ShadowMeshBase
+     * @param counter the number of the delta record since the most recent snapshot, starting with 1
+     * @return the key
+     */
+    protected String deltaKey(
+            ShadowMeshBase shadow,
+            int            counter )
+    {
+        return deltaKeyPrefix( shadow.getIdentifier() ) + counter;
+    }
+
+    /**
+     * Determine the key of the record that holds the time of the next scheduled update of a
+     * ShadowMeshBase. Delta records are counted from 1, so this never collides with one.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     * @return the key
+     */
+    protected String expiresKey(
+            NetMeshBaseIdentifier key )
+    {
+        return deltaKeyPrefix( key ) + 0;
+    }
+
+    /**
+     * The Store in which the delta records are kept.
+     */
+    protected final Store theDeltaStore;
+
+    /**
+     * The maximum number of delta records per ShadowMeshBase before a full snapshot is written.
+     */
+    protected final int theMaxDeltas;
+
+    /**
+     * Encodes and decodes the content of delta records.
+     */
+    protected final CompressedExternalizedShadowMeshBaseXmlEncoder theEncoder = CompressedExternalizedShadowMeshBaseXmlEncoder.create();
+
+    /**
+     * The most recently persisted state of the ShadowMeshBases currently in memory.
+     * This goes away together with the ShadowMeshBase when it is swapped out.
+     */
+    protected final WeakHashMap<StoreShadowMeshBase,State> theStates = new WeakHashMap<StoreShadowMeshBase,State>();
+
+    /**
+     * Our ResourceHelper.
+     */
+    private static final ResourceHelper theResourceHelper = ResourceHelper.getInstance( ShadowDeltaLog.class );
+
+    /**
+     * The default maximum number of delta records per ShadowMeshBase before a full snapshot is written.
+     */
+    public static final int DEFAULT_MAX_DELTAS = theResourceHelper.getResourceIntegerOrDefault(
+            "MaxDeltas",
+            32 );
+
+    /**
+     * The encoding id of delta records.
+     */
+    public static final String ENCODING_ID = ShadowDeltaLog.class.getName() + "-1";
+
+    /**
+     * The encoding id of the records that hold the time of the next scheduled update.
+     */
+    public static final String EXPIRES_ENCODING_ID = ShadowDeltaLog.class.getName() + "-expires-1";
+
+    /**
+     * The most recently persisted state of a ShadowMeshBase.
+     */
+    protected static class State
+    {
+        /**
+         * The hashes of the encoded MeshObjects, keyed by the external form of their identifiers.
+         */
+        protected Map<String,Long> theHashes;
+
+        /**
+         * The number of delta records written since the most recent snapshot.
+         */
+        protected int theDeltaCount;
+    }
+}
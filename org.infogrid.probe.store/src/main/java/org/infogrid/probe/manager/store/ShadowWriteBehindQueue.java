@@ -0,0 +1,313 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.manager.store;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.probe.shadow.externalized.ExternalizedShadowMeshBase;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.logging.Log;
+
+/**
+ * <p>Delays writing updated ShadowMeshBases to their Store, so that repeated updates of the same
+ *    ShadowMeshBase within a time window are written only once, and the writes of many concurrent
+ *    Probe runs are performed together, by one Thread, instead of by each Probe run.</p>
+ * <p>The durability policy is given by the maximum delay: no update remains unwritten for longer
+ *    than that, unless the process terminates without {@link #stop} or {@link #flush} having been
+ *    invoked. Only updates are delayed: creating and removing a ShadowMeshBase goes through the
+ *    storage of the ProbeManager, not through this queue, and queued updates of ShadowMeshBases
+ *    that have died since are not written. There is no other durability policy, e.g. one that
+ *    writes particular updates right away. Queued ShadowMeshBases are strongly referenced, so they
+ *    cannot be swapped out before they have been written.</p>
+ * <p>A ShadowMeshBase is externalized when it is enqueued, by the Thread that updated it, and the
+ *    externalized form is written later. This way, the write cannot observe a Probe run that is
+ *    in progress, and the writing Thread does not need to acquire the ShadowMeshBase's locks.</p>
+ * <p>If the maximum number of queued ShadowMeshBases is reached, the Thread that enqueues the next
+ *    one writes the entire queue itself. This slows down the producers of updates when the Store
+ *    cannot keep up.</p>
+ */
+public class ShadowWriteBehindQueue
+{
+    private static final Log log = Log.getLogInstance( ShadowWriteBehindQueue.class ); // our own, private logger
+
+    /**
+     * Factory method with default parameters.
+     *
+     * @param writer writes a ShadowMeshBase to the Store
+     * @return the created ShadowWriteBehindQueue
+     */
+    public static ShadowWriteBehindQueue create(
+            Writer writer )
+    {
+        return new ShadowWriteBehindQueue( writer, DEFAULT_MAX_DELAY, DEFAULT_MAX_QUEUED );
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param writer writes a ShadowMeshBase to the Store
+     * @param maxDelay the maximum time, in milliseconds, that an update remains unwritten
+     * @param maxQueued the maximum number of queued ShadowMeshBases before the enqueuing Thread writes them
+     * @return the created ShadowWriteBehindQueue
+     */
+    public static ShadowWriteBehindQueue create(
+            Writer writer,
+            long   maxDelay,
+            int    maxQueued )
+    {
+        return new ShadowWriteBehindQueue( writer, maxDelay, maxQueued );
+    }
+
+    /**
+     * Constructor for subclasses only, use factory method.
+     *
+     * @param writer writes a ShadowMeshBase to the Store
+     * @param maxDelay the maximum time, in milliseconds, that an update remains unwritten
+     * @param maxQueued the maximum number of queued ShadowMeshBases before the enqueuing Thread writes them
+     */
+    protected ShadowWriteBehindQueue(
+            Writer writer,
+            long   maxDelay,
+            int    maxQueued )
+    {
+        theWriter    = writer;
+        theMaxDelay  = maxDelay;
+        theMaxQueued = maxQueued;
+    }
+
+    /**
+     * Start writing queued ShadowMeshBases periodically.
+     *
+     * @param exec the ScheduledExecutorService on which to write
+     */
+    public synchronized void start(
+            ScheduledExecutorService exec )
+    {
+        if( theFuture != null ) {
+            throw new IllegalStateException( "Already started" );
+        }
+        theFuture = exec.scheduleWithFixedDelay(
+                new Runnable() {
+                        public void run()
+                        {
+                            flush();
+                        }
+                },
+                theMaxDelay,
+                theMaxDelay,
+                TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Stop writing queued ShadowMeshBases periodically, and write those that are queued.
+     */
+    public void stop()
+    {
+        synchronized( this ) {
+            if( theFuture != null ) {
+                theFuture.cancel( false );
+                theFuture = null;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Enqueue an updated ShadowMeshBase for writing. If it is queued already, only the most recently
+     * enqueued externalized form is written. If this ShadowWriteBehindQueue has not been started,
+     * or has been stopped, the ShadowMeshBase is written right away.
+     *
+     * @param shadow the ShadowMeshBase
+     * @param externalized the externalized form of the ShadowMeshBase as of the update
+     */
+    public void enqueue(
+            ShadowMeshBase             shadow,
+            ExternalizedShadowMeshBase externalized )
+    {
+        QueuedShadow queued = new QueuedShadow( shadow, externalized );
+
+        boolean mustWrite;
+        boolean mustFlush;
+        synchronized( this ) { // so it cannot be queued after stop has flushed the queue
+            mustWrite = theFuture == null;
+            if( mustWrite ) {
+                mustFlush = false;
+            } else {
+                theQueued.put( shadow.getIdentifier(), queued );
+                mustFlush = theQueued.size() >= theMaxQueued;
+            }
+        }
+        if( mustWrite ) {
+            synchronized( theFlushLock ) { // so it cannot overtake a write by a concurrent flush
+                write( queued );
+            }
+        } else if( mustFlush ) {
+            flush(); // backpressure: the producer does the work
+        }
+    }
+
+    /**
+     * Write all queued ShadowMeshBases now.
+     */
+    public void flush()
+    {
+        synchronized( theFlushLock ) { // so a ShadowMeshBase's writes cannot overtake each other
+            ArrayList<QueuedShadow> batch;
+            synchronized( this ) {
+                if( theQueued.isEmpty() ) {
+                    return;
+                }
+                batch = new ArrayList<QueuedShadow>( theQueued.values() );
+                theQueued.clear();
+            }
+            if( log.isDebugEnabled() ) {
+                log.debug( this + ": writing " + batch.size() + " ShadowMeshBases" );
+            }
+            for( QueuedShadow current : batch ) {
+                write( current );
+            }
+        }
+    }
+
+    /**
+     * Determine the number of queued ShadowMeshBases.
+     *
+     * @return the number
+     */
+    public int size()
+    {
+        synchronized( this ) {
+            return theQueued.size();
+        }
+    }
+
+    /**
+     * Write a single ShadowMeshBase.
+     *
+     * @param queued the ShadowMeshBase and its externalized form
+     */
+    protected void write(
+            QueuedShadow queued )
+    {
+        try {
+            theWriter.write( queued.theShadow, queued.theExternalized );
+
+        } catch( Throwable t ) {
+            log.error( this, queued.theShadow, t ); // attempt to write as many as possible
+        }
+    }
+
+    /**
+     * Writes a ShadowMeshBase to the Store.
+     */
+    protected final Writer theWriter;
+
+    /**
+     * The maximum time, in milliseconds, that an update remains unwritten.
+     */
+    protected final long theMaxDelay;
+
+    /**
+     * The maximum number of queued ShadowMeshBases before the enqueuing Thread writes them.
+     */
+    protected final int theMaxQueued;
+
+    /**
+     * The queued ShadowMeshBases, in the order in which they were first enqueued. Guarded by this
+     * object, like the periodic task, so enqueuing and stopping cannot interleave.
+     */
+    protected final LinkedHashMap<NetMeshBaseIdentifier,QueuedShadow> theQueued
+            = new LinkedHashMap<NetMeshBaseIdentifier,QueuedShadow>();
+
+    /**
+     * Held while writing.
+     */
+    protected final Object theFlushLock = new Object();
+
+    /**
+     * The periodic task, while started.
+     */
+    protected ScheduledFuture<?> theFuture;
+
+    /**
+     * Our ResourceHelper.
+     */
+    private static final ResourceHelper theResourceHelper = ResourceHelper.getInstance( ShadowWriteBehindQueue.class );
+
+    /**
+     * The default maximum time, in milliseconds, that an update remains unwritten.
+     */
+    public static final long DEFAULT_MAX_DELAY = theResourceHelper.getResourceLongOrDefault(
+            "MaxDelay",
+            2000L );
+
+    /**
+     * The default maximum number of queued ShadowMeshBases before the enqueuing Thread writes them.
+     */
+    public static final int DEFAULT_MAX_QUEUED = theResourceHelper.getResourceIntegerOrDefault(
+            "MaxQueued",
+            1000 );
+
+    /**
+     * Writes a ShadowMeshBase to the Store.
+     */
+    public static interface Writer
+    {
+        /**
+         * Write a ShadowMeshBase to the Store.
+         *
+         * @param shadow the ShadowMeshBase
+         * @param externalized the externalized form of the ShadowMeshBase to write
+         */
+        public void write(
+                ShadowMeshBase             shadow,
+                ExternalizedShadowMeshBase externalized );
+    }
+
+    /**
+     * A queued ShadowMeshBase, with its externalized form as of the update.
+     */
+    protected static class QueuedShadow
+    {
+        /**
+         * Constructor.
+         *
+         * @param shadow the ShadowMeshBase
+         * @param externalized the externalized form of the ShadowMeshBase
+         */
+        protected QueuedShadow(
+                ShadowMeshBase             shadow,
+                ExternalizedShadowMeshBase externalized )
+        {
+            theShadow       = shadow;
+            theExternalized = externalized;
+        }
+
+        /**
+         * The ShadowMeshBase.
+         */
+        protected final ShadowMeshBase theShadow;
+
+        /**
+         * The externalized form of the ShadowMeshBase.
+         */
+        protected final ExternalizedShadowMeshBase theExternalized;
+    }
+}
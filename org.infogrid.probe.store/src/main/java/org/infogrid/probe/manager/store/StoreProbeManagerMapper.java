@@ -22,6 +22,7 @@ import org.infogrid.model.primitives.externalized.DecodingException;
 import org.infogrid.model.primitives.externalized.EncodingException;
 import org.infogrid.probe.shadow.ShadowMeshBase;
 import org.infogrid.probe.shadow.externalized.ExternalizedShadowMeshBase;
+import org.infogrid.probe.shadow.externalized.xml.CompressedExternalizedShadowMeshBaseXmlEncoder;
 import org.infogrid.probe.shadow.externalized.xml.ExternalizedShadowMeshBaseXmlEncoder;
 import org.infogrid.probe.shadow.store.StoreShadowMeshBase;
 import org.infogrid.probe.shadow.store.StoreShadowMeshBaseFactory;
@@ -29,9 +30,11 @@ import org.infogrid.store.StoreEntryMapper;
 import org.infogrid.store.StoreValue;
 import org.infogrid.store.StoreValueDecodingException;
 import org.infogrid.store.StoreValueEncodingException;
+import org.infogrid.util.ResourceHelper;
 
 /**
- * Maps ShadowMeshBases to and from Stores.
+ * Maps ShadowMeshBases to and from Stores. ShadowMeshBases are written in the plain XML
+ * format unless the compressed format is specified; values in either format can be read.
  */
 public class StoreProbeManagerMapper
         implements
@@ -45,7 +48,46 @@ public class StoreProbeManagerMapper
     public StoreProbeManagerMapper(
             StoreShadowMeshBaseFactory factory )
     {
-        theFactory = factory;
+        this( factory, XML_ENCODING_ID );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param factory the factory to recreate StoreMeshBases
+     * @param preferredEncodingId the encoding id of the format in which to write ShadowMeshBases:
+     *        either XML_ENCODING_ID or CompressedExternalizedShadowMeshBaseXmlEncoder.ENCODING_ID
+     * @throws IllegalArgumentException thrown if the encoding id is not known
+     */
+    public StoreProbeManagerMapper(
+            StoreShadowMeshBaseFactory factory,
+            String                     preferredEncodingId )
+    {
+        this( factory, preferredEncodingId, null );
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param factory the factory to recreate StoreMeshBases
+     * @param preferredEncodingId the encoding id of the format in which to write ShadowMeshBases:
+     *        either XML_ENCODING_ID or CompressedExternalizedShadowMeshBaseXmlEncoder.ENCODING_ID
+     * @param deltaLog the ShadowDeltaLog that holds the changes since the snapshots written by this mapper, if any
+     * @throws IllegalArgumentException thrown if the encoding id is not known
+     */
+    public StoreProbeManagerMapper(
+            StoreShadowMeshBaseFactory factory,
+            String                     preferredEncodingId,
+            ShadowDeltaLog             deltaLog )
+    {
+        if(    !XML_ENCODING_ID.equals( preferredEncodingId )
+            && !theCompressedEncoder.getEncodingId().equals( preferredEncodingId ))
+        {
+            throw new IllegalArgumentException( "Unknown encoding id: " + preferredEncodingId );
+        }
+        theFactory             = factory;
+        thePreferredEncodingId = preferredEncodingId;
+        theDeltaLog            = deltaLog;
     }
 
     /**
@@ -99,11 +141,27 @@ public class StoreProbeManagerMapper
         try {
             
             ret = theFactory.createEmptyForRestore( key );
+
+            String                     encodingId = new String( value.getEncodingId() );
+            ExternalizedShadowMeshBase externalized;
+
+            if( theCompressedEncoder.getEncodingId().equals( encodingId )) {
+                externalized = theCompressedEncoder.decodeShadowMeshBase(
+                        value.getDataAsStream(),
+                        ret );
+
+            } else {
+                // XML_ENCODING_ID, and anything written before the encoding id was checked.
+                // The encoder holds the parsing state, so we use a new one for each decode
+                externalized = new ExternalizedShadowMeshBaseXmlEncoder().decodeShadowMeshBase(
+                        value.getDataAsStream(),
+                        ret );
+            }
             
-            ExternalizedShadowMeshBase externalized = theEncoder.decodeShadowMeshBase(
-                    value.getDataAsStream(),
-                    ret );
-            
+            if( theDeltaLog != null ) {
+                externalized = theDeltaLog.applyDeltas( ret, externalized );
+            }
+
             ret.restoreTo( externalized );
 
         } catch( DecodingException ex ) {
@@ -123,7 +181,7 @@ public class StoreProbeManagerMapper
      */
     public String getPreferredEncodingId()
     {
-        return getClass().getName();
+        return thePreferredEncodingId;
     }
 
     /**
@@ -165,7 +223,9 @@ public class StoreProbeManagerMapper
     }
 
     /**
-     * Obtain the time a value will expire.
+     * Obtain the time a value will expire. For ShadowMeshBases, this is the time of the next
+     * scheduled update, or -1 if there is none, so the schedule can be determined from the
+     * StoreValue without decoding the ShadowMeshBase.
      *
      * @param value the time a value will expire.
      * @return the time will expire, in System.currentTimeMillis() format
@@ -173,13 +233,18 @@ public class StoreProbeManagerMapper
     public long getTimeExpires(
             ShadowMeshBase value )
     {
-        long ret = System.currentTimeMillis() + value.getDelayUntilNextUpdate(); // FIXME can this be done better?
+        long delay = value.getDelayUntilNextUpdate();
+        if( delay < 0 ) {
+            return -1L; // never
+        }
+        long ret = System.currentTimeMillis() + delay;
         return ret;
     }
 
     /**
      * Obtain the value as a byte array.
      *
+     * @param value the value
      * @return the byte array
      * @throws StoreValueEncodingException thrown if the value could not been encoded
      */
@@ -190,10 +255,31 @@ public class StoreProbeManagerMapper
     {
         StoreShadowMeshBase realBase = (StoreShadowMeshBase) value;
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        return asBytes( realBase.asExternalized() );
+    }
+
+    /**
+     * Obtain an externalized ShadowMeshBase as a byte array. This allows the caller to keep
+     * the externalized form it wrote. The encoder streams one MeshObject at a time, but the
+     * Store API takes a byte array, so the encoded form is still collected in memory here.
+     *
+     * @param externalized the externalized ShadowMeshBase
+     * @return the byte array
+     * @throws StoreValueEncodingException thrown if the value could not been encoded
+     */
+    public byte [] asBytes(
+            ExternalizedShadowMeshBase externalized )
+        throws
+            StoreValueEncodingException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream( INITIAL_BUFFER_SIZE );
 
         try {
-            theEncoder.encodeShadowMeshBase( realBase.asExternalized(), false, out ); // don't encode Proxies here
+            if( theCompressedEncoder.getEncodingId().equals( thePreferredEncodingId )) {
+                theCompressedEncoder.encodeShadowMeshBase( externalized, false, out ); // don't encode Proxies here
+            } else {
+                theEncoder.encodeShadowMeshBase( externalized, false, out ); // don't encode Proxies here
+            }
 
             byte [] data = out.toByteArray();
 
@@ -216,4 +302,38 @@ public class StoreProbeManagerMapper
      * Encoder for the content of the StoreShadowMeshBase.
      */
     protected ExternalizedShadowMeshBaseXmlEncoder theEncoder = new ExternalizedShadowMeshBaseXmlEncoder();
+
+    /**
+     * Encoder for the content of the StoreShadowMeshBase in compressed form.
+     */
+    protected CompressedExternalizedShadowMeshBaseXmlEncoder theCompressedEncoder = CompressedExternalizedShadowMeshBaseXmlEncoder.create();
+
+    /**
+     * The ShadowDeltaLog that holds the changes since the snapshots written by this mapper, if any.
+     */
+    protected final ShadowDeltaLog theDeltaLog;
+
+    /**
+     * The encoding id of the format in which ShadowMeshBases are written.
+     */
+    protected final String thePreferredEncodingId;
+
+    /**
+     * The encoding id of the plain XML format. This is what StoreProbeManagerMapper wrote before
+     * it supported more than one format.
+     */
+    public static final String XML_ENCODING_ID = StoreProbeManagerMapper.class.getName();
+
+    /**
+     * Our ResourceHelper.
+     */
+    private static final ResourceHelper theResourceHelper = ResourceHelper.getInstance( StoreProbeManagerMapper.class );
+
+    /**
+     * The initial size of the buffer into which a ShadowMeshBase is encoded. This is the same for all
+     * ShadowMeshBases, as the size of one says nothing about the size of the next.
+     */
+    public static final int INITIAL_BUFFER_SIZE = theResourceHelper.getResourceIntegerOrDefault(
+            "InitialBufferSize",
+            CompressedExternalizedShadowMeshBaseXmlEncoder.DEFAULT_THRESHOLD );
 }
@@ -14,15 +14,29 @@
 
 package org.infogrid.probe.manager.store;
 
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.meshbase.net.proxy.ProxyParameters;
+import org.infogrid.model.primitives.externalized.EncodingException;
 import org.infogrid.probe.ProbeDirectory;
 import org.infogrid.probe.manager.ScheduledExecutorProbeManager;
 import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.probe.shadow.externalized.ExternalizedShadowMeshBase;
+import org.infogrid.probe.shadow.store.StoreShadowMeshBase;
 import org.infogrid.probe.shadow.store.StoreShadowMeshBaseFactory;
 import org.infogrid.store.IterableStore;
+import org.infogrid.store.Store;
+import org.infogrid.store.StoreKeyDoesNotExistException;
+import org.infogrid.store.StoreValue;
+import org.infogrid.store.StoreValueEncodingException;
 import org.infogrid.store.util.IterableStoreBackedSwappingHashMap;
 import org.infogrid.util.AbstractSwappingHashMapListener;
 import org.infogrid.util.SwappingHashMap;
+import org.infogrid.util.logging.Log;
 
 /**
  * A ScheduledExecutorProbeManager that stores ShadowMeshBases in a Store.
@@ -31,6 +45,8 @@ public class StoreScheduledExecutorProbeManager
         extends
             ScheduledExecutorProbeManager
 {
+    private static final Log log = Log.getLogInstance( StoreScheduledExecutorProbeManager.class ); // our own, private logger
+
     /**
      * Factory method.
      *
@@ -48,7 +64,84 @@ public class StoreScheduledExecutorProbeManager
 
         IterableStoreBackedSwappingHashMap<NetMeshBaseIdentifier,ShadowMeshBase> storage = IterableStoreBackedSwappingHashMap.createWeak( theMapper, shadowStore );
 
-        StoreScheduledExecutorProbeManager ret = new StoreScheduledExecutorProbeManager( delegate, storage, dir );
+        StoreScheduledExecutorProbeManager ret = new StoreScheduledExecutorProbeManager( delegate, storage, dir, shadowStore, theMapper, null, null );
+
+        return ret;
+    }
+
+    /**
+     * Factory method for a StoreScheduledExecutorProbeManager that, after a Probe run, only writes
+     * what changed into a separate Store, and only occasionally rewrites the ShadowMeshBase in full.
+     *
+     * @param delegate the underlying factory for StoreShadowMeshBases
+     * @param dir the ProbeDirectory to use
+     * @param shadowStore the Store in which serialized ShadowMeshBases are kept
+     * @param deltaStore the Store in which the changes since the ShadowMeshBases were serialized are kept
+     * @return the created StoreScheduledExecutorProbeManager
+     */
+    public static StoreScheduledExecutorProbeManager create(
+            StoreShadowMeshBaseFactory delegate,
+            ProbeDirectory             dir,
+            IterableStore              shadowStore,
+            Store                      deltaStore )
+    {
+        return create( delegate, dir, shadowStore, deltaStore, null );
+    }
+
+    /**
+     * Factory method for a StoreScheduledExecutorProbeManager that optionally writes changes to
+     * ShadowMeshBases into a separate Store, and optionally keeps the times of the next scheduled
+     * updates in a separate Store, so it can start without reading the ShadowMeshBases.
+     *
+     * @param delegate the underlying factory for StoreShadowMeshBases
+     * @param dir the ProbeDirectory to use
+     * @param shadowStore the Store in which serialized ShadowMeshBases are kept
+     * @param deltaStore the Store in which the changes since the ShadowMeshBases were serialized are kept, if any
+     * @param scheduleStore the Store in which the times of the next scheduled updates are kept, if any
+     * @return the created StoreScheduledExecutorProbeManager
+     */
+    public static StoreScheduledExecutorProbeManager create(
+            StoreShadowMeshBaseFactory delegate,
+            ProbeDirectory             dir,
+            IterableStore              shadowStore,
+            Store                      deltaStore,
+            IterableStore              scheduleStore )
+    {
+        return create( delegate, dir, shadowStore, deltaStore, scheduleStore, StoreProbeManagerMapper.XML_ENCODING_ID );
+    }
+
+    /**
+     * Factory method for a StoreScheduledExecutorProbeManager that optionally writes changes to
+     * ShadowMeshBases into a separate Store, optionally keeps the times of the next scheduled
+     * updates in a separate Store, and writes ShadowMeshBases in the specified format.
+     *
+     * @param delegate the underlying factory for StoreShadowMeshBases
+     * @param dir the ProbeDirectory to use
+     * @param shadowStore the Store in which serialized ShadowMeshBases are kept
+     * @param deltaStore the Store in which the changes since the ShadowMeshBases were serialized are kept, if any
+     * @param scheduleStore the Store in which the times of the next scheduled updates are kept, if any
+     * @param preferredEncodingId the encoding id of the format in which to write ShadowMeshBases:
+     *        either StoreProbeManagerMapper.XML_ENCODING_ID or CompressedExternalizedShadowMeshBaseXmlEncoder.ENCODING_ID
+     * @return the created StoreScheduledExecutorProbeManager
+     * @throws IllegalArgumentException thrown if the encoding id is not known
+     */
+    public static StoreScheduledExecutorProbeManager create(
+            StoreShadowMeshBaseFactory delegate,
+            ProbeDirectory             dir,
+            IterableStore              shadowStore,
+            Store                      deltaStore,
+            IterableStore              scheduleStore,
+            String                     preferredEncodingId )
+    {
+        ShadowDeltaLog          deltaLog  = deltaStore != null ? ShadowDeltaLog.create( deltaStore ) : null;
+        StoreProbeManagerMapper theMapper = new StoreProbeManagerMapper(
+                delegate,
+                preferredEncodingId,
+                deltaLog );
+
+        IterableStoreBackedSwappingHashMap<NetMeshBaseIdentifier,ShadowMeshBase> storage = IterableStoreBackedSwappingHashMap.createWeak( theMapper, shadowStore );
+
+        StoreScheduledExecutorProbeManager ret = new StoreScheduledExecutorProbeManager( delegate, storage, dir, shadowStore, theMapper, deltaLog, scheduleStore );
 
         return ret;
     }
@@ -59,18 +152,483 @@ public class StoreScheduledExecutorProbeManager
      * @param delegate the underlying factory for StoreShadowMeshBases
      * @param storage the storage to use
      * @param dir the ProbeDirectory to use
+     * @param shadowStore the Store in which serialized ShadowMeshBases are kept
+     * @param mapper the StoreProbeManagerMapper used with the storage
+     * @param deltaLog the ShadowDeltaLog to write changes to, if any
+     * @param scheduleStore the Store in which the times of the next scheduled updates are kept, if any
      */
     protected StoreScheduledExecutorProbeManager(
             StoreShadowMeshBaseFactory                                               delegate,
             IterableStoreBackedSwappingHashMap<NetMeshBaseIdentifier,ShadowMeshBase> storage,
-            ProbeDirectory                                                           dir )
+            ProbeDirectory                                                           dir,
+            IterableStore                                                            shadowStore,
+            StoreProbeManagerMapper                                                  mapper,
+            ShadowDeltaLog                                                           deltaLog,
+            IterableStore                                                            scheduleStore )
     {
         super( delegate, storage, dir );
 
+        theShadowStore = shadowStore;
+        theMapper      = mapper;
+        theDeltaLog      = deltaLog;
+        theScheduleStore = scheduleStore;
+
         theMapListener = new MyMapListener();
         storage.addWeakSwappingHashMapListener( theMapListener ); // this must be weak 
     }
 
+    /**
+     * Determine whether ShadowMeshBases without an entry in the schedule Store are scheduled
+     * from the time of the next update recorded by the ShadowDeltaLog.
+     *
+     * @return true if they are scheduled from the ShadowDeltaLog
+     */
+    public boolean getSchedulesFromDeltaLog()
+    {
+        return theSchedulesFromDeltaLog;
+    }
+
+    /**
+     * Specify whether ShadowMeshBases without an entry in the schedule Store shall be scheduled
+     * from the time of the next update recorded by the ShadowDeltaLog, instead of by decoding them.
+     * This only defers decoding: a ShadowMeshBase is still decoded in full when it is first accessed
+     * or updated. It has no effect without a ShadowDeltaLog. Invoke this before start.
+     *
+     * @param newValue true if they shall be scheduled from the ShadowDeltaLog
+     */
+    public void setSchedulesFromDeltaLog(
+            boolean newValue )
+    {
+        theSchedulesFromDeltaLog = newValue;
+    }
+
+    /**
+     * Write updated ShadowMeshBases to the Store in batches, no later than maxDelay after their
+     * update, instead of right away by the Thread that performed the Probe run. Repeated updates of
+     * the same ShadowMeshBase within that time are written only once. Invoke this before start.
+     *
+     * @param maxDelay the maximum time, in milliseconds, that an update remains unwritten
+     * @param maxQueued the maximum number of unwritten ShadowMeshBases, after which the Thread performing
+     *        the next update writes all of them
+     */
+    public void enableWriteBehind(
+            long maxDelay,
+            int  maxQueued )
+    {
+        if( theExecutorService != null ) {
+            throw new IllegalStateException( "Already started" );
+        }
+        theWriteBehindQueue = ShadowWriteBehindQueue.create(
+                new ShadowWriteBehindQueue.Writer() {
+                        public void write(
+                                ShadowMeshBase             shadow,
+                                ExternalizedShadowMeshBase externalized )
+                        {
+                            if( !shadow.isDead() ) { // it may have been removed since
+                                writeShadow( (StoreShadowMeshBase) shadow, externalized );
+                            }
+                        }
+                },
+                maxDelay,
+                maxQueued );
+    }
+
+    /**
+     * Obtain the ShadowWriteBehindQueue, if write-behind has been enabled.
+     *
+     * @return the ShadowWriteBehindQueue, or null
+     */
+    public ShadowWriteBehindQueue getWriteBehindQueue()
+    {
+        return theWriteBehindQueue;
+    }
+
+    /**
+     * Start this StoreScheduledExecutorProbeManager.
+     *
+     * @param exec the ScheduledExecutorService to use
+     * @param runExec the ExecutorService on which to perform Probe runs, or null to perform them on exec
+     */
+    @Override
+    public synchronized void start(
+            ScheduledExecutorService exec,
+            ExecutorService          runExec )
+    {
+        super.start( exec, runExec );
+
+        if( theWriteBehindQueue != null ) {
+            theWriteBehindQueue.start( exec );
+        }
+    }
+
+    /**
+     * Stop this StoreScheduledExecutorProbeManager, after writing all unwritten ShadowMeshBases.
+     */
+    @Override
+    public synchronized void stop()
+    {
+        if( theWriteBehindQueue != null ) {
+            theWriteBehindQueue.stop();
+        }
+        super.stop();
+    }
+
+    /**
+     * We are not needed any more. Unwritten ShadowMeshBases are written before they die.
+     *
+     * @param isPermanent if true, this MeshBase will go away permanently; if false, it may come alive again some time later
+     */
+    @Override
+    public synchronized void die(
+            boolean isPermanent )
+    {
+        if( theWriteBehindQueue != null ) {
+            theWriteBehindQueue.flush();
+        }
+        super.die( isPermanent );
+    }
+
+    /**
+     * Schedule the updates of all ShadowMeshBases known to this ScheduledExecutorProbeManager.
+     * If we have a schedule Store, we take the times of the next updates from there, and do not
+     * touch the ShadowMeshBases. The schedule Store is reconciled with the stored ShadowMeshBases:
+     * those without an entry, e.g. written before there was a schedule Store, are scheduled the
+     * regular way, and entries without a ShadowMeshBase are removed.
+     */
+    @Override
+    protected void scheduleKnownShadows()
+    {
+        if( theScheduleStore == null ) {
+            super.scheduleKnownShadows();
+            return;
+        }
+
+        HashMap<NetMeshBaseIdentifier,Long> index = new HashMap<NetMeshBaseIdentifier,Long>();
+        for( StoreValue current : theScheduleStore ) {
+            try {
+                index.put( theMapper.stringToKey( current.getKey() ), current.getTimeExpires() );
+
+            } catch( Throwable t ) {
+                log.error( this, current.getKey(), t ); // help with debugging
+            }
+        }
+
+        long now = System.currentTimeMillis();
+
+        Iterator<NetMeshBaseIdentifier> keyIter = theKeyValueMap.keysIterator( NetMeshBaseIdentifier.class, ShadowMeshBase.class );
+        while( keyIter.hasNext() ) {
+            NetMeshBaseIdentifier key = null;
+
+            try { // try to restart as many as possible
+                key = keyIter.next();
+
+                Long expires = index.remove( key );
+                if( expires != null ) {
+                    long nextTime = expires - now;
+                    if( nextTime < 0 ) {
+                        nextTime = 0; // as soon as possible
+                    }
+                    super.scheduleUpdate( key, nextTime ); // it is in the schedule Store already
+
+                } else {
+                    long nextTime = determineDelayUntilNextUpdate( key );
+                    if( nextTime >= 0 ) {  // allow 0 for immediate execution
+                        scheduleUpdate( key, nextTime );
+                    }
+                }
+            } catch( Throwable t ) {
+                log.error( this, key, t ); // help with debugging
+            }
+        }
+
+        for( NetMeshBaseIdentifier key : index.keySet() ) {
+            log.warn( this, "Removing schedule of ShadowMeshBase that does not exist: ", key );
+            forgetScheduledUpdate( key );
+        }
+    }
+
+    /**
+     * Schedule the next update of a ShadowMeshBase, and remember it in the schedule Store, if any.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     * @param nextTime the relative time, from now, in milliseconds, when the update shall occur
+     */
+    @Override
+    protected void scheduleUpdate(
+            NetMeshBaseIdentifier key,
+            long                  nextTime )
+    {
+        super.scheduleUpdate( key, nextTime );
+
+        if( theScheduleStore != null ) {
+            long now = System.currentTimeMillis();
+            try {
+                theScheduleStore.putOrUpdate(
+                        theMapper.keyToString( key ),
+                        SCHEDULE_ENCODING_ID,
+                        now,
+                        now,
+                        now,
+                        now + nextTime,
+                        new byte[0] ); // the time of the next update is all we need
+
+            } catch( IOException ex ) {
+                log.error( ex );
+            }
+        }
+    }
+
+    /**
+     * Cancel the next scheduled update of a ShadowMeshBase, if any, and forget it in the schedule Store, if any.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     */
+    @Override
+    protected void cancelUpdate(
+            NetMeshBaseIdentifier key )
+    {
+        super.cancelUpdate( key );
+
+        forgetScheduledUpdate( key );
+    }
+
+    /**
+     * Invoked after an update has run and no further update has been scheduled for this ShadowMeshBase.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     */
+    @Override
+    protected void updateNoLongerScheduled(
+            NetMeshBaseIdentifier key )
+    {
+        super.updateNoLongerScheduled( key );
+
+        forgetScheduledUpdate( key );
+    }
+
+    /**
+     * Remove a ShadowMeshBase from the schedule Store, if any.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     */
+    protected void forgetScheduledUpdate(
+            NetMeshBaseIdentifier key )
+    {
+        if( theScheduleStore != null ) {
+            try {
+                theScheduleStore.delete( theMapper.keyToString( key ));
+
+            } catch( StoreKeyDoesNotExistException ex ) {
+                // fine
+            } catch( IOException ex ) {
+                log.error( ex );
+            }
+        }
+    }
+
+    /**
+     * Determine when a ShadowMeshBase needs to be updated next. If so configured, and we have a
+     * ShadowDeltaLog, we look at the time of the next update recorded there, and do not decode the
+     * ShadowMeshBase. Otherwise, or if there is no such record, it is determined the regular way.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     * @return the relative time, from now, in milliseconds, when the next update shall occur, or -1 for never
+     */
+    @Override
+    protected long determineDelayUntilNextUpdate(
+            NetMeshBaseIdentifier key )
+    {
+        if( theSchedulesFromDeltaLog && theDeltaLog != null ) {
+            try {
+                long expires = theDeltaLog.getTimeExpires( key );
+                if( expires < 0 ) {
+                    return -1L; // never
+                }
+                long ret = expires - System.currentTimeMillis();
+                if( ret < 0 ) {
+                    ret = 0; // as soon as possible
+                }
+                return ret;
+
+            } catch( StoreKeyDoesNotExistException ex ) {
+                // written before the record existed, try the regular way
+
+            } catch( IOException ex ) {
+                log.error( ex ); // try the regular way
+            }
+        }
+        return super.determineDelayUntilNextUpdate( key );
+    }
+
+    /**
+     * Invoked by a ShadowMeshBase after it has been updated. With write-behind, it is only queued.
+     * This is invoked while the ShadowMeshBase holds its run lock, so no Probe run is in progress,
+     * and this is where it is externalized for writing.
+     *
+     * @param object the ShadowMeshBase that was updated
+     */
+    @Override
+    public void factoryCreatedObjectUpdated(
+            ShadowMeshBase object )
+    {
+        if( theWriteBehindQueue != null && object instanceof StoreShadowMeshBase ) {
+            theWriteBehindQueue.enqueue( object, ((StoreShadowMeshBase) object).asExternalized() );
+
+        } else if( theDeltaLog != null && object instanceof StoreShadowMeshBase ) {
+            writeShadow( (StoreShadowMeshBase) object, ((StoreShadowMeshBase) object).asExternalized() );
+
+        } else {
+            super.factoryCreatedObjectUpdated( object );
+        }
+    }
+
+    /**
+     * Write an updated ShadowMeshBase to the Store. If we have a ShadowDeltaLog, we
+     * write only what changed, unless it is time for a full snapshot.
+     *
+     * @param shadow the ShadowMeshBase that was updated
+     * @param externalized the externalized form of the ShadowMeshBase as of the update
+     */
+    protected void writeShadow(
+            StoreShadowMeshBase        shadow,
+            ExternalizedShadowMeshBase externalized )
+    {
+        if( theDeltaLog != null ) {
+            try {
+                if( theDeltaLog.appendDelta( shadow, externalized, theMapper.getTimeExpires( shadow ))) {
+                    return;
+                }
+
+            } catch( EncodingException ex ) {
+                log.error( ex ); // write it in full instead
+
+            } catch( IOException ex ) {
+                log.error( ex ); // write it in full instead
+            }
+        }
+        writeSnapshot( shadow, externalized );
+    }
+
+    /**
+     * Write a full snapshot of a ShadowMeshBase to the Store. If we have a ShadowDeltaLog,
+     * tell it that its delta records are obsolete, but only if writing the snapshot succeeded.
+     *
+     * @param shadow the ShadowMeshBase
+     * @param externalized the externalized form of the ShadowMeshBase to write
+     */
+    protected void writeSnapshot(
+            StoreShadowMeshBase        shadow,
+            ExternalizedShadowMeshBase externalized )
+    {
+        try {
+            putSnapshot( shadow, theMapper.asBytes( externalized ));
+
+        } catch( StoreValueEncodingException ex ) {
+            log.error( ex ); // keep the delta records
+            return;
+
+        } catch( IOException ex ) {
+            log.error( ex ); // keep the delta records
+            return;
+        }
+
+        if( theDeltaLog == null ) {
+            return;
+        }
+        try {
+            theDeltaLog.snapshotWritten( shadow, externalized, theMapper.getTimeExpires( shadow ));
+
+        } catch( EncodingException ex ) {
+            log.error( ex );
+
+        } catch( IOException ex ) {
+            log.error( ex );
+        }
+    }
+
+    /**
+     * Put the encoded snapshot of a ShadowMeshBase into the Store.
+     *
+     * @param shadow the ShadowMeshBase
+     * @param data the encoded snapshot
+     * @throws IOException thrown if an I/O error occurred
+     */
+    protected void putSnapshot(
+            StoreShadowMeshBase shadow,
+            byte []             data )
+        throws
+            IOException
+    {
+        theShadowStore.putOrUpdate(
+                theMapper.keyToString( shadow.getIdentifier() ),
+                theMapper.getPreferredEncodingId(),
+                theMapper.getTimeCreated( shadow ),
+                theMapper.getTimeUpdated( shadow ),
+                theMapper.getTimeRead( shadow ),
+                theMapper.getTimeExpires( shadow ),
+                data );
+    }
+
+    /**
+     * Invoked when a new ShadowMeshBase has been created. Delta records left under its key
+     * belong to a predecessor that has gone, so we discard them.
+     *
+     * @param key the key of the newly created value
+     * @param value the newly created value
+     * @param argument the argument into the creation of the newly created value
+     */
+    @Override
+    protected void createdHook(
+            NetMeshBaseIdentifier key,
+            ShadowMeshBase        value,
+            ProxyParameters       argument )
+    {
+        if( theDeltaLog != null && value instanceof StoreShadowMeshBase ) {
+            try {
+                theDeltaLog.discardDeltas( (StoreShadowMeshBase) value, theMapper.getTimeExpires( value ));
+
+            } catch( IOException ex ) {
+                log.error( ex );
+            }
+        }
+        super.createdHook( key, value, argument );
+    }
+
+    /**
+     * The Store in which serialized ShadowMeshBases are kept.
+     */
+    protected final IterableStore theShadowStore;
+
+    /**
+     * The StoreProbeManagerMapper used with the storage.
+     */
+    protected final StoreProbeManagerMapper theMapper;
+
+    /**
+     * The Store in which the times of the next scheduled updates are kept, if any.
+     */
+    protected final IterableStore theScheduleStore;
+
+    /**
+     * The encoding id of the entries in the schedule Store.
+     */
+    public static final String SCHEDULE_ENCODING_ID = StoreScheduledExecutorProbeManager.class.getName() + "-schedule-1";
+
+    /**
+     * If true, ShadowMeshBases without an entry in the schedule Store are scheduled from the ShadowDeltaLog.
+     */
+    protected boolean theSchedulesFromDeltaLog = false;
+
+    /**
+     * The ShadowDeltaLog to write changes to, if any.
+     */
+    protected final ShadowDeltaLog theDeltaLog;
+
+    /**
+     * Queues updated ShadowMeshBases for writing, if write-behind has been enabled.
+     */
+    protected ShadowWriteBehindQueue theWriteBehindQueue;
+
     /**
      * Keep a reference to the listener to avoid it being garbage-collected.
      */
@@ -14,14 +14,21 @@
 
 package org.infogrid.probe.vcard;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Locale;
 import org.diet4j.core.ModuleException;
 import org.infogrid.mesh.EntityBlessedAlreadyException;
 import org.infogrid.mesh.EntityNotBlessedException;
@@ -39,21 +46,27 @@ import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
 import org.infogrid.meshbase.transaction.TransactionException;
 import org.infogrid.model.primitives.BooleanValue;
 import org.infogrid.model.primitives.StringValue;
+import org.infogrid.model.AddressBook.AddressBookSubjectArea;
 import org.infogrid.model.VCard.VCardSubjectArea;
 import org.infogrid.model.primitives.UnknownEnumeratedValueException;
 import org.infogrid.probe.NonXmlStreamProbe;
 import org.infogrid.probe.ProbeException;
 import org.infogrid.probe.StagingMeshBase;
 import org.infogrid.probe.StagingMeshBaseLifecycleManager;
-import org.infogrid.util.ArrayHelper;
 import org.infogrid.util.StringHelper;
 import org.infogrid.util.logging.CanBeDumped;
 import org.infogrid.util.logging.Dumper;
 import org.infogrid.util.logging.Log;
 
 /**
- * This Probe knows how to read VCards (RFC 2426). It instantiates VCard, subtypes of
- * Address, and VCard_Shows_Address in the VCard subject area.
+ * <p>This Probe knows how to read VCards (RFC 2426). It instantiates VCard, subtypes of
+ *    Address, and VCard_Shows_Address in the VCard subject area.</p>
+ * <p>A data source may contain any number of VCards, which are read one at a time. The home
+ *    object is an AddressBook, and the first VCard is instantiated into it; each subsequent
+ *    VCard is instantiated into a separate VCard object that the home object contains.
+ *    The identifiers of these objects are derived from the VCard's UID, or from its name if
+ *    it has none, so they do not change when VCards are added to or removed from the data
+ *    source.</p>
  */
 public class VCardProbe
         implements
@@ -116,7 +129,6 @@ public class VCardProbe
      * @throws URISyntaxException thrown if a URI was constructed in an invalid way
      * @throws ParseException thrown if parsing failed
      */
-    @SuppressWarnings( "fallthrough" )
     public void readFromStream(
             NetMeshBaseIdentifier  dataSourceIdentifier,
             CoherenceSpecification coherenceSpecification,
@@ -143,73 +155,189 @@ public class VCardProbe
     {
         MeshObject home = freshMeshBase.getHomeObject();
         home.bless( VCardSubjectArea.VCARD );
+        home.bless( AddressBookSubjectArea.ADDRESSBOOK );
 
         StagingMeshBaseLifecycleManager life = freshMeshBase.getMeshBaseLifecycleManager();
-        
-        // strategy:
-        // 1) read the whole thing into memory, while doing so, merge "continuing" lines and
-        //    break into name / parameter / value portions
+
+        // strategy: for one VCard at a time,
+        // 1) read it into memory, while doing so, merge "continuing" lines and
+        //    break into name / parameter / value portions, indexed by name
         // 2) check syntax
-        // 3) instantiate objects: first set properties of the home object, then create
+        // 3) instantiate objects: first set properties of the VCard object, then create
         //    PhysicalAddress and CommucationAddress objects, set properties, and relate them to
         //    the VCard
 
-        // part 1, read
-        LineBuffer     theLineBuffer = new LineBuffer();
-        BufferedReader theReader     = new BufferedReader( new InputStreamReader( stream  ));
-
-        try {
-            String currentLine = theReader.readLine(); // the line currently being assembled
-            if( currentLine == null ) {
-                return;
-            }
-
-            while( true ) {
-                String nextLine = theReader.readLine();
-                if( nextLine != null && nextLine.startsWith( " " )) {
-                    currentLine = currentLine + nextLine.substring( 1 );
-                    continue;
-                }
+        Tokenizer  theTokenizer  = new Tokenizer( new InputStreamReader( stream, determineCharset( contentType )));
+        LineBuffer theLineBuffer = new LineBuffer();
+        int        cardCount     = 0;
 
-                // now we have a full line in currentLine, and the beginnings of the next
-                // line in nextLine
-                OneLine parsed = OneLine.parse( currentLine );
-                theLineBuffer.add( parsed );
+        HashSet<String> cardIds = new HashSet<String>();
 
-                if( nextLine == null ) {
+        while( true ) {
+            // parts 1 and 2: read and check
+            try {
+                if( !readVCard( dataSourceIdentifier, theTokenizer, theLineBuffer )) {
                     break;
                 }
-
-                currentLine = nextLine; // pass on
+            } catch( IOException ex ) {
+                // do nothing if we were able to at least read something
+                if( cardCount == 0 ) {
+                    throw ex;
+                }
+                log.warn( ex );
+                break;
             }
-        } catch( IOException ex ) {
-            // do nothing if we were able to at least read something
-            if( theLineBuffer.isEmpty() ) {
-                throw ex;
+
+            // part 3: instantiate
+            MeshObject card;
+            String     idPrefix;
+            if( cardCount == 0 ) {
+                card     = home;
+                idPrefix = "";
+            } else {
+                String cardId = determineCardId( theLineBuffer, cardIds );
+
+                card     = life.createMeshObject(
+                        freshMeshBase.getMeshObjectIdentifierFactory().guessFromExternalForm( cardId ),
+                        VCardSubjectArea.VCARD );
+                idPrefix = cardId + "-";
+
+                home.relateAndBless( AddressBookSubjectArea.ADDRESSBOOK_CONTAINS_VCARD.getSource(), card );
             }
+            instantiateVCard( theLineBuffer, card, idPrefix, freshMeshBase );
+
+            theLineBuffer.clear();
+            ++cardCount;
         }
 
-        // part 2: check -- FIXME: need to check more
-        if( theLineBuffer.size() < 2 ) {
+        if( cardCount == 0 ) {
             throw new ProbeException.EmptyDataSource( dataSourceIdentifier  );
         }
+    }
 
-        OneLine current = theLineBuffer.get( 0 );
-        if( ! "BEGIN".equalsIgnoreCase( current.theName )) {
+    /**
+     * Read the next VCard from the Tokenizer into the LineBuffer, and check its syntax.
+     * The BEGIN and END lines are not added to the LineBuffer.
+     *
+     * @param dataSourceIdentifier identifies the data source that is being accessed
+     * @param theTokenizer the Tokenizer to read from
+     * @param theLineBuffer the empty LineBuffer to read into
+     * @return true if a VCard was read, false if the data source did not contain any more VCards
+     * @throws ProbeException thrown if the VCard was syntactically incorrect
+     * @throws IOException an input/output error occurred
+     */
+    protected boolean readVCard(
+            NetMeshBaseIdentifier dataSourceIdentifier,
+            Tokenizer             theTokenizer,
+            LineBuffer            theLineBuffer )
+        throws
+            ProbeException,
+            IOException
+    {
+        OneLine current = theTokenizer.next();
+        if( current == null ) {
+            return false;
+        }
+        if( ! "BEGIN".equals( current.theName )) {
             throw new ProbeException.SyntaxError( dataSourceIdentifier, "No BEGIN keyword", null  );
         }
         if( ! "VCARD".equalsIgnoreCase( current.theValue )) {
             throw new ProbeException.SyntaxError( dataSourceIdentifier, "No BEGIN:VCARD keyword", null  );
         }
 
-        current = theLineBuffer.get( theLineBuffer.size()-1 );
-        if( ! "END".equalsIgnoreCase( current.theName )) {
-            throw new ProbeException.SyntaxError( dataSourceIdentifier, "No END keyword", null  );
+        while( ( current = theTokenizer.next()) != null ) {
+            if( "END".equals( current.theName )) {
+                if( ! "VCARD".equalsIgnoreCase( current.theValue )) {
+                    throw new ProbeException.SyntaxError( dataSourceIdentifier, "No END:VCARD keyword", null  );
+                }
+                return true;
+            }
+            theLineBuffer.add( current );
         }
-        if( ! "VCARD".equalsIgnoreCase( current.theValue )) {
-            throw new ProbeException.SyntaxError( dataSourceIdentifier, "No END:VCARD keyword", null  );
+        throw new ProbeException.SyntaxError( dataSourceIdentifier, "No END keyword", null  );
+    }
+
+    /**
+     * Determine the identifier of a VCard other than the first. It is derived from the VCard's UID
+     * if it has one, and from its N and FN lines otherwise, so that a VCard keeps its identifier
+     * from one run to the next when other VCards are inserted before it. VCards with the same key
+     * are told apart by the order in which they occur.
+     *
+     * @param theLineBuffer the LineBuffer containing the VCard
+     * @param cardIds the identifiers assigned to VCards in this data source so far
+     * @return the identifier
+     * @throws IOException thrown if a line was present more than once that may only occur once
+     */
+    protected String determineCardId(
+            LineBuffer      theLineBuffer,
+            HashSet<String> cardIds )
+        throws
+            IOException
+    {
+        OneLine uidLine = theLineBuffer.getIfPresentWith( null, "UID", null );
+        String  key;
+        if( uidLine != null && uidLine.theValue.length() > 0 ) {
+            key = "UID:" + uidLine.theValue;
+        } else {
+            OneLine nameLine     = theLineBuffer.getIfPresentWith( null, "N",  null );
+            OneLine fullNameLine = theLineBuffer.getIfPresentWith( null, "FN", null );
+
+            key =   "N:"   + ( nameLine     != null ? nameLine.theValue     : "" )
+                  + "\nFN:" + ( fullNameLine != null ? fullNameLine.theValue : "" );
         }
 
+        // a UID may contain characters that cannot occur in a MeshObjectIdentifier, so use its hash
+        String base = "vc-" + Integer.toHexString( key.hashCode() );
+        String ret  = base;
+        for( int i=2 ; cardIds.contains( ret ) ; ++i ) {
+            ret = base + "-" + i;
+        }
+        cardIds.add( ret );
+        return ret;
+    }
+
+    /**
+     * Instantiate one VCard that has been read into a LineBuffer.
+     *
+     * @param theLineBuffer the LineBuffer containing the VCard
+     * @param card the MeshObject representing the VCard, already blessed
+     * @param idPrefix prefix for the identifiers of the MeshObjects created for the VCard
+     * @param freshMeshBase the StagingMeshBase in which the corresponding MeshObjects are to be instantiated
+     * @throws EntityBlessedAlreadyException thrown if a MeshObject was incorrectly blessed twice with the same EntityType
+     * @throws EntityNotBlessedException thrown if a MeshObject was not blessed with a required EntityType
+     * @throws IllegalPropertyTypeException thrown if a MeshObject did not carry a PropertyType that it needed to carry
+     * @throws IllegalPropertyValueException thrown if a PropertyValue was assigned to a property that was outside of the allowed range
+     * @throws IOException thrown if a required line was missing, or a line was present more than once that may only occur once
+     * @throws IsAbstractException thrown if an EntityType or a Relationship could not be instantiated because it was abstract
+     * @throws MeshObjectIdentifierNotUniqueException thrown if an identifier was not unique
+     * @throws NotPermittedException thrown if an operation was not permitted
+     * @throws RelatedAlreadyException thrown if two MeshObjects were related already
+     * @throws RoleTypeBlessedAlreadyException thrown if a relationship was blessed twice with the same RoleType
+     * @throws TransactionException a Transaction problem occurred
+     * @throws ParseException thrown if parsing failed
+     */
+    @SuppressWarnings( "fallthrough" )
+    protected void instantiateVCard(
+            LineBuffer      theLineBuffer,
+            MeshObject      card,
+            String          idPrefix,
+            StagingMeshBase freshMeshBase )
+        throws
+            EntityBlessedAlreadyException,
+            EntityNotBlessedException,
+            IllegalPropertyTypeException,
+            IllegalPropertyValueException,
+            IOException,
+            IsAbstractException,
+            MeshObjectIdentifierNotUniqueException,
+            NotPermittedException,
+            RelatedAlreadyException,
+            RoleTypeBlessedAlreadyException,
+            TransactionException,
+            ParseException
+    {
+        StagingMeshBaseLifecycleManager life = freshMeshBase.getMeshBaseLifecycleManager();
+
         // the following calls may throw IOExceptions if there isn't exactly one line with this spec
         OneLine fullNameLine = theLineBuffer.getTheOneWith(    null, "FN",       null );
         OneLine nameLine     = theLineBuffer.getTheOneWith(    null, "N",        null );
@@ -234,14 +362,12 @@ public class VCardProbe
         // we don't do REV 3.6.4 at this time
         // we don't do SORT-STRING 3.6.5 at this time
         // we don't do SOUND 3.6.6 at this time
-        // we don't do UID 3.6.7 at this timeh
+        // UID 3.6.7 only determines the identifier, see determineCardId
         // we don't do URL 3.6.8 at this time
         // OneLine versionLine = theLineBuffer.getTheOneWith(    null, "VERSION",   null ); // FIXME need to check
         // we don't do 3.7.1 CLASS at this time
         // we don't do 3.7.2 KEY at this time
 
-        // part 3: instantiate
-
         String [] nameComponents = StringHelper.tokenize( nameLine.theValue, ";", null );
         String familyName        = null;
         String givenName         = null;
@@ -265,30 +391,30 @@ public class VCardProbe
         }
 
         if( fullNameLine != null && fullNameLine.theValue != null ) {
-            home.setPropertyValue( VCardSubjectArea.VCARD_FULLNAME, StringValue.create( fullNameLine.theValue ));
+            card.setPropertyValue( VCardSubjectArea.VCARD_FULLNAME, StringValue.create( fullNameLine.theValue ));
         }
         if( familyName != null ) {
-            home.setPropertyValue( VCardSubjectArea.VCARD_FAMILYNAME, StringValue.create( familyName ));
+            card.setPropertyValue( VCardSubjectArea.VCARD_FAMILYNAME, StringValue.create( familyName ));
         }
         if( givenName != null ) {
-            home.setPropertyValue( VCardSubjectArea.VCARD_GIVENNAME, StringValue.create( givenName ));
+            card.setPropertyValue( VCardSubjectArea.VCARD_GIVENNAME, StringValue.create( givenName ));
         }
         if( additionalNames != null ) {
-            home.setPropertyValue( VCardSubjectArea.VCARD_ADDITIONALNAMES, StringValue.create( additionalNames ));
+            card.setPropertyValue( VCardSubjectArea.VCARD_ADDITIONALNAMES, StringValue.create( additionalNames ));
         }
         if( honorificPrefixes != null ) {
-            home.setPropertyValue( VCardSubjectArea.VCARD_HONORIFICPREFIXES, StringValue.create( honorificPrefixes ));
+            card.setPropertyValue( VCardSubjectArea.VCARD_HONORIFICPREFIXES, StringValue.create( honorificPrefixes ));
         }
         if( honorificSuffixes != null ) {
-            home.setPropertyValue( VCardSubjectArea.VCARD_HONORIFICSUFFIXES, StringValue.create( honorificSuffixes ));
+            card.setPropertyValue( VCardSubjectArea.VCARD_HONORIFICSUFFIXES, StringValue.create( honorificSuffixes ));
         }
 
         if( nickNameLine != null && nickNameLine.theValue != null ) {
-            home.setPropertyValue( VCardSubjectArea.VCARD_NICKNAME, StringValue.create( nickNameLine.theValue ));
+            card.setPropertyValue( VCardSubjectArea.VCARD_NICKNAME, StringValue.create( nickNameLine.theValue ));
         }
         // no note right now
         if( noteLine != null && noteLine.theValue != null ) {
-            home.setPropertyValue( VCardSubjectArea.VCARD_NOTE, StringValue.create( noteLine.theValue ));
+            card.setPropertyValue( VCardSubjectArea.VCARD_NOTE, StringValue.create( noteLine.theValue ));
         }
 
         // for all the addresses that we found
@@ -327,7 +453,7 @@ public class VCardProbe
             // file as an object identifier
 
             MeshObject adr = life.createMeshObject(
-                    freshMeshBase.getMeshObjectIdentifierFactory().guessFromExternalForm( "ph-" + i ),
+                    freshMeshBase.getMeshObjectIdentifierFactory().guessFromExternalForm( idPrefix + "ph-" + i ),
                     VCardSubjectArea.PHYSICALADDRESS );
 
             if( postOfficeBox != null ) {
@@ -382,7 +508,7 @@ public class VCardProbe
             }
 
             // instantiate relationship between VCard and Address
-            home.relateAndBless( VCardSubjectArea.VCARD_SHOWS_ADDRESS.getSource(), adr );
+            card.relateAndBless( VCardSubjectArea.VCARD_SHOWS_ADDRESS.getSource(), adr );
         }
 
         // for all the e-mails that we found
@@ -393,7 +519,7 @@ public class VCardProbe
             // file as an object identifier
 
             MeshObject adr = life.createMeshObject(
-                    freshMeshBase.getMeshObjectIdentifierFactory().guessFromExternalForm( "co-em-" + i ),
+                    freshMeshBase.getMeshObjectIdentifierFactory().guessFromExternalForm( idPrefix + "co-em-" + i ),
                     VCardSubjectArea.COMMUNICATIONADDRESS );
 
             try {
@@ -420,7 +546,7 @@ public class VCardProbe
             }
 
             // instantiate relationship between VCard and Address
-            home.relateAndBless( VCardSubjectArea.VCARD_SHOWS_ADDRESS.getSource(), adr );
+            card.relateAndBless( VCardSubjectArea.VCARD_SHOWS_ADDRESS.getSource(), adr );
         }
 
         // for all the phones that we found
@@ -431,7 +557,7 @@ public class VCardProbe
             // file as an object identifier
 
             MeshObject adr = life.createMeshObject(
-                    freshMeshBase.getMeshObjectIdentifierFactory().guessFromExternalForm( "co-ph-" + i ),
+                    freshMeshBase.getMeshObjectIdentifierFactory().guessFromExternalForm( idPrefix + "co-ph-" + i ),
                     VCardSubjectArea.COMMUNICATIONADDRESS );
 
             String [] params = telLine.theParams;
@@ -480,14 +606,49 @@ public class VCardProbe
             }
 
             // instantiate relationship between VCard and Address
-            home.relateAndBless( VCardSubjectArea.VCARD_SHOWS_ADDRESS.getSource(), adr );
+            card.relateAndBless( VCardSubjectArea.VCARD_SHOWS_ADDRESS.getSource(), adr );
         }
     }
 
+    /**
+     * Determine the character set of the data source from its content type. If none is given,
+     * this assumes UTF-8, which is a superset of the US-ASCII default of RFC 2425.
+     *
+     * @param contentType the content type (MIME) if known
+     * @return the Charset
+     */
+    protected Charset determineCharset(
+            String contentType )
+    {
+        if( contentType != null ) {
+            int index = contentType.toLowerCase( Locale.ENGLISH ).indexOf( "charset=" );
+            if( index >= 0 ) {
+                String name = contentType.substring( index + "charset=".length() );
+                int    semi = name.indexOf( ';' );
+                if( semi >= 0 ) {
+                    name = name.substring( 0, semi );
+                }
+                name = name.trim();
+                if( name.startsWith( "\"" ) && name.endsWith( "\"" ) && name.length() > 1 ) {
+                    name = name.substring( 1, name.length()-1 );
+                }
+                try {
+                    return Charset.forName( name );
+
+                } catch( IllegalCharsetNameException ex ) {
+                    log.warn( ex );
+                } catch( UnsupportedCharsetException ex ) {
+                    log.warn( ex );
+                }
+            }
+        }
+        return UTF8;
+    }
+
     /**
      * This class contains the content of one unfolded RFC 2425 line as a structure.
      */
-    static class OneLine
+    protected static class OneLine
             implements
                 CanBeDumped
     {
@@ -511,67 +672,6 @@ public class VCardProbe
             theValue  = value;
         }
 
-        /**
-         * Parse a line into its components.
-         *
-         * @param raw the string to be parsed
-         * @return found and instantiated object at this line
-         */
-        @SuppressWarnings( "fallthrough" )
-        public static OneLine parse(
-                String raw )
-        {
-            char [] c = raw.toCharArray();
-
-            String            group  = null;
-            String            name   = null;
-            ArrayList<String> params = null;
-            String            value  = null;
-            int dotIndex   = -1;
-            int semiIndex  = -1;
-            int colonIndex = -1;
-            for( int i=0 ; i<c.length ; ++i ) {
-
-                switch( c[i] ) {
-                    case ':':
-                        colonIndex = i;
-                        // NO break here
-                    case ';':
-                        if( semiIndex < 0 ) {
-                            if( dotIndex >= 0 ) {
-                                group = raw.substring( 0, dotIndex );
-                                name  = raw.substring( dotIndex+1, i );
-                            } else {
-                                group = null;
-                                name  = raw.substring( 0, i );
-                            }
-                        } else if( colonIndex < 0 || c[i] == ':' ) { // further parameter
-                            if( params == null ) {
-                                params = new ArrayList<String>();
-                            }
-                            params.add( raw.substring( semiIndex+1, i ));
-                        }
-                        semiIndex = i;
-                        break;
-
-                    case '.':
-                        if( dotIndex == -1 ) {
-                            dotIndex = i;
-                        }
-                        break;
-                }
-            }
-            if( colonIndex >=0 ) {
-                value = raw.substring( colonIndex+1 );
-            }
-
-            return new OneLine(
-                    group,
-                    name,
-                    params != null ? ArrayHelper.copyIntoNewArray( params, String.class ) : new String[0],
-                    value );
-        }
-
         /**
          * Dump this object.
          *
@@ -601,7 +701,7 @@ public class VCardProbe
         public String    theGroup;
 
         /**
-         * Component of one unfolded line.
+         * Component of one unfolded line. This is always upper case.
          */
         public String    theName;
 
@@ -617,9 +717,254 @@ public class VCardProbe
     }
 
     /**
-     * This is basically an ArrayList with some convenience methods.
+     * Reads unfolded RFC 2425 lines from a Reader, one at a time. The characters are read into
+     * a buffer, folded lines are unfolded into a second buffer, and a line is broken into its
+     * components by index, so the only Strings created are the components themselves.
+     */
+    protected static class Tokenizer
+    {
+        /**
+         * Constructor.
+         *
+         * @param reader the Reader to read from
+         */
+        public Tokenizer(
+                Reader reader )
+        {
+            theReader = reader;
+        }
+
+        /**
+         * Obtain the next non-empty line.
+         *
+         * @return the line, or null if the end of the data has been reached
+         * @throws IOException thrown if an I/O error occurred
+         */
+        public OneLine next()
+            throws
+                IOException
+        {
+            while( true ) {
+                theLineLength = 0;
+
+                if( !readPhysicalLine() ) {
+                    return null;
+                }
+                while( true ) {
+                    int c = peek();
+                    if( c != ' ' && c != '\t' ) {
+                        break;
+                    }
+                    ++thePosition; // continuation: drop the leading white space and append
+                    readPhysicalLine();
+                }
+                if( theLineLength > 0 ) {
+                    return parseLine();
+                }
+                // skip empty lines, e.g. between VCards
+            }
+        }
+
+        /**
+         * Append the characters up to the next line break to the current line, and consume the line break.
+         *
+         * @return false if the end of the data had been reached already
+         * @throws IOException thrown if an I/O error occurred
+         */
+        protected boolean readPhysicalLine()
+            throws
+                IOException
+        {
+            if( peek() < 0 ) {
+                return false;
+            }
+            while( true ) {
+                if( thePosition >= theLimit && !fill() ) {
+                    return true;
+                }
+                char c = theBuffer[ thePosition++ ];
+                if( c == '\n' ) {
+                    return true;
+                }
+                if( c == '\r' ) {
+                    if( peek() == '\n' ) {
+                        ++thePosition;
+                    }
+                    return true;
+                }
+                if( theLineLength == theLine.length ) {
+                    char [] newLine = new char[ theLine.length * 2 ];
+                    System.arraycopy( theLine, 0, newLine, 0, theLineLength );
+                    theLine = newLine;
+                }
+                theLine[ theLineLength++ ] = c;
+            }
+        }
+
+        /**
+         * Break the current line into its components.
+         *
+         * @return the line
+         */
+        protected OneLine parseLine()
+        {
+            char [] c   = theLine;
+            int     len = theLineLength;
+
+            int dotIndex = -1;
+            int i        = 0;
+            for( ; i<len ; ++i ) {
+                if( c[i] == ':' || c[i] == ';' ) {
+                    break;
+                }
+                if( c[i] == '.' && dotIndex < 0 ) {
+                    dotIndex = i;
+                }
+            }
+
+            String group;
+            String name;
+            if( dotIndex >= 0 ) {
+                group = new String( c, 0, dotIndex );
+                name  = upperCase( c, dotIndex+1, i );
+            } else {
+                group = null;
+                name  = upperCase( c, 0, i );
+            }
+
+            String [] params = NO_PARAMS;
+            if( i < len && c[i] == ';' ) {
+                theParams.clear();
+                while( i < len && c[i] == ';' ) {
+                    int     start  = ++i;
+                    boolean quoted = false;
+                    for( ; i<len ; ++i ) {
+                        if( c[i] == '"' ) {
+                            quoted = !quoted;
+                        } else if( !quoted && ( c[i] == ';' || c[i] == ':' )) {
+                            break;
+                        }
+                    }
+                    theParams.add( new String( c, start, i-start ));
+                }
+                params = theParams.toArray( new String[ theParams.size() ] );
+            }
+
+            String value = null;
+            if( i < len ) { // at the colon
+                value = new String( c, i+1, len-i-1 );
+            }
+            return new OneLine( group, name, params, value );
+        }
+
+        /**
+         * Create an upper-case String from a range of characters, without creating an intermediate
+         * String if the characters are upper case already, as they usually are.
+         *
+         * @param c the characters
+         * @param start the index of the first character
+         * @param end the index after the last character
+         * @return the String
+         */
+        protected static String upperCase(
+                char [] c,
+                int     start,
+                int     end )
+        {
+            for( int i=start ; i<end ; ++i ) {
+                if( c[i] >= 'a' && c[i] <= 'z' ) {
+                    return new String( c, start, end-start ).toUpperCase( Locale.ENGLISH );
+                }
+            }
+            return new String( c, start, end-start );
+        }
+
+        /**
+         * Look at the next character without consuming it.
+         *
+         * @return the character, or -1 if the end of the data has been reached
+         * @throws IOException thrown if an I/O error occurred
+         */
+        protected int peek()
+            throws
+                IOException
+        {
+            if( thePosition >= theLimit && !fill() ) {
+                return -1;
+            }
+            return theBuffer[ thePosition ];
+        }
+
+        /**
+         * Read more characters into the buffer.
+         *
+         * @return false if the end of the data has been reached
+         * @throws IOException thrown if an I/O error occurred
+         */
+        protected boolean fill()
+            throws
+                IOException
+        {
+            int read;
+            do {
+                read = theReader.read( theBuffer, 0, theBuffer.length );
+            } while( read == 0 );
+
+            if( read < 0 ) {
+                thePosition = 0;
+                theLimit    = 0;
+                return false;
+            }
+            thePosition = 0;
+            theLimit    = read;
+            return true;
+        }
+
+        /**
+         * The Reader to read from.
+         */
+        protected final Reader theReader;
+
+        /**
+         * The characters read from the Reader.
+         */
+        protected final char [] theBuffer = new char[ 8192 ];
+
+        /**
+         * The index of the next character in theBuffer to be consumed.
+         */
+        protected int thePosition;
+
+        /**
+         * The index after the last valid character in theBuffer.
+         */
+        protected int theLimit;
+
+        /**
+         * The current unfolded line.
+         */
+        protected char [] theLine = new char[ 256 ];
+
+        /**
+         * The number of valid characters in theLine.
+         */
+        protected int theLineLength;
+
+        /**
+         * Reused to collect the params of a line.
+         */
+        protected final ArrayList<String> theParams = new ArrayList<String>();
+
+        /**
+         * Shared by all lines without params.
+         */
+        protected static final String [] NO_PARAMS = new String[0];
+    }
+
+    /**
+     * This is basically an ArrayList with some convenience methods, and an index by name.
      */
-    static class LineBuffer
+    protected static class LineBuffer
             implements
                 CanBeDumped
     {
@@ -632,6 +977,22 @@ public class VCardProbe
                 OneLine newLine )
         {
             store.add( newLine );
+
+            ArrayList<OneLine> withName = index.get( newLine.theName );
+            if( withName == null ) {
+                withName = new ArrayList<OneLine>( 2 );
+                index.put( newLine.theName, withName );
+            }
+            withName.add( newLine );
+        }
+
+        /**
+         * Remove all lines, so this LineBuffer can be reused for the next VCard.
+         */
+        public void clear()
+        {
+            store.clear();
+            index.clear();
         }
 
         /**
@@ -659,17 +1020,25 @@ public class VCardProbe
                 String nameKey,
                 String valueKey )
         {
-            ArrayList<OneLine> almostRet = new ArrayList<OneLine>();
+            ArrayList<OneLine> candidates;
+            if( nameKey != null ) {
+                candidates = index.get( nameKey.toUpperCase( Locale.ENGLISH ));
+                if( candidates == null ) {
+                    return Collections.<OneLine>emptyList().iterator();
+                }
+            } else {
+                candidates = store;
+            }
+            if( groupKey == null && valueKey == null ) {
+                return candidates.iterator();
+            }
 
-            for( int i=0 ; i<store.size() ; ++i ) {
-                OneLine current = get( i );
+            ArrayList<OneLine> almostRet = new ArrayList<OneLine>();
 
+            for( OneLine current : candidates ) {
                 if( groupKey != null && !groupKey.equalsIgnoreCase( current.theGroup )) {
                     continue;
                 }
-                if( nameKey != null && !nameKey.equalsIgnoreCase( current.theName )) {
-                    continue;
-                }
                 if( valueKey != null && !valueKey.equalsIgnoreCase( current.theValue )) {
                     continue;
                 }
@@ -697,12 +1066,12 @@ public class VCardProbe
             throws
                 IOException
         {
-            Iterator iter = getAllWith( groupKey, nameKey, valueKey );
+            Iterator<OneLine> iter = getAllWith( groupKey, nameKey, valueKey );
             if( ! iter.hasNext() ) {
                 myError( "No element with", groupKey, nameKey, valueKey );
             }
 
-            OneLine ret = (OneLine) iter.next();
+            OneLine ret = iter.next();
             if( iter.hasNext() ) {
                 myError( "More than one element with", groupKey, nameKey, valueKey );
             }
@@ -727,12 +1096,12 @@ public class VCardProbe
             throws
                 IOException
         {
-            Iterator iter = getAllWith( groupKey, nameKey, valueKey );
+            Iterator<OneLine> iter = getAllWith( groupKey, nameKey, valueKey );
             if( ! iter.hasNext() ) {
                 return null;
             }
 
-            OneLine ret = (OneLine) iter.next();
+            OneLine ret = iter.next();
             if( iter.hasNext() ) {
                 myError( "More than one element with", groupKey, nameKey, valueKey );
             }
@@ -826,5 +1195,15 @@ public class VCardProbe
          * The lines are stored here.
          */
         private ArrayList<OneLine> store = new ArrayList<OneLine>( 32 );
+
+        /**
+         * The lines, indexed by their name.
+         */
+        private HashMap<String,ArrayList<OneLine>> index = new HashMap<String,ArrayList<OneLine>>();
     }
+
+    /**
+     * The character set assumed if the data source does not specify one.
+     */
+    protected static final Charset UTF8 = Charset.forName( "UTF-8" );
 }
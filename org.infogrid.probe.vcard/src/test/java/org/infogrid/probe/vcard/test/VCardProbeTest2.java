@@ -0,0 +1,137 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.vcard.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import org.infogrid.mesh.MeshObject;
+import org.infogrid.meshbase.net.CoherenceSpecification;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.model.AddressBook.AddressBookSubjectArea;
+import org.infogrid.model.VCard.VCardSubjectArea;
+import org.infogrid.model.primitives.StringValue;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.util.logging.Log;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+  * Tests the VCard Probe with a file that contains several VCards, in upper and lower case,
+  * with folded lines, colons in values, and different line terminators.
+  */
+@RunWith(Parameterized.class)
+public class VCardProbeTest2
+    extends
+        AbstractVCardProbeTest
+{
+    /**
+     * Test parameters.
+     *
+     * @return test parameters
+     */
+    @Parameterized.Parameters
+    public static Collection<Object[]> parameters()
+    {
+        return Arrays.asList( new Object[][] {
+                 { "src/test/resources/org/infogrid/probe/vcard/test/VCardProbeTest2.vcf", 7 }
+                                                                    // 3 VCards
+                                                                    // 1 PhysicalAddress
+                                                                    // 1 E-mail address
+                                                                    // 2 Phone numbers
+        });
+    }
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all kinds of things may go wrong during a test
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        log.info( "accessing test file" );
+
+        ShadowMeshBase meshBase1 = theProbeManager1.obtainFor( theTestFileId, CoherenceSpecification.ONE_TIME_ONLY );
+
+        checkObject( meshBase1, "could not find meshBase1" );
+
+        MeshObject home = meshBase1.getHomeObject();
+        checkCondition( home.isBlessedBy( VCardSubjectArea.VCARD ), "Not blessed with a VCard" );
+        checkEquals( home.getPropertyValue( VCardSubjectArea.VCARD_FULLNAME ), StringValue.create( "Jane Doe" ), "wrong full name of first VCard" );
+
+        checkEquals( meshBase1.size(), theExpectedNumberMeshObjects, "Wrong number of objects found" );
+        checkEquals( home.traverseToNeighborMeshObjects().size(), 4, "wrong number of neighbors of home object" );
+        checkEquals( home.traverse( AddressBookSubjectArea.ADDRESSBOOK_CONTAINS_VCARD.getSource() ).size(), 2, "subsequent VCards not related with the right RelationshipType" );
+
+        MeshObject richard = null;
+        MeshObject ann     = null;
+        for( MeshObject current : home.traverseToNeighborMeshObjects() ) {
+            if( !current.isBlessedBy( VCardSubjectArea.VCARD )) {
+                continue;
+            }
+            if( StringValue.create( "Richard Roe" ).equals( current.getPropertyValue( VCardSubjectArea.VCARD_FULLNAME ))) {
+                richard = current;
+            } else if( StringValue.create( "Ann Smith" ).equals( current.getPropertyValue( VCardSubjectArea.VCARD_FULLNAME ))) {
+                ann = current;
+            }
+        }
+        checkObject( richard, "second VCard not found" );
+        checkObject( ann,     "third VCard not found" );
+
+        checkEquals( richard.traverseToNeighborMeshObjects().size(), 2, "wrong number of neighbors of second VCard" );
+        for( MeshObject current : richard.traverseToNeighborMeshObjects() ) {
+            if( current.isBlessedBy( VCardSubjectArea.PHYSICALADDRESS )) {
+                checkEquals( current.getPropertyValue( VCardSubjectArea.PHYSICALADDRESS_STREETADDRESS ), StringValue.create( "1 Infinite Loop" ), "wrong unfolding" );
+            }
+        }
+
+        checkEquals( ann.getPropertyValue( VCardSubjectArea.VCARD_NOTE ), StringValue.create( "Call between 9:00 and 17:00" ), "wrong note" );
+    }
+
+    /**
+     * Constructor that takes parameters.
+     *
+     * @param fileName the VCard file to read
+     * @param expectedNumberMeshObjects the number of MeshObjects in the file
+     * @throws Exception all sorts of things may happen during a test
+     */
+    public VCardProbeTest2(
+            String fileName,
+            int    expectedNumberMeshObjects )
+        throws
+            Exception
+    {
+        theTestFileId = theMeshBaseIdentifierFactory.obtain( new File( fileName ));
+
+        theExpectedNumberMeshObjects = expectedNumberMeshObjects;
+    }
+
+    /**
+     * The NetworkIdentifer of the test file.
+     */
+    protected NetMeshBaseIdentifier theTestFileId;
+
+    /**
+     * The expected number of MeshObjects in the test file.
+     */
+    protected int theExpectedNumberMeshObjects;
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( VCardProbeTest2.class );
+}
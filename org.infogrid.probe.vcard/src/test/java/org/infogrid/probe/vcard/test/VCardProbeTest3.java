@@ -0,0 +1,164 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.vcard.test;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import org.infogrid.mesh.MeshObject;
+import org.infogrid.meshbase.net.CoherenceSpecification;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.model.VCard.VCardSubjectArea;
+import org.infogrid.model.primitives.StringValue;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.probe.vcard.VCardProbe;
+import org.infogrid.util.logging.Log;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+  * Tests that the VCard Probe reads a data source as UTF-8 unless its content type
+  * specifies a charset, and that it uses the charset given in the content type.
+  */
+@RunWith(Parameterized.class)
+public class VCardProbeTest3
+    extends
+        AbstractVCardProbeTest
+{
+    /**
+     * Test parameters.
+     *
+     * @return test parameters
+     */
+    @Parameterized.Parameters
+    public static Collection<Object[]> parameters()
+    {
+        return Arrays.asList( new Object[][] {
+                 { "src/test/resources/org/infogrid/probe/vcard/test/VCardProbeTest3.vcf", "Zo\u00eb M\u00fcller", "Stra\u00dfe \u20ac" }
+                                                                    // UTF-8, content type without charset
+        });
+    }
+
+    /**
+     * Run the test with a file, whose content type does not specify a charset.
+     *
+     * @throws Exception all kinds of things may go wrong during a test
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        log.info( "accessing test file" );
+
+        ShadowMeshBase meshBase1 = theProbeManager1.obtainFor( theTestFileId, CoherenceSpecification.ONE_TIME_ONLY );
+
+        checkObject( meshBase1, "could not find meshBase1" );
+
+        MeshObject home = meshBase1.getHomeObject();
+        checkCondition( home.isBlessedBy( VCardSubjectArea.VCARD ), "Not blessed with a VCard" );
+        checkEquals( home.getPropertyValue( VCardSubjectArea.VCARD_FULLNAME ), StringValue.create( theExpectedFullName ), "not read as UTF-8: wrong full name" );
+        checkEquals( home.getPropertyValue( VCardSubjectArea.VCARD_NOTE ),     StringValue.create( theExpectedNote ),     "not read as UTF-8: wrong note" );
+    }
+
+    /**
+     * Test the determination of the charset from content types with and without charset.
+     */
+    @Test
+    public void determineCharset()
+    {
+        log.info( "determining charsets from content types" );
+
+        CharsetExposingVCardProbe probe = new CharsetExposingVCardProbe();
+
+        for( String [] current : CONTENT_TYPES ) {
+            checkEquals( probe.charsetFor( current[0] ), Charset.forName( current[1] ), "wrong charset for content type: " + current[0] );
+        }
+    }
+
+    /**
+     * Constructor that takes parameters.
+     *
+     * @param fileName the VCard file to read
+     * @param expectedFullName the expected full name of the VCard in the file
+     * @param expectedNote the expected note of the VCard in the file
+     * @throws Exception all sorts of things may happen during a test
+     */
+    public VCardProbeTest3(
+            String fileName,
+            String expectedFullName,
+            String expectedNote )
+        throws
+            Exception
+    {
+        theTestFileId = theMeshBaseIdentifierFactory.obtain( new File( fileName ));
+
+        theExpectedFullName = expectedFullName;
+        theExpectedNote     = expectedNote;
+    }
+
+    /**
+     * The NetworkIdentifer of the test file.
+     */
+    protected NetMeshBaseIdentifier theTestFileId;
+
+    /**
+     * The expected full name of the VCard in the test file.
+     */
+    protected String theExpectedFullName;
+
+    /**
+     * The expected note of the VCard in the test file.
+     */
+    protected String theExpectedNote;
+
+    /**
+     * Content types, and the names of the charsets that should be determined from them.
+     */
+    protected static final String [][] CONTENT_TYPES = {
+            { null,                                           "UTF-8" },
+            { "text/x-vcard",                                 "UTF-8" },
+            { "text/x-vcard; charset=ISO-8859-1",             "ISO-8859-1" },
+            { "text/x-vcard; Charset=\"iso-8859-1\"",         "ISO-8859-1" },
+            { "text/x-vcard; charset=UTF-16; profile=vcard",  "UTF-16" },
+            { "text/x-vcard; charset=no-such-charset",        "UTF-8" }, // unsupported
+            { "text/x-vcard; charset=?illegal?",              "UTF-8" }  // illegal name
+    };
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( VCardProbeTest3.class );
+
+    /**
+     * Makes the charset determination of the VCardProbe accessible to the test.
+     */
+    protected static class CharsetExposingVCardProbe
+            extends
+                VCardProbe
+    {
+        /**
+         * Determine the character set from a content type.
+         *
+         * @param contentType the content type (MIME), or null
+         * @return the Charset
+         */
+        public Charset charsetFor(
+                String contentType )
+        {
+            return determineCharset( contentType );
+        }
+    }
+}
@@ -0,0 +1,178 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.vcard.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import org.infogrid.mesh.MeshObject;
+import org.infogrid.meshbase.net.CoherenceSpecification;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.model.AddressBook.AddressBookSubjectArea;
+import org.infogrid.model.VCard.VCardSubjectArea;
+import org.infogrid.model.primitives.StringValue;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.testharness.AbstractTest;
+import org.infogrid.util.logging.Log;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+  * Tests that the VCards in a data source keep their MeshObjects when another VCard is
+  * inserted at the top of the data source.
+  */
+@RunWith(Parameterized.class)
+public class VCardProbeTest4
+    extends
+        AbstractVCardProbeTest
+{
+    /**
+     * Test parameters.
+     *
+     * @return test parameters
+     */
+    @Parameterized.Parameters
+    public static Collection<Object[]> parameters()
+    {
+        return Arrays.asList( new Object[][] {
+                {
+                    AbstractTest.tempInputFileName( VCardProbeTest4.class, "test4-active.vcf" ),
+                    "src/test/resources/org/infogrid/probe/vcard/test/VCardProbeTest4_1.vcf",
+                    "src/test/resources/org/infogrid/probe/vcard/test/VCardProbeTest4_2.vcf"
+                }
+        });
+    }
+
+    /**
+     * Run the test.
+     *
+     * @throws Exception all kinds of things may go wrong during a test
+     */
+    @Test
+    public void run()
+        throws
+            Exception
+    {
+        copyFile( theTestFile1, theTestFile0 );
+
+        log.info( "accessing test file 1" );
+
+        ShadowMeshBase meshBase1 = theProbeManager1.obtainFor( theTestFile0Id, CoherenceSpecification.ONE_TIME_ONLY );
+
+        checkObject( meshBase1, "could not find meshBase1" );
+
+        MeshObject home = meshBase1.getHomeObject();
+        checkCondition( home.isBlessedBy( AddressBookSubjectArea.ADDRESSBOOK ), "Not blessed with an AddressBook" );
+        checkEquals( home.getPropertyValue( VCardSubjectArea.VCARD_FULLNAME ), StringValue.create( "Jane Doe" ), "wrong full name of first VCard" );
+
+        MeshObject richard1 = findCard( home, "Richard Roe" );
+        MeshObject ann1     = findCard( home, "Ann Smith" );
+        checkObject( richard1, "VCard with UID not found" );
+        checkObject( ann1,     "VCard without UID not found" );
+
+        sleepFor( 1001L ); // make sure time advances even on virtualized machines
+
+        //
+
+        log.info( "inserting a VCard at the top, and updating" );
+
+        copyFile( theTestFile2, theTestFile0 );
+
+        meshBase1.doUpdateNow();
+
+        checkEquals( home.getPropertyValue( VCardSubjectArea.VCARD_FULLNAME ), StringValue.create( "Max Mustermann" ), "wrong full name of first VCard" );
+        checkObject( findCard( home, "Jane Doe" ), "former first VCard not found" );
+
+        MeshObject richard2 = findCard( home, "Richard Roe" );
+        MeshObject ann2     = findCard( home, "Ann Smith" );
+        checkObject( richard2, "VCard with UID not found after update" );
+        checkObject( ann2,     "VCard without UID not found after update" );
+
+        checkEquals( richard2.getIdentifier(), richard1.getIdentifier(), "VCard with UID changed its identifier" );
+        checkEquals( ann2.getIdentifier(),     ann1.getIdentifier(),     "VCard without UID changed its identifier" );
+        checkCondition( !richard1.getIsDead(), "VCard with UID was re-created" );
+        checkCondition( !ann1.getIsDead(),     "VCard without UID was re-created" );
+    }
+
+    /**
+     * Find the VCard with this full name among the VCards contained in the AddressBook.
+     *
+     * @param home the home object
+     * @param fullName the full name
+     * @return the found VCard, or null
+     * @throws Exception all kinds of things may go wrong during a test
+     */
+    protected MeshObject findCard(
+            MeshObject home,
+            String     fullName )
+        throws
+            Exception
+    {
+        StringValue wanted = StringValue.create( fullName );
+
+        for( MeshObject current : home.traverse( AddressBookSubjectArea.ADDRESSBOOK_CONTAINS_VCARD.getSource() )) {
+            if( wanted.equals( current.getPropertyValue( VCardSubjectArea.VCARD_FULLNAME ))) {
+                return current;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Constructor that takes parameters.
+     *
+     * @param testFile0 filename of the test file in the read position
+     * @param testFile1 filename of the first version of the test file
+     * @param testFile2 filename of the second version of the test file
+     * @throws Exception all sorts of things may happen during a test
+     */
+    public VCardProbeTest4(
+            String testFile0,
+            String testFile1,
+            String testFile2 )
+        throws
+            Exception
+    {
+        theTestFile0 = testFile0;
+        theTestFile1 = testFile1;
+        theTestFile2 = testFile2;
+
+        theTestFile0Id = theMeshBaseIdentifierFactory.obtain( new File( theTestFile0 ));
+    }
+
+    /**
+     * File name of the test file in the read position.
+     */
+    protected String theTestFile0;
+
+    /**
+     * File name of the first version of the test file.
+     */
+    protected String theTestFile1;
+
+    /**
+     * File name of the second version of the test file.
+     */
+    protected String theTestFile2;
+
+    /**
+     * The NetworkIdentifer of the test file in the read position.
+     */
+    protected NetMeshBaseIdentifier theTestFile0Id;
+
+    // Our Logger
+    private static Log log = Log.getLogInstance( VCardProbeTest4.class );
+}
@@ -159,8 +159,16 @@ public class XrdProbe
             TransactionException,
             ParseException
     {
-        String text = getTextContentOf( current );
-        home.setPropertyValue( XrdSubjectArea.XRD_EXPIRES, TimeStampValue.createFromW3c( text ));
+        String         text    = getTextContentOf( current );
+        TimeStampValue expires = TimeStampValue.createFromW3c( text );
+
+        home.setPropertyValue( XrdSubjectArea.XRD_EXPIRES, expires );
+
+        NetMeshBase base = home.getMeshBase();
+        if( expires != null && base instanceof StagingMeshBase ) {
+            // no point asking again before the document expires
+            ((StagingMeshBase) base).addFreshnessHint( expires.getAsMillis() );
+        }
     }
 
     /**
@@ -0,0 +1,93 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.probe;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * A ByteArrayInputStream over content that the Probe framework has read into memory already.
+ * Probes that need the entire content may obtain it from here, instead of reading it into
+ * another byte array, together with its digest, if the Probe framework computed one.
+ */
+public class ContentInputStream
+        extends
+            ByteArrayInputStream
+{
+    /**
+     * Constructor.
+     *
+     * @param content the content
+     */
+    public ContentInputStream(
+            byte [] content )
+    {
+        this( content, null );
+    }
+
+    /**
+     * Constructor with the digest of the content.
+     *
+     * @param content the content
+     * @param contentDigest the digest of the entire content, using ProbeDispatcher.CONTENT_DIGEST_ALGORITHM, if known
+     */
+    public ContentInputStream(
+            byte [] content,
+            byte [] contentDigest )
+    {
+        super( content );
+
+        theContentDigest = contentDigest;
+    }
+
+    /**
+     * Obtain the digest of the content, if it is known and nothing has been read yet, so it
+     * does not need to be computed again.
+     *
+     * @return the digest, using ProbeDispatcher.CONTENT_DIGEST_ALGORITHM, or null
+     */
+    public synchronized byte [] getContentDigest()
+    {
+        if( pos == 0 && count == buf.length ) {
+            return theContentDigest;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Obtain the content that has not been read yet, and consume it. If nothing has been
+     * read yet, the content is returned without copying; the caller must not modify it.
+     *
+     * @return the content
+     */
+    public synchronized byte [] consumeContent()
+    {
+        byte [] ret;
+        if( pos == 0 && count == buf.length ) {
+            ret = buf;
+        } else {
+            ret = new byte[ count - pos ];
+            System.arraycopy( buf, pos, ret, 0, ret.length );
+        }
+        pos = count;
+        return ret;
+    }
+
+    /**
+     * The digest of the entire content, if known.
+     */
+    protected final byte [] theContentDigest;
+}
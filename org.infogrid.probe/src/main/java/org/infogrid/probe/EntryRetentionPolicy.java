@@ -0,0 +1,136 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe;
+
+/**
+ * <p>Limits which of the entries of a data source that consists of a sequence of entries, such
+ *    as a feed, a Probe instantiates into its StagingMeshBase. Entries beyond the maximum number,
+ *    or older than the maximum age, are not instantiated, which keeps the size of the
+ *    ShadowMeshBase, the cost of determining its changes, and the size of its Store record bounded
+ *    for very long or unbounded data sources.</p>
+ * <p>Entries are counted in the order in which the data source lists them. Entries whose age is
+ *    not known are never dropped because of their age.</p>
+ */
+public class EntryRetentionPolicy
+{
+    /**
+     * Factory method.
+     *
+     * @param maxEntries the maximum number of entries to retain, or -1 if unlimited
+     * @param maxAge the maximum age, in milliseconds, of the entries to retain, or -1 if unlimited
+     * @return the created EntryRetentionPolicy
+     */
+    public static EntryRetentionPolicy create(
+            int  maxEntries,
+            long maxAge )
+    {
+        return new EntryRetentionPolicy( maxEntries, maxAge );
+    }
+
+    /**
+     * Constructor for subclasses only, use factory method.
+     *
+     * @param maxEntries the maximum number of entries to retain, or -1 if unlimited
+     * @param maxAge the maximum age, in milliseconds, of the entries to retain, or -1 if unlimited
+     */
+    protected EntryRetentionPolicy(
+            int  maxEntries,
+            long maxAge )
+    {
+        theMaxEntries = maxEntries;
+        theMaxAge     = maxAge;
+    }
+
+    /**
+     * Obtain the maximum number of entries to retain.
+     *
+     * @return the maximum number, or -1 if unlimited
+     */
+    public int getMaxEntries()
+    {
+        return theMaxEntries;
+    }
+
+    /**
+     * Obtain the maximum age of the entries to retain.
+     *
+     * @return the maximum age, in milliseconds, or -1 if unlimited
+     */
+    public long getMaxAge()
+    {
+        return theMaxAge;
+    }
+
+    /**
+     * Determine whether any more entries may be retained. If not, the Probe does not need to
+     * look at the remaining entries at all.
+     *
+     * @param retainedSoFar the number of entries retained so far
+     * @return true if more entries may be retained
+     */
+    public boolean retainsMore(
+            int retainedSoFar )
+    {
+        return theMaxEntries < 0 || retainedSoFar < theMaxEntries;
+    }
+
+    /**
+     * Determine whether an entry is to be retained.
+     *
+     * @param retainedSoFar the number of entries retained so far
+     * @param entryTime the time the entry was created or updated, in System.currentTimeMillis() format, or -1 if not known
+     * @param now the current time, in System.currentTimeMillis() format
+     * @return true if the entry is to be retained
+     */
+    public boolean retains(
+            int  retainedSoFar,
+            long entryTime,
+            long now )
+    {
+        if( !retainsMore( retainedSoFar )) {
+            return false;
+        }
+        if( theMaxAge >= 0L && entryTime > 0L && now - entryTime > theMaxAge ) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Convert to String, for debugging.
+     *
+     * @return String form
+     */
+    @Override
+    public String toString()
+    {
+        return super.toString() + "{ maxEntries: " + theMaxEntries + ", maxAge: " + theMaxAge + " }";
+    }
+
+    /**
+     * The maximum number of entries to retain, or -1 if unlimited.
+     */
+    protected final int theMaxEntries;
+
+    /**
+     * The maximum age, in milliseconds, of the entries to retain, or -1 if unlimited.
+     */
+    protected final long theMaxAge;
+
+    /**
+     * Retains all entries.
+     */
+    public static final EntryRetentionPolicy UNLIMITED = new EntryRetentionPolicy( -1, -1L );
+}
@@ -0,0 +1,578 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe;
+
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.logging.Log;
+
+/**
+ * <p>Decides whether a Probe run that accesses a given host may proceed now, so that
+ *    many ShadowMeshBases whose data sources are on the same host do not all access
+ *    that host at the same time.</p>
+ * <p>It caps the number of Probe runs in flight per host, defers runs for which there is
+ *    no capacity by a randomized (jittered) delay so that deferred runs do not line up again,
+ *    and honors the <code>Retry-After</code> HTTP header sent with 429 and 503 responses.</p>
+ * <p>If configured with a circuit failure threshold greater than 0, it also acts as a circuit
+ *    breaker per host; by default, it does not. After a number of consecutive failed runs
+ *    against a host, regardless of which ShadowMeshBase they were for, the circuit opens and
+ *    no runs are admitted for that host for a while. Once that time has passed, the circuit is
+ *    half-open: a single trial run is admitted. If it succeeds, the circuit closes again;
+ *    if it fails, the circuit opens again for twice as long, up to a maximum.</p>
+ * <p>No policy is in effect by default. To enable one, put it into the ShadowMeshBases'
+ *    Context, or set it on the ProbeDispatcher. The same instance needs to be shared by all
+ *    ProbeDispatchers for it to be effective, such as {@link #SINGLETON}.</p>
+ */
+public class HostPolitenessPolicy
+{
+    private static final Log log = Log.getLogInstance( HostPolitenessPolicy.class ); // our own, private logger
+
+    /**
+     * Factory method.
+     *
+     * @param maxInFlightPerHost the maximum number of Probe runs in flight per host
+     * @param minDeferral the minimum time, in milliseconds, by which a Probe run is deferred
+     * @param maxJitter the maximum random time, in milliseconds, added to a deferral
+     * @param maxRetryAfter the maximum time, in milliseconds, for which a Retry-After header is honored
+     * @return the created HostPolitenessPolicy
+     */
+    public static HostPolitenessPolicy create(
+            int  maxInFlightPerHost,
+            long minDeferral,
+            long maxJitter,
+            long maxRetryAfter )
+    {
+        return new HostPolitenessPolicy(
+                maxInFlightPerHost,
+                minDeferral,
+                maxJitter,
+                maxRetryAfter,
+                DEFAULT_CIRCUIT_FAILURE_THRESHOLD,
+                DEFAULT_CIRCUIT_OPEN_DURATION,
+                DEFAULT_MAX_CIRCUIT_OPEN_DURATION );
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param maxInFlightPerHost the maximum number of Probe runs in flight per host
+     * @param minDeferral the minimum time, in milliseconds, by which a Probe run is deferred
+     * @param maxJitter the maximum random time, in milliseconds, added to a deferral
+     * @param maxRetryAfter the maximum time, in milliseconds, for which a Retry-After header is honored
+     * @param circuitFailureThreshold the number of consecutive failed runs against a host after which the circuit opens, or 0 for no circuit breaker
+     * @param circuitOpenDuration the time, in milliseconds, for which the circuit opens the first time
+     * @param maxCircuitOpenDuration the maximum time, in milliseconds, for which the circuit opens
+     * @return the created HostPolitenessPolicy
+     */
+    public static HostPolitenessPolicy create(
+            int  maxInFlightPerHost,
+            long minDeferral,
+            long maxJitter,
+            long maxRetryAfter,
+            int  circuitFailureThreshold,
+            long circuitOpenDuration,
+            long maxCircuitOpenDuration )
+    {
+        return new HostPolitenessPolicy(
+                maxInFlightPerHost,
+                minDeferral,
+                maxJitter,
+                maxRetryAfter,
+                circuitFailureThreshold,
+                circuitOpenDuration,
+                maxCircuitOpenDuration );
+    }
+
+    /**
+     * Constructor for subclasses only, use factory method.
+     *
+     * @param maxInFlightPerHost the maximum number of Probe runs in flight per host
+     * @param minDeferral the minimum time, in milliseconds, by which a Probe run is deferred
+     * @param maxJitter the maximum random time, in milliseconds, added to a deferral
+     * @param maxRetryAfter the maximum time, in milliseconds, for which a Retry-After header is honored
+     * @param circuitFailureThreshold the number of consecutive failed runs against a host after which the circuit opens, or 0 for no circuit breaker
+     * @param circuitOpenDuration the time, in milliseconds, for which the circuit opens the first time
+     * @param maxCircuitOpenDuration the maximum time, in milliseconds, for which the circuit opens
+     */
+    protected HostPolitenessPolicy(
+            int  maxInFlightPerHost,
+            long minDeferral,
+            long maxJitter,
+            long maxRetryAfter,
+            int  circuitFailureThreshold,
+            long circuitOpenDuration,
+            long maxCircuitOpenDuration )
+    {
+        theMaxInFlightPerHost      = maxInFlightPerHost;
+        theMinDeferral             = minDeferral;
+        theMaxJitter               = maxJitter;
+        theMaxRetryAfter           = maxRetryAfter;
+        theCircuitFailureThreshold = circuitFailureThreshold;
+        theCircuitOpenDuration     = circuitOpenDuration;
+        theMaxCircuitOpenDuration  = maxCircuitOpenDuration;
+    }
+
+    /**
+     * Determine the host whose politeness we need to respect when accessing a data source.
+     *
+     * @param sourceIdentifier identifies the data source
+     * @return the host, or null if the data source is not associated with a host
+     */
+    public String determineHost(
+            NetMeshBaseIdentifier sourceIdentifier )
+    {
+        String ret = sourceIdentifier.toUri().getHost();
+        if( ret != null ) {
+            ret = ret.toLowerCase( Locale.ENGLISH );
+        }
+        return ret;
+    }
+
+    /**
+     * Ask for permission to start a Probe run that accesses a host. If permission is granted,
+     * the caller must invoke {@link #release} on the same Thread once the run has completed.
+     *
+     * @param host the host
+     * @param now the current time, in System.currentTimeMillis() format
+     * @return 0 if the run may start now, otherwise the number of milliseconds by which the run should be deferred
+     */
+    public long tryAdmit(
+            String host,
+            long   now )
+    {
+        HostState state = obtainStateFor( host );
+        synchronized( state ) {
+            long ret;
+            if( state.theBlockedUntil > now ) {
+                ret = state.theBlockedUntil - now + jitter();
+
+            } else if( state.theCircuitOpenUntil > now ) {
+                ret = state.theCircuitOpenUntil - now + jitter();
+
+            } else if( state.theCircuitOpenUntil > 0L && state.theTrialThread != null ) {
+                // half-open, and somebody else is trying already
+                ret = theMinDeferral + jitter();
+
+            } else if( state.theInFlight >= theMaxInFlightPerHost ) {
+                ret = theMinDeferral + jitter();
+
+            } else {
+                if( state.theCircuitOpenUntil > 0L ) {
+                    // half-open: this is the trial
+                    state.theTrialThread = Thread.currentThread();
+                }
+                ++state.theInFlight;
+                ret = 0L;
+            }
+            if( ret > 0L && log.isDebugEnabled() ) {
+                log.debug( this + ".tryAdmit( " + host + " ): deferring by " + ret );
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Start a Probe run that accesses a host regardless of whether there is capacity, for example
+     * because a client is waiting for the result. The caller must invoke {@link #release} once
+     * the run has completed.
+     *
+     * @param host the host
+     */
+    public void admit(
+            String host )
+    {
+        HostState state = obtainStateFor( host );
+        synchronized( state ) {
+            ++state.theInFlight;
+        }
+    }
+
+    /**
+     * Indicate that a Probe run that was admitted earlier has completed, and the host
+     * behaved normally.
+     *
+     * @param host the host
+     */
+    public void release(
+            String host )
+    {
+        release( host, true );
+    }
+
+    /**
+     * Indicate that a Probe run that was admitted earlier has completed.
+     *
+     * @param host the host
+     * @param hostWasHealthy if false, the host could not be reached or responded with an error that
+     *        indicates it has a problem, and this counts towards opening the circuit
+     */
+    public void release(
+            String  host,
+            boolean hostWasHealthy )
+    {
+        HostState state = theStates.get( host );
+        if( state == null ) {
+            log.error( this + ".release( " + host + " ): not admitted" );
+            return;
+        }
+        synchronized( state ) {
+            long now = System.currentTimeMillis();
+
+            if( state.theInFlight > 0 ) {
+                --state.theInFlight;
+            }
+            boolean isTrial = state.theTrialThread == Thread.currentThread();
+            if( isTrial ) {
+                state.theTrialThread = null;
+            }
+
+            if( hostWasHealthy ) {
+                if( state.theCircuitOpenUntil > 0L && log.isInfoEnabled() ) {
+                    log.info( this + ": closing circuit for host " + host );
+                }
+                state.theConsecutiveFailures = 0;
+                state.theCircuitOpenUntil    = 0L;
+                state.theLastOpenDuration    = 0L;
+
+            } else if( theCircuitFailureThreshold > 0 ) {
+                ++state.theConsecutiveFailures;
+
+                long duration;
+                if( isTrial ) {
+                    // the trial failed: open again, for longer
+                    if( state.theLastOpenDuration > 0L ) {
+                        duration = Math.min( 2 * state.theLastOpenDuration, theMaxCircuitOpenDuration );
+                    } else {
+                        duration = theCircuitOpenDuration;
+                    }
+                } else if( state.theCircuitOpenUntil == 0L && state.theConsecutiveFailures >= theCircuitFailureThreshold ) {
+                    duration = theCircuitOpenDuration;
+                } else {
+                    // still closed, or already open or half-open and waiting for the trial
+                    duration = 0L;
+                }
+                if( duration > 0L ) {
+                    state.theLastOpenDuration = duration;
+                    state.theCircuitOpenUntil = now + duration;
+
+                    if( log.isInfoEnabled() ) {
+                        log.info( this + ": opening circuit for host " + host + " until " + new Date( state.theCircuitOpenUntil ));
+                    }
+                }
+            }
+
+            if(    state.theInFlight == 0
+                && state.theBlockedUntil <= now
+                && state.theConsecutiveFailures == 0 )
+            {
+                // don't keep state for hosts that don't need it
+                theStates.remove( host, state );
+                state.theIsRemoved = true;
+            }
+        }
+    }
+
+    /**
+     * Indicate that a host asked not to be accessed for a while, e.g. by responding with
+     * a 429 or 503 HTTP status and a Retry-After header.
+     *
+     * @param host the host
+     * @param until the time until which the host asked not to be accessed, in System.currentTimeMillis() format
+     */
+    public void retryAfter(
+            String host,
+            long   until )
+    {
+        long max = System.currentTimeMillis() + theMaxRetryAfter;
+        if( until > max ) {
+            until = max;
+        }
+        HostState state = obtainStateFor( host );
+        synchronized( state ) {
+            if( state.theBlockedUntil < until ) {
+                state.theBlockedUntil = until;
+            }
+        }
+        if( log.isInfoEnabled() ) {
+            log.info( this + ": host " + host + " asked us to retry after " + new Date( until ));
+        }
+    }
+
+    /**
+     * Determine the number of Probe runs currently in flight for a host.
+     *
+     * @param host the host
+     * @return the number of Probe runs
+     */
+    public int getInFlightCount(
+            String host )
+    {
+        HostState state = theStates.get( host );
+        if( state == null ) {
+            return 0;
+        }
+        synchronized( state ) {
+            return state.theInFlight;
+        }
+    }
+
+    /**
+     * Determine whether the circuit for a host is currently open, i.e. no runs are admitted
+     * for the host, not even a trial.
+     *
+     * @param host the host
+     * @param now the current time, in System.currentTimeMillis() format
+     * @return true if the circuit is open
+     */
+    public boolean isCircuitOpen(
+            String host,
+            long   now )
+    {
+        HostState state = theStates.get( host );
+        if( state == null ) {
+            return false;
+        }
+        synchronized( state ) {
+            return state.theCircuitOpenUntil > now;
+        }
+    }
+
+    /**
+     * Parse the value of an HTTP Retry-After header, which is either a number of seconds
+     * or an HTTP date.
+     *
+     * @param value the value of the header
+     * @param now the current time, in System.currentTimeMillis() format
+     * @return the time until which not to retry, in System.currentTimeMillis() format, or -1 if the value could not be parsed
+     */
+    public static long parseRetryAfter(
+            String value,
+            long   now )
+    {
+        if( value == null ) {
+            return -1L;
+        }
+        value = value.trim();
+        try {
+            long seconds = Long.parseLong( value );
+            return now + seconds * 1000L;
+
+        } catch( NumberFormatException ex ) {
+            // try a date
+        }
+        return HttpDateParser.parse( value );
+    }
+
+    /**
+     * Obtain the state for a host, creating it if needed.
+     *
+     * @param host the host
+     * @return the state
+     */
+    protected HostState obtainStateFor(
+            String host )
+    {
+        while( true ) {
+            HostState ret = theStates.get( host );
+            if( ret == null ) {
+                HostState created = new HostState();
+                ret = theStates.putIfAbsent( host, created );
+                if( ret == null ) {
+                    ret = created;
+                }
+            }
+            synchronized( ret ) {
+                if( !ret.theIsRemoved ) {
+                    return ret;
+                }
+            }
+            // was just removed by release(), try again
+        }
+    }
+
+    /**
+     * Determine a random delay to add to a deferral.
+     *
+     * @return the delay, in milliseconds
+     */
+    protected long jitter()
+    {
+        if( theMaxJitter <= 0L ) {
+            return 0L;
+        }
+        synchronized( theRandom ) {
+            return (long) ( theRandom.nextDouble() * theMaxJitter );
+        }
+    }
+
+    /**
+     * The maximum number of Probe runs in flight per host.
+     */
+    protected final int theMaxInFlightPerHost;
+
+    /**
+     * The minimum time, in milliseconds, by which a Probe run is deferred.
+     */
+    protected final long theMinDeferral;
+
+    /**
+     * The maximum random time, in milliseconds, added to a deferral.
+     */
+    protected final long theMaxJitter;
+
+    /**
+     * The maximum time, in milliseconds, for which a Retry-After header is honored.
+     */
+    protected final long theMaxRetryAfter;
+
+    /**
+     * The number of consecutive failed runs against a host after which the circuit opens.
+     */
+    protected final int theCircuitFailureThreshold;
+
+    /**
+     * The time, in milliseconds, for which the circuit opens the first time.
+     */
+    protected final long theCircuitOpenDuration;
+
+    /**
+     * The maximum time, in milliseconds, for which the circuit opens.
+     */
+    protected final long theMaxCircuitOpenDuration;
+
+    /**
+     * The state per host. Only hosts with runs in flight, that asked us to retry later, or whose
+     * most recent run failed, have an entry.
+     */
+    protected final ConcurrentHashMap<String,HostState> theStates = new ConcurrentHashMap<String,HostState>();
+
+    /**
+     * Source of randomness for the jitter.
+     */
+    protected final Random theRandom = new Random();
+
+    /**
+     * Our ResourceHelper.
+     */
+    private static final ResourceHelper theResourceHelper = ResourceHelper.getInstance( HostPolitenessPolicy.class );
+
+    /**
+     * The default maximum number of Probe runs in flight per host.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_HOST = theResourceHelper.getResourceIntegerOrDefault(
+            "MaxInFlightPerHost",
+            2 );
+
+    /**
+     * The default minimum time, in milliseconds, by which a Probe run is deferred.
+     */
+    public static final long DEFAULT_MIN_DEFERRAL = theResourceHelper.getResourceLongOrDefault(
+            "MinDeferral",
+            1000L ); // 1 sec
+
+    /**
+     * The default maximum random time, in milliseconds, added to a deferral.
+     */
+    public static final long DEFAULT_MAX_JITTER = theResourceHelper.getResourceLongOrDefault(
+            "MaxJitter",
+            5000L ); // 5 sec
+
+    /**
+     * The default maximum time, in milliseconds, for which a Retry-After header is honored.
+     */
+    public static final long DEFAULT_MAX_RETRY_AFTER = theResourceHelper.getResourceLongOrDefault(
+            "MaxRetryAfter",
+            60L * 60L * 1000L ); // 1 hour
+
+    /**
+     * The default number of consecutive failed runs against a host after which the circuit opens.
+     * By default, the circuit breaker is off.
+     */
+    public static final int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = theResourceHelper.getResourceIntegerOrDefault(
+            "CircuitFailureThreshold",
+            0 );
+
+    /**
+     * The default time, in milliseconds, for which the circuit opens the first time.
+     */
+    public static final long DEFAULT_CIRCUIT_OPEN_DURATION = theResourceHelper.getResourceLongOrDefault(
+            "CircuitOpenDuration",
+            60L * 1000L ); // 1 min
+
+    /**
+     * The default maximum time, in milliseconds, for which the circuit opens.
+     */
+    public static final long DEFAULT_MAX_CIRCUIT_OPEN_DURATION = theResourceHelper.getResourceLongOrDefault(
+            "MaxCircuitOpenDuration",
+            6L * 60L * 60L * 1000L ); // 6 hours
+
+    /**
+     * Singleton instance, with the default settings, that ProbeDispatchers may share.
+     */
+    public static final HostPolitenessPolicy SINGLETON = new HostPolitenessPolicy(
+            DEFAULT_MAX_IN_FLIGHT_PER_HOST,
+            DEFAULT_MIN_DEFERRAL,
+            DEFAULT_MAX_JITTER,
+            DEFAULT_MAX_RETRY_AFTER,
+            DEFAULT_CIRCUIT_FAILURE_THRESHOLD,
+            DEFAULT_CIRCUIT_OPEN_DURATION,
+            DEFAULT_MAX_CIRCUIT_OPEN_DURATION );
+
+    /**
+     * What we know about one host.
+     */
+    protected static class HostState
+    {
+        /**
+         * The number of Probe runs in flight.
+         */
+        int theInFlight;
+
+        /**
+         * The time until which the host asked not to be accessed, in System.currentTimeMillis() format.
+         */
+        long theBlockedUntil;
+
+        /**
+         * The number of consecutive failed runs against this host, across all ShadowMeshBases.
+         */
+        int theConsecutiveFailures;
+
+        /**
+         * The time until which the circuit is open, in System.currentTimeMillis() format. After that
+         * time, the circuit is half-open until a trial run has succeeded. 0 if the circuit is closed.
+         */
+        long theCircuitOpenUntil;
+
+        /**
+         * The duration for which the circuit was opened most recently, so the next one can be longer.
+         */
+        long theLastOpenDuration;
+
+        /**
+         * The Thread performing the trial run of a half-open circuit, while it is in flight.
+         */
+        Thread theTrialThread;
+
+        /**
+         * Set once this HostState has been removed from theStates.
+         */
+        boolean theIsRemoved;
+    }
+}
@@ -0,0 +1,92 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import org.infogrid.util.logging.Log;
+
+/**
+ * <p>Parses dates in the formats of RFC 822, as used by RSS, and of HTTP headers such as
+ *    Expires, Date and Retry-After.</p>
+ * <p>The day of the week is optional, as in RFC 822; the year may have two or four digits,
+ *    and the seconds may be omitted. The obsolete HTTP formats of RFC 850 and of asctime()
+ *    are accepted as well.</p>
+ */
+public abstract class HttpDateParser
+{
+    private static final Log log = Log.getLogInstance( HttpDateParser.class ); // our own, private logger
+
+    /**
+     * Keep this class abstract.
+     */
+    private HttpDateParser() {}
+
+    /**
+     * Parse a date.
+     *
+     * @param raw the date, if any
+     * @return the date, in System.currentTimeMillis() format, or -1 if not given or not parseable
+     */
+    public static long parse(
+            String raw )
+    {
+        if( raw == null ) {
+            return -1L;
+        }
+        String value = raw.trim();
+
+        // the day of the week is optional and redundant
+        int comma = value.indexOf( ',' );
+        if( comma > 0 ) {
+            value = value.substring( comma+1 ).trim();
+        }
+        // RFC 822 also allows these for GMT
+        if( value.endsWith( " UT" )) {
+            value = value.substring( 0, value.length() - 2 ) + "GMT";
+        } else if( value.endsWith( " Z" )) {
+            value = value.substring( 0, value.length() - 1 ) + "GMT";
+        }
+
+        for( String pattern : PATTERNS ) {
+            SimpleDateFormat format = new SimpleDateFormat( pattern, Locale.US );
+            format.setTimeZone( TimeZone.getTimeZone( "GMT" )); // for asctime(), which has none
+            format.setLenient( false );
+            try {
+                return format.parse( value ).getTime();
+
+            } catch( ParseException ex ) {
+                // try the next one
+            }
+        }
+        if( log.isDebugEnabled() ) {
+            log.debug( "Cannot parse date: " + raw );
+        }
+        return -1L;
+    }
+
+    /**
+     * The formats we attempt to parse, after removal of the day of the week, in sequence.
+     * With "yy", years with more than two digits are taken literally.
+     */
+    protected static final String [] PATTERNS = {
+            "d MMM yy HH:mm:ss z",  // RFC 822, RFC 1123
+            "d MMM yy HH:mm z",     // RFC 822 without seconds
+            "d-MMM-yy HH:mm:ss z",  // RFC 850
+            "EEE MMM d HH:mm:ss yy" // asctime()
+    };
+}
@@ -14,31 +14,42 @@
 
 package org.infogrid.probe;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.WeakReference;
+import java.io.PushbackInputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.net.ssl.HttpsURLConnection;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.diet4j.core.Module;
-import org.diet4j.core.ModuleActivationException;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.diet4j.core.ModuleException;
-import org.diet4j.core.ModuleMeta;
-import org.diet4j.core.ModuleNotFoundException;
 import org.diet4j.core.ModuleRegistry;
-import org.diet4j.core.ModuleRequirement;
-import org.diet4j.core.ModuleResolutionException;
 import org.infogrid.lid.model.yadis.YadisSubjectArea;
 import org.infogrid.lid.yadis.YadisPipelineStage;
 import org.infogrid.mesh.EntityBlessedAlreadyException;
@@ -54,6 +65,7 @@ import org.infogrid.mesh.NotRelatedException;
 import org.infogrid.mesh.RelatedAlreadyException;
 import org.infogrid.mesh.RoleTypeBlessedAlreadyException;
 import org.infogrid.mesh.net.NetMeshObject;
+import org.infogrid.mesh.net.NetMeshObjectIdentifier;
 import org.infogrid.meshbase.MeshObjectsNotFoundException;
 import org.infogrid.meshbase.net.CoherenceSpecification;
 import org.infogrid.meshbase.net.IterableNetMeshBase;
@@ -78,16 +90,21 @@ import org.infogrid.probe.shadow.ShadowMeshBase;
 import org.infogrid.probe.shadow.ShadowMeshBaseEvent;
 import org.infogrid.probe.shadow.ShadowMeshBaseListener;
 import org.infogrid.meshbase.net.proxy.ProxyParameters;
+import org.infogrid.probe.httpmapping.ConditionalHttpResponse;
 import org.infogrid.probe.httpmapping.HttpMappingPolicy;
 import org.infogrid.probe.shadow.m.MStagingMeshBase;
 import org.infogrid.probe.xml.DomMeshObjectSetProbe;
 import org.infogrid.probe.xml.MeshObjectSetProbeTags;
 import org.infogrid.probe.xml.XmlDOMProbe;
 import org.infogrid.probe.xml.XmlErrorHandler;
+import org.infogrid.probe.xml.XmlParserPool;
 import org.infogrid.probe.xml.XmlProbeException;
+import org.infogrid.probe.xml.XmlStreamProbe;
 import org.infogrid.probe.yadis.YadisServiceFactory;
 import org.infogrid.util.ArrayHelper;
+import org.infogrid.util.Base64;
 import org.infogrid.util.FlexibleListenerSet;
+import org.infogrid.util.ResourceHelper;
 import org.infogrid.util.ReturnSynchronizerException;
 import org.infogrid.util.StreamUtils;
 import org.infogrid.util.http.HTTP;
@@ -152,12 +169,169 @@ public class ProbeDispatcher
     }
 
     /**
-     * Calling this will trigger the Probe to run.
+     * Update the policy that limits how often, and how concurrently, hosts are accessed.
      *
+     * @param newValue the new value, or null to access hosts without limits
+     */
+    public void setHostPolitenessPolicy(
+            HostPolitenessPolicy newValue )
+    {
+        thePolitenessPolicy = newValue;
+    }
+
+    /**
+     * Obtain the policy that limits how often, and how concurrently, hosts are accessed.
+     *
+     * @return the policy, if any
+     */
+    public HostPolitenessPolicy getHostPolitenessPolicy()
+    {
+        return thePolitenessPolicy;
+    }
+
+    /**
+     * Calling this will trigger the Probe to run. Runs for the same ShadowMeshBase are serialized,
+     * but the data source is accessed and parsed into a separate StagingMeshBase without holding
+     * {@link #getRunLock}, which is only held while the ShadowMeshBase itself is being changed.
+     * A scheduled run does not wait for another run that is accessing the data source at the same
+     * time; it asks to be run again a little later instead.
+     *
+     * @param par the ProxyParameters, if any
+     * @return the computed result is the number of milliseconds until the next desired invocation, or -1 if never
+     * @throws ProbeException thrown if unable to compute a result
+     */
+    public long doUpdateNow(
+            ProxyParameters par )
+        throws
+            ProbeException
+    {
+        boolean isFirstRun = theShadowMeshBase.size() == 0;
+
+        if( par == null && !isFirstRun ) {
+            if( !theFetchLock.tryLock() ) {
+                // somebody else is running the Probe right now, no need to do it twice
+                if( log.isDebugEnabled() ) {
+                    log.debug( this + ".doUpdateNow(): run in progress, trying again in " + CONCURRENT_RUN_RETRY_DELAY );
+                }
+                return CONCURRENT_RUN_RETRY_DELAY;
+            }
+        } else {
+            // somebody is waiting for the result
+            theFetchLock.lock();
+        }
+        if( isFirstRun ) {
+            // the Probe instantiates directly into the ShadowMeshBase
+            theRunLock.lock();
+        }
+        try {
+            theRunningThread = Thread.currentThread();
+
+            HostPolitenessPolicy politenessPolicy = thePolitenessPolicy;
+            String               host             = politenessPolicy != null ? politenessPolicy.determineHost( theShadowMeshBase.getIdentifier() ) : null;
+
+            if( host != null ) {
+                if( par != null || theShadowMeshBase.size() == 0 ) {
+                    // somebody is waiting for the result
+                    politenessPolicy.admit( host );
+
+                } else {
+                    long deferral = politenessPolicy.tryAdmit( host, System.currentTimeMillis() );
+                    if( deferral > 0L ) {
+                        if( log.isDebugEnabled() ) {
+                            log.debug( this + ".doUpdateNow(): deferring by " + deferral + " to be polite to " + host );
+                        }
+                        recordDeferral( deferral );
+                        return deferral;
+                    }
+                }
+            }
+            theHostWasHealthy = true;
+            try {
+                return doUpdateNowLocked( par );
+
+            } catch( ProbeException.IO ex ) {
+                theHostWasHealthy = false;
+                throw ex;
+
+            } finally {
+                if( host != null ) {
+                    politenessPolicy.release( host, theHostWasHealthy );
+                }
+            }
+
+        } finally {
+            theRunningThread = null;
+            if( isFirstRun ) {
+                theRunLock.unlock();
+            }
+            theFetchLock.unlock();
+        }
+    }
+
+    /**
+     * A scheduled run was deferred, without accessing the data source. Record when it is supposed
+     * to happen instead in the ProbeUpdateSpecification, so the deferral is not lost if the
+     * ShadowMeshBase is written to disk and restored before then.
+     *
+     * @param deferral the number of milliseconds from now by which the run was deferred
+     */
+    protected void recordDeferral(
+            long deferral )
+    {
+        theDelayUntilNextUpdate = deferral;
+
+        theRunLock.lock();
+
+        Transaction tx = null;
+        try {
+            MeshObject home = theShadowMeshBase.getHomeObject();
+            if( home.isBlessedBy( ProbeSubjectArea.PROBEUPDATESPECIFICATION )) {
+                tx = theShadowMeshBase.createTransactionAsap();
+
+                home.setPropertyValue(
+                        ProbeSubjectArea.PROBEUPDATESPECIFICATION_NEXTPROBERUN,
+                        TimeStampValue.create( System.currentTimeMillis() + deferral ));
+            }
+
+        } catch( TransactionException ex ) {
+            log.error( ex );
+        } catch( IllegalPropertyTypeException ex ) {
+            log.error( ex );
+        } catch( IllegalPropertyValueException ex ) {
+            log.error( ex );
+        } catch( NotPermittedException ex ) {
+            log.error( ex );
+
+        } finally {
+            if( tx != null ) {
+                tx.commitTransaction();
+            }
+            theRunLock.unlock();
+        }
+    }
+
+    /**
+     * Obtain the Lock that is held while the ShadowMeshBase is being changed as the result of
+     * a Probe run. Code that acts on the outcome of a run, or that must not observe a
+     * ShadowMeshBase in the middle of being changed, may acquire it as well; it is never held
+     * while the data source is being accessed, other than during the very first run.
+     *
+     * @return the Lock
+     */
+    public ReentrantLock getRunLock()
+    {
+        return theRunLock;
+    }
+
+    /**
+     * Performs the work of {@link #doUpdateNow} once it has been determined that no other
+     * run is in progress for the same ShadowMeshBase.
+     *
+     * @param par the ProxyParameters, if any
      * @return the computed result is the number of milliseconds until the next desired invocation, or -1 if never
      * @throws ProbeException thrown if unable to compute a result
      */
-    public synchronized long doUpdateNow(
+    protected long doUpdateNowLocked(
             ProxyParameters par )
         throws
             ProbeException
@@ -177,6 +351,7 @@ public class ProbeDispatcher
         CoherenceSpecification coherence        = par != null ? par.getCoherenceSpecification() : null;
 
         theCurrentUpdate = System.currentTimeMillis();
+        theFreshnessHint = -1L;
         
         if( !isFirstRun ) {
             fireUpdateStarted();
@@ -264,7 +439,10 @@ public class ProbeDispatcher
 
             } finally {
                 // this is a long finally block, so we enclose everything in a try/catch and put the commit into the final finally
-                
+                // Only from here on do we change the ShadowMeshBase, so only from here on do we need the lock
+
+                theRunLock.lock();
+
                 Transaction tx2 = null;
                 try {
                     if( problem == null && !isFirstRun && updated ) {
@@ -287,6 +465,9 @@ public class ProbeDispatcher
                             diff.applyChangeSet( changeSet );
                         }
                     }
+                    if( isFirstRun || updated ) {
+                        replicationMayHaveChanged(); // e.g. ForwardReferences, or deleted MeshObjects
+                    }
                     long tookTime = System.currentTimeMillis() - theCurrentUpdate;
 
                     // Deal with the update policy. We apply this to theShadow rather than base, because that way
@@ -308,13 +489,27 @@ public class ProbeDispatcher
                             tx2 = theShadowMeshBase.createTransactionAsap();
                         }
                         try {
+                            if( probeResult.getUpdated() || probeResult.getUsedProbeClass() != null ) {
+                                home.setPropertyValue(
+                                        ProbeSubjectArea.PROBEUPDATESPECIFICATION_LASTRUNUSEDWRITABLEPROBE,
+                                        BooleanValue.create( probeResult.getUsedWritableProbe() ));
+                                home.setPropertyValue(
+                                        ProbeSubjectArea.PROBEUPDATESPECIFICATION_LASTRUNUSEDPROBECLASS,
+                                        StringValue.createOrNull( probeResult.getUsedProbeClass() != null ? probeResult.getUsedProbeClass().getName() : null ));
+                            }
                             home.setPropertyValue(
-                                    ProbeSubjectArea.PROBEUPDATESPECIFICATION_LASTRUNUSEDWRITABLEPROBE,
-                                    BooleanValue.create( probeResult.getUsedWritableProbe() ));
+                                    ProbeSubjectArea.PROBEUPDATESPECIFICATION_HTTPETAG,
+                                    StringValue.createOrNull( probeResult.getHttpETag() ));
                             home.setPropertyValue(
-                                    ProbeSubjectArea.PROBEUPDATESPECIFICATION_LASTRUNUSEDPROBECLASS,
-                                    StringValue.createOrNull( probeResult.getUsedProbeClass() != null ? probeResult.getUsedProbeClass().getName() : null ));
-                            
+                                    ProbeSubjectArea.PROBEUPDATESPECIFICATION_HTTPLASTMODIFIED,
+                                    probeResult.getHttpLastModified() > 0L ? TimeStampValue.create( probeResult.getHttpLastModified() ) : null );
+                            if( probeResult.getContentDigest() != null ) {
+                                // otherwise keep the digest from the most recent run that computed one
+                                home.setPropertyValue(
+                                        ProbeSubjectArea.PROBEUPDATESPECIFICATION_CONTENTDIGEST,
+                                        StringValue.create( probeResult.getContentDigest() ));
+                            }
+
                         } catch( IllegalPropertyTypeException ex3 ) {
                             log.error( ex3 );
                         } catch( IllegalPropertyValueException ex3 ) {
@@ -348,6 +543,18 @@ public class ProbeDispatcher
                         } catch( NotPermittedException ex3 ) {
                             log.error( ex3 );
                         }
+                        if( nextRun != null && problem == null && theFreshnessHint > nextRun.getAsMillis() ) {
+                            try {
+                                nextRun = applyFreshnessHint( home, nextRun );
+
+                            } catch( IllegalPropertyTypeException ex3 ) {
+                                log.error( ex3 );
+                            } catch( IllegalPropertyValueException ex3 ) {
+                                log.error( ex3 );
+                            } catch( NotPermittedException ex3 ) {
+                                log.error( ex3 );
+                            }
+                        }
                         if( nextRun != null ) {
                             ret = nextRun.getAsMillis() - System.currentTimeMillis();
                         } else {
@@ -375,14 +582,16 @@ public class ProbeDispatcher
                     } catch( Throwable ex3 ) {
                         log.error( ex3 );
                     }
-                    theChangesToWriteBack = null; // otherwise we queue our own changes
-                    theUpdateInProgress   = false;
+                    theUpdateInProgress = false;
+
+                    theRunLock.unlock();
                 }
             }
 
         } finally {
 
             theLastUpdate = theCurrentUpdate;
+            ++theRunCount;
             
             if( problem != null ) {
                 // do not set theLastSuccessfulUpdate
@@ -510,7 +719,8 @@ public class ProbeDispatcher
     {
         boolean               updated          = false;
         byte []               content          = null;
-        String                contentAsString  = null;
+        File                  streamFile       = null; // set if content is read directly from the file into the Probe
+        InputStream           contentStream    = null; // set if content is read directly from the network into the Probe
         String                contentType      = null;
         NetMeshBaseIdentifier sourceIdentifier = theShadowMeshBase.getIdentifier();
         String                protocol         = sourceIdentifier.toUri().getScheme();
@@ -525,203 +735,845 @@ public class ProbeDispatcher
         long streamDataCreated      = 0L;
         long streamDataLastModified = 0L;
 
+        String httpETag         = null;
+        long   httpLastModified = 0L;
+        String httpStatus       = null; // set if the data source was accessed via HTTP
+        String httpLocation     = null; // set if the data source redirected
+
+        ConditionalHttpResponse conditional = null; // set if the data source was accessed via HTTP
+
         NetMeshObject newHome = newBase.getHomeObject();
-        HTTP.Response httpResponse = null;
 
         if ( "file".equals( protocol )) {
             File dataSourceFile = new File( url.getFile() );
             streamDataCreated      = dataSourceFile.lastModified(); // FIXME? No API for that ...
             streamDataLastModified = dataSourceFile.lastModified();
 
-            content     = StreamUtils.slurp( new FileInputStream( dataSourceFile ));
+            if( dataSourceFile.length() > STREAMING_THRESHOLD ) {
+                streamFile = dataSourceFile; // only read if and when we need it
+            } else {
+                content = StreamUtils.slurp( new FileInputStream( dataSourceFile ));
+            }
             contentType = null;
 
         } else if( "http".equals( protocol ) || "https".equals( protocol ) ) {
 
-            httpResponse = HTTP.http_get(
+            if(    theXrdsNegotiationOutcome != null
+                && theCurrentUpdate - theXrdsNegotiationTime > XRDS_NEGOTIATION_REVALIDATION_INTERVAL )
+            {
+                // time to find out again whether the data source still behaves the same way
+                theXrdsNegotiationOutcome = null;
+                theXrdsServicesXml        = null;
+                theXrdsServicesType       = null;
+            }
+
+            String acceptHeader;
+            if( theXrdsNegotiationOutcome == XrdsNegotiationOutcome.DISTINCT_CONTENT ) {
+                acceptHeader = HTTP_GET_ACCEPT_HEADER; // we have the XRDS already
+            } else {
+                acceptHeader = XRDS_MIME_TYPE + "," + HTTP_GET_ACCEPT_HEADER;
+            }
+
+            // see whether we can get away without transferring the content again
+            StringValue    oldETag         = (StringValue)    determinePreviousPropertyValue( oldBase, ProbeSubjectArea.PROBEUPDATESPECIFICATION_HTTPETAG );
+            TimeStampValue oldLastModified = (TimeStampValue) determinePreviousPropertyValue( oldBase, ProbeSubjectArea.PROBEUPDATESPECIFICATION_HTTPLASTMODIFIED );
+
+            conditional = conditionalHttpGet(
                     url,
-                    XRDS_MIME_TYPE + "," + HTTP_GET_ACCEPT_HEADER,
-                    false,
-                    null, // no cookies
-                    HTTP.HTTP_CONNECT_TIMEOUT,
-                    HTTP.HTTP_READ_TIMEOUT,
-                    theShadowMeshBase.getHostnameVerifier() );
-
-            if( httpResponse.isSuccess() && XRDS_MIME_TYPE.equals( httpResponse.getContentType() )) {
-                // found XRDS content via MIME type
-                
-                yadisServicesXml  = httpResponse.getContent();
-                yadisServicesType = httpResponse.getContentType();
+                    acceptHeader,
+                    oldETag         != null ? oldETag.value()                : null,
+                    oldLastModified != null ? oldLastModified.getAsMillis() : 0L,
+                    mappingPolicy.getFollowRedirects() );
+
+            if( conditional.isNotModified() ) {
+                if( log.isDebugEnabled() ) {
+                    log.debug( this + " -- handleStream() not modified according to HTTP validators" );
+                }
+                StringValue oldDigest = (StringValue) determinePreviousPropertyValue( oldBase, ProbeSubjectArea.PROBEUPDATESPECIFICATION_CONTENTDIGEST );
 
-                // now ask again, without the XRDS mime type
-                httpResponse = HTTP.http_get(
-                        url,
-                        HTTP_GET_ACCEPT_HEADER,
+                // the probe did not run, so we leave the LastRunUsed... properties alone
+                return new ProbeResult(
                         false,
-                        null, // no cookies
-                        HTTP.HTTP_CONNECT_TIMEOUT,
-                        HTTP.HTTP_READ_TIMEOUT,
-                        theShadowMeshBase.getHostnameVerifier() );
+                        false,
+                        null,
+                        oldETag         != null ? oldETag.value()                : null,
+                        oldLastModified != null ? oldLastModified.getAsMillis() : 0L,
+                        oldDigest       != null ? oldDigest.value()              : null );
+            }
 
-                if( yadisServicesXml != null && ArrayHelper.equals( yadisServicesXml, httpResponse.getContent() )) {
-                    // directly served the XRDS, HTTP_GET_ACCEPT_HEADER made no difference
-                    yadisServicesXml = null;
+            if( !(    conditional.isSuccess()
+                   && XRDS_MIME_TYPE.equals( conditional.getContentType() )
+                   && theXrdsNegotiationOutcome == null ))
+            {
+                // this is the only request we need: no XRDS content to negotiate
+                if(    theXrdsNegotiationOutcome == XrdsNegotiationOutcome.DISTINCT_CONTENT
+                    && conditional.isSuccess()
+                    && !XRDS_MIME_TYPE.equals( conditional.getContentType() ))
+                {
+                    // only asked for the non-XRDS content, use the XRDS content from the most recent negotiation
+                    yadisServicesXml  = theXrdsServicesXml;
+                    yadisServicesType = theXrdsServicesType;
+
+                } else if( conditional.isSuccess() && XRDS_MIME_TYPE.equals( conditional.getContentType() )) {
+                    // served the XRDS directly last time, no need to ask again. Or: the data source changed
+                    // its behavior, in which case we treat it as directly served and negotiate again next time
+                    if( theXrdsNegotiationOutcome != XrdsNegotiationOutcome.SAME_CONTENT ) {
+                        theXrdsNegotiationOutcome = null;
+                        theXrdsServicesXml        = null;
+                        theXrdsServicesType       = null;
+                    }
+
+                } else {
+                    yadisUrl = conditional.getSingleHttpHeaderField( YadisPipelineStage.YADIS_HTTP_HEADER );
+                    if( yadisUrl == null ) {
+                        yadisUrl = conditional.getSingleHttpHeaderField( "X-YADIS-Location" );
+                    }
                 }
+                noteHttpStatus(
+                        conditional.getResponseCode(),
+                        conditional.getSingleHttpHeaderField( "Retry-After" ));
+
+                ConditionalHttpResponse newResponse = mappingPolicy.processConditionalHttpResponse( newHome, conditional );
+                if( newResponse != null && newResponse != conditional ) {
+                    conditional.close();
+                    conditional = newResponse;
+                }
+                httpStatus = conditional.getResponseCode();
+                if( conditional.isRedirect() ) {
+                    httpLocation = conditional.getLocation();
+                }
+
+                streamDataCreated      = conditional.getLastModified(); // FIXME? No API for that ...
+                streamDataLastModified = conditional.getLastModified();
+
+                if( conditional.isSuccess() ) {
+                    httpETag         = conditional.getSingleHttpHeaderField( "ETag" );
+                    httpLastModified = conditional.getLastModified();
+
+                    noteHttpFreshness(
+                            conditional.getSingleHttpHeaderField( "Cache-Control" ),
+                            conditional.getSingleHttpHeaderField( "Expires" ),
+                            conditional.getSingleHttpHeaderField( "Date" ));
+                }
+
+                content       = conditional.getContent();
+                contentStream = conditional.getContentStream();
+                contentType   = conditional.getContentType();
 
             } else {
-                yadisUrl = httpResponse.getSingleHttpHeaderField( YadisPipelineStage.YADIS_HTTP_HEADER );
-                if( yadisUrl == null ) {
-                    yadisUrl = httpResponse.getSingleHttpHeaderField( "X-YADIS-Location" );
+                // found XRDS content via MIME type, now negotiate
+                yadisServicesXml  = conditional.readContent();
+                yadisServicesType = conditional.getContentType();
+
+                HTTP.Response httpResponse = negotiateXrds( url, yadisServicesXml, yadisServicesType );
+                if( theXrdsNegotiationOutcome == XrdsNegotiationOutcome.SAME_CONTENT ) {
+                    yadisServicesXml = null;
+                }
+
+                noteHttpStatus(
+                        httpResponse.getResponseCode(),
+                        httpResponse.getSingleHttpHeaderField( "Retry-After" ));
+
+                HTTP.Response newResponse = mappingPolicy.processHttpResponse( newHome, httpResponse );
+                if( newResponse != null ) {
+                    httpResponse = newResponse;
+                }
+                httpStatus = httpResponse.getResponseCode();
+                if( httpResponse.isRedirect() ) {
+                    httpLocation = httpResponse.getLocation();
                 }
-            }
-            HTTP.Response newResponse = mappingPolicy.processHttpResponse( newHome, httpResponse );
-            if( newResponse != null ) {
-                httpResponse = newResponse;
-            }
             
-            streamDataCreated      = httpResponse.getLastModified(); // FIXME? No API for that ...
-            streamDataLastModified = httpResponse.getLastModified();
+                streamDataCreated      = httpResponse.getLastModified(); // FIXME? No API for that ...
+                streamDataLastModified = httpResponse.getLastModified();
 
-            content     = httpResponse.getContent();
-            contentType = httpResponse.getContentType();
+                if( httpResponse.isSuccess() ) {
+                    httpETag         = httpResponse.getSingleHttpHeaderField( "ETag" );
+                    httpLastModified = httpResponse.getLastModified();
+
+                    noteHttpFreshness(
+                            httpResponse.getSingleHttpHeaderField( "Cache-Control" ),
+                            httpResponse.getSingleHttpHeaderField( "Expires" ),
+                            httpResponse.getSingleHttpHeaderField( "Date" ));
+                }
+
+                content     = httpResponse.getContent();
+                contentType = httpResponse.getContentType();
+            }
 
         } else {
             // we always assume it has changed
             streamDataCreated      = System.currentTimeMillis(); // now
             streamDataLastModified = streamDataCreated; // same
 
-            content     = StreamUtils.slurp( url.openStream() );
-            contentType = null;
+            contentStream = url.openStream();
+            contentType   = null;
         }
 
-        if( streamDataLastModified != theMostRecentModificationDate ) {
-            updated = true;
-        } else if( streamDataLastModified == 0 ) { // that seems to occur
-            updated = true;
+        String contentDigest = null;
+        try {
+            if( streamDataLastModified != theMostRecentModificationDate ) {
+                updated = true;
+            } else if( streamDataLastModified == 0 ) { // that seems to occur
+                updated = true;
+            }
+
+            if( log.isDebugEnabled() ) {
+                log.debug( this + " -- handleStream() date changed: " + updated + " ( " + theMostRecentModificationDate + ", " + streamDataLastModified + " )" );
+            }
+
+            theMostRecentModificationDate = streamDataLastModified;
+
+            byte [] rawContentDigest = computeContentDigest( content, yadisServicesXml );
+            if( rawContentDigest != null ) {
+                contentDigest = CONTENT_DIGEST_ALGORITHM + ":" + Base64.base64encode( rawContentDigest );
+            }
+            if( updated && isContentUnchanged( oldBase, contentDigest )) {
+                // byte-identical to what we parsed last time: no need to run the Probe and the differencer
+                updated = false;
+            }
+
+            if( updated ) {
+                if( log.isDebugEnabled() ) {
+                    log.debug( this + " in handleStream(): content type is " + contentType );
+                }
+
+                if( contentType  == null || UNKNOWN_MIME_TYPE.equals( contentType )) {
+                    contentType = ProbeDispatcher.guessContentTypeFromUrl( url );
+
+                } else if( "text/xml".equals( contentType )) {
+                    contentType = "application/xml"; // makes it easier down the road
+
+                }
+                // content that is not in memory is streamed into the Probe, computing the digest on the way;
+                // only its beginning is buffered, for determining the Probe and for scanning the HTML head
+                PushbackInputStream pushbackStream = null;
+                DigestInputStream   digestStream   = null;
+                byte []             prefix         = content;
+
+                if( content == null && streamFile != null ) {
+                    contentStream = new FileInputStream( streamFile );
+                }
+                if( content == null && contentStream != null ) {
+                    try {
+                        MessageDigest digest = MessageDigest.getInstance( CONTENT_DIGEST_ALGORITHM );
+                        if( yadisServicesXml != null ) {
+                            digest.update( yadisServicesXml );
+                        }
+                        digestStream = new DigestInputStream( new BufferedInputStream( contentStream ), digest );
+
+                        pushbackStream = new PushbackInputStream( digestStream, SNIFF_BUFFER_SIZE );
+
+                    } catch( NoSuchAlgorithmException ex ) {
+                        log.error( ex );
+
+                        pushbackStream = new PushbackInputStream( new BufferedInputStream( contentStream ), SNIFF_BUFFER_SIZE );
+                    }
+                    prefix = sniff( pushbackStream, SNIFF_BUFFER_SIZE );
+                }
+
+                if(    yadisServicesXml == null
+                    && yadisUrl         == null
+                    && prefix           != null
+                    && (    "text/html".equals( contentType )
+                         || "text/xhtml".equals( contentType )
+                         || "application/xhtml+xml".equals( contentType )) )
+                {
+                    yadisServicesHtml = determineHtmlHead( new ByteArrayInputStream( prefix ));
+                }
+
+                if( log.isDebugEnabled() ) {
+                    log.debug( this + " in handleStream(): content type is " + contentType );
+                }
+
+                if( httpStatus != null ) {
+                    try {
+                        newHome.bless( WebSubjectArea.WEBRESOURCE );
+                        newHome.setPropertyValue(
+                                WebSubjectArea.WEBRESOURCE_HTTPSTATUSCODE,
+                                IntegerValue.parseIntegerValue( httpStatus ));
+                        if( httpLocation != null ) {
+                            String redirect = new URL( url, httpLocation ).toExternalForm();
+                            newHome.setPropertyValue(
+                                    WebSubjectArea.WEBRESOURCE_HTTPHEADERLOCATION,
+                                    StringValue.create( redirect ));
+                        }
+
+                    } catch( EntityBlessedAlreadyException ex ) {
+                        log.error( ex );
+                    } catch( IsAbstractException ex ) {
+                        log.error( ex );
+                    } catch( IllegalPropertyTypeException ex ) {
+                        log.error( ex );
+                    } catch( IllegalPropertyValueException ex ) {
+                        log.error( ex );
+                    } catch( NotPermittedException ex ) {
+                        log.error( ex );
+                    }
+                }
+
+                if( pushbackStream != null ) {
+                    if( prefix.length > 0 ) {
+                        try {
+                            if( contentType != null && XML_MIME_TYPE_PATTERN.matcher( contentType ).matches()) {
+                                probe = handleXml(
+                                        oldBase,
+                                        newBase,
+                                        coherence,
+                                        null,
+                                        prefix,
+                                        contentType,
+                                        pushbackStream );
+                            } else {
+                                probe = handleNonXml(
+                                        oldBase,
+                                        newBase,
+                                        coherence,
+                                        contentType,
+                                        pushbackStream );
+                            }
+
+                            // the Probe may have stopped reading early, but the digest needs to cover all of the content
+                            byte [] buf = new byte[ 8192 ];
+                            while( pushbackStream.read( buf ) >= 0 ) {}
+
+                            if( digestStream != null ) {
+                                contentDigest = CONTENT_DIGEST_ALGORITHM + ":" + Base64.base64encode( digestStream.getMessageDigest().digest() );
+                                if( isContentUnchanged( oldBase, contentDigest )) {
+                                    // could not compare before running the Probe, but we can still skip the differencer
+                                    updated = false;
+                                }
+                            }
+
+                        } catch( ProbeException ex ) {
+                            mappingPolicy.handleProbeException( ex, newHome, yadisServicesXml != null || yadisServicesHtml != null || yadisUrl != null );
+                        }
+                    }
+
+                } else if( content != null && content.length > 0 ) {
+                    InputStream inStream = new ContentInputStream(
+                            content,
+                            yadisServicesXml == null ? rawContentDigest : null ); // only if it is the digest of the content alone
+                    try {
+                        if( contentType != null && XML_MIME_TYPE_PATTERN.matcher( contentType ).matches()) {
+                            probe = handleXml(
+                                    oldBase,
+                                    newBase,
+                                    coherence,
+                                    content,
+                                    content,
+                                    contentType,
+                                    inStream );
+                        } else {
+                            probe = handleNonXml(
+                                    oldBase,
+                                    newBase,
+                                    coherence,
+                                    contentType,
+                                    inStream );
+                        }
+                    } catch( ProbeException ex ) {
+                        mappingPolicy.handleProbeException( ex, newHome, yadisServicesXml != null || yadisServicesHtml != null || yadisUrl != null );
+                    }
+                }
+
+                if( theServiceFactory == null && ( yadisServicesXml != null || yadisServicesHtml != null )) {
+                    theServiceFactory = new YadisServiceFactory(
+                            theShadowMeshBase.getMeshBaseIdentifierFactory(),
+                            theXmlParserPool );
+                }
+                if( yadisServicesXml != null ) {
+                    theServiceFactory.addYadisServicesFromXml( sourceIdentifier, yadisServicesXml, yadisServicesType, newBase );
+                } else if( yadisServicesHtml != null ) {
+                    theServiceFactory.addYadisServicesFromHtml( sourceIdentifier, yadisServicesHtml, newBase );
+                } else if( yadisUrl != null ) {
+                    StagingMeshBaseLifecycleManager life = newBase.getMeshBaseLifecycleManager();
+
+                    try {
+                        NetMeshObject fwdRef = life.createForwardReference(
+                                        newBase.getMeshBaseIdentifierFactory().guessFromExternalForm( yadisUrl ),
+                                        WebSubjectArea.WEBRESOURCE );
+
+                        newBase.getHomeObject().relateAndBless(
+                                YadisSubjectArea.WEBRESOURCE_HASXRDSLINKTO_WEBRESOURCE.getSource(), fwdRef );
+
+                    } catch( MeshObjectIdentifierNotUniqueException ex ) {
+                        log.error( ex );
+                    } catch( EntityNotBlessedException ex ) {
+                        log.error( ex );
+                    } catch( RelatedAlreadyException ex ) {
+                        log.error( ex );
+                    } catch( IsAbstractException ex ) {
+                        log.error( ex );
+                    } catch( NotPermittedException ex ) {
+                        log.error( ex );
+                    }
+                }
+            
+            }
+
+        } finally {
+            if( contentStream != null ) {
+                contentStream.close();
+            }
+            if( conditional != null ) {
+                conditional.close();
+            }
         }
+        return new ProbeResult(
+                updated, // we don't know, we always say we might have been updated because that's safer
+                probe instanceof WritableProbe,
+                probe != null ? probe.getClass() : null,
+                httpETag,
+                httpLastModified,
+                contentDigest );
+    }
 
-        if( log.isDebugEnabled() ) {
-            log.debug( this + " -- handleStream() date changed: " + updated + " ( " + theMostRecentModificationDate + ", " + streamDataLastModified + " )" );
+    /**
+     * Determine the value of a ProbeUpdateSpecification property on the home object of the StagingMeshBase
+     * of the most recent run, if any.
+     *
+     * @param oldBase the StagingMeshBase after the most recent successful run, if any
+     * @param type the PropertyType
+     * @return the PropertyValue, or null
+     * @throws NotPermittedException thrown if the caller did not have sufficient permissions
+     */
+    protected PropertyValue determinePreviousPropertyValue(
+            StagingMeshBase oldBase,
+            PropertyType    type )
+        throws
+            NotPermittedException
+    {
+        if( oldBase == null ) {
+            return null;
+        }
+        NetMeshObject oldHome = oldBase.getHomeObject();
+        if( !oldHome.isBlessedBy( ProbeSubjectArea.PROBEUPDATESPECIFICATION )) {
+            return null;
         }
+        try {
+            PropertyValue ret = oldHome.getPropertyValue( type );
+            return ret;
 
-        theMostRecentModificationDate = streamDataLastModified;
+        } catch( IllegalPropertyTypeException ex ) {
+            log.error( ex );
+            return null;
+        }
+    }
 
-        if( updated ) {
-            if( log.isDebugEnabled() ) {
-                log.debug( this + " in handleStream(): content type is " + contentType );
+    /**
+     * Read the beginning of an HTML document, up to and including the end of its head section,
+     * so it can be scanned for Yadis and OpenID information without holding on to the rest.
+     * At most YADIS_HTML_HEAD_SCAN_LIMIT bytes are read.
+     *
+     * @param stream the stream containing the HTML document
+     * @return the beginning of the HTML document
+     * @throws IOException thrown if an I/O error occurred
+     */
+    protected static String determineHtmlHead(
+            InputStream stream )
+        throws
+            IOException
+    {
+        byte [] buf   = new byte[ YADIS_HTML_HEAD_SCAN_LIMIT ];
+        int     count = 0;
+        while( count < buf.length ) {
+            int read = stream.read( buf, count, buf.length - count );
+            if( read <= 0 ) {
+                break;
             }
+            count += read;
+        }
+        String ret = new String( buf, 0, count );
 
-            if( contentType  == null || UNKNOWN_MIME_TYPE.equals( contentType )) {
-                contentType = ProbeDispatcher.guessContentTypeFromUrl( url );
-
-            } else if( "text/xml".equals( contentType )) {
-                contentType = "application/xml"; // makes it easier down the road
+        Matcher m = END_HEAD_PATTERN.matcher( ret );
+        if( m.find() ) {
+            ret = ret.substring( 0, m.end() );
+        }
+        return ret;
+    }
 
+    /**
+     * Read the beginning of a stream, and push it back so the stream can still be read from the
+     * start. This lets us determine the right Probe, and scan for Yadis information, without
+     * holding on to all of the content.
+     *
+     * @param stream the stream
+     * @param limit the maximum number of bytes to read; must not exceed the stream's pushback buffer
+     * @return the beginning of the stream, which is empty if the stream is empty
+     * @throws IOException thrown if an I/O error occurred
+     */
+    protected static byte [] sniff(
+            PushbackInputStream stream,
+            int                 limit )
+        throws
+            IOException
+    {
+        byte [] buf   = new byte[ limit ];
+        int     count = 0;
+        while( count < buf.length ) {
+            int read = stream.read( buf, count, buf.length - count );
+            if( read <= 0 ) {
+                break;
             }
-            if(    yadisServicesXml == null
-                && yadisUrl         == null
-                && (    "text/html".equals( contentType )
-                     || "text/xhtml".equals( contentType )
-                     || "application/xhtml+xml".equals( contentType )) )
-            {
-                if( contentAsString == null && content != null ) {
-                    contentAsString = new String( content );
-                }
-                yadisServicesHtml = contentAsString;
+            count += read;
+        }
+        stream.unread( buf, 0, count );
+
+        byte [] ret = new byte[ count ];
+        System.arraycopy( buf, 0, ret, 0, count );
+        return ret;
+    }
+
+    /**
+     * Compute a digest of the content read from a stream, so it can be compared with the content
+     * read at the next run, and handed to the Probe.
+     *
+     * @param content the content
+     * @param xrdsContent the XRDS content obtained separately via content negotiation, if any
+     * @return the digest, or null if it could not be computed
+     */
+    protected static byte [] computeContentDigest(
+            byte [] content,
+            byte [] xrdsContent )
+    {
+        if( content == null ) {
+            return null;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance( CONTENT_DIGEST_ALGORITHM );
+            if( xrdsContent != null ) {
+                digest.update( xrdsContent );
             }
+            return digest.digest( content );
 
-            if( log.isDebugEnabled() ) {
-                log.debug( this + " in handleStream(): content type is " + contentType );
+        } catch( NoSuchAlgorithmException ex ) {
+            log.error( ex );
+            return null;
+        }
+    }
+
+    /**
+     * Determine whether the content read at this run is byte-identical to the content read at the
+     * most recent run that computed a digest.
+     *
+     * @param oldBase the StagingMeshBase after the most recent successful run, if any
+     * @param contentDigest the digest of the content read at this run, or null if none could be computed
+     * @return true if the content is unchanged
+     * @throws NotPermittedException thrown if the caller did not have sufficient permissions
+     */
+    protected boolean isContentUnchanged(
+            StagingMeshBase oldBase,
+            String          contentDigest )
+        throws
+            NotPermittedException
+    {
+        if( contentDigest == null ) {
+            return false;
+        }
+        StringValue oldDigest = (StringValue) determinePreviousPropertyValue( oldBase, ProbeSubjectArea.PROBEUPDATESPECIFICATION_CONTENTDIGEST );
+        if( oldDigest == null || !contentDigest.equals( oldDigest.value() )) {
+            return false;
+        }
+        if( log.isDebugEnabled() ) {
+            log.debug( this + " -- handleStream() content digest unchanged: " + contentDigest );
+        }
+        return true;
+    }
+
+    /**
+     * Access an HTTP data source with the validators obtained at the most recent run, if any. This
+     * is the only time the data source is accessed during this run, unless it returns XRDS content
+     * that needs to be negotiated, so the content is obtained regardless of the response code.
+     * Content of known length up to STREAMING_THRESHOLD is read into memory; otherwise the
+     * connection is left open, and the caller must close the returned response.
+     *
+     * @param url the URL of the data source
+     * @param acceptHeader the HTTP Accept header to send
+     * @param eTag the ETag returned at the most recent run, if any
+     * @param lastModified the Last-Modified time returned at the most recent run, or 0 if none
+     * @param followRedirects if true, follow redirects, as determined by the HttpMappingPolicy
+     * @return the response
+     * @throws IOException thrown if the data source could not be accessed
+     */
+    protected ConditionalHttpResponse conditionalHttpGet(
+            URL     url,
+            String  acceptHeader,
+            String  eTag,
+            long    lastModified,
+            boolean followRedirects )
+        throws
+            IOException
+    {
+        HttpURLConnection conn     = (HttpURLConnection) url.openConnection();
+        boolean           keepOpen = false;
+        try {
+            if( conn instanceof HttpsURLConnection && theShadowMeshBase.getHostnameVerifier() != null ) {
+                ((HttpsURLConnection)conn).setHostnameVerifier( theShadowMeshBase.getHostnameVerifier() );
+            }
+            conn.setConnectTimeout( HTTP.HTTP_CONNECT_TIMEOUT );
+            conn.setReadTimeout( HTTP.HTTP_READ_TIMEOUT );
+            conn.setInstanceFollowRedirects( followRedirects );
+            conn.setUseCaches( false );
+            conn.setRequestProperty( "Accept", acceptHeader );
+
+            if( eTag != null ) {
+                conn.setRequestProperty( "If-None-Match", eTag );
+            }
+            if( lastModified > 0L ) {
+                conn.setIfModifiedSince( lastModified );
             }
 
-            if( httpResponse != null ) {
-                try {
-                    newHome.bless( WebSubjectArea.WEBRESOURCE );
-                    newHome.setPropertyValue(
-                            WebSubjectArea.WEBRESOURCE_HTTPSTATUSCODE,
-                            IntegerValue.parseIntegerValue( httpResponse.getResponseCode() ));
-                    if( httpResponse.isRedirect() ) {
-                        String redirect = new URL( url, httpResponse.getLocation() ).toExternalForm();
-                        newHome.setPropertyValue(
-                                WebSubjectArea.WEBRESOURCE_HTTPHEADERLOCATION,
-                                StringValue.create( redirect ));
-                    }
+            int    status       = conn.getResponseCode();
+            String statusString = String.valueOf( status );
 
-                } catch( EntityBlessedAlreadyException ex ) {
-                    log.error( ex );
-                } catch( IsAbstractException ex ) {
-                    log.error( ex );
-                } catch( IllegalPropertyTypeException ex ) {
-                    log.error( ex );
-                } catch( IllegalPropertyValueException ex ) {
-                    log.error( ex );
-                } catch( NotPermittedException ex ) {
-                    log.error( ex );
+            if( status == HttpURLConnection.HTTP_NOT_MODIFIED ) {
+                noteHttpStatus( statusString, conn.getHeaderField( "Retry-After" ));
+                noteHttpFreshness(
+                        conn.getHeaderField( "Cache-Control" ),
+                        conn.getHeaderField( "Expires" ),
+                        conn.getHeaderField( "Date" ));
+
+                return new ConditionalHttpResponse( conn.getURL(), statusString, conn.getHeaderFields(), null, null, null, null, 0L );
+            }
+
+            String contentType = conn.getContentType();
+            if( contentType != null ) {
+                int semi = contentType.indexOf( ';' );
+                if( semi >= 0 ) {
+                    contentType = contentType.substring( 0, semi );
                 }
+                contentType = contentType.trim();
+            }
+
+            InputStream inStream = status >= HttpURLConnection.HTTP_BAD_REQUEST ? conn.getErrorStream() : conn.getInputStream();
+            long        length   = conn.getContentLengthLong();
+            byte []     content  = null;
+
+            if( inStream != null && ( length < 0 || length > STREAMING_THRESHOLD )) {
+                // hand the connection to the caller, who streams the content into the Probe
+                keepOpen = true;
+
+                return new ConditionalHttpResponse(
+                        conn.getURL(),
+                        statusString,
+                        conn.getHeaderFields(),
+                        null,
+                        inStream,
+                        conn,
+                        contentType,
+                        conn.getLastModified() );
             }
 
-            if( content != null && content.length > 0 ) {
-                InputStream inStream = new ByteArrayInputStream( content );
+            if( inStream != null ) {
                 try {
-                    if( contentType != null && XML_MIME_TYPE_PATTERN.matcher( contentType ).matches()) {
-                        probe = handleXml(
-                                oldBase,
-                                newBase,
-                                coherence,
-                                content,
-                                contentType,
-                                inStream );
-                    } else {
-                        probe = handleNonXml(
-                                oldBase,
-                                newBase,
-                                coherence,
-                                contentType,
-                                inStream );
-                    }
-                } catch( ProbeException ex ) {
-                    mappingPolicy.handleProbeException( ex, newHome, yadisServicesXml != null || yadisServicesHtml != null || yadisUrl != null );
+                    content = StreamUtils.slurp( inStream );
+                } finally {
+                    inStream.close();
                 }
             }
+            return new ConditionalHttpResponse(
+                    conn.getURL(),
+                    statusString,
+                    conn.getHeaderFields(),
+                    content,
+                    null,
+                    null,
+                    contentType,
+                    conn.getLastModified() );
 
-            if( theServiceFactory == null && ( yadisServicesXml != null || yadisServicesHtml != null )) {
-                theServiceFactory = new YadisServiceFactory(
-                        theShadowMeshBase.getMeshBaseIdentifierFactory(),
-                        getDocumentBuilder() );
+        } finally {
+            if( !keepOpen ) {
+                conn.disconnect();
             }
-            if( yadisServicesXml != null ) {
-                theServiceFactory.addYadisServicesFromXml( sourceIdentifier, yadisServicesXml, yadisServicesType, newBase );
-            } else if( yadisServicesHtml != null ) {
-                theServiceFactory.addYadisServicesFromHtml( sourceIdentifier, yadisServicesHtml, newBase );
-            } else if( yadisUrl != null ) {
-                StagingMeshBaseLifecycleManager life = newBase.getMeshBaseLifecycleManager();
+        }
+    }
 
-                try {
-                    NetMeshObject fwdRef = life.createForwardReference(
-                                    newBase.getMeshBaseIdentifierFactory().guessFromExternalForm( yadisUrl ),
-                                    WebSubjectArea.WEBRESOURCE );
+    /**
+     * The data source returned XRDS content, although the HTTP Accept header permitted other content
+     * as well. Ask again, without the XRDS MIME type, to find out whether the data source has
+     * distinct non-XRDS content, and remember the outcome.
+     *
+     * @param url the URL of the data source
+     * @param xrdsContent the XRDS content returned by the data source
+     * @param xrdsContentType the MIME type of the XRDS content
+     * @return the response when asked without the XRDS MIME type
+     * @throws IOException thrown if the data source could not be accessed
+     */
+    protected HTTP.Response negotiateXrds(
+            URL     url,
+            byte [] xrdsContent,
+            String  xrdsContentType )
+        throws
+            IOException
+    {
+        HTTP.Response ret = HTTP.http_get(
+                url,
+                HTTP_GET_ACCEPT_HEADER,
+                false,
+                null, // no cookies
+                HTTP.HTTP_CONNECT_TIMEOUT,
+                HTTP.HTTP_READ_TIMEOUT,
+                theShadowMeshBase.getHostnameVerifier() );
+
+        if( xrdsContent != null && ArrayHelper.equals( xrdsContent, ret.getContent() )) {
+            // directly served the XRDS, HTTP_GET_ACCEPT_HEADER made no difference
+            theXrdsNegotiationOutcome = XrdsNegotiationOutcome.SAME_CONTENT;
+
+        } else if( ret.isSuccess() ) {
+            theXrdsNegotiationOutcome = XrdsNegotiationOutcome.DISTINCT_CONTENT;
+            theXrdsServicesXml        = xrdsContent;
+            theXrdsServicesType       = xrdsContentType;
+        }
+        theXrdsNegotiationTime = theCurrentUpdate;
 
-                    newBase.getHomeObject().relateAndBless(
-                            YadisSubjectArea.WEBRESOURCE_HASXRDSLINKTO_WEBRESOURCE.getSource(), fwdRef );
+        return ret;
+    }
 
-                } catch( MeshObjectIdentifierNotUniqueException ex ) {
-                    log.error( ex );
-                } catch( EntityNotBlessedException ex ) {
-                    log.error( ex );
-                } catch( RelatedAlreadyException ex ) {
-                    log.error( ex );
-                } catch( IsAbstractException ex ) {
-                    log.error( ex );
-                } catch( NotPermittedException ex ) {
-                    log.error( ex );
+    /**
+     * Take note of the HTTP status returned by the data source. If it indicates a problem on
+     * the side of the host, this counts towards opening the circuit for the host. If the host
+     * also told us when to come back, tell the HostPolitenessPolicy.
+     *
+     * @param status the HTTP status code of the response
+     * @param retryAfter the value of the Retry-After HTTP header of the response, if any
+     */
+    protected void noteHttpStatus(
+            String status,
+            String retryAfter )
+    {
+        boolean tooMany = HTTP_TOO_MANY_REQUESTS.equals( status );
+        if( tooMany || ( status != null && status.startsWith( "5" ))) {
+            theHostWasHealthy = false;
+        }
+
+        HostPolitenessPolicy politenessPolicy = thePolitenessPolicy;
+        if(    politenessPolicy == null
+            || retryAfter == null
+            || !( tooMany || HTTP_UNAVAILABLE.equals( status )))
+        {
+            return;
+        }
+        String host = politenessPolicy.determineHost( theShadowMeshBase.getIdentifier() );
+        long   until = HostPolitenessPolicy.parseRetryAfter( retryAfter, System.currentTimeMillis() );
+        if( host != null && until > 0L ) {
+            politenessPolicy.retryAfter( host, until );
+        }
+    }
+
+    /**
+     * Take note of the freshness information returned by an HTTP data source. Cache-Control
+     * max-age takes precedence over Expires; an Expires date is interpreted relative to the
+     * Date of the response, so that clock differences between the host and us do not matter.
+     *
+     * @param cacheControl the value of the Cache-Control HTTP header of the response, if any
+     * @param expires the value of the Expires HTTP header of the response, if any
+     * @param date the value of the Date HTTP header of the response, if any
+     */
+    protected void noteHttpFreshness(
+            String cacheControl,
+            String expires,
+            String date )
+    {
+        long now = System.currentTimeMillis();
+
+        if( cacheControl != null ) {
+            long maxAge = -1L;
+            for( String directive : cacheControl.split( "," )) {
+                directive = directive.trim().toLowerCase();
+                if( "no-cache".equals( directive ) || "no-store".equals( directive )) {
+                    return; // the data source does not want us to assume anything
+                }
+                if( directive.startsWith( "max-age=" )) {
+                    try {
+                        maxAge = Long.parseLong( directive.substring( "max-age=".length() ).replace( "\"", "" ).trim() );
+                    } catch( NumberFormatException ex ) {
+                        if( log.isDebugEnabled() ) {
+                            log.debug( this + ": cannot parse Cache-Control: " + cacheControl );
+                        }
+                    }
                 }
             }
-            
+            if( maxAge > 0L ) {
+                addFreshnessHint( now + maxAge * 1000L );
+                return;
+            }
+        }
+        long expiresTime = HttpDateParser.parse( expires );
+        if( expiresTime > 0L ) {
+            long dateTime = HttpDateParser.parse( date );
+            if( dateTime > 0L ) {
+                addFreshnessHint( now + expiresTime - dateTime );
+            } else {
+                addFreshnessHint( expiresTime );
+            }
         }
-        return new ProbeResult(
-                updated, // we don't know, we always say we might have been updated because that's safer
-                probe instanceof WritableProbe,
-                probe != null ? probe.getClass() : null );
+    }
+
+    /**
+     * Allow a Probe, or this ProbeDispatcher, to tell the framework that, according to the data source,
+     * the data will not change before a certain time. If several hints are given during the same run,
+     * the latest one wins.
+     *
+     * @param notChangedBefore the time before which the data will not change, in System.currentTimeMillis() format
+     * @see #applyFreshnessHint
+     */
+    public void addFreshnessHint(
+            long notChangedBefore )
+    {
+        if( log.isDebugEnabled() ) {
+            log.debug( this + ".addFreshnessHint( " + notChangedBefore + " )" );
+        }
+        if( notChangedBefore > theFreshnessHint ) {
+            theFreshnessHint = notChangedBefore;
+        }
+    }
+
+    /**
+     * Postpone the next run of the Probe according to the freshness hint given during this run.
+     * This is only done if the ProbeUpdateSpecification adapts its delay; an explicitly specified
+     * period, or a one-time run, is never overridden by the data source. The hint is never honored
+     * beyond MAX_FRESHNESS_HINT, or beyond the MaxDelay of the ProbeUpdateSpecification. The current
+     * delay is raised accordingly, so subsequent runs continue to adapt from there.
+     *
+     * @param home the home object carrying the ProbeUpdateSpecification
+     * @param nextRun the time of the next run, as determined by the ProbeUpdateSpecification
+     * @return the time of the next run
+     * @throws IllegalPropertyTypeException should not be thrown -- the home object is blessed
+     * @throws IllegalPropertyValueException should not be thrown -- the values are valid
+     * @throws NotPermittedException thrown if the caller was not permitted to invoke this operation
+     * @throws TransactionException thrown if invoked outside of proper Transaction boundaries
+     */
+    protected TimeStampValue applyFreshnessHint(
+            MeshObject     home,
+            TimeStampValue nextRun )
+        throws
+            IllegalPropertyTypeException,
+            IllegalPropertyValueException,
+            NotPermittedException,
+            TransactionException
+    {
+        if( !home.isBlessedBy( ProbeSubjectArea.ADAPTIVEPERIODICPROBEUPDATESPECIFICATION )) {
+            return nextRun; // the application decided, not the data source
+        }
+
+        long now  = System.currentTimeMillis();
+        long hint = Math.min( theFreshnessHint, now + MAX_FRESHNESS_HINT );
+
+        IntegerValue maxDelay = (IntegerValue) home.getPropertyValue( ProbeSubjectArea.ADAPTIVEPERIODICPROBEUPDATESPECIFICATION_MAXDELAY );
+        if( maxDelay != null ) {
+            hint = Math.min( hint, now + maxDelay.value() );
+        }
+        if( hint <= nextRun.getAsMillis() ) {
+            return nextRun;
+        }
+        if( log.isDebugEnabled() ) {
+            log.debug( this + ": postponing next run by " + ( hint - nextRun.getAsMillis() ) + " msec according to the data source" );
+        }
+        TimeStampValue ret = TimeStampValue.create( hint );
+
+        home.setPropertyValue( ProbeSubjectArea.PROBEUPDATESPECIFICATION_NEXTPROBERUN, ret );
+        home.setPropertyValue( ProbeSubjectArea.ADAPTIVEPERIODICPROBEUPDATESPECIFICATION_CURRENTDELAY, IntegerValue.create( hint - now ));
+        return ret;
     }
 
     /**
@@ -746,83 +1598,44 @@ public class ProbeDispatcher
             IOException
     {
         NetMeshBaseIdentifier          sourceIdentifier = theShadowMeshBase.getIdentifier();
-        ProbeDirectory.MatchDescriptor desc1            = theProbeDirectory.getApiProbeDescriptorByMatchedUrl( sourceIdentifier.getUriString() );
-
-        Class<? extends Probe> foundClass       = null;
-        String                 foundClassName   = null;
-        Map<String,Object>     foundParameters  = null; // FIXME: currently not used
-        ClassLoader            foundClassLoader = null;
-        ModuleRequirement      foundModuleReq   = null;
-
-        if( desc1 != null ) {
-            foundClass      = desc1.getProbeClass();
-            foundClassName  = desc1.getProbeClassName();
-            foundParameters = desc1.getParameters();
-            foundModuleReq  = desc1.getModuleRequirement();
+        ProbeDirectory.ProbeDescriptor desc             = theProbeDirectory.getApiProbeDescriptorByMatchedUrl( sourceIdentifier.getUriString() );
 
+        if( desc != null ) {
             if( log.isDebugEnabled() ) {
-                log.debug( this + ": based on match, found name for Probe class: " + foundClassName );
+                log.debug( this + ": based on match, found name for Probe class: " + desc.getProbeClassName() );
             }
             
         } else {
-            ProbeDirectory.ApiProbeDescriptor desc2 = theProbeDirectory.getApiProbeDescriptorByProtocol( sourceIdentifier.toUri().getScheme() );
-
-            if( desc2 != null ) {
-                foundClass      = desc2.getProbeClass();
-                foundClassName  = desc2.getProbeClassName();
-                foundParameters = desc2.getParameters();
-                foundModuleReq  = desc2.getModuleRequirement();
+            desc = theProbeDirectory.getApiProbeDescriptorByProtocol( sourceIdentifier.toUri().getScheme() );
 
+            if( desc != null ) {
                 if( log.isDebugEnabled() ) {
-                    log.debug( this + ": based on protocol, found name for Probe class: " + foundClassName );
+                    log.debug( this + ": based on protocol, found name for Probe class: " + desc.getProbeClassName() );
                 }
             }
         }
 
-        ApiProbe probe = null;
-        if( foundClass == null && foundClassName != null ) {
-            if( theModuleRegistry != null && foundModuleReq != null ) {
-                // we take the first module that supports this interface/class
-                ModuleMeta [] candidates = theModuleRegistry.determineResolutionCandidates( foundModuleReq );
-                if( candidates.length >= 1 ) {
-                    // if more than one, pick the most recent (i.e. first)
-                    if( candidates.length > 1 ) {
-                        log.info( "More than one Module found for ModuleRequirement", foundModuleReq, candidates );
-                    }
-                    try {
-                        Module foundModule = theModuleRegistry.resolve( candidates[0], true );
-                        foundModule.activateRecursively();
-                        foundClassLoader = foundModule.getClassLoader();
-                    } catch( ModuleResolutionException ex ) {
-                        log.warn( "Module could not be resolved for meta: " + candidates[0], ex );
-                    } catch( MalformedURLException ex ) {
-                        log.warn( "Module could not be resolved for meta: " + candidates[0], ex );
-                    } catch( ModuleNotFoundException ex ) {
-                        log.warn( "Module not found for meta: " + candidates[0], ex );
-                    } catch( ModuleActivationException ex ) {
-                        log.warn( "Module failed to activate for meta: " + candidates[0], ex );
-                    }
-                }
-            }
-            if( foundClassLoader == null ) { // attempt default loader
-                foundClassLoader = getClass().getClassLoader();
-            }
+        ApiProbe               probe      = null;
+        Class<? extends Probe> foundClass = null;
 
+        if( desc != null ) {
+            ProbeFactoryCache.ProbeFactory factory;
             try {
-                foundClass = (Class<? extends Probe>) Class.forName( foundClassName, true, foundClassLoader );
+                factory = theProbeFactoryCache.obtainFactoryFor( desc, theModuleRegistry );
             } catch( ClassNotFoundException ex ) {
                 throw new ProbeException.DontHaveApiProbe( sourceIdentifier, ex );
             }
-        }
+            foundClass = factory.getProbeClass();
 
-        if( foundClass != null ) {
             try {
-                probe = (ApiProbe) foundClass.newInstance();
+                probe = (ApiProbe) factory.obtainProbe();
 
             } catch( InstantiationException ex ) {
                 throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
             } catch( IllegalAccessException ex ) {
                 throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+            } catch( InvocationTargetException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex.getCause(), foundClass );
             }
         }
 
@@ -833,11 +1646,7 @@ public class ProbeDispatcher
                 log.debug( this + ": invoking the probe" );
             }
 
-            ChangeSet changesToWriteBack;
-            synchronized( this ) {
-                changesToWriteBack    = theChangesToWriteBack;
-                theChangesToWriteBack = null;
-            }
+            ChangeSet changesToWriteBack = takeChangesToWriteBack();
             
             try {
                 if( probe instanceof WritableProbe && changesToWriteBack != null ) {
@@ -907,7 +1716,8 @@ public class ProbeDispatcher
      * @param oldBase the StagingMeshBase after the most recent successful run, if any
      * @param newBase the new StagingMeshBase into which to instantiate the data
      * @param coherence the CoherenceSpecification specified by the client, if any
-     * @param content the incoming data stream as bytes
+     * @param content the incoming data stream as bytes, if it has been read into memory
+     * @param prefix the beginning of the incoming data stream, which is all of it if it has been read into memory
      * @param contentType the MIME type of the incoming data stream
      * @param inStream the incoming data stream
      * @return the used Probe instance
@@ -921,6 +1731,7 @@ public class ProbeDispatcher
             StagingMeshBase        newBase,
             CoherenceSpecification coherence,
             byte []                content,
+            byte []                prefix,
             String                 contentType,
             InputStream            inStream )
         throws
@@ -932,19 +1743,29 @@ public class ProbeDispatcher
             log.traceMethodCallEntry( this, "handleXml", oldBase, newBase, inStream );
         }
 
+        Probe streamed = handleXmlStream( oldBase, newBase, coherence, content, prefix, contentType, inStream );
+        if( streamed != null ) {
+            return streamed;
+        }
+
         NetMeshBaseIdentifier sourceIdentifier = theShadowMeshBase.getIdentifier();
         XmlErrorHandler       errorListener    = new XmlErrorHandler( sourceIdentifier, log );
 
-        DocumentBuilder theDocumentBuilder = getDocumentBuilder();
-        
-        theDocumentBuilder.setErrorHandler( errorListener );
-
-        Document doc;
+        Document        doc;
+        DocumentBuilder builder = null;
 
         try {
-            doc = theDocumentBuilder.parse( inStream );
+            builder = theXmlParserPool.obtainDocumentBuilder();
+            builder.setErrorHandler( errorListener );
+
+            doc = builder.parse( inStream );
+
+        } catch( ParserConfigurationException ex ) {
+            throw new ProbeException.Other( sourceIdentifier, ex );
         } catch( SAXException ex ) {
             throw new ProbeException.SyntaxError( sourceIdentifier, ex );
+        } finally {
+            theXmlParserPool.releaseDocumentBuilder( builder );
         }
 
         if( errorListener.numberOfErrors() > 0 ) {
@@ -967,12 +1788,9 @@ public class ProbeDispatcher
             }
         }
 
-        XmlDOMProbe            probe            = null;
-        String                 foundClassName   = null;
-        Class<? extends Probe> foundClass       = null;
-        ClassLoader            foundClassLoader = null;
-        Map<String,Object>     foundParameters  = null; // FIXME not used
-        ModuleRequirement      foundModuleReq   = null;
+        XmlDOMProbe                          probe      = null;
+        Class<? extends Probe>               foundClass = null;
+        ProbeDirectory.XmlDomProbeDescriptor desc       = null;
 
         if( docType != null ) {
             if( MeshObjectSetProbeTags.MESHOBJECT_SET_TAG.equalsIgnoreCase( docType.getName() )) {
@@ -980,29 +1798,19 @@ public class ProbeDispatcher
                 return ret;
             }
 
-            ProbeDirectory.XmlDomProbeDescriptor desc = theProbeDirectory.getXmlDomProbeDescriptorByDocumentType( docType.getName() );
+            desc = theProbeDirectory.getXmlDomProbeDescriptorByDocumentType( docType.getName() );
             if( desc != null ) {
-                foundClass      = desc.getProbeClass();
-                foundClassName  = desc.getProbeClassName();
-                foundParameters = desc.getParameters();
-                foundModuleReq  = desc.getModuleRequirement();
-
                 if( log.isDebugEnabled() ) {
-                    log.debug( this + ": based on doctype, found name for probe class: " + foundClassName );
+                    log.debug( this + ": based on doctype, found name for probe class: " + desc.getProbeClassName() );
                 }
             }
 
         } else {
             if ( localName != null ) {
-                ProbeDirectory.XmlDomProbeDescriptor desc = theProbeDirectory.getXmlDomProbeDescriptorByTagType( namespace, localName );
+                desc = theProbeDirectory.getXmlDomProbeDescriptorByTagType( namespace, localName );
                 if( desc != null ) {
-                    foundClass      = desc.getProbeClass();
-                    foundClassName  = desc.getProbeClassName();
-                    foundParameters = desc.getParameters();
-                    foundModuleReq  = desc.getModuleRequirement();
-
                     if( log.isDebugEnabled() ) {
-                        log.debug( this + ": based on tagtype, found name for probe class: " + foundClassName );
+                        log.debug( this + ": based on tagtype, found name for probe class: " + desc.getProbeClassName() );
                     }
                 }
                 
@@ -1017,124 +1825,285 @@ public class ProbeDispatcher
             }
         }
 
-        if( foundClass == null && foundClassName != null ) {
-            if( theModuleRegistry != null && foundModuleReq != null ) {
-                // we take the first module that supports this interface/class
-                ModuleMeta [] candidates = theModuleRegistry.determineResolutionCandidates( foundModuleReq );
-                if( candidates.length >= 1 ) {
-                    // if more than one, pick the most recent (i.e. first)
-                    if( candidates.length > 1 ) {
-                        log.info( "More than one Module found for ModuleRequirement", foundModuleReq, candidates );
-                    }
-                    try {
-                        Module foundModule = theModuleRegistry.resolve( candidates[0], true );
-                        foundModule.activateRecursively();
-                        foundClassLoader = foundModule.getClassLoader();
-                    } catch( ModuleResolutionException ex ) {
-                        log.warn( "Module could not be resolved for meta: " + candidates[0], ex );
-                    } catch( MalformedURLException ex ) {
-                        log.warn( "Module could not be resolved for meta: " + candidates[0], ex );
-                    } catch( ModuleNotFoundException ex ) {
-                        log.warn( "Module not found for meta: " + candidates[0], ex );
-                    } catch( ModuleActivationException ex ) {
-                        log.warn( "Module failed to activate for meta: " + candidates[0], ex );
-                    }
+        if( desc != null ) {
+            ProbeFactoryCache.ProbeFactory factory;
+            try {
+                factory = theProbeFactoryCache.obtainFactoryFor( desc, theModuleRegistry );
+
+            } catch( ClassNotFoundException ex ) {
+                throw new ProbeException.DontHaveXmlStreamProbe( sourceIdentifier, docType != null ? docType.getName() : null, namespace, localName, ex );
+            }
+            foundClass = factory.getProbeClass();
+
+            try {
+                probe = (XmlDOMProbe) factory.obtainProbe();
+
+            } catch( IllegalAccessException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+            } catch( InstantiationException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+            } catch( InvocationTargetException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex.getCause(), foundClass );
+            }
+        }
+
+        if( probe != null ) {
+            if( log.isDebugEnabled() ) {
+                log.debug( this + ": invoking the probe" );
+            }
+        
+            ChangeSet changesToWriteBack = takeChangesToWriteBack();
+
+            try {
+                if( probe instanceof WritableProbe ) {
+                    ((WritableProbe) probe).write( sourceIdentifier, changesToWriteBack, oldBase );
+                }
+
+                probe.parseDocument( sourceIdentifier, coherence, content, contentType, doc, newBase );
+
+            } catch( IsAbstractException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+
+            } catch( EntityBlessedAlreadyException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+
+            } catch( EntityNotBlessedException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+
+            } catch( NotPermittedException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+
+            } catch( MeshObjectIdentifierNotUniqueException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+
+            } catch( RelatedAlreadyException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+
+            } catch( NotRelatedException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+
+            } catch( RoleTypeBlessedAlreadyException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+
+            } catch( IllegalPropertyTypeException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+
+            } catch( IllegalPropertyValueException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+
+            } catch( URISyntaxException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+
+            } catch( ParseException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+
+            } catch( ModuleException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+
+            } catch( RuntimeException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+            }
+            if( log.isDebugEnabled() ) {
+                log.debug( this + ": probe came back without exception" );
+            }
+
+        } else {
+            throw new ProbeException.DontHaveXmlStreamProbe( sourceIdentifier, docType != null ? docType.getName() : null, namespace, localName, null );
+        }
+        
+        return probe;
+    }
+
+    /**
+     * Attempt to parse an XML data source with an XmlStreamProbe, without building a DOM. This
+     * only looks at the top-level element; if the document has a document type declaration, or
+     * the Probe registered for the top-level element does not support XmlStreamProbe, this
+     * returns null and the caller builds a DOM instead. The top-level element is determined from
+     * the beginning of the data stream only, so the data stream itself is only read if an
+     * XmlStreamProbe is used.
+     *
+     * @param oldBase the StagingMeshBase after the most recent successful run, if any
+     * @param newBase the new StagingMeshBase into which to instantiate the data
+     * @param coherence the CoherenceSpecification specified by the client, if any
+     * @param content the incoming data stream as bytes, if it has been read into memory
+     * @param prefix the beginning of the incoming data stream, which is all of it if it has been read into memory
+     * @param contentType the MIME type of the incoming data stream
+     * @param inStream the incoming data stream
+     * @return the used Probe instance, or null if no XmlStreamProbe was used
+     * @throws ProbeException thrown if unable to compute a result
+     * @throws TransactionException thrown if invoked outside of proper Transaction boundaries
+     * @throws IOException thrown if an I/O error occurred
+     */
+    protected Probe handleXmlStream(
+            StagingMeshBase        oldBase,
+            StagingMeshBase        newBase,
+            CoherenceSpecification coherence,
+            byte []                content,
+            byte []                prefix,
+            String                 contentType,
+            InputStream            inStream )
+        throws
+            ProbeException,
+            TransactionException,
+            IOException
+    {
+        NetMeshBaseIdentifier sourceIdentifier = theShadowMeshBase.getIdentifier();
+
+        XMLStreamReader        reader     = null;
+        XmlStreamProbe         probe      = null;
+        Class<? extends Probe> foundClass = null;
+
+        try {
+            reader = theXmlParserPool.createXmlStreamReader( new ByteArrayInputStream( prefix ));
+
+            try {
+                if( !advanceToRootElement( reader )) {
+                    return null; // document types are resolved on the DOM, and the DOM reports errors
                 }
+            } catch( XMLStreamException ex ) {
+                if( content == null ) {
+                    return null; // the root element may start beyond the prefix; let the DOM find it
+                }
+                throw ex;
             }
-            if( foundClassLoader == null ) { // attempt default loader
-                foundClassLoader = getClass().getClassLoader();
+
+            ProbeDirectory.XmlDomProbeDescriptor desc = theProbeDirectory.getXmlDomProbeDescriptorByTagType(
+                    reader.getNamespaceURI(),
+                    reader.getLocalName() );
+            if( desc == null ) {
+                return null;
             }
 
+            ProbeFactoryCache.ProbeFactory factory;
             try {
-                foundClass = (Class<? extends Probe>) Class.forName( foundClassName, true, foundClassLoader );
+                factory = theProbeFactoryCache.obtainFactoryFor( desc, theModuleRegistry );
 
             } catch( ClassNotFoundException ex ) {
-                throw new ProbeException.DontHaveXmlStreamProbe( sourceIdentifier, docType != null ? docType.getName() : null, namespace, localName, ex );
+                return null; // let the DOM report it
+            }
+            foundClass = factory.getProbeClass();
+            if( !XmlStreamProbe.class.isAssignableFrom( foundClass )) {
+                return null;
             }
-        }
 
-        if( foundClass != null ) {
             try {
-                probe = (XmlDOMProbe) foundClass.newInstance();
+                probe = (XmlStreamProbe) factory.obtainProbe();
 
             } catch( IllegalAccessException ex ) {
                 throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
             } catch( InstantiationException ex ) {
                 throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+            } catch( InvocationTargetException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex.getCause(), foundClass );
             }
-        }
 
-        if( probe != null ) {
             if( log.isDebugEnabled() ) {
-                log.debug( this + ": invoking the probe" );
+                log.debug( this + ": based on tagtype, found streaming probe class: " + desc.getProbeClassName() );
             }
-        
-            ChangeSet changesToWriteBack;
-            synchronized( this ) {
-                changesToWriteBack    = theChangesToWriteBack;
-                theChangesToWriteBack = null;
+
+            ChangeSet changesToWriteBack = takeChangesToWriteBack();
+
+            if( probe instanceof WritableProbe ) {
+                ((WritableProbe) probe).write( sourceIdentifier, changesToWriteBack, oldBase );
             }
 
-            try {
-                if( probe instanceof WritableProbe ) {
-                    ((WritableProbe) probe).write( sourceIdentifier, changesToWriteBack, oldBase );
+            if( content == null ) {
+                // determined the Probe from the prefix, now parse all of the data stream
+                reader.close();
+                reader = theXmlParserPool.createXmlStreamReader( inStream );
+
+                if( !advanceToRootElement( reader )) {
+                    throw new ProbeException.EmptyDataSource( sourceIdentifier );
                 }
+            }
 
-                probe.parseDocument( sourceIdentifier, coherence, content, contentType, doc, newBase );
+            probe.parseStream( sourceIdentifier, coherence, content, contentType, reader, newBase );
 
-            } catch( IsAbstractException ex ) {
-                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+        } catch( XMLStreamException ex ) {
+            throw new ProbeException.SyntaxError( sourceIdentifier, ex );
 
-            } catch( EntityBlessedAlreadyException ex ) {
-                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+        } catch( IsAbstractException ex ) {
+            throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
 
-            } catch( EntityNotBlessedException ex ) {
-                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+        } catch( EntityBlessedAlreadyException ex ) {
+            throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
 
-            } catch( NotPermittedException ex ) {
-                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+        } catch( EntityNotBlessedException ex ) {
+            throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
 
-            } catch( MeshObjectIdentifierNotUniqueException ex ) {
-                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+        } catch( NotPermittedException ex ) {
+            throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
 
-            } catch( RelatedAlreadyException ex ) {
-                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+        } catch( MeshObjectIdentifierNotUniqueException ex ) {
+            throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
 
-            } catch( NotRelatedException ex ) {
-                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+        } catch( RelatedAlreadyException ex ) {
+            throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
 
-            } catch( RoleTypeBlessedAlreadyException ex ) {
-                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+        } catch( NotRelatedException ex ) {
+            throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
 
-            } catch( IllegalPropertyTypeException ex ) {
-                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+        } catch( RoleTypeBlessedAlreadyException ex ) {
+            throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
 
-            } catch( IllegalPropertyValueException ex ) {
-                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+        } catch( IllegalPropertyTypeException ex ) {
+            throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
 
-            } catch( URISyntaxException ex ) {
-                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+        } catch( IllegalPropertyValueException ex ) {
+            throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
 
-            } catch( ParseException ex ) {
-                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+        } catch( URISyntaxException ex ) {
+            throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
 
-            } catch( ModuleException ex ) {
-                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+        } catch( ParseException ex ) {
+            throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
 
-            } catch( RuntimeException ex ) {
-                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
-            }
-            if( log.isDebugEnabled() ) {
-                log.debug( this + ": probe came back without exception" );
-            }
+        } catch( ModuleException ex ) {
+            throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
 
-        } else {
-            throw new ProbeException.DontHaveXmlStreamProbe( sourceIdentifier, docType != null ? docType.getName() : null, namespace, localName, null );
+        } catch( RuntimeException ex ) {
+            throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+
+        } finally {
+            if( reader != null ) {
+                try {
+                    reader.close();
+                } catch( XMLStreamException ex ) {
+                    log.error( ex );
+                }
+            }
+        }
+        if( log.isDebugEnabled() ) {
+            log.debug( this + ": probe came back without exception" );
         }
-        
         return probe;
     }
 
+    /**
+     * Advance an XMLStreamReader to the root element of the document.
+     *
+     * @param reader the XMLStreamReader
+     * @return true if the reader is positioned at the root element, false if the document has a
+     *         document type declaration or no root element
+     * @throws XMLStreamException thrown if the document could not be parsed
+     */
+    protected static boolean advanceToRootElement(
+            XMLStreamReader reader )
+        throws
+            XMLStreamException
+    {
+        while( reader.hasNext() ) {
+            int event = reader.next();
+            if( event == XMLStreamConstants.DTD ) {
+                return false;
+            }
+            if( event == XMLStreamConstants.START_ELEMENT ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * The data source refers to a non-XML file or stream, parse it.
      *
@@ -1166,10 +2135,6 @@ public class ProbeDispatcher
 
         NonXmlStreamProbe      probe            = null;
         Class<? extends Probe> foundClass       = null;
-        String                 foundClassName   = null;
-        ClassLoader            foundClassLoader = null;
-        Map<String,Object>     foundParameters  = null; // FIXME what are they used for?
-        ModuleRequirement      foundModuleReq   = null;
         NetMeshBaseIdentifier  sourceIdentifier = theShadowMeshBase.getIdentifier();
 
         ProbeDirectory.StreamProbeDescriptor desc = theProbeDirectory.getStreamProbeDescriptorByMimeType( contentType );
@@ -1179,58 +2144,26 @@ public class ProbeDispatcher
         }
 
         if( desc != null ) {
-            foundClass      = desc.getProbeClass();
-            foundClassName  = desc.getProbeClassName();
-            foundParameters = desc.getParameters();
-            foundModuleReq  = desc.getModuleRequirement();
-
             if( log.isDebugEnabled() ) {
-                log.debug( this + ": based on mime type, found name for probe class: " + foundClassName );
-            }
-        }
-
-        if( foundClass == null && foundClassName != null ) {
-            if( theModuleRegistry != null && foundModuleReq != null ) {
-                // we take the first module that supports this interface/class
-                ModuleMeta [] candidates = theModuleRegistry.determineResolutionCandidates( foundModuleReq );
-                if( candidates.length >= 1 ) {
-                    // if more than one, pick the most recent (i.e. first)
-                    if( candidates.length > 1 ) {
-                        log.info( "More than one Module found for ModuleRequirement", foundModuleReq, candidates );
-                    }
-                    try {
-                        Module foundModule = theModuleRegistry.resolve( candidates[0], true );
-                        foundModule.activateRecursively();
-                        foundClassLoader = foundModule.getClassLoader();
-                    } catch( ModuleResolutionException ex ) {
-                        log.warn( "Module could not be resolved for meta: " + candidates[0], ex );
-                    } catch( MalformedURLException ex ) {
-                        log.warn( "Module could not be resolved for meta: " + candidates[0], ex );
-                    } catch( ModuleNotFoundException ex ) {
-                        log.warn( "Module not found for meta: " + candidates[0], ex );
-                    } catch( ModuleActivationException ex ) {
-                        log.warn( "Module failed to activate for meta: " + candidates[0], ex );
-                    }
-                }
-            }
-            if( foundClassLoader == null ) { // attempt default loader
-                foundClassLoader = getClass().getClassLoader();
+                log.debug( this + ": based on mime type, found name for probe class: " + desc.getProbeClassName() );
             }
 
+            ProbeFactoryCache.ProbeFactory factory;
             try {
-                foundClass = (Class<? extends Probe>) Class.forName( foundClassName, true, foundClassLoader );
+                factory = theProbeFactoryCache.obtainFactoryFor( desc, theModuleRegistry );
             } catch( ClassNotFoundException ex ) {
                 throw new ProbeException.DontHaveNonXmlStreamProbe( sourceIdentifier, contentType, ex );
             }
-        }
+            foundClass = factory.getProbeClass();
 
-        if( foundClass != null ) {
             try {
-                probe = (NonXmlStreamProbe) foundClass.newInstance();
+                probe = (NonXmlStreamProbe) factory.obtainProbe();
             } catch( InstantiationException ex ) {
                 throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
             } catch( IllegalAccessException ex ) {
                 throw new ProbeException.ErrorInProbe( sourceIdentifier, ex, foundClass );
+            } catch( InvocationTargetException ex ) {
+                throw new ProbeException.ErrorInProbe( sourceIdentifier, ex.getCause(), foundClass );
             }
         }
         if( probe != null ) {
@@ -1240,11 +2173,7 @@ public class ProbeDispatcher
                 log.debug( this + ": invoking the probe" );
             }
 
-            ChangeSet changesToWriteBack;
-            synchronized( this ) {
-                changesToWriteBack    = theChangesToWriteBack;
-                theChangesToWriteBack = null;
-            }
+            ChangeSet changesToWriteBack = takeChangesToWriteBack();
 
             try {
                 if( probe instanceof WritableProbe ) {
@@ -1578,6 +2507,18 @@ public class ProbeDispatcher
         return theLastUpdate;
     }
 
+    /**
+     * Obtain the number of runs that have been performed so far, whether successful or not.
+     * Calls to {@link #doUpdateNow} that were deferred, or that found another run in progress,
+     * do not count.
+     *
+     * @return the number of runs
+     */
+    public long getRunCount()
+    {
+        return theRunCount;
+    }
+
     /**
      * Obtain the time at which the current run was started. This is updated as soon
      * as the run starts.
@@ -1657,17 +2598,79 @@ public class ProbeDispatcher
      *
      * @return true if it is still needed
      */
-    public synchronized boolean isNeeded()
+    public boolean isNeeded()
+    {
+        return obtainReplicationIndex().theReplicatedCount > 0;
+    }
+
+    /**
+     * Notify this ProbeDispatcher that the Proxies of the MeshObjects in the ShadowMeshBase, or
+     * where their locks are, may have changed. This is invoked after Probe runs that changed the
+     * ShadowMeshBase, and when the ShadowMeshBase's Proxies receive messages.
+     */
+    public void replicationMayHaveChanged()
+    {
+        theReplicationEpoch.incrementAndGet();
+    }
+
+    /**
+     * Obtain the current ReplicationIndex, re-indexing the ShadowMeshBase only if
+     * the replication may have changed since the ReplicationIndex was created. Proxies
+     * may be created, expire or be killed without any of the ShadowMeshBase's Proxies
+     * receiving a message, so the current set of Proxies is always compared, too.
+     * This is a cache, not an incremental index: each invalidation, by epoch or by a
+     * different set of Proxies, causes a full rescan of the ShadowMeshBase at the next call.
+     *
+     * @return the ReplicationIndex
+     */
+    protected ReplicationIndex obtainReplicationIndex()
     {
-        for( MeshObject current : theShadowMeshBase ) {
-            Proxy [] proxies = ((NetMeshObject)current).getAllProxies();
-            if( proxies != null && proxies.length > 0 ) {
-                return true; // don't need to do anything
+        int                        epoch    = theReplicationEpoch.get();
+        ReplicationIndex           ret      = theReplicationIndex;
+        Set<NetMeshBaseIdentifier> partners = determineProxyPartners();
+
+        if( ret == null || ret.theEpoch != epoch || !ret.thePartners.equals( partners )) {
+            // if the replication changes while we are indexing, the epoch changes, and we will index again next time
+            ret = new ReplicationIndex( epoch, partners );
+
+            for( MeshObject current : theShadowMeshBase ) {
+                NetMeshObject realCurrent = (NetMeshObject) current;
+
+                Proxy [] proxies = realCurrent.getAllProxies();
+                if( proxies != null && proxies.length > 0 ) {
+                    ++ret.theReplicatedCount;
+                }
+                Proxy towardsLock = realCurrent.getProxyTowardsLockReplica();
+                if( towardsLock != null ) {
+                    NetMeshBaseIdentifier              partner = towardsLock.getPartnerMeshBaseIdentifier();
+                    ArrayList<NetMeshObjectIdentifier> already = ret.theLocksElsewhere.get( partner );
+                    if( already == null ) {
+                        already = new ArrayList<NetMeshObjectIdentifier>();
+                        ret.theLocksElsewhere.put( partner, already );
+                    }
+                    already.add( realCurrent.getIdentifier() );
+                }
             }
+            theReplicationIndex = ret;
         }
-        return false;
+        return ret;
     }
-    
+
+    /**
+     * Determine the identifiers of the NetMeshBases to which the ShadowMeshBase currently has Proxies.
+     *
+     * @return the identifiers
+     */
+    protected Set<NetMeshBaseIdentifier> determineProxyPartners()
+    {
+        Set<NetMeshBaseIdentifier> ret  = new HashSet<NetMeshBaseIdentifier>();
+        Iterator<Proxy>            iter = theShadowMeshBase.proxies();
+        while( iter.hasNext() ) {
+            ret.add( iter.next().getPartnerMeshBaseIdentifier() );
+        }
+        return ret;
+    }
+
     /**
      * Forcefully reacquire all locks.
      * 
@@ -1676,20 +2679,32 @@ public class ProbeDispatcher
     protected void forceLockRecovery(
             IterableNetMeshBase base )
     {
+        HashMap<NetMeshBaseIdentifier,ArrayList<NetMeshObjectIdentifier>> index = obtainReplicationIndex().theLocksElsewhere;
+        if( index.isEmpty() ) {
+            return;
+        }
+
         HashMap<Proxy,ArrayList<NetMeshObject>> buckets = new HashMap<Proxy,ArrayList<NetMeshObject>>();
-        
-        for( MeshObject current : theShadowMeshBase ) {
-            NetMeshObject realCurrent = (NetMeshObject) current;
-            Proxy         towardsLock = realCurrent.getProxyTowardsLockReplica();
-            if( towardsLock != null ) {
-                ArrayList<NetMeshObject> already = buckets.get( towardsLock );
-                if( already == null ) {
-                    already = new ArrayList<NetMeshObject>();
-                    buckets.put( towardsLock, already );
+        for( Map.Entry<NetMeshBaseIdentifier,ArrayList<NetMeshObjectIdentifier>> entry : index.entrySet() ) {
+            Proxy p = base.getProxyFor( entry.getKey() );
+            if( p == null ) {
+                continue; // went away since we indexed
+            }
+            ArrayList<NetMeshObject> bucket = new ArrayList<NetMeshObject>( entry.getValue().size() );
+            for( NetMeshObjectIdentifier currentIdentifier : entry.getValue() ) {
+                NetMeshObject current = base.findMeshObjectByIdentifier( currentIdentifier );
+                if( current != null && current.getProxyTowardsLockReplica() == p ) {
+                    current.proxyOnlyPushLock( p );
+                    bucket.add( current );
                 }
-                already.add( realCurrent );
-                realCurrent.proxyOnlyPushLock( towardsLock );
             }
+            if( !bucket.isEmpty() ) {
+                buckets.put( p, bucket );
+            }
+        }
+        if( buckets.isEmpty() ) {
+            replicationMayHaveChanged();
+            return;
         }
 
         AccessLocallySynchronizer synchronizer = base.getAccessLocallySynchronizer();
@@ -1697,9 +2712,9 @@ public class ProbeDispatcher
         try {
             synchronizer.beginTransaction();
 
-            for( Proxy p : buckets.keySet() ) {
-                NetMeshObject [] localReplicas = ArrayHelper.copyIntoNewArray( buckets.get( p ), NetMeshObject.class );
-                p.forceObtainLocks( localReplicas, -1L );
+            for( Map.Entry<Proxy,ArrayList<NetMeshObject>> entry : buckets.entrySet() ) {
+                NetMeshObject [] localReplicas = ArrayHelper.copyIntoNewArray( entry.getValue(), NetMeshObject.class );
+                entry.getKey().forceObtainLocks( localReplicas, -1L );
             }
             synchronizer.join();
             synchronizer.endTransaction();
@@ -1709,6 +2724,9 @@ public class ProbeDispatcher
 
         } catch( InterruptedException ex ) {
             log.error( ex );
+
+        } finally {
+            replicationMayHaveChanged();
         }
     }
 
@@ -1756,18 +2774,37 @@ public class ProbeDispatcher
 
     /**
      * Queue new changes for the Shadow. These changes will be written out by the Probe
-     * prior to reading the data source again.
+     * prior to reading the data source again. Changes committed by the Probe run itself
+     * are not queued.
      *
      * @param newChangeSet the set of new Changes
      */
-    public synchronized void queueNewChanges(
+    public void queueNewChanges(
             ChangeSet newChangeSet )
     {
-        if( theChangesToWriteBack == null ) {
-            theChangesToWriteBack = ChangeSet.createCopy( newChangeSet );
-        } else {
-            theChangesToWriteBack.append( newChangeSet );
+        if( theRunningThread == Thread.currentThread() ) {
+            return; // otherwise we queue our own changes
+        }
+        theChangesToWriteBack.add( ChangeSet.createCopy( newChangeSet ));
+    }
+
+    /**
+     * Obtain and remove all changes queued for the Shadow since the last time this was invoked.
+     *
+     * @return the queued changes, or null if there were none
+     */
+    protected ChangeSet takeChangesToWriteBack()
+    {
+        ChangeSet ret = null;
+        ChangeSet current;
+        while( ( current = theChangesToWriteBack.poll() ) != null ) {
+            if( ret == null ) {
+                ret = current;
+            } else {
+                ret.append( current );
+            }
         }
+        return ret;
     }
     
     /**
@@ -1826,49 +2863,6 @@ public class ProbeDispatcher
         theShadowListeners.remove( oldListener );
     }
 
-    /**
-     * Obtain an XML DocumentBuilder.
-     * 
-     * @return the DocumentBuilder
-     */
-    protected synchronized DocumentBuilder getDocumentBuilder()
-    {
-        DocumentBuilder ret = null;
-        
-        if( theDocumentBuilderRef != null ) {
-            ret = theDocumentBuilderRef.get();
-        }
-        if( ret == null ) {
-            // We do this messing thing with the context ClassLoader because otherwise,
-            // there is no chance that our XML parser can be found. The Sun XML classloader
-            // finder is an awful implementation using a broken conceptual model how things
-            // should work, but at least we found this workaround.
-
-            ClassLoader ctxt = Thread.currentThread().getContextClassLoader();
-
-            try {
-                Thread.currentThread().setContextClassLoader( getClass().getClassLoader() );
-
-                // do XML initialization in the constructor
-                DocumentBuilderFactory theDocumentBuilderFactory = DocumentBuilderFactory.newInstance();
-                theDocumentBuilderFactory.setNamespaceAware( true );
-
-                // FIXME? theDocumentBuilderFactory.setValidating( true );
-                theDocumentBuilderFactory.setIgnoringComments( true );
-                theDocumentBuilderFactory.setIgnoringElementContentWhitespace( true );
-
-                ret = theDocumentBuilderFactory.newDocumentBuilder();
-            } catch( Exception ex ) {
-               log.error( ex );
-               log.error( "DocumentBuilderFactory has class loader " + DocumentBuilderFactory.class.getClassLoader() );
-            } finally {
-                Thread.currentThread().setContextClassLoader( ctxt );
-            }
-            theDocumentBuilderRef = new WeakReference<DocumentBuilder>( ret );
-        }
-        return ret;
-    }
-
     /**
      * Helper method to guess a MIME content type from a URL. We leverage the JDK.
      * Basically we look at the extension.
@@ -2029,11 +3023,23 @@ public class ProbeDispatcher
      */
     protected long theLastUpdate;
 
+    /**
+     * The number of runs performed so far, whether successful or not.
+     */
+    protected volatile long theRunCount;
+
     /**
      * The time at which the current update of this shadow was started.
      * This is in System.currentTimeMillis() format.
      */
     protected long theCurrentUpdate;
+
+    /**
+     * The time before which, according to the data source, its data will not change, as
+     * determined during the current update. This is -1 if not known.
+     * This is in System.currentTimeMillis() format.
+     */
+    protected long theFreshnessHint = -1L;
     
     /**
      * The time at which the next update is supposed to start, or -1 if none.
@@ -2053,9 +3059,24 @@ public class ProbeDispatcher
     protected Throwable theCurrentProblem;
 
     /**
-     * The set of Changes to write to a Writable Probe (if any).
+     * The queued sets of Changes to write to a Writable Probe (if any).
+     */
+    protected final ConcurrentLinkedQueue<ChangeSet> theChangesToWriteBack = new ConcurrentLinkedQueue<ChangeSet>();
+
+    /**
+     * Serializes runs of the Probe for this ShadowMeshBase, including the access to the data source.
+     */
+    protected final ReentrantLock theFetchLock = new ReentrantLock();
+
+    /**
+     * Held while the ShadowMeshBase is being changed as the result of a Probe run.
+     */
+    protected final ReentrantLock theRunLock = new ReentrantLock();
+
+    /**
+     * The Thread currently running the Probe, if any.
      */
-    protected ChangeSet theChangesToWriteBack = null;
+    protected volatile Thread theRunningThread;
 
     /**
       * The directory of all Probes that we know.
@@ -2067,11 +3088,28 @@ public class ProbeDispatcher
      */
     protected HttpMappingPolicy theMappingPolicy;
 
+    /**
+     * The policy that limits how often, and how concurrently, hosts are accessed, if any.
+     * By default, hosts are accessed without limits.
+     */
+    protected volatile HostPolitenessPolicy thePolitenessPolicy;
+
+    /**
+     * Set to false during a run if the host of the data source could not be reached, or
+     * indicated that it has a problem.
+     */
+    protected volatile boolean theHostWasHealthy;
+
     /**
      * The registry of all known Modules, or null if not present.
      */
     protected ModuleRegistry theModuleRegistry;
 
+    /**
+     * Remembers which Probe classes ProbeDescriptors resolved to.
+     */
+    protected ProbeFactoryCache theProbeFactoryCache = ProbeFactoryCache.SINGLETON;
+
     /**
      * The list of shadow listeners if any.
      */
@@ -2107,9 +3145,19 @@ public class ProbeDispatcher
             };
 
     /**
-     * The DocumentBuilder for XML parsing.
+     * Incremented every time the replication of the MeshObjects in the ShadowMeshBase may have changed.
+     */
+    protected final AtomicInteger theReplicationEpoch = new AtomicInteger();
+
+    /**
+     * The most recently created ReplicationIndex, if any.
      */
-    protected WeakReference<DocumentBuilder> theDocumentBuilderRef;
+    protected volatile ReplicationIndex theReplicationIndex;
+
+    /**
+     * The pool of XML parsers to use.
+     */
+    protected XmlParserPool theXmlParserPool = XmlParserPool.SINGLETON;
 
     /**
      * Time, in System.currentTimeMillis() format, when the current (or most recent)
@@ -2121,7 +3169,7 @@ public class ProbeDispatcher
     /**
      * If true, an update from the ProbeDispatcher is currently in progress.
      */
-    protected boolean theUpdateInProgress;
+    protected volatile boolean theUpdateInProgress;
     
     /**
      * The time this ShadowMeshBase is not needed until it expires.
@@ -2138,6 +3186,27 @@ public class ProbeDispatcher
      */
     protected YadisServiceFactory theServiceFactory;
 
+    /**
+     * The outcome of the most recent XRDS content negotiation with the data source, if any.
+     */
+    protected XrdsNegotiationOutcome theXrdsNegotiationOutcome;
+
+    /**
+     * The time at which theXrdsNegotiationOutcome was determined, in System.currentTimeMillis() format.
+     */
+    protected long theXrdsNegotiationTime;
+
+    /**
+     * The XRDS content obtained at the most recent XRDS content negotiation, if it differed
+     * from the non-XRDS content.
+     */
+    protected byte [] theXrdsServicesXml;
+
+    /**
+     * The MIME type of theXrdsServicesXml.
+     */
+    protected String theXrdsServicesType;
+
     /**
      * If the last Probe run used a Writeble Probe, this is true.
      */
@@ -2164,13 +3233,148 @@ public class ProbeDispatcher
      */
     public static final String HTTP_GET_ACCEPT_HEADER = "text/xml,application/xml,application/xhtml+xml,text/html;q=0.9,text/plain;q=0.8,image/png,*/*;q=0.5";
 
+    /**
+     * The HTTP status code for Too Many Requests.
+     */
+    public static final String HTTP_TOO_MANY_REQUESTS = "429";
+
+    /**
+     * The HTTP status code for Service Unavailable.
+     */
+    public static final String HTTP_UNAVAILABLE = "503";
+
     /**
      * The default time, in milliseconds, until a timeout occurs on accessing the AccessSemaphore.
      */
     public static final long DEFAULT_ACCESS_SEMAPHORE_TIMEOUT = 10000L;
+
+    /**
+     * Name of the MessageDigest algorithm used to detect byte-identical content between runs.
+     */
+    public static final String CONTENT_DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * Our ResourceHelper.
+     */
+    private static final ResourceHelper theResourceHelper = ResourceHelper.getInstance( ProbeDispatcher.class );
+
+    /**
+     * Files larger than this many bytes are not read into memory, but handed directly to
+     * NonXmlStreamProbes.
+     */
+    public static final long STREAMING_THRESHOLD = theResourceHelper.getResourceLongOrDefault(
+            "StreamingThreshold",
+            1024L * 1024L ); // 1 MB
+
+    /**
+     * The maximum number of bytes at the beginning of an HTML document that are scanned for Yadis
+     * and OpenID information. These need to be in the head section.
+     */
+    public static final int YADIS_HTML_HEAD_SCAN_LIMIT = theResourceHelper.getResourceIntegerOrDefault(
+            "YadisHtmlHeadScanLimit",
+            64 * 1024 ); // 64 KB
+
+    /**
+     * The number of bytes at the beginning of streamed content that are buffered, so the content can
+     * be inspected before it is handed to a Probe. The XML root element, and the HTML head section,
+     * are only found if they start within this many bytes.
+     */
+    public static final int SNIFF_BUFFER_SIZE = theResourceHelper.getResourceIntegerOrDefault(
+            "SniffBufferSize",
+            64 * 1024 ); // 64 KB
+
+    /**
+     * Finds the end of the head section of an HTML document.
+     */
+    protected static final Pattern END_HEAD_PATTERN = Pattern.compile( "</head\\s*>", Pattern.CASE_INSENSITIVE );
+
+    /**
+     * The time, in milliseconds, after which the outcome of an XRDS content negotiation is
+     * determined again by asking the data source twice.
+     */
+    public static final long XRDS_NEGOTIATION_REVALIDATION_INTERVAL = theResourceHelper.getResourceLongOrDefault(
+            "XrdsNegotiationRevalidationInterval",
+            60L * 60L * 1000L ); // 1 hour
+
+    /**
+     * The maximum time, in milliseconds, by which a freshness hint given by the data source
+     * may postpone the next run of the Probe.
+     */
+    public static final long MAX_FRESHNESS_HINT = theResourceHelper.getResourceLongOrDefault(
+            "MaxFreshnessHint",
+            24L * 60L * 60L * 1000L ); // 1 day
     
+    /**
+     * The time, in milliseconds, after which a scheduled run is attempted again if it found
+     * another run in progress for the same ShadowMeshBase.
+     */
+    public static final long CONCURRENT_RUN_RETRY_DELAY = theResourceHelper.getResourceLongOrDefault(
+            "ConcurrentRunRetryDelay",
+            5000L ); // 5 sec
+
     /**
      * Magic number indicating a non-initialized theDelayUntilNextUpdate.
      */
     private static final int MAGIC_UNINITIALIZED_DELAY_UNTIL_NEXT_UPDATE = -19191919;
+
+    /**
+     * The possible outcomes of asking an HTTP data source for its content both with and
+     * without the XRDS MIME type.
+     */
+    protected static enum XrdsNegotiationOutcome
+    {
+        /**
+         * The data source returned the same XRDS content regardless of the HTTP Accept header.
+         */
+        SAME_CONTENT,
+
+        /**
+         * The data source returned XRDS content and different, non-XRDS content.
+         */
+        DISTINCT_CONTENT;
+    }
+
+    /**
+     * Captures which MeshObjects in the ShadowMeshBase are replicated, and which of them
+     * have their locks elsewhere, as of a certain replication epoch and set of Proxies.
+     * It only holds identifiers, so it does not keep MeshObjects or Proxies from going away.
+     */
+    protected static class ReplicationIndex
+    {
+        /**
+         * Constructor.
+         *
+         * @param epoch the replication epoch as of which this ReplicationIndex is valid
+         * @param partners identifiers of the NetMeshBases to which there were Proxies when this ReplicationIndex was created
+         */
+        protected ReplicationIndex(
+                int                        epoch,
+                Set<NetMeshBaseIdentifier> partners )
+        {
+            theEpoch    = epoch;
+            thePartners = partners;
+        }
+
+        /**
+         * The replication epoch as of which this ReplicationIndex is valid.
+         */
+        protected final int theEpoch;
+
+        /**
+         * Identifiers of the NetMeshBases to which there were Proxies when this ReplicationIndex was created.
+         */
+        protected final Set<NetMeshBaseIdentifier> thePartners;
+
+        /**
+         * The number of MeshObjects that have at least one Proxy.
+         */
+        protected int theReplicatedCount;
+
+        /**
+         * Identifiers of the MeshObjects whose lock is elsewhere, keyed by the identifier of the
+         * NetMeshBase to which the Proxy towards the lock leads.
+         */
+        protected final HashMap<NetMeshBaseIdentifier,ArrayList<NetMeshObjectIdentifier>> theLocksElsewhere
+                = new HashMap<NetMeshBaseIdentifier,ArrayList<NetMeshObjectIdentifier>>();
+    }
 }
@@ -0,0 +1,311 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.util.WeakHashMap;
+import org.diet4j.core.Module;
+import org.diet4j.core.ModuleActivationException;
+import org.diet4j.core.ModuleMeta;
+import org.diet4j.core.ModuleNotFoundException;
+import org.diet4j.core.ModuleRegistry;
+import org.diet4j.core.ModuleRequirement;
+import org.diet4j.core.ModuleResolutionException;
+import org.infogrid.util.logging.Log;
+
+/**
+ * <p>Remembers, for each ProbeDirectory.ProbeDescriptor, the Probe class it resolved to and that
+ *    class's constructor, so that Modules do not need to be resolved and activated, classes do not
+ *    need to be looked up by name, and constructors do not need to be found, every time a Probe runs.</p>
+ * <p>Entries go away together with their ProbeDescriptor. Entries that were resolved with a
+ *    different ModuleRegistry than the one currently in use are re-resolved, and entries can be
+ *    invalidated explicitly, e.g. after Modules have been updated.</p>
+ * <p>For Probe classes that implement {@link ReusableProbe}, a single instance is created and reused.</p>
+ */
+public class ProbeFactoryCache
+{
+    private static final Log log = Log.getLogInstance( ProbeFactoryCache.class ); // our own, private logger
+
+    /**
+     * Factory method.
+     *
+     * @return the created ProbeFactoryCache
+     */
+    public static ProbeFactoryCache create()
+    {
+        return new ProbeFactoryCache();
+    }
+
+    /**
+     * Constructor for subclasses only, use factory method.
+     */
+    protected ProbeFactoryCache()
+    {
+        // nothing
+    }
+
+    /**
+     * Obtain the ProbeFactory for a ProbeDescriptor, resolving it if needed.
+     *
+     * @param desc the ProbeDescriptor
+     * @param registry the ModuleRegistry to use to find the Probe class, if any
+     * @return the ProbeFactory
+     * @throws ClassNotFoundException thrown if the Probe class could not be found
+     */
+    public ProbeFactory obtainFactoryFor(
+            ProbeDirectory.ProbeDescriptor desc,
+            ModuleRegistry                 registry )
+        throws
+            ClassNotFoundException
+    {
+        ProbeFactory ret;
+        synchronized( theFactories ) {
+            ret = theFactories.get( desc );
+        }
+        if( ret != null && ret.isValidFor( registry )) {
+            return ret;
+        }
+
+        ret = resolve( desc, registry );
+
+        synchronized( theFactories ) {
+            theFactories.put( desc, ret );
+        }
+        return ret;
+    }
+
+    /**
+     * Forget what has been resolved for a ProbeDescriptor.
+     *
+     * @param desc the ProbeDescriptor
+     */
+    public void invalidate(
+            ProbeDirectory.ProbeDescriptor desc )
+    {
+        synchronized( theFactories ) {
+            theFactories.remove( desc );
+        }
+    }
+
+    /**
+     * Forget everything that has been resolved. Invoke this after Modules have been updated.
+     */
+    public void invalidateAll()
+    {
+        synchronized( theFactories ) {
+            theFactories.clear();
+        }
+    }
+
+    /**
+     * Resolve a ProbeDescriptor.
+     *
+     * @param desc the ProbeDescriptor
+     * @param registry the ModuleRegistry to use to find the Probe class, if any
+     * @return the ProbeFactory
+     * @throws ClassNotFoundException thrown if the Probe class could not be found
+     */
+    @SuppressWarnings( "unchecked" )
+    protected ProbeFactory resolve(
+            ProbeDirectory.ProbeDescriptor desc,
+            ModuleRegistry                 registry )
+        throws
+            ClassNotFoundException
+    {
+        Class<? extends Probe> foundClass = desc.getProbeClass();
+
+        if( foundClass == null ) {
+            String            foundClassName   = desc.getProbeClassName();
+            ModuleRequirement foundModuleReq   = desc.getModuleRequirement();
+            ClassLoader       foundClassLoader = null;
+
+            if( log.isDebugEnabled() ) {
+                log.debug( this + ": resolving Probe class " + foundClassName );
+            }
+
+            if( registry != null && foundModuleReq != null ) {
+                // we take the first module that supports this interface/class
+                ModuleMeta [] candidates = registry.determineResolutionCandidates( foundModuleReq );
+                if( candidates.length >= 1 ) {
+                    // if more than one, pick the most recent (i.e. first)
+                    if( candidates.length > 1 ) {
+                        log.info( "More than one Module found for ModuleRequirement", foundModuleReq, candidates );
+                    }
+                    try {
+                        Module foundModule = registry.resolve( candidates[0], true );
+                        foundModule.activateRecursively();
+                        foundClassLoader = foundModule.getClassLoader();
+                    } catch( ModuleResolutionException ex ) {
+                        log.warn( "Module could not be resolved for meta: " + candidates[0], ex );
+                    } catch( MalformedURLException ex ) {
+                        log.warn( "Module could not be resolved for meta: " + candidates[0], ex );
+                    } catch( ModuleNotFoundException ex ) {
+                        log.warn( "Module not found for meta: " + candidates[0], ex );
+                    } catch( ModuleActivationException ex ) {
+                        log.warn( "Module failed to activate for meta: " + candidates[0], ex );
+                    }
+                }
+            }
+            if( foundClassLoader == null ) { // attempt default loader
+                foundClassLoader = getClass().getClassLoader();
+            }
+
+            foundClass = (Class<? extends Probe>) Class.forName( foundClassName, true, foundClassLoader );
+        }
+
+        return new ProbeFactory( foundClass, registry );
+    }
+
+    /**
+     * The ProbeFactories resolved so far, keyed by ProbeDescriptor.
+     */
+    protected final WeakHashMap<ProbeDirectory.ProbeDescriptor,ProbeFactory> theFactories
+            = new WeakHashMap<ProbeDirectory.ProbeDescriptor,ProbeFactory>();
+
+    /**
+     * Singleton instance, shared by all ProbeDispatchers.
+     */
+    public static final ProbeFactoryCache SINGLETON = new ProbeFactoryCache();
+
+    /**
+     * Knows how to instantiate a resolved Probe class.
+     */
+    public static class ProbeFactory
+    {
+        /**
+         * Constructor.
+         *
+         * @param probeClass the resolved Probe class
+         * @param registry the ModuleRegistry that was used for resolving, if any
+         */
+        protected ProbeFactory(
+                Class<? extends Probe> probeClass,
+                ModuleRegistry         registry )
+        {
+            theProbeClass  = probeClass;
+            theRegistryRef = registry != null ? new WeakReference<ModuleRegistry>( registry ) : null;
+            theIsReusable  = ReusableProbe.class.isAssignableFrom( probeClass );
+
+            Constructor<? extends Probe> constructor;
+            try {
+                constructor = probeClass.getDeclaredConstructor();
+            } catch( NoSuchMethodException ex ) {
+                constructor = null; // we complain when we are asked to instantiate
+            }
+            theConstructor = constructor;
+        }
+
+        /**
+         * Obtain the resolved Probe class.
+         *
+         * @return the Probe class
+         */
+        public Class<? extends Probe> getProbeClass()
+        {
+            return theProbeClass;
+        }
+
+        /**
+         * Obtain a Probe instance. For ReusableProbes, this returns the same instance every time.
+         *
+         * @return the Probe
+         * @throws InstantiationException thrown if the Probe class could not be instantiated
+         * @throws IllegalAccessException thrown if the Probe class' constructor was not accessible
+         * @throws InvocationTargetException thrown if the Probe class' constructor threw an Exception
+         */
+        public Probe obtainProbe()
+            throws
+                InstantiationException,
+                IllegalAccessException,
+                InvocationTargetException
+        {
+            if( theIsReusable ) {
+                Probe ret = theReusableProbe;
+                if( ret == null ) {
+                    synchronized( this ) {
+                        ret = theReusableProbe;
+                        if( ret == null ) {
+                            ret = theReusableProbe = instantiate();
+                        }
+                    }
+                }
+                return ret;
+            }
+            return instantiate();
+        }
+
+        /**
+         * Create a new Probe instance.
+         *
+         * @return the Probe
+         * @throws InstantiationException thrown if the Probe class could not be instantiated
+         * @throws IllegalAccessException thrown if the Probe class' constructor was not accessible
+         * @throws InvocationTargetException thrown if the Probe class' constructor threw an Exception
+         */
+        protected Probe instantiate()
+            throws
+                InstantiationException,
+                IllegalAccessException,
+                InvocationTargetException
+        {
+            if( theConstructor == null ) {
+                throw new InstantiationException( "No default constructor: " + theProbeClass.getName() );
+            }
+            Probe ret = theConstructor.newInstance();
+            return ret;
+        }
+
+        /**
+         * Determine whether this ProbeFactory can still be used.
+         *
+         * @param registry the ModuleRegistry that would be used for resolving now, if any
+         * @return true if it can still be used
+         */
+        protected boolean isValidFor(
+                ModuleRegistry registry )
+        {
+            ModuleRegistry resolvedWith = theRegistryRef != null ? theRegistryRef.get() : null;
+            return resolvedWith == registry;
+        }
+
+        /**
+         * The resolved Probe class.
+         */
+        protected final Class<? extends Probe> theProbeClass;
+
+        /**
+         * The default constructor of the resolved Probe class, if it has one.
+         */
+        protected final Constructor<? extends Probe> theConstructor;
+
+        /**
+         * The ModuleRegistry that was used for resolving, if any.
+         */
+        protected final WeakReference<ModuleRegistry> theRegistryRef;
+
+        /**
+         * If true, the Probe class is a ReusableProbe.
+         */
+        protected final boolean theIsReusable;
+
+        /**
+         * The single instance of a ReusableProbe, once created.
+         */
+        protected volatile Probe theReusableProbe;
+    }
+}
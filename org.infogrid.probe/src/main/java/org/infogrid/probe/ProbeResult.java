@@ -30,10 +30,34 @@ public class ProbeResult
             boolean                updated,
             boolean                usedWritableProbe,
             Class<? extends Probe> usedProbeClass )
+    {
+        this( updated, usedWritableProbe, usedProbeClass, null, 0L, null );
+    }
+
+    /**
+     * Constructor for Probe runs that read a stream.
+     *
+     * @param updated if true, the Shadow was updated during the probe run
+     * @param usedWritableProbe if true, the probe run used a WritableProbe
+     * @param usedProbeClass the Probe class that was used, or null
+     * @param httpETag the ETag HTTP header returned by the data source, or null
+     * @param httpLastModified the Last-Modified HTTP header returned by the data source, or 0 if none
+     * @param contentDigest the digest of the content read from the stream, or null
+     */
+    public ProbeResult(
+            boolean                updated,
+            boolean                usedWritableProbe,
+            Class<? extends Probe> usedProbeClass,
+            String                 httpETag,
+            long                   httpLastModified,
+            String                 contentDigest )
     {
         theUpdated           = updated;
         theUsedWritableProbe = usedWritableProbe;
         theUsedProbeClass    = usedProbeClass;
+        theHttpETag          = httpETag;
+        theHttpLastModified  = httpLastModified;
+        theContentDigest     = contentDigest;
     }
     
     /**
@@ -67,6 +91,36 @@ public class ProbeResult
         return theUsedProbeClass;
     }
 
+    /**
+     * Obtain the ETag HTTP header returned by the data source, if any.
+     *
+     * @return the ETag, or null
+     */
+    public String getHttpETag()
+    {
+        return theHttpETag;
+    }
+
+    /**
+     * Obtain the Last-Modified HTTP header returned by the data source, if any.
+     *
+     * @return the Last-Modified time in System.currentTimeMillis() format, or 0 if none
+     */
+    public long getHttpLastModified()
+    {
+        return theHttpLastModified;
+    }
+
+    /**
+     * Obtain the digest of the content read from the stream, if any.
+     *
+     * @return the digest, or null
+     */
+    public String getContentDigest()
+    {
+        return theContentDigest;
+    }
+
     /**
      * If true, the Shadow was updated during the Probe run.
      */
@@ -81,4 +135,19 @@ public class ProbeResult
      * The Probe class that was used in this run.
      */
     protected Class<? extends Probe> theUsedProbeClass;
+
+    /**
+     * The ETag HTTP header returned by the data source, if any.
+     */
+    protected String theHttpETag;
+
+    /**
+     * The Last-Modified HTTP header returned by the data source, or 0.
+     */
+    protected long theHttpLastModified;
+
+    /**
+     * The digest of the content read from the stream, or null.
+     */
+    protected String theContentDigest;
 }
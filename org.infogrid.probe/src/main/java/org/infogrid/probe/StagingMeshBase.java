@@ -40,7 +40,27 @@ public interface StagingMeshBase
      * @return the start time of the current update
      */
     public long getCurrentUpdateStartedTime();
-    
+
+    /**
+     * Allow a Probe to tell the framework that, according to the data source, the data
+     * will not change before a certain time, e.g. because the data source specified an expiration
+     * date or a time-to-live. If the ProbeUpdateSpecification adapts its delay, the next run of the
+     * Probe will not be scheduled earlier than that, within limits; explicitly specified periods are
+     * not affected. This is only invoked during an actual update.
+     *
+     * @param notChangedBefore the time before which the data will not change, in System.currentTimeMillis() format
+     */
+    public void addFreshnessHint(
+            long notChangedBefore );
+
+    /**
+     * Obtain the policy that limits which entries of a data source consisting of a sequence
+     * of entries, such as a feed, a Probe instantiates.
+     *
+     * @return the policy, or null if the Probe may apply its own default
+     */
+    public EntryRetentionPolicy getEntryRetentionPolicy();
+
     /**
      * Obtain a MeshObjectLifecycleManager that is appropriate for StagingMeshBases.
      *
@@ -0,0 +1,278 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Indexes PatternMatchDescriptors by the literal prefix of their URL patterns in a prefix trie,
+ *    so that finding the PatternMatchDescriptor for a URL only needs to evaluate the regular
+ *    expressions of those PatternMatchDescriptors whose literal prefix is a prefix of the URL.</p>
+ * <p>Candidates are evaluated in the order in which the PatternMatchDescriptors were given, so
+ *    the first PatternMatchDescriptor that matches is found, as with a linear scan.</p>
+ * <p>Instances are immutable; to add a PatternMatchDescriptor, create a new instance.</p>
+ */
+public class UrlPatternIndex
+{
+    /**
+     * Factory method.
+     *
+     * @param patternMatches the PatternMatchDescriptors to index, in order
+     * @return the created UrlPatternIndex
+     */
+    public static UrlPatternIndex create(
+            Collection<? extends ProbeDirectory.PatternMatchDescriptor> patternMatches )
+    {
+        Node root  = new Node();
+        int  count = 0;
+
+        for( ProbeDirectory.PatternMatchDescriptor current : patternMatches ) {
+            String prefix = determineLiteralPrefix( current.getUrlPattern() );
+
+            Node here = root;
+            for( int i=0 ; i<prefix.length() ; ++i ) {
+                here = here.obtainChild( prefix.charAt( i ));
+            }
+            here.theCandidates.add( new Candidate( count++, current ));
+        }
+        return new UrlPatternIndex( root, count );
+    }
+
+    /**
+     * Constructor, use factory method.
+     *
+     * @param root the root of the trie
+     * @param size the number of indexed PatternMatchDescriptors
+     */
+    protected UrlPatternIndex(
+            Node root,
+            int  size )
+    {
+        theRoot = root;
+        theSize = size;
+    }
+
+    /**
+     * Obtain the number of indexed PatternMatchDescriptors.
+     *
+     * @return the number
+     */
+    public int size()
+    {
+        return theSize;
+    }
+
+    /**
+     * Find the first PatternMatchDescriptor that matches this URL.
+     *
+     * @param url the URL
+     * @return the PatternMatchDescriptor, or null
+     */
+    public ProbeDirectory.PatternMatchDescriptor findFirstMatch(
+            String url )
+    {
+        // collect the candidates along the path through the trie
+        List<Candidate> candidates = null;
+        int             nLists     = 0;
+
+        Node here = theRoot;
+        int  i    = 0;
+        while( here != null ) {
+            if( !here.theCandidates.isEmpty() ) {
+                if( candidates == null ) {
+                    candidates = new ArrayList<Candidate>( here.theCandidates );
+                } else {
+                    candidates.addAll( here.theCandidates );
+                }
+                ++nLists;
+            }
+            if( i >= url.length() || here.theChildren == null ) {
+                break;
+            }
+            here = here.theChildren.get( url.charAt( i++ ));
+        }
+        if( candidates == null ) {
+            return null;
+        }
+        if( nLists > 1 ) {
+            Collections.sort( candidates );
+        }
+        for( Candidate current : candidates ) {
+            if( current.theDescriptor.matches( url )) {
+                return current.theDescriptor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determine the literal prefix that any String matching this Pattern must start with.
+     * This is conservative: it may return a shorter prefix than the real one, such as the empty String.
+     *
+     * @param pattern the Pattern
+     * @return the literal prefix
+     */
+    public static String determineLiteralPrefix(
+            Pattern pattern )
+    {
+        if( pattern.flags() != 0 ) {
+            return ""; // case-insensitive, comments and the like
+        }
+        String regex = pattern.pattern();
+        if( regex.indexOf( '|' ) >= 0 ) {
+            return ""; // we do not attempt to figure out where alternatives start
+        }
+
+        StringBuilder ret = new StringBuilder();
+        int           i   = regex.startsWith( "^" ) ? 1 : 0;
+
+        while( i < regex.length() ) {
+            char c = regex.charAt( i );
+            char literal;
+            int  next;
+
+            if( c == '\\' ) {
+                if( i+1 >= regex.length() ) {
+                    break;
+                }
+                char escaped = regex.charAt( i+1 );
+                if( Character.isLetterOrDigit( escaped )) {
+                    break; // character class, back reference, \Q and the like
+                }
+                literal = escaped;
+                next    = i+2;
+
+            } else if( META_CHARACTERS.indexOf( c ) >= 0 ) {
+                break;
+
+            } else {
+                literal = c;
+                next    = i+1;
+            }
+
+            if( next < regex.length() && QUANTIFIERS.indexOf( regex.charAt( next )) >= 0 ) {
+                break; // the literal is optional or repeated
+            }
+            ret.append( literal );
+            i = next;
+        }
+        return ret.toString();
+    }
+
+    /**
+     * The root of the trie.
+     */
+    protected final Node theRoot;
+
+    /**
+     * The number of indexed PatternMatchDescriptors.
+     */
+    protected final int theSize;
+
+    /**
+     * The characters that end a literal prefix.
+     */
+    protected static final String META_CHARACTERS = "\\^$.|?*+()[]{}";
+
+    /**
+     * The characters that make the preceding literal optional or repeated.
+     */
+    protected static final String QUANTIFIERS = "?*+{";
+
+    /**
+     * A node in the trie.
+     */
+    protected static class Node
+    {
+        /**
+         * Find or create the child Node for this character.
+         *
+         * @param c the character
+         * @return the child Node
+         */
+        Node obtainChild(
+                char c )
+        {
+            if( theChildren == null ) {
+                theChildren = new HashMap<Character,Node>();
+            }
+            Node ret = theChildren.get( c );
+            if( ret == null ) {
+                ret = new Node();
+                theChildren.put( c, ret );
+            }
+            return ret;
+        }
+
+        /**
+         * The child Nodes, keyed by the next character, if any.
+         */
+        protected HashMap<Character,Node> theChildren;
+
+        /**
+         * The PatternMatchDescriptors whose literal prefix ends at this Node.
+         */
+        protected final List<Candidate> theCandidates = new ArrayList<Candidate>( 1 );
+    }
+
+    /**
+     * A PatternMatchDescriptor, together with its position in the original order.
+     */
+    protected static class Candidate
+            implements
+                Comparable<Candidate>
+    {
+        /**
+         * Constructor.
+         *
+         * @param position the position in the original order
+         * @param descriptor the PatternMatchDescriptor
+         */
+        Candidate(
+                int                                   position,
+                ProbeDirectory.PatternMatchDescriptor descriptor )
+        {
+            thePosition   = position;
+            theDescriptor = descriptor;
+        }
+
+        /**
+         * Compare by position in the original order.
+         *
+         * @param other the Candidate to compare with
+         * @return comparison value
+         */
+        public int compareTo(
+                Candidate other )
+        {
+            return thePosition < other.thePosition ? -1 : ( thePosition == other.thePosition ? 0 : 1 );
+        }
+
+        /**
+         * The position in the original order.
+         */
+        protected final int thePosition;
+
+        /**
+         * The PatternMatchDescriptor.
+         */
+        protected final ProbeDirectory.PatternMatchDescriptor theDescriptor;
+    }
+}
@@ -0,0 +1,283 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+
+package org.infogrid.probe.blob;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import org.infogrid.model.primitives.BlobDataType;
+import org.infogrid.model.primitives.BlobValue;
+import org.infogrid.probe.ProbeDispatcher;
+import org.infogrid.util.logging.Log;
+
+/**
+ * <p>Shares BlobValues with identical content and MIME type, so that identical payloads found by
+ *    different Probe runs, or in different ShadowMeshBases, are held in memory only once.</p>
+ * <p>Content is identified by its digest, which is computed in a single pass over the content,
+ *    unless the caller has it already. The cache holds on to the digest only, not to the content,
+ *    and references the BlobValues weakly, so the content goes away once no ShadowMeshBase uses
+ *    it any more.</p>
+ */
+public class BlobContentCache
+{
+    private static final Log log = Log.getLogInstance( BlobContentCache.class ); // our own, private logger
+
+    /**
+     * Factory method.
+     *
+     * @return the created BlobContentCache
+     */
+    public static BlobContentCache create()
+    {
+        return new BlobContentCache();
+    }
+
+    /**
+     * Constructor for subclasses only, use factory method.
+     */
+    protected BlobContentCache()
+    {
+    }
+
+    /**
+     * Obtain a BlobValue with this content and MIME type. If one is in use already, it is returned;
+     * otherwise a new BlobValue is created.
+     *
+     * @param type the BlobDataType of the BlobValue
+     * @param content the content, which must not be modified afterwards
+     * @param mimeType the MIME type of the content
+     * @return the BlobValue
+     */
+    public BlobValue obtainFor(
+            BlobDataType type,
+            byte []      content,
+            String       mimeType )
+    {
+        return obtainFor( type, content, null, mimeType );
+    }
+
+    /**
+     * Obtain a BlobValue with this content and MIME type, given the digest of the content if it
+     * is known already. If one is in use already, it is returned; otherwise a new BlobValue is created.
+     *
+     * @param type the BlobDataType of the BlobValue
+     * @param content the content, which must not be modified afterwards
+     * @param digest the digest of the content, using ProbeDispatcher.CONTENT_DIGEST_ALGORITHM, or null if not known
+     * @param mimeType the MIME type of the content
+     * @return the BlobValue
+     */
+    public BlobValue obtainFor(
+            BlobDataType type,
+            byte []      content,
+            byte []      digest,
+            String       mimeType )
+    {
+        if( digest == null ) {
+            try {
+                digest = MessageDigest.getInstance( ProbeDispatcher.CONTENT_DIGEST_ALGORITHM ).digest( content );
+
+            } catch( NoSuchAlgorithmException ex ) {
+                log.error( ex );
+                return type.createBlobValue( content, mimeType ); // cannot share
+            }
+        }
+
+        ContentKey key = new ContentKey( type, digest, mimeType );
+
+        synchronized( theValues ) {
+            purge();
+
+            ValueReference found = theValues.get( key );
+            if( found != null ) {
+                BlobValue ret = found.get();
+                if( ret != null ) {
+                    return ret;
+                }
+            }
+            BlobValue ret = type.createBlobValue( content, mimeType );
+            theValues.put( key, new ValueReference( key, ret, theQueue ));
+
+            return ret;
+        }
+    }
+
+    /**
+     * Determine the number of BlobValues in this cache, some of which may not be in use any more.
+     *
+     * @return the number
+     */
+    public int size()
+    {
+        synchronized( theValues ) {
+            purge();
+
+            return theValues.size();
+        }
+    }
+
+    /**
+     * Remove the entries whose BlobValues are not in use any more.
+     */
+    protected void purge()
+    {
+        ValueReference current;
+        while( ( current = (ValueReference) theQueue.poll()) != null ) {
+            if( theValues.get( current.theKey ) == current ) {
+                theValues.remove( current.theKey );
+            }
+        }
+    }
+
+    /**
+     * The cached BlobValues, keyed by the digest of their content.
+     */
+    protected final HashMap<ContentKey,ValueReference> theValues = new HashMap<ContentKey,ValueReference>();
+
+    /**
+     * Notifies us of BlobValues that are not in use any more.
+     */
+    protected final ReferenceQueue<BlobValue> theQueue = new ReferenceQueue<BlobValue>();
+
+    /**
+     * Singleton instance, shared by the BlobProbes.
+     */
+    public static final BlobContentCache SINGLETON = create();
+
+    /**
+     * Identifies a BlobValue by the digest of its content, so the content itself is not kept here.
+     */
+    protected static class ContentKey
+    {
+        /**
+         * Constructor.
+         *
+         * @param type the BlobDataType
+         * @param digest the digest of the content
+         * @param mimeType the MIME type
+         */
+        public ContentKey(
+                BlobDataType type,
+                byte []      digest,
+                String       mimeType )
+        {
+            theType     = type;
+            theDigest   = digest;
+            theMimeType = mimeType;
+
+            int hash = ( digest[0] & 0xff ) | ( digest[1] & 0xff ) << 8 | ( digest[2] & 0xff ) << 16 | ( digest[3] & 0xff ) << 24;
+                    // the digest is well distributed already
+            if( mimeType != null ) {
+                hash ^= mimeType.hashCode();
+            }
+            theHashCode = hash;
+        }
+
+        /**
+         * Determine equality.
+         *
+         * @param other the Object to compare with
+         * @return true if the objects are equal
+         */
+        @Override
+        public boolean equals(
+                Object other )
+        {
+            if( !( other instanceof ContentKey )) {
+                return false;
+            }
+            ContentKey realOther = (ContentKey) other;
+
+            if( theHashCode != realOther.theHashCode ) {
+                return false;
+            }
+            if( !theType.equals( realOther.theType )) {
+                return false;
+            }
+            if( theMimeType == null ) {
+                if( realOther.theMimeType != null ) {
+                    return false;
+                }
+            } else if( !theMimeType.equals( realOther.theMimeType )) {
+                return false;
+            }
+            return Arrays.equals( theDigest, realOther.theDigest );
+        }
+
+        /**
+         * Hash code.
+         *
+         * @return hash code
+         */
+        @Override
+        public int hashCode()
+        {
+            return theHashCode;
+        }
+
+        /**
+         * The BlobDataType.
+         */
+        protected final BlobDataType theType;
+
+        /**
+         * The digest of the content.
+         */
+        protected final byte [] theDigest;
+
+        /**
+         * The MIME type.
+         */
+        protected final String theMimeType;
+
+        /**
+         * The hash code.
+         */
+        protected final int theHashCode;
+    }
+
+    /**
+     * Weakly references a cached BlobValue, and remembers its key so the entry can be removed.
+     */
+    protected static class ValueReference
+            extends
+                WeakReference<BlobValue>
+    {
+        /**
+         * Constructor.
+         *
+         * @param key the key of the entry
+         * @param value the BlobValue
+         * @param queue the ReferenceQueue to register with
+         */
+        public ValueReference(
+                ContentKey                key,
+                BlobValue                 value,
+                ReferenceQueue<BlobValue> queue )
+        {
+            super( value, queue );
+
+            theKey = key;
+        }
+
+        /**
+         * The key of the entry.
+         */
+        protected final ContentKey theKey;
+    }
+}
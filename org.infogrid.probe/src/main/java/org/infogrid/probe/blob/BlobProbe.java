@@ -32,14 +32,17 @@ import org.infogrid.meshbase.net.CoherenceSpecification;
 import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
 import org.infogrid.meshbase.transaction.TransactionException;
 import org.infogrid.model.Blob.BlobSubjectArea;
+import org.infogrid.model.primitives.BlobValue;
 import org.infogrid.model.primitives.StringValue;
+import org.infogrid.probe.ContentInputStream;
 import org.infogrid.probe.NonXmlStreamProbe;
 import org.infogrid.probe.ProbeException;
 import org.infogrid.probe.StagingMeshBase;
 import org.infogrid.util.StreamUtils;
 
 /**
- * A Probe for arbitrary Blob (Binary Large Objects) objects.
+ * A Probe for arbitrary Blob (Binary Large Objects) objects. Identical content is shared
+ * through the {@link BlobContentCache}.
  */
 public class BlobProbe
     implements
@@ -120,14 +123,24 @@ public class BlobProbe
             TransactionException,
             URISyntaxException
     {
-        byte [] buf = StreamUtils.slurp( stream );
+        byte [] buf;
+        byte [] digest;
+        if( stream instanceof ContentInputStream ) {
+            digest = ((ContentInputStream) stream).getContentDigest(); // computed already, if any
+            buf    = ((ContentInputStream) stream).consumeContent(); // in memory already
+        } else {
+            digest = null;
+            buf    = StreamUtils.slurp( stream );
+        }
+
+        BlobValue content = BlobContentCache.SINGLETON.obtainFor( BlobSubjectArea.BLOBOBJECT_CONTENT_type, buf, digest, contentType );
 
         // create a new Blob object
         MeshObject theBlobObject = freshMeshBase.getHomeObject();
         
         theBlobObject.bless( BlobSubjectArea.BLOBOBJECT );
 
-        theBlobObject.setPropertyValue( BlobSubjectArea.BLOBOBJECT_CONTENT,  BlobSubjectArea.BLOBOBJECT_CONTENT_type.createBlobValue( buf, contentType ));
+        theBlobObject.setPropertyValue( BlobSubjectArea.BLOBOBJECT_CONTENT,  content );
         theBlobObject.setPropertyValue( BlobSubjectArea.BLOBOBJECT_CODEBASE, StringValue.create( dataSourceIdentifier.toExternalForm() ));
     }
 }
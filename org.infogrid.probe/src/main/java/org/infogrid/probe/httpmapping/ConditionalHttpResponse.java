@@ -0,0 +1,286 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.httpmapping;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import org.infogrid.util.StreamUtils;
+
+/**
+ * The response of an HTTP data source to a GET issued by the Probe framework. The GET is
+ * conditional, i.e. it carries the validators (ETag, Last-Modified) obtained at the most recent
+ * run, if there are any. Small content is read into memory; larger content, or content of
+ * unknown length, is left on the connection to be streamed, in which case the response
+ * must be closed.
+ */
+public class ConditionalHttpResponse
+{
+    /**
+     * Constructor.
+     *
+     * @param url the URL that responded, after redirects were followed, if any
+     * @param responseCode the HTTP response code
+     * @param headerFields the HTTP response header fields
+     * @param content the content of the response, if it has been read into memory
+     * @param contentStream the stream from which to read the content, if it has not been read into memory
+     * @param connection the connection to close once the content stream has been read, if any
+     * @param contentType the MIME type of the content, without parameters, if any
+     * @param lastModified the Last-Modified time, or 0 if none
+     */
+    public ConditionalHttpResponse(
+            URL                      url,
+            String                   responseCode,
+            Map<String,List<String>> headerFields,
+            byte []                  content,
+            InputStream              contentStream,
+            HttpURLConnection        connection,
+            String                   contentType,
+            long                     lastModified )
+    {
+        theUrl           = url;
+        theResponseCode  = responseCode;
+        theHeaderFields  = headerFields;
+        theContent       = content;
+        theContentStream = contentStream;
+        theConnection    = connection;
+        theContentType   = contentType;
+        theLastModified  = lastModified;
+    }
+
+    /**
+     * Obtain the URL that responded, after redirects were followed, if any.
+     *
+     * @return the URL
+     */
+    public URL getURL()
+    {
+        return theUrl;
+    }
+
+    /**
+     * Obtain the HTTP response code.
+     *
+     * @return the response code
+     */
+    public String getResponseCode()
+    {
+        return theResponseCode;
+    }
+
+    /**
+     * Determine whether the data source responded with 304 Not Modified.
+     *
+     * @return true if not modified
+     */
+    public boolean isNotModified()
+    {
+        return "304".equals( theResponseCode );
+    }
+
+    /**
+     * Determine whether the data source responded with a 2xx response code.
+     *
+     * @return true if successful
+     */
+    public boolean isSuccess()
+    {
+        return theResponseCode != null && theResponseCode.startsWith( "2" );
+    }
+
+    /**
+     * Determine whether the data source responded with a redirect that has not been followed.
+     *
+     * @return true if a redirect
+     */
+    public boolean isRedirect()
+    {
+        return theResponseCode != null && theResponseCode.startsWith( "3" ) && !isNotModified() && getLocation() != null;
+    }
+
+    /**
+     * Obtain the location the data source redirected to, if any.
+     *
+     * @return the location, or null
+     */
+    public String getLocation()
+    {
+        return getSingleHttpHeaderField( "Location" );
+    }
+
+    /**
+     * Obtain the value of an HTTP response header field, if present exactly once.
+     *
+     * @param name name of the header field
+     * @return the value, or null
+     */
+    public String getSingleHttpHeaderField(
+            String name )
+    {
+        if( theHeaderFields == null ) {
+            return null;
+        }
+        for( Map.Entry<String,List<String>> current : theHeaderFields.entrySet() ) {
+            if( name.equalsIgnoreCase( current.getKey() )) {
+                List<String> values = current.getValue();
+                if( values != null && values.size() == 1 ) {
+                    return values.get( 0 );
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Obtain the content, if it has been read into memory.
+     *
+     * @return the content, or null if the response did not have any or it needs to be streamed
+     * @see #getContentStream
+     */
+    public byte [] getContent()
+    {
+        return theContent;
+    }
+
+    /**
+     * Obtain the stream from which to read the content, if it has not been read into memory.
+     * The stream can only be read once.
+     *
+     * @return the stream, or null
+     * @see #getContent
+     */
+    public InputStream getContentStream()
+    {
+        return theContentStream;
+    }
+
+    /**
+     * Read the content into memory, if it has not been already. This is only appropriate
+     * for content that is known to be small, such as XRDS documents.
+     *
+     * @return the content, or null if the response did not have any
+     * @throws IOException thrown if the content could not be read
+     */
+    public byte [] readContent()
+        throws
+            IOException
+    {
+        if( theContent == null && theContentStream != null ) {
+            try {
+                theContent = StreamUtils.slurp( theContentStream );
+            } finally {
+                close();
+            }
+        }
+        return theContent;
+    }
+
+    /**
+     * Close the content stream and the connection, if they are still open.
+     *
+     * @throws IOException thrown if the stream could not be closed
+     */
+    public void close()
+        throws
+            IOException
+    {
+        try {
+            if( theContentStream != null ) {
+                theContentStream.close();
+                theContentStream = null;
+            }
+        } finally {
+            if( theConnection != null ) {
+                theConnection.disconnect();
+                theConnection = null;
+            }
+        }
+    }
+
+    /**
+     * Obtain the MIME type of the content, without parameters.
+     *
+     * @return the MIME type, or null
+     */
+    public String getContentType()
+    {
+        return theContentType;
+    }
+
+    /**
+     * Obtain the Last-Modified time.
+     *
+     * @return the time in System.currentTimeMillis() format, or 0 if none
+     */
+    public long getLastModified()
+    {
+        return theLastModified;
+    }
+
+    /**
+     * Convert to String, for debugging.
+     *
+     * @return String form
+     */
+    @Override
+    public String toString()
+    {
+        return getClass().getName() + "{ " + theResponseCode + ", " + theUrl + " }";
+    }
+
+    /**
+     * The URL that responded.
+     */
+    protected final URL theUrl;
+
+    /**
+     * The HTTP response code.
+     */
+    protected final String theResponseCode;
+
+    /**
+     * The HTTP response header fields.
+     */
+    protected final Map<String,List<String>> theHeaderFields;
+
+    /**
+     * The content, if it has been read into memory.
+     */
+    protected byte [] theContent;
+
+    /**
+     * The stream from which to read the content, if it has not been read into memory.
+     */
+    protected InputStream theContentStream;
+
+    /**
+     * The connection to close once the content stream has been read.
+     */
+    protected HttpURLConnection theConnection;
+
+    /**
+     * The MIME type of the content, if any.
+     */
+    protected final String theContentType;
+
+    /**
+     * The Last-Modified time, or 0.
+     */
+    protected final long theLastModified;
+}
@@ -49,6 +49,35 @@ public interface HttpMappingPolicy
             NotPermittedException,
             IOException;
 
+    /**
+     * Given the home object that was attempted to be accessed by a Probe, and the response of the data source
+     * to a conditional HTTP request, perform what is necessary to correctly process the response.
+     * This is the counterpart of processHttpResponse for data sources that are accessed with the validators
+     * obtained at the most recent run; the data source is accessed only once per run either way.
+     *
+     * @param homeObject the home object of the Probe
+     * @param response the response received
+     * @return the response to use instead, if any
+     * @throws MeshObjectsNotFoundException possible exception thrown
+     * @throws NotPermittedException possible exception thrown
+     * @throws IOException possible exception thrown
+     */
+    public ConditionalHttpResponse processConditionalHttpResponse(
+            NetMeshObject           homeObject,
+            ConditionalHttpResponse response )
+        throws
+            MeshObjectsNotFoundException,
+            NotPermittedException,
+            IOException;
+
+    /**
+     * Determine whether redirects by the data source are to be followed when it is accessed with a
+     * conditional HTTP request. If false, the redirect is passed to processConditionalHttpResponse.
+     *
+     * @return true if redirects are to be followed
+     */
+    public boolean getFollowRedirects();
+
     /**
      * Given that the Probe or ProbeFramework threw this ProbeException, decide how to proceed.
      *
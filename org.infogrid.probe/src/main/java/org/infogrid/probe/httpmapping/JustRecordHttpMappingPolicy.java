@@ -52,6 +52,41 @@ public class JustRecordHttpMappingPolicy
         return null;
     }
 
+    /**
+     * Given the home object that was attempted to be accessed by a Probe, and the response of the data source
+     * to a conditional HTTP request, perform what is necessary to correctly process the response.
+     * The response code is recorded by the caller, so there is nothing left to do.
+     *
+     * @param homeObject the home object of the Probe
+     * @param response the response received
+     * @return the response to use instead, if any
+     * @throws MeshObjectsNotFoundException possible exception thrown
+     * @throws NotPermittedException possible exception thrown
+     * @throws IOException possible exception thrown
+     */
+    public ConditionalHttpResponse processConditionalHttpResponse(
+            NetMeshObject           homeObject,
+            ConditionalHttpResponse response )
+        throws
+            MeshObjectsNotFoundException,
+            NotPermittedException,
+            IOException
+    {
+        return null;
+    }
+
+    /**
+     * Determine whether redirects by the data source are to be followed when it is accessed with a
+     * conditional HTTP request.
+     * This policy does not follow redirects, so the redirect location is recorded instead.
+     *
+     * @return true if redirects are to be followed
+     */
+    public boolean getFollowRedirects()
+    {
+        return false;
+    }
+
     /**
      * Given that the Probe or ProbeFramework threw this ProbeException, decide how to proceed.
      *
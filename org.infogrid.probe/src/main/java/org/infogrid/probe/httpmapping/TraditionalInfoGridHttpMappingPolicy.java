@@ -80,6 +80,41 @@ public class TraditionalInfoGridHttpMappingPolicy
         }
     }
 
+    /**
+     * Given the home object that was attempted to be accessed by a Probe, and the response of the data source
+     * to a conditional HTTP request, perform what is necessary to correctly process the response.
+     * Redirects have been followed already while the data source was accessed, so there is nothing left to do.
+     *
+     * @param homeObject the home object of the Probe
+     * @param response the response received
+     * @return the response to use instead, if any
+     * @throws MeshObjectsNotFoundException possible exception thrown
+     * @throws NotPermittedException possible exception thrown
+     * @throws IOException possible exception thrown
+     */
+    public ConditionalHttpResponse processConditionalHttpResponse(
+            NetMeshObject           homeObject,
+            ConditionalHttpResponse response )
+        throws
+            MeshObjectsNotFoundException,
+            NotPermittedException,
+            IOException
+    {
+        return null;
+    }
+
+    /**
+     * Determine whether redirects by the data source are to be followed when it is accessed with a
+     * conditional HTTP request.
+     * This policy follows redirects, as it does in processHttpResponse.
+     *
+     * @return true if redirects are to be followed
+     */
+    public boolean getFollowRedirects()
+    {
+        return true;
+    }
+
     /**
      * Given that the Probe or ProbeFramework threw this ProbeException, decide how to proceed.
      *
@@ -0,0 +1,446 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.m;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import org.infogrid.probe.AbstractProbeDirectory;
+import org.infogrid.probe.UrlPatternIndex;
+import org.infogrid.probe.httpmapping.HttpMappingPolicy;
+import org.infogrid.probe.httpmapping.TraditionalInfoGridHttpMappingPolicy;
+import org.infogrid.probe.yadis.XrdsProbe;
+
+/**
+ * <p>In-memory implementation of ProbeDirectory that indexes its content, so that the cost of
+ *    finding a Probe does not grow with the number of Probes in the directory.</p>
+ * <p>Exact URL matches, protocols, MIME types, XML document types and XML tag types are kept
+ *    in hash tables, and URL patterns in a {@link UrlPatternIndex}. If more than one Probe
+ *    is registered for the same key, the one registered first is found, as with MProbeDirectory.</p>
+ */
+public class MIndexedProbeDirectory
+        extends
+            AbstractProbeDirectory
+{
+    /**
+     * Default factory method to create an MIndexedProbeDirectory that only knows about XRDS.
+     *
+     * @return the created MIndexedProbeDirectory
+     */
+    public static MIndexedProbeDirectory create()
+    {
+        return create( TraditionalInfoGridHttpMappingPolicy.SINGLETON );
+    }
+
+    /**
+     * Default factory method to create an MIndexedProbeDirectory that only knows about XRDS.
+     *
+     * @param mappingPolicy the policy by which the Probe framework maps HTTP status codes to XPRISO
+     * @return the created MIndexedProbeDirectory
+     */
+    public static MIndexedProbeDirectory create(
+            HttpMappingPolicy mappingPolicy )
+    {
+        ArrayList<XmlDomProbeDescriptor> domProbes = new ArrayList<XmlDomProbeDescriptor>();
+        domProbes.add( new XmlDomProbeDescriptor(
+                "XRDS",
+                "xri://$xrds",
+                "XRDS",
+                XrdsProbe.class ));
+
+        MIndexedProbeDirectory ret = new MIndexedProbeDirectory(
+                domProbes,
+                new ArrayList<StreamProbeDescriptor>(),
+                new ArrayList<ApiProbeDescriptor>(),
+                new ArrayList<ExactMatchDescriptor>(),
+                new ArrayList<PatternMatchDescriptor>(),
+                null,
+                mappingPolicy );
+        return ret;
+    }
+
+    /**
+     * Factory method to create an empty MIndexedProbeDirectory.
+     *
+     * @return the created MIndexedProbeDirectory
+     */
+    public static MIndexedProbeDirectory createEmpty()
+    {
+        MIndexedProbeDirectory ret = new MIndexedProbeDirectory(
+                new ArrayList<XmlDomProbeDescriptor>(),
+                new ArrayList<StreamProbeDescriptor>(),
+                new ArrayList<ApiProbeDescriptor>(),
+                new ArrayList<ExactMatchDescriptor>(),
+                new ArrayList<PatternMatchDescriptor>(),
+                null,
+                TraditionalInfoGridHttpMappingPolicy.SINGLETON );
+        return ret;
+    }
+
+    /**
+     * Factory method to create a MIndexedProbeDirectory with the specified content.
+     *
+     * @param xmlDomProbes the set of XmlDOMProbeDescriptors to initialize with
+     * @param streamProbes the set of StreamProbeDescriptors to initialize with
+     * @param apiProbes the set of ApiProbeDescriptor to initialize with
+     * @param exactMatches the set of ExactMatchDescriptors to initialize with
+     * @param patternMatches the set of PatternMatchDescriptors to initialize with
+     * @param defaultStreamProbe identifies the default stream Probe to initialize with
+     * @param mappingPolicy the policy by which the Probe framework maps HTTP status codes to XPRISO
+     * @return the created MIndexedProbeDirectory
+     */
+    public static MIndexedProbeDirectory create(
+            Collection<XmlDomProbeDescriptor>  xmlDomProbes,
+            Collection<StreamProbeDescriptor>  streamProbes,
+            Collection<ApiProbeDescriptor>     apiProbes,
+            Collection<ExactMatchDescriptor>   exactMatches,
+            Collection<PatternMatchDescriptor> patternMatches,
+            StreamProbeDescriptor              defaultStreamProbe,
+            HttpMappingPolicy                  mappingPolicy )
+    {
+        MIndexedProbeDirectory ret = new MIndexedProbeDirectory(
+                new ArrayList<XmlDomProbeDescriptor>( xmlDomProbes ),
+                new ArrayList<StreamProbeDescriptor>( streamProbes ),
+                new ArrayList<ApiProbeDescriptor>( apiProbes ),
+                new ArrayList<ExactMatchDescriptor>( exactMatches ),
+                new ArrayList<PatternMatchDescriptor>( patternMatches ),
+                defaultStreamProbe,
+                mappingPolicy );
+        return ret;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param xmlDomProbes the set of XmlDOMProbeDescriptors to initialize with
+     * @param streamProbes the set of StreamProbeDescriptors to initialize with
+     * @param apiProbes the set of ApiProbeDescriptor to initialize with
+     * @param exactMatches the set of ExactMatchDescriptors to initialize with
+     * @param patternMatches the set of PatternMatchDescriptors to initialize with
+     * @param defaultStreamProbe identifies the default stream Probe to initialize with
+     * @param mappingPolicy the policy by which the Probe framework maps HTTP status codes to XPRISO
+     */
+    protected MIndexedProbeDirectory(
+            Collection<XmlDomProbeDescriptor>  xmlDomProbes,
+            Collection<StreamProbeDescriptor>  streamProbes,
+            Collection<ApiProbeDescriptor>     apiProbes,
+            Collection<ExactMatchDescriptor>   exactMatches,
+            Collection<PatternMatchDescriptor> patternMatches,
+            StreamProbeDescriptor              defaultStreamProbe,
+            HttpMappingPolicy                  mappingPolicy )
+    {
+        super( xmlDomProbes, streamProbes, apiProbes, exactMatches, patternMatches, defaultStreamProbe, mappingPolicy );
+
+        for( XmlDomProbeDescriptor current : xmlDomProbes ) {
+            indexXmlDomProbe( current );
+        }
+        for( StreamProbeDescriptor current : streamProbes ) {
+            indexStreamProbe( current );
+        }
+        for( ApiProbeDescriptor current : apiProbes ) {
+            indexApiProbe( current );
+        }
+        for( ExactMatchDescriptor current : exactMatches ) {
+            indexExactUrlMatch( current );
+        }
+        thePatternIndex = UrlPatternIndex.create( patternMatches );
+    }
+
+    /**
+     * Add a Probe to this ProbeDirectory that reads from a stream.
+     *
+     * @param desc the descriptor describing the Probe.
+     */
+    @Override
+    public synchronized void addStreamProbe(
+            StreamProbeDescriptor desc )
+    {
+        super.addStreamProbe( desc );
+
+        indexStreamProbe( desc );
+    }
+
+    /**
+     * Add a Probe to this ProbeDirectory that expects an XML Document Model as input.
+     *
+     * @param desc the descriptor describing the Probe
+     * @throws IllegalArgumentException thrown if an XML document type is handled already
+     */
+    @Override
+    public synchronized void addXmlDomProbe(
+            XmlDomProbeDescriptor desc )
+        throws
+            IllegalArgumentException
+    {
+        super.addXmlDomProbe( desc );
+
+        indexXmlDomProbe( desc );
+    }
+
+    /**
+     * Add a Probe to this ProbeDirectory that will access an API to determine its input.
+     *
+     * @param desc the descriptor describing the Probe.
+     * @throws IllegalArgumentException thrown if a protocol is handled already
+     */
+    @Override
+    public synchronized void addApiProbe(
+            ApiProbeDescriptor desc )
+        throws
+            IllegalArgumentException
+    {
+        super.addApiProbe( desc );
+
+        indexApiProbe( desc );
+    }
+
+    /**
+     * Add an exact match to this ProbeDirectory between a data source and a URL.
+     *
+     * @param desc the descriptor of the match
+     * @throws IllegalArgumentException thrown if this MatchDescriptor matches the same URL as a previous MatchDescriptor
+     */
+    @Override
+    public synchronized void addExactUrlMatch(
+            ExactMatchDescriptor desc )
+    {
+        if( theExactMatchIndex.containsKey( desc.getURL() )) {
+            throw new IllegalArgumentException( "URL matched already: " + desc.getURL() );
+        }
+        theExactMatches.add( desc );
+
+        indexExactUrlMatch( desc );
+    }
+
+    /**
+     * Add a pattern match to this ProbeDirectory between a data source and a URL.
+     *
+     * @param desc the descriptor of the match
+     * @throws IllegalArgumentException thrown if this MatchDescriptor matches the same URL as a previous MatchDescriptor
+     */
+    @Override
+    public synchronized void addPatternUrlMatch(
+            PatternMatchDescriptor desc )
+    {
+        super.addPatternUrlMatch( desc );
+
+        thePatternIndex = UrlPatternIndex.create( thePatternMatches );
+    }
+
+    /**
+     * Find an XML DOM Probe by document type.
+     *
+     * @param documentType the found XML document type
+     * @return the descriptor for the Probe that can parse this document type
+     */
+    @Override
+    public XmlDomProbeDescriptor getXmlDomProbeDescriptorByDocumentType(
+            String documentType )
+    {
+        if( documentType == null ) {
+            return null;
+        }
+        return theDocumentTypeIndex.get( documentType );
+    }
+
+    /**
+     * Find an XML DOM Probe by tag type.
+     *
+     * @param toplevelElementNamespace namespace URI of the top-level tag, if any
+     * @param toplevelElementLocalName local name of the top-level tag
+     * @return the descriptor for the Probe that can parse this tag type
+     */
+    @Override
+    public XmlDomProbeDescriptor getXmlDomProbeDescriptorByTagType(
+            String toplevelElementNamespace,
+            String toplevelElementLocalName )
+    {
+        return theTagTypeIndex.get( tagTypeKey( toplevelElementNamespace, toplevelElementLocalName ));
+    }
+
+    /**
+     * Find an API Probe by URL protocol.
+     *
+     * @param protocol the URL protocol (e.g. jdbc) for which we are looking
+     * @return the descriptor of the Probe that can access URLs with this protocol
+     */
+    @Override
+    public ApiProbeDescriptor getApiProbeDescriptorByProtocol(
+            String protocol )
+    {
+        if( protocol == null ) {
+            return null;
+        }
+        return theProtocolIndex.get( protocol );
+    }
+
+    /**
+     * Find an API Probe match by matched URL.
+     *
+     * @param url the URL for which we are looking
+     * @return the descriptor of the Probe that can access this URL
+     */
+    @Override
+    public MatchDescriptor getApiProbeDescriptorByMatchedUrl(
+            String url )
+    {
+        if( url == null ) {
+            return null;
+        }
+        MatchDescriptor ret = theExactMatchIndex.get( url );
+        if( ret == null ) {
+            ret = thePatternIndex.findFirstMatch( url );
+        }
+        return ret;
+    }
+
+    /**
+     * Find an stream Probe by MIME type.
+     *
+     * @param mimeType the MIME type for which we are looking, in form "xxx/yyy"
+     * @return the descriptor of the Probe that can parse this MIME type
+     */
+    @Override
+    public StreamProbeDescriptor getStreamProbeDescriptorByMimeType(
+            String mimeType )
+    {
+        if( mimeType == null ) {
+            return null;
+        }
+        return theMimeTypeIndex.get( mimeType );
+    }
+
+    /**
+     * Add an XmlDomProbeDescriptor to the indices.
+     *
+     * @param desc the descriptor
+     */
+    protected void indexXmlDomProbe(
+            XmlDomProbeDescriptor desc )
+    {
+        for( String current : desc.getDocumentTypes() ) {
+            if( current != null ) {
+                theDocumentTypeIndex.putIfAbsent( current, desc );
+            }
+        }
+        String [] namespaces = desc.getToplevelElementNamespaces();
+        String [] localNames = desc.getToplevelElementLocalNames();
+        for( int i=0 ; i<localNames.length ; ++i ) {
+            theTagTypeIndex.putIfAbsent( tagTypeKey( namespaces[i], localNames[i] ), desc );
+        }
+    }
+
+    /**
+     * Add a StreamProbeDescriptor to the indices.
+     *
+     * @param desc the descriptor
+     */
+    protected void indexStreamProbe(
+            StreamProbeDescriptor desc )
+    {
+        for( String current : desc.getMimeTypes() ) {
+            if( current != null ) {
+                theMimeTypeIndex.putIfAbsent( current, desc );
+            }
+        }
+    }
+
+    /**
+     * Add an ApiProbeDescriptor to the indices.
+     *
+     * @param desc the descriptor
+     */
+    protected void indexApiProbe(
+            ApiProbeDescriptor desc )
+    {
+        for( String current : desc.getProtocols() ) {
+            if( current != null ) {
+                theProtocolIndex.putIfAbsent( current, desc );
+            }
+        }
+    }
+
+    /**
+     * Add an ExactMatchDescriptor to the indices.
+     *
+     * @param desc the descriptor
+     */
+    protected void indexExactUrlMatch(
+            ExactMatchDescriptor desc )
+    {
+        theExactMatchIndex.putIfAbsent( desc.getURL(), desc );
+    }
+
+    /**
+     * Construct the key into the tag type index.
+     *
+     * @param namespace namespace URI of the top-level tag, if any
+     * @param localName local name of the top-level tag, if any
+     * @return the key
+     */
+    protected static String tagTypeKey(
+            String namespace,
+            String localName )
+    {
+        StringBuilder ret = new StringBuilder();
+        if( namespace != null ) {
+            ret.append( '+' ).append( namespace );
+        } else {
+            ret.append( '-' );
+        }
+        ret.append( ' ' ); // cannot occur in a namespace URI
+        if( localName != null ) {
+            ret.append( '+' ).append( localName );
+        } else {
+            ret.append( '-' );
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Index of exact URL matches, keyed by URL.
+     */
+    protected final ConcurrentHashMap<String,ExactMatchDescriptor> theExactMatchIndex
+            = new ConcurrentHashMap<String,ExactMatchDescriptor>();
+
+    /**
+     * Index of URL pattern matches. This is replaced whenever a pattern is added.
+     */
+    protected volatile UrlPatternIndex thePatternIndex;
+
+    /**
+     * Index of ApiProbes, keyed by protocol.
+     */
+    protected final ConcurrentHashMap<String,ApiProbeDescriptor> theProtocolIndex
+            = new ConcurrentHashMap<String,ApiProbeDescriptor>();
+
+    /**
+     * Index of stream Probes, keyed by MIME type.
+     */
+    protected final ConcurrentHashMap<String,StreamProbeDescriptor> theMimeTypeIndex
+            = new ConcurrentHashMap<String,StreamProbeDescriptor>();
+
+    /**
+     * Index of XML DOM Probes, keyed by XML document type.
+     */
+    protected final ConcurrentHashMap<String,XmlDomProbeDescriptor> theDocumentTypeIndex
+            = new ConcurrentHashMap<String,XmlDomProbeDescriptor>();
+
+    /**
+     * Index of XML DOM Probes, keyed by XML tag type, see {@link #tagTypeKey}.
+     */
+    protected final ConcurrentHashMap<String,XmlDomProbeDescriptor> theTagTypeIndex
+            = new ConcurrentHashMap<String,XmlDomProbeDescriptor>();
+}
@@ -16,16 +16,24 @@ package org.infogrid.probe.manager;
 
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.infogrid.mesh.MeshObject;
 import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
 import org.infogrid.meshbase.net.proxy.ProxyParameters;
@@ -82,23 +90,60 @@ public abstract class ScheduledExecutorProbeManager
         return theExecutorService;
     }
     
+    /**
+     * Obtain the ExecutorService on which Probe runs are performed, if different from
+     * the ScheduledExecutorService.
+     *
+     * @return the ExecutorService, or null
+     */
+    public ExecutorService getRunExecutorService()
+    {
+        return theRunExecutorService;
+    }
+
     /**
      * Start this ScheduledExecutorProbeManager.
      * 
      * @param exec the ScheduledExecutorService to use
      */
-    public synchronized void start(
+    public void start(
             ScheduledExecutorService exec )
+    {
+        start( exec, null );
+    }
+
+    /**
+     * Start this ScheduledExecutorProbeManager, using the ScheduledExecutorService only to determine
+     * when Probe runs are due, and performing the Probe runs themselves on a separate ExecutorService.
+     * This allows a single, lightweight timer Thread to drive many concurrent, blocking Probe runs.
+     *
+     * @param exec the ScheduledExecutorService to use
+     * @param runExec the ExecutorService on which to perform Probe runs, or null to perform them on exec
+     * @see #createDefaultRunExecutorService
+     */
+    public synchronized void start(
+            ScheduledExecutorService exec,
+            ExecutorService          runExec )
     {
         if( log.isTraceEnabled() ) {
-            log.traceMethodCallEntry( this, "start", exec );
+            log.traceMethodCallEntry( this, "start", exec, runExec );
         }
         if( theExecutorService != null ) {
             throw new IllegalStateException( "Already started" );
         }
-        theExecutorService = exec;
+        theExecutorService    = exec;
+        theRunExecutorService = runExec;
+
+        scheduleKnownShadows();
+    }
 
-        // re-initialize
+    /**
+     * Schedule the updates of all ShadowMeshBases known to this ScheduledExecutorProbeManager.
+     * This is invoked upon start. This implementation iterates over all stored ShadowMeshBases;
+     * subclasses may know a faster way.
+     */
+    protected void scheduleKnownShadows()
+    {
         Iterator<NetMeshBaseIdentifier> keyIter = theKeyValueMap.keysIterator( NetMeshBaseIdentifier.class, ShadowMeshBase.class );
         while( keyIter.hasNext() ) {
             NetMeshBaseIdentifier key = null;
@@ -107,18 +152,9 @@ public abstract class ScheduledExecutorProbeManager
                 key = keyIter.next();
                 log.debug( this, "restarting shadow ", key );
 
-                ShadowMeshBase value = theKeyValueMap.get( key );
-                if( value != null ) {
-                    long nextTime = value.getDelayUntilNextUpdate();
-                    if( nextTime >= 0 ) {  // allow 0 for immediate execution
-                        ScheduledFuture<Long> newFuture = theExecutorService.schedule(
-                                new ExecutorAdapter( new WeakReference<ScheduledExecutorProbeManager>( this ), key, nextTime ),
-                                nextTime,
-                                TimeUnit.MILLISECONDS );
-                        theFutures.put( key, newFuture );
-                    }
-                } else {
-                    log.error( this, "Failed to load ShadowMeshBase with key ", key );
+                long nextTime = determineDelayUntilNextUpdate( key );
+                if( nextTime >= 0 ) {  // allow 0 for immediate execution
+                    scheduleUpdate( key, nextTime );
                 }
             } catch( Throwable t ) {
                 log.error( this, key, t ); // help with debugging
@@ -126,6 +162,25 @@ public abstract class ScheduledExecutorProbeManager
         }
     }
 
+    /**
+     * Determine when a ShadowMeshBase that is known to this ScheduledExecutorProbeManager, but
+     * that has not been scheduled yet, needs to be updated next. This implementation loads the
+     * ShadowMeshBase; subclasses may be able to determine it without doing so.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     * @return the relative time, from now, in milliseconds, when the next update shall occur, or -1 for never
+     */
+    protected long determineDelayUntilNextUpdate(
+            NetMeshBaseIdentifier key )
+    {
+        ShadowMeshBase value = theKeyValueMap.get( key );
+        if( value == null ) {
+            log.error( this, "Failed to load ShadowMeshBase with key ", key );
+            return -1L;
+        }
+        return value.getDelayUntilNextUpdate();
+    }
+
     /**
      * Stop this ScheduledExecutorProbeManager.
      */
@@ -143,7 +198,164 @@ public abstract class ScheduledExecutorProbeManager
         }
         theFutures.clear();
         
-        theExecutorService = null;
+        theExecutorService    = null;
+        theRunExecutorService = null;
+    }
+
+    /**
+     * Determine the number of Probe runs currently being performed on the run ExecutorService.
+     *
+     * @return the number of Probe runs
+     */
+    public int getInFlightCount()
+    {
+        return theInFlightCount.get();
+    }
+
+    /**
+     * Determine the number of Probe runs that are due, have been handed to the run ExecutorService,
+     * but have not started yet.
+     *
+     * @return the number of Probe runs
+     */
+    public int getBacklogCount()
+    {
+        return theBacklogCount.get();
+    }
+
+    /**
+     * Schedule the next update of a ShadowMeshBase. This replaces and cancels any previously scheduled
+     * update, so there is never more than one scheduled update per ShadowMeshBase.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     * @param nextTime the relative time, from now, in milliseconds, when the update shall occur
+     */
+    protected void scheduleUpdate(
+            NetMeshBaseIdentifier key,
+            long                  nextTime )
+    {
+        ScheduledFuture<Long> newFuture = theExecutorService.schedule(
+                new ExecutorAdapter( new WeakReference<ScheduledExecutorProbeManager>( this ), key, nextTime ),
+                nextTime,
+                TimeUnit.MILLISECONDS );
+
+        ScheduledFuture<Long> oldFuture = theFutures.put( key, newFuture );
+        if( oldFuture != null && !oldFuture.isDone() ) {
+            oldFuture.cancel( false );
+        }
+    }
+
+    /**
+     * Cancel the next scheduled update of a ShadowMeshBase, if any.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     */
+    protected void cancelUpdate(
+            NetMeshBaseIdentifier key )
+    {
+        cancelFuture( key );
+    }
+
+    /**
+     * Cancel the Future of the next scheduled update of a ShadowMeshBase, if any. Unlike cancelUpdate,
+     * this is used when the update is about to be performed right away, and then rescheduled.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     */
+    protected void cancelFuture(
+            NetMeshBaseIdentifier key )
+    {
+        Future<Long> f = theFutures.remove( key );
+        if( f != null && !f.isCancelled() ) {
+            f.cancel( false );
+        }
+    }
+
+    /**
+     * Invoked after an update has run and no further update has been scheduled for this ShadowMeshBase.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     */
+    protected void updateNoLongerScheduled(
+            NetMeshBaseIdentifier key )
+    {
+        theFutures.remove( key );
+    }
+
+    /**
+     * Hand a due ExecutorAdapter to the run ExecutorService, if there is one.
+     *
+     * @param adapter the ExecutorAdapter
+     * @return true if the ExecutorAdapter was handed off, false if it needs to be run on the current Thread
+     */
+    protected boolean dispatch(
+            final ExecutorAdapter adapter )
+    {
+        ExecutorService runExec = theRunExecutorService;
+        if( runExec == null ) {
+            return false;
+        }
+
+        theBacklogCount.incrementAndGet();
+        try {
+            runExec.submit( new Runnable() {
+                    public void run()
+                    {
+                        theBacklogCount.decrementAndGet();
+                        theInFlightCount.incrementAndGet();
+                        try {
+                            adapter.call( null );
+
+                        } catch( Throwable t ) {
+                            log.error( t );
+
+                        } finally {
+                            theInFlightCount.decrementAndGet();
+                        }
+                    }
+            });
+
+        } catch( RejectedExecutionException ex ) {
+            theBacklogCount.decrementAndGet();
+            log.warn( this, "Run ExecutorService rejected Probe run, trying again later", adapter, ex );
+
+            if( theExecutorService != null ) {
+                scheduleUpdate( adapter.theShadowIdentifier, REJECTED_RUN_RETRY_DELAY );
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create an ExecutorService suitable for performing many concurrent, blocking Probe runs.
+     * If the Java runtime provides virtual Threads, this returns an ExecutorService that creates one
+     * virtual Thread per Probe run. Otherwise, it returns a thread pool of bounded size with a queue
+     * of bounded size; Probe runs that do not fit are rejected, and scheduled again a little later.
+     *
+     * @return the ExecutorService
+     */
+    public static ExecutorService createDefaultRunExecutorService()
+    {
+        try {
+            Method factoryMethod = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+
+            ExecutorService ret = (ExecutorService) factoryMethod.invoke( null );
+            return ret;
+
+        } catch( NoSuchMethodException ex ) {
+            // older Java, fall through
+        } catch( IllegalAccessException ex ) {
+            log.warn( ex );
+        } catch( InvocationTargetException ex ) {
+            log.warn( ex );
+        }
+        ExecutorService ret = new ThreadPoolExecutor(
+                DEFAULT_RUN_THREAD_POOL_SIZE,
+                DEFAULT_RUN_THREAD_POOL_SIZE,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>( DEFAULT_RUN_QUEUE_SIZE ));
+        return ret;
     }
 
     /**
@@ -159,19 +371,22 @@ public abstract class ScheduledExecutorProbeManager
             ProbeException,
             IsDeadException
     {
-        Future<Long> f = theFutures.remove( shadow.getIdentifier() );
-        if( f != null && !f.isCancelled() ) {
-            f.cancel( false );
-        }
+        NetMeshBaseIdentifier key         = shadow.getIdentifier();
+        boolean               rescheduled = false;
+
+        cancelFuture( key ); // the update is performed now, and then rescheduled
+        try {
+            long nextTime = shadow.doUpdateNow();
 
-        long nextTime = shadow.doUpdateNow();
+            if( nextTime >= 0 ) {  // allow 0 for immediate execution
+                scheduleUpdate( key, nextTime );
+                rescheduled = true;
+            }
 
-        if( nextTime >= 0 ) {  // allow 0 for immediate execution
-            ScheduledFuture<Long> newFuture = theExecutorService.schedule(
-                    new ExecutorAdapter( new WeakReference<ScheduledExecutorProbeManager>( this ), shadow.getIdentifier(), nextTime ),
-                    nextTime,
-                    TimeUnit.MILLISECONDS );
-            theFutures.put( shadow.getIdentifier(), newFuture );
+        } finally {
+            if( !rescheduled ) {
+                updateNoLongerScheduled( key );
+            }
         }
     }
 
@@ -183,10 +398,7 @@ public abstract class ScheduledExecutorProbeManager
     public void disableFutureUpdates(
             final ShadowMeshBase shadow )
     {
-        Future<Long> f = theFutures.remove( shadow.getIdentifier() );
-        if( f != null && !f.isCancelled() ) {
-            f.cancel( false );
-        }
+        cancelUpdate( shadow.getIdentifier() );
 
         try {
             shadow.executeAsap( new TransactionAction<ProbeUpdateSpecification>() {
@@ -225,11 +437,7 @@ public abstract class ScheduledExecutorProbeManager
     {
         long nextTime = value.getDelayUntilNextUpdate();
         if( nextTime >= 0 && theExecutorService != null ) { // allow 0 for immediate execution
-            ScheduledFuture<Long> newFuture = theExecutorService.schedule(
-                    new ExecutorAdapter( new WeakReference<ScheduledExecutorProbeManager>( this ), key, nextTime ),
-                    nextTime,
-                    TimeUnit.MILLISECONDS );
-            theFutures.put( key, newFuture );
+            scheduleUpdate( key, nextTime );
         }
         super.createdHook( key, value, argument );
     }
@@ -269,13 +477,28 @@ public abstract class ScheduledExecutorProbeManager
      * The ScheduledExecutorService that executes our Probe runs.
      */
     protected ScheduledExecutorService theExecutorService;
+
+    /**
+     * The ExecutorService that performs our Probe runs, if different from theExecutorService.
+     */
+    protected ExecutorService theRunExecutorService;
+
+    /**
+     * The number of Probe runs currently being performed on theRunExecutorService.
+     */
+    protected final AtomicInteger theInFlightCount = new AtomicInteger();
+
+    /**
+     * The number of Probe runs handed to theRunExecutorService that have not started yet.
+     */
+    protected final AtomicInteger theBacklogCount = new AtomicInteger();
     
     /**
      * The Futures currently waiting to be executed on behalf of this ScheduledExecutorProbeManager.
      * This maps from the ShadowMeshBase's identifier to the Future.
      */
     protected Map<NetMeshBaseIdentifier,ScheduledFuture<Long>> theFutures
-            = new HashMap<NetMeshBaseIdentifier,ScheduledFuture<Long>>()
+            = new ConcurrentHashMap<NetMeshBaseIdentifier,ScheduledFuture<Long>>()
     {
         @Override
         public ScheduledFuture<Long> remove( Object id ) {
@@ -290,6 +513,23 @@ public abstract class ScheduledExecutorProbeManager
      * The default thread-pool size.
      */
     protected static int DEFAULT_THREAD_POOL_SIZE = 1;
+
+    /**
+     * The size of the bounded thread pool returned by createDefaultRunExecutorService if
+     * virtual Threads are not available.
+     */
+    protected static int DEFAULT_RUN_THREAD_POOL_SIZE = 64;
+
+    /**
+     * The maximum number of due Probe runs waiting for a Thread in the bounded thread pool returned by
+     * createDefaultRunExecutorService if virtual Threads are not available.
+     */
+    protected static int DEFAULT_RUN_QUEUE_SIZE = 1024;
+
+    /**
+     * The time, in milliseconds, after which a Probe run rejected by the run ExecutorService is attempted again.
+     */
+    protected static long REJECTED_RUN_RETRY_DELAY = 1000L;
     
     /**
      * Helper class to be able to reschedule the ShadowMeshBase. This is a static class, so the ProbeManager
@@ -332,6 +572,10 @@ public abstract class ScheduledExecutorProbeManager
             throws
                 Exception
         {
+            ScheduledExecutorProbeManager belongsTo = theBelongsTo.get();
+            if( belongsTo != null && belongsTo.dispatch( this )) {
+                return -1L; // the run executor will take care of it, including rescheduling
+            }
             return call( null );
         }
 
@@ -373,10 +617,9 @@ public abstract class ScheduledExecutorProbeManager
                         if( log.isDebugEnabled() ) {
                             log.debug( this + ".call ... schedule in " + nextTime.longValue() );
                         }
-                        ScheduledFuture<Long> f = belongsTo.theExecutorService.schedule( this, nextTime.longValue(), TimeUnit.MILLISECONDS );
-                        belongsTo.theFutures.put( theShadowIdentifier, f );
+                        belongsTo.scheduleUpdate( theShadowIdentifier, nextTime.longValue() );
 
-                        removeOld = false; // otherwise we remove what we just added, the old one was removed as a side effect of put
+                        removeOld = false; // otherwise we remove what we just added, the old one was replaced
                     }
 
                 } catch( IsDeadException ex ) {
@@ -387,7 +630,7 @@ public abstract class ScheduledExecutorProbeManager
 
             } finally {
                 if( belongsTo != null && removeOld ) {
-                    belongsTo.theFutures.remove( theShadowIdentifier );
+                    belongsTo.updateNoLongerScheduled( theShadowIdentifier );
                 }
             }
         }
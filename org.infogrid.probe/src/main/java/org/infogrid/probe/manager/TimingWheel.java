@@ -0,0 +1,394 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.manager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>A hierarchical timing wheel that keeps track of when keys are due. Scheduling,
+ *    rescheduling and cancelling a key are O(1), and each scheduled key costs one
+ *    small entry object, regardless of how many keys are scheduled.</p>
+ * <p>Time is divided into ticks of a fixed duration. The wheel has <code>LEVELS</code>
+ *    levels of <code>SLOTS</code> slots each; entries due within the next <code>SLOTS</code>
+ *    ticks are kept in the lowest level, entries due later in higher levels, from which
+ *    they cascade down as time advances. Each slot is an intrusive doubly-linked list.</p>
+ * <p>This class is thread-safe.</p>
+ *
+ * @param <K> the type of key
+ */
+public class TimingWheel<K>
+{
+    /**
+     * Factory method.
+     *
+     * @param tickDuration the duration of a tick, in milliseconds
+     * @param <K> the type of key
+     * @return the created TimingWheel
+     */
+    public static <K> TimingWheel<K> create(
+            long tickDuration )
+    {
+        return new TimingWheel<K>( tickDuration, System.currentTimeMillis() );
+    }
+
+    /**
+     * Constructor for subclasses only, use factory method.
+     *
+     * @param tickDuration the duration of a tick, in milliseconds
+     * @param startTime the time from which ticks are counted, in System.currentTimeMillis() format
+     */
+    protected TimingWheel(
+            long tickDuration,
+            long startTime )
+    {
+        if( tickDuration <= 0 ) {
+            throw new IllegalArgumentException( "Tick duration must be positive: " + tickDuration );
+        }
+        theTickDuration = tickDuration;
+        theStartTime    = startTime;
+        theCurrentTick  = 0L;
+
+        @SuppressWarnings( "unchecked" )
+        Entry<K> [][] slots = new Entry[ LEVELS ][ SLOTS ];
+        theSlots = slots;
+    }
+
+    /**
+     * Obtain the duration of a tick.
+     *
+     * @return the duration, in milliseconds
+     */
+    public long getTickDuration()
+    {
+        return theTickDuration;
+    }
+
+    /**
+     * Schedule a key to become due at a certain time. If the key was scheduled already,
+     * the previous schedule is replaced.
+     *
+     * @param key the key
+     * @param when the time at which the key shall become due, in System.currentTimeMillis() format
+     */
+    public synchronized void schedule(
+            K    key,
+            long when )
+    {
+        Entry<K> entry = theEntries.get( key );
+        if( entry != null ) {
+            unlink( entry );
+        } else {
+            entry = new Entry<K>( key );
+            theEntries.put( key, entry );
+        }
+        entry.theDueTick = toTick( when );
+
+        insert( entry, theCurrentTick + 1 ); // the current tick has been processed already
+    }
+
+    /**
+     * Cancel the schedule for a key.
+     *
+     * @param key the key
+     * @return true if the key had been scheduled
+     */
+    public synchronized boolean cancel(
+            K key )
+    {
+        Entry<K> entry = theEntries.remove( key );
+        if( entry == null ) {
+            return false;
+        }
+        unlink( entry );
+        return true;
+    }
+
+    /**
+     * Determine whether a key is currently scheduled.
+     *
+     * @param key the key
+     * @return true if the key is scheduled
+     */
+    public synchronized boolean isScheduled(
+            K key )
+    {
+        return theEntries.containsKey( key );
+    }
+
+    /**
+     * Determine the number of keys currently scheduled.
+     *
+     * @return the number of keys
+     */
+    public synchronized int size()
+    {
+        return theEntries.size();
+    }
+
+    /**
+     * Cancel the schedules of all keys.
+     */
+    public synchronized void clear()
+    {
+        for( int level=0 ; level<LEVELS ; ++level ) {
+            for( int slot=0 ; slot<SLOTS ; ++slot ) {
+                theSlots[level][slot] = null;
+            }
+        }
+        theEntries.clear();
+    }
+
+    /**
+     * Advance the wheel to a certain time, and return all keys that have become due
+     * in the meantime. Returned keys are not scheduled any more.
+     *
+     * @param now the time to advance to, in System.currentTimeMillis() format
+     * @return the keys that have become due, in the order of their due ticks
+     */
+    public synchronized List<K> advanceTo(
+            long now )
+    {
+        long     targetTick = ( now - theStartTime ) / theTickDuration;
+        List<K>  ret        = null;
+
+        while( theCurrentTick < targetTick ) {
+            ++theCurrentTick;
+
+            // cascade higher levels down whenever the lower level wraps around
+            for( int level=1 ; level<LEVELS ; ++level ) {
+                if( ( theCurrentTick & ( ( 1L << ( BITS * level )) - 1 )) != 0 ) {
+                    break;
+                }
+                cascade( level, (int) (( theCurrentTick >>> ( BITS * level )) & MASK ));
+            }
+
+            int      slot  = (int) ( theCurrentTick & MASK );
+            Entry<K> entry = theSlots[0][slot];
+            theSlots[0][slot] = null;
+
+            while( entry != null ) {
+                Entry<K> next = entry.theNext;
+                entry.thePrevious = null;
+                entry.theNext     = null;
+
+                if( entry.theDueTick > theCurrentTick ) {
+                    // was clamped because it was too far in the future
+                    insert( entry, theCurrentTick + 1 );
+
+                } else {
+                    theEntries.remove( entry.theKey );
+                    if( ret == null ) {
+                        ret = new ArrayList<K>();
+                    }
+                    ret.add( entry.theKey );
+                }
+                entry = next;
+            }
+        }
+        if( ret == null ) {
+            ret = new ArrayList<K>( 0 );
+        }
+        return ret;
+    }
+
+    /**
+     * Convert a time into a tick.
+     *
+     * @param when the time, in System.currentTimeMillis() format
+     * @return the tick
+     */
+    protected long toTick(
+            long when )
+    {
+        long ret = ( when - theStartTime + theTickDuration - 1 ) / theTickDuration; // round up: never early
+        return ret;
+    }
+
+    /**
+     * Insert an unlinked Entry into the right slot, given the current tick.
+     *
+     * @param entry the Entry
+     * @param earliestTick the earliest tick whose slot has not been processed yet. Entries due earlier are put there.
+     */
+    protected void insert(
+            Entry<K> entry,
+            long     earliestTick )
+    {
+        long due = entry.theDueTick;
+        if( due < earliestTick ) {
+            due = earliestTick; // overdue
+        }
+        long delta = due - theCurrentTick;
+
+        int level = 0;
+        while( level < LEVELS-1 && delta >= ( 1L << ( BITS * ( level+1 )))) {
+            ++level;
+        }
+        if( delta >= ( 1L << ( BITS * LEVELS ))) {
+            // too far in the future: park it in the farthest slot, it will be re-inserted from there
+            due = theCurrentTick + ( 1L << ( BITS * LEVELS )) - 1;
+        }
+        int slot = (int) (( due >>> ( BITS * level )) & MASK );
+
+        entry.theLevel    = level;
+        entry.theSlot     = slot;
+        entry.thePrevious = null;
+        entry.theNext     = theSlots[level][slot];
+        if( entry.theNext != null ) {
+            entry.theNext.thePrevious = entry;
+        }
+        theSlots[level][slot] = entry;
+    }
+
+    /**
+     * Remove an Entry from its slot.
+     *
+     * @param entry the Entry
+     */
+    protected void unlink(
+            Entry<K> entry )
+    {
+        if( entry.thePrevious != null ) {
+            entry.thePrevious.theNext = entry.theNext;
+        } else if( theSlots[entry.theLevel][entry.theSlot] == entry ) {
+            theSlots[entry.theLevel][entry.theSlot] = entry.theNext;
+        }
+        if( entry.theNext != null ) {
+            entry.theNext.thePrevious = entry.thePrevious;
+        }
+        entry.thePrevious = null;
+        entry.theNext     = null;
+    }
+
+    /**
+     * Move all Entries in a slot of a higher level into lower levels.
+     *
+     * @param level the level
+     * @param slot the slot
+     */
+    protected void cascade(
+            int level,
+            int slot )
+    {
+        Entry<K> entry = theSlots[level][slot];
+        theSlots[level][slot] = null;
+
+        while( entry != null ) {
+            Entry<K> next = entry.theNext;
+            entry.thePrevious = null;
+            entry.theNext     = null;
+
+            insert( entry, theCurrentTick ); // the lowest-level slot of the current tick is processed right after cascading
+
+            entry = next;
+        }
+    }
+
+    /**
+     * The duration of a tick, in milliseconds.
+     */
+    protected final long theTickDuration;
+
+    /**
+     * The time from which ticks are counted, in System.currentTimeMillis() format.
+     */
+    protected final long theStartTime;
+
+    /**
+     * The most recent tick that has been processed.
+     */
+    protected long theCurrentTick;
+
+    /**
+     * The slots, by level and slot index. Each slot is the head of a doubly-linked list.
+     */
+    protected final Entry<K> [][] theSlots;
+
+    /**
+     * Allows us to find the Entry for a key.
+     */
+    protected final HashMap<K,Entry<K>> theEntries = new HashMap<K,Entry<K>>();
+
+    /**
+     * Number of bits per level.
+     */
+    public static final int BITS = 8;
+
+    /**
+     * Number of slots per level.
+     */
+    public static final int SLOTS = 1 << BITS;
+
+    /**
+     * Mask to determine the slot index within a level.
+     */
+    protected static final long MASK = SLOTS - 1;
+
+    /**
+     * Number of levels. With 100 millisecond ticks, four levels cover more than 13 years.
+     */
+    public static final int LEVELS = 4;
+
+    /**
+     * One scheduled key.
+     *
+     * @param <K> the type of key
+     */
+    protected static class Entry<K>
+    {
+        /**
+         * Constructor.
+         *
+         * @param key the key
+         */
+        Entry(
+                K key )
+        {
+            theKey = key;
+        }
+
+        /**
+         * The key.
+         */
+        protected final K theKey;
+
+        /**
+         * The tick at which the key is due.
+         */
+        protected long theDueTick;
+
+        /**
+         * The level of the slot in which this Entry currently is.
+         */
+        protected int theLevel;
+
+        /**
+         * The index of the slot in which this Entry currently is.
+         */
+        protected int theSlot;
+
+        /**
+         * The previous Entry in the same slot, if any.
+         */
+        protected Entry<K> thePrevious;
+
+        /**
+         * The next Entry in the same slot, if any.
+         */
+        protected Entry<K> theNext;
+    }
+}
@@ -0,0 +1,228 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.manager;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.probe.ProbeDirectory;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.probe.shadow.ShadowMeshBaseFactory;
+import org.infogrid.util.CachingMap;
+import org.infogrid.util.logging.Log;
+
+/**
+ * <p>An ActiveProbeManager that keeps track of when ShadowMeshBases are due in a
+ *    TimingWheel, instead of scheduling one task per ShadowMeshBase with the
+ *    ScheduledExecutorService. Scheduling and cancelling updates are O(1), and the
+ *    ScheduledExecutorService only needs to run a single, periodic tick task, regardless
+ *    of how many ShadowMeshBases are managed.</p>
+ * <p>Updates are performed with a granularity of the tick duration, and never early.
+ *    Like its superclass, it can perform the Probe runs on a separate ExecutorService.</p>
+ */
+public abstract class TimingWheelProbeManager
+        extends
+            ScheduledExecutorProbeManager
+{
+    private static final Log log = Log.getLogInstance( TimingWheelProbeManager.class ); // our own, private logger
+
+    /**
+     * Constructor.
+     *
+     * @param delegateFactory the delegate ShadowMeshBaseFactory that knows how to instantiate ShadowMeshBases
+     * @param storage the storage to use
+     * @param dir the ProbeDirectory to use
+     * @param tickDuration the duration of a tick of the TimingWheel, in milliseconds
+     */
+    protected TimingWheelProbeManager(
+            ShadowMeshBaseFactory                            delegateFactory,
+            CachingMap<NetMeshBaseIdentifier,ShadowMeshBase> storage,
+            ProbeDirectory                                   dir,
+            long                                             tickDuration )
+    {
+        super( delegateFactory, storage, dir );
+
+        theWheel = TimingWheel.create( tickDuration );
+    }
+
+    /**
+     * Obtain the TimingWheel used by this TimingWheelProbeManager.
+     *
+     * @return the TimingWheel
+     */
+    public TimingWheel<NetMeshBaseIdentifier> getTimingWheel()
+    {
+        return theWheel;
+    }
+
+    /**
+     * Start this TimingWheelProbeManager, using the ScheduledExecutorService to advance the TimingWheel,
+     * and performing the Probe runs on a separate ExecutorService.
+     *
+     * @param exec the ScheduledExecutorService to use
+     * @param runExec the ExecutorService on which to perform Probe runs, or null to perform them on exec
+     */
+    @Override
+    public synchronized void start(
+            ScheduledExecutorService exec,
+            ExecutorService          runExec )
+    {
+        super.start( exec, runExec );
+
+        long        tickDuration = theWheel.getTickDuration();
+        TickAdapter adapter      = new TickAdapter( new WeakReference<TimingWheelProbeManager>( this ));
+
+        theTickFuture = exec.scheduleAtFixedRate( adapter, tickDuration, tickDuration, TimeUnit.MILLISECONDS );
+        adapter.theFuture = theTickFuture;
+    }
+
+    /**
+     * Stop this TimingWheelProbeManager.
+     */
+    @Override
+    public synchronized void stop()
+    {
+        if( theTickFuture != null ) {
+            theTickFuture.cancel( false );
+            theTickFuture = null;
+        }
+        theWheel.clear();
+
+        super.stop();
+    }
+
+    /**
+     * Schedule the next update of a ShadowMeshBase. This replaces any previously scheduled update.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     * @param nextTime the relative time, from now, in milliseconds, when the update shall occur
+     */
+    @Override
+    protected void scheduleUpdate(
+            NetMeshBaseIdentifier key,
+            long                  nextTime )
+    {
+        theWheel.schedule( key, System.currentTimeMillis() + nextTime );
+    }
+
+    /**
+     * Cancel the next scheduled update of a ShadowMeshBase in the TimingWheel, if any.
+     *
+     * @param key the identifier of the ShadowMeshBase
+     */
+    @Override
+    protected void cancelFuture(
+            NetMeshBaseIdentifier key )
+    {
+        theWheel.cancel( key );
+    }
+
+    /**
+     * Advance the TimingWheel to the current time, and run the updates that have become due.
+     */
+    protected void tick()
+    {
+        ScheduledExecutorService exec = theExecutorService;
+        if( exec == null ) {
+            return; // stopped in the meantime
+        }
+
+        List<NetMeshBaseIdentifier> due = theWheel.advanceTo( System.currentTimeMillis() );
+
+        for( NetMeshBaseIdentifier key : due ) {
+            ExecutorAdapter adapter = new ExecutorAdapter( new WeakReference<ScheduledExecutorProbeManager>( this ), key, 0L );
+            try {
+                exec.submit( adapter ); // dispatches to the run ExecutorService, if any
+
+            } catch( RejectedExecutionException ex ) {
+                log.warn( this, "ScheduledExecutorService rejected Probe run, trying again later", adapter, ex );
+
+                theWheel.schedule( key, System.currentTimeMillis() + REJECTED_RUN_RETRY_DELAY );
+            }
+        }
+    }
+
+    /**
+     * The TimingWheel that keeps track of when ShadowMeshBases are due.
+     */
+    protected final TimingWheel<NetMeshBaseIdentifier> theWheel;
+
+    /**
+     * The Future of the periodic tick task, if started.
+     */
+    protected ScheduledFuture<?> theTickFuture;
+
+    /**
+     * The default duration of a tick of the TimingWheel, in milliseconds.
+     */
+    protected static long DEFAULT_TICK_DURATION = 100L;
+
+    /**
+     * Periodic task that advances the TimingWheel. This is a static class, so the ProbeManager
+     * can be garbage-collected, even while the ScheduledExecutorService still thinks it has future calls to make.
+     */
+    protected static class TickAdapter
+            implements
+                Runnable
+    {
+        /**
+         * Constructor.
+         *
+         * @param belongsTo reference to the TimingWheelProbeManager to which this TickAdapter belongs
+         */
+        TickAdapter(
+                Reference<TimingWheelProbeManager> belongsTo )
+        {
+            theBelongsTo = belongsTo;
+        }
+
+        /**
+         * Invoked periodically by the ScheduledExecutorService.
+         */
+        public void run()
+        {
+            TimingWheelProbeManager belongsTo = theBelongsTo.get();
+            if( belongsTo == null ) {
+                ScheduledFuture<?> future = theFuture;
+                if( future != null ) {
+                    future.cancel( false );
+                }
+                return;
+            }
+            try {
+                belongsTo.tick();
+
+            } catch( Throwable t ) {
+                log.error( t ); // do not let an Exception cancel the periodic task
+            }
+        }
+
+        /**
+         * The TimingWheelProbeManager that this instance belongs to.
+         */
+        protected Reference<TimingWheelProbeManager> theBelongsTo;
+
+        /**
+         * Our own Future, so we can cancel ourselves once the TimingWheelProbeManager is gone.
+         */
+        protected volatile ScheduledFuture<?> theFuture;
+    }
+}
@@ -0,0 +1,82 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.manager.m;
+
+import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
+import org.infogrid.probe.ProbeDirectory;
+import org.infogrid.probe.manager.TimingWheelProbeManager;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.probe.shadow.ShadowMeshBaseFactory;
+import org.infogrid.util.CachingMap;
+import org.infogrid.util.MCachingHashMap;
+
+/**
+ * A TimingWheelProbeManager that keeps Shadows in Memory.
+ */
+public class MTimingWheelProbeManager
+        extends
+            TimingWheelProbeManager
+{
+    /**
+     * Factory method, using the default tick duration.
+     *
+     * @param delegateFactory the delegate ShadowMeshBaseFactory that knows how to instantiate ShadowMeshBases
+     * @param dir the ProbeDirectory to use
+     * @return the created MTimingWheelProbeManager
+     */
+    public static MTimingWheelProbeManager create(
+            ShadowMeshBaseFactory delegateFactory,
+            ProbeDirectory        dir )
+    {
+        return create( delegateFactory, dir, DEFAULT_TICK_DURATION );
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param delegateFactory the delegate ShadowMeshBaseFactory that knows how to instantiate ShadowMeshBases
+     * @param dir the ProbeDirectory to use
+     * @param tickDuration the duration of a tick of the TimingWheel, in milliseconds
+     * @return the created MTimingWheelProbeManager
+     */
+    public static MTimingWheelProbeManager create(
+            ShadowMeshBaseFactory delegateFactory,
+            ProbeDirectory        dir,
+            long                  tickDuration )
+    {
+        CachingMap<NetMeshBaseIdentifier,ShadowMeshBase> storage = MCachingHashMap.create();
+
+        MTimingWheelProbeManager ret = new MTimingWheelProbeManager( delegateFactory, storage, dir, tickDuration );
+
+        return ret;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param delegateFactory the delegate ShadowMeshBaseFactory that knows how to instantiate ShadowMeshBases
+     * @param storage the storage to use
+     * @param dir the ProbeDirectory to use
+     * @param tickDuration the duration of a tick of the TimingWheel, in milliseconds
+     */
+    protected MTimingWheelProbeManager(
+            ShadowMeshBaseFactory                            delegateFactory,
+            CachingMap<NetMeshBaseIdentifier,ShadowMeshBase> storage,
+            ProbeDirectory                                   dir,
+            long                                             tickDuration )
+    {
+        super( delegateFactory, storage, dir, tickDuration );
+    }
+}
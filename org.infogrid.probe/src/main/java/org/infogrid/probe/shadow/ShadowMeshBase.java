@@ -20,6 +20,7 @@ import org.infogrid.meshbase.net.NetMeshBaseIdentifier;
 import org.infogrid.meshbase.net.proxy.ProxyParameters;
 import org.infogrid.meshbase.net.proxy.ProxyPolicyFactory;
 import org.infogrid.meshbase.transaction.ChangeSet;
+import org.infogrid.probe.EntryRetentionPolicy;
 import org.infogrid.probe.ProbeException;
 import org.infogrid.probe.StagingMeshBase;
 import org.infogrid.probe.httpmapping.HttpMappingPolicy;
@@ -155,6 +156,12 @@ public interface ShadowMeshBase
      */
     public boolean isNeeded();
 
+    /**
+     * Notify this ShadowMeshBase that the Proxies of its MeshObjects, or where their locks are,
+     * may have changed. The application programmer should have no need to call this.
+     */
+    public void replicationMayHaveChanged();
+
     /**
      * Obtain the ProxyPolicyFactory of this ShadowMeshBase.
      *
@@ -220,6 +227,15 @@ public interface ShadowMeshBase
      */
     public abstract HostnameVerifier getHostnameVerifier();
 
+    /**
+     * Set the policy that limits which entries of a data source consisting of a sequence
+     * of entries, such as a feed, the Probe instantiates. This takes effect with the next Probe run.
+     *
+     * @param newValue the new policy, or null if the Probe may apply its own default
+     */
+    public abstract void setEntryRetentionPolicy(
+            EntryRetentionPolicy newValue );
+
     /**
      * The name of the CurrentProblem property.
      */
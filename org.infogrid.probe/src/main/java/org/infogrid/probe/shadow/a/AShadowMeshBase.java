@@ -15,6 +15,7 @@
 package org.infogrid.probe.shadow.a;
 
 import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.net.ssl.HostnameVerifier;
 import org.diet4j.core.ModuleRegistry;
 import org.infogrid.mesh.MeshObject;
@@ -36,6 +37,8 @@ import org.infogrid.meshbase.net.security.NetAccessManager;
 import org.infogrid.meshbase.transaction.ChangeSet;
 import org.infogrid.meshbase.transaction.Transaction;
 import org.infogrid.modelbase.ModelBase;
+import org.infogrid.probe.EntryRetentionPolicy;
+import org.infogrid.probe.HostPolitenessPolicy;
 import org.infogrid.probe.ProbeDirectory;
 import org.infogrid.probe.ProbeDispatcher;
 import org.infogrid.probe.ProbeException;
@@ -115,10 +118,13 @@ public abstract class AShadowMeshBase
                 proxyManager,
                 context );
         
-        theHostnameVerifier = context.findContextObject( HostnameVerifier.class );
+        theHostnameVerifier     = context.findContextObject( HostnameVerifier.class );
+        theEntryRetentionPolicy = context.findContextObject( EntryRetentionPolicy.class );
 
         ModuleRegistry registry = context.findContextObject( ModuleRegistry.class );
         theDispatcher = new ProbeDispatcher( this, directory, timeCreated, timeNotNeededTillExpires, mappingPolicy, registry );
+
+        theDispatcher.setHostPolitenessPolicy( context.findContextObject( HostPolitenessPolicy.class )); // none unless configured
     }
 
     /**
@@ -259,12 +265,23 @@ public abstract class AShadowMeshBase
             log.info( this + ".doUpdateNow()" );
         }
 
-        synchronized( theDispatcher ) { // we can't synchronize on the shadow, because incoming transactions need to be able to create threads
-            checkDead();
+        // no need to synchronize: the ProbeDispatcher serializes runs itself, without holding its lock while accessing the data source
+        checkDead();
 
-            long nextTime = theDispatcher.doUpdateNow( pars );
+        long runCount = theDispatcher.getRunCount();
+        long nextTime = theDispatcher.doUpdateNow( pars );
+        boolean ran   = theDispatcher.getRunCount() != runCount;
 
-            if( theProbeManager != null ) {
+        // tell the factory, and find out whether we are still needed, without a concurrent run changing us
+        ReentrantLock runLock = theDispatcher.getRunLock();
+        runLock.lock();
+        try {
+            if( !ran ) {
+                // deferred, or somebody else is running: nothing changed that the factory needs to know about
+                if( log.isDebugEnabled() ) {
+                    log.debug( this + ".doUpdateNow() --- did not run, not telling factory" );
+                }
+            } else if( theProbeManager != null ) {
                 if( log.isDebugEnabled() ) {
                     log.debug( this + ".doUpdateNow() --- telling factory about it" );
                 }
@@ -307,6 +324,9 @@ public abstract class AShadowMeshBase
 
                 return -1L;
             }
+
+        } finally {
+            runLock.unlock();
         }
     }
 
@@ -404,6 +424,15 @@ public abstract class AShadowMeshBase
         return theDispatcher.isNeeded();
     }
 
+    /**
+     * Notify this ShadowMeshBase that the Proxies of its MeshObjects, or where their locks are,
+     * may have changed. The application programmer should have no need to call this.
+     */
+    public final void replicationMayHaveChanged()
+    {
+        theDispatcher.replicationMayHaveChanged();
+    }
+
     /**
      * Obtain the ProxyPolicyFactory of this ShadowMeshBase.
      *
@@ -426,6 +455,18 @@ public abstract class AShadowMeshBase
         return theDispatcher.getCurrentUpdateStartedTime();
     }
 
+    /**
+     * Allow a Probe to tell the framework that, according to the data source, the data
+     * will not change before a certain time.
+     *
+     * @param notChangedBefore the time before which the data will not change, in System.currentTimeMillis() format
+     */
+    public final void addFreshnessHint(
+            long notChangedBefore )
+    {
+        theDispatcher.addFreshnessHint( notChangedBefore );
+    }
+
     /**
      * Add a listener to listen to ShadowMeshBase-specific events.
      *
@@ -518,6 +559,29 @@ public abstract class AShadowMeshBase
         return theHostnameVerifier;
     }
 
+    /**
+     * Obtain the policy that limits which entries of a data source consisting of a sequence
+     * of entries a Probe instantiates.
+     *
+     * @return the policy, or null if the Probe may apply its own default
+     */
+    public EntryRetentionPolicy getEntryRetentionPolicy()
+    {
+        return theEntryRetentionPolicy;
+    }
+
+    /**
+     * Set the policy that limits which entries of a data source consisting of a sequence
+     * of entries a Probe instantiates. This takes effect with the next Probe run.
+     *
+     * @param newValue the new policy, or null if the Probe may apply its own default
+     */
+    public void setEntryRetentionPolicy(
+            EntryRetentionPolicy newValue )
+    {
+        theEntryRetentionPolicy = newValue;
+    }
+
     /**
      * The ProbeManager that this ShadowMeshBase belongs to.
      */
@@ -532,4 +596,10 @@ public abstract class AShadowMeshBase
      * Custom HostnameVerifier, if any, for custom SSL certificate checking.
      */
     protected HostnameVerifier theHostnameVerifier;
+
+    /**
+     * The policy that limits which entries a Probe instantiates, if any. This is
+     * obtained from the Context, unless set explicitly.
+     */
+    protected volatile EntryRetentionPolicy theEntryRetentionPolicy;
 }
@@ -0,0 +1,356 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.shadow.externalized.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.infogrid.model.primitives.externalized.DecodingException;
+import org.infogrid.model.primitives.externalized.EncodingException;
+import org.infogrid.probe.shadow.ShadowMeshBase;
+import org.infogrid.probe.shadow.externalized.ExternalizedShadowMeshBase;
+
+/**
+ * <p>Encodes/decodes the content of a ShadowMeshBase in the XML format of
+ *    {@link ExternalizedShadowMeshBaseXmlEncoder}, deflated if it is large. The identifiers of
+ *    types, properties and neighbors that the XML format repeats for every MeshObject are what
+ *    the deflate dictionary collapses, so the encoded form of a large ShadowMeshBase is a fraction
+ *    of the size of the plain XML. Small ShadowMeshBases gain little from deflating, so their XML
+ *    is written as is, and does not cost the CPU time for deflating and inflating.</p>
+ * <p>The encoded form starts with a byte that indicates whether the remainder is deflated.
+ *    The XML is buffered until it exceeds the threshold; from then on, it is deflated as it is
+ *    being written.</p>
+ * <p>The format is identified by {@link #ENCODING_ID}, which carries a version number. Stores
+ *    record the encoding id with each value, so values written in the plain XML format can
+ *    continue to be read.</p>
+ * <p>Unlike ExternalizedShadowMeshBaseXmlEncoder, instances of this class do not hold parsing
+ *    state, so they may be shared.</p>
+ */
+public class CompressedExternalizedShadowMeshBaseXmlEncoder
+{
+    /**
+     * Factory method.
+     *
+     * @return the created CompressedExternalizedShadowMeshBaseXmlEncoder
+     */
+    public static CompressedExternalizedShadowMeshBaseXmlEncoder create()
+    {
+        return new CompressedExternalizedShadowMeshBaseXmlEncoder( Deflater.BEST_SPEED, DEFAULT_THRESHOLD );
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param level the deflate compression level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+     * @return the created CompressedExternalizedShadowMeshBaseXmlEncoder
+     */
+    public static CompressedExternalizedShadowMeshBaseXmlEncoder create(
+            int level )
+    {
+        return new CompressedExternalizedShadowMeshBaseXmlEncoder( level, DEFAULT_THRESHOLD );
+    }
+
+    /**
+     * Factory method.
+     *
+     * @param level the deflate compression level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION
+     * @param threshold the size, in bytes, of the XML up to which it is not deflated
+     * @return the created CompressedExternalizedShadowMeshBaseXmlEncoder
+     */
+    public static CompressedExternalizedShadowMeshBaseXmlEncoder create(
+            int level,
+            int threshold )
+    {
+        return new CompressedExternalizedShadowMeshBaseXmlEncoder( level, threshold );
+    }
+
+    /**
+     * Constructor for subclasses only, use factory method.
+     *
+     * @param level the deflate compression level
+     * @param threshold the size, in bytes, of the XML up to which it is not deflated
+     */
+    protected CompressedExternalizedShadowMeshBaseXmlEncoder(
+            int level,
+            int threshold )
+    {
+        theLevel     = level;
+        theThreshold = threshold;
+    }
+
+    /**
+     * Obtain the encoding id of the format produced by this encoder.
+     *
+     * @return the encoding id
+     */
+    public String getEncodingId()
+    {
+        return ENCODING_ID;
+    }
+
+    /**
+     * Serialize an ExternalizedShadowMeshBase to an OutputStream.
+     *
+     * @param mb the ExternalizedShadowMeshBase
+     * @param includeProxies if false, do not append the Proxies
+     * @param out the OutputStream to which to append the ExternalizedShadowMeshBase
+     * @throws EncodingException thrown if a problem occurred during encoding
+     * @throws IOException thrown if an I/O error occurred
+     */
+    public void encodeShadowMeshBase(
+            ExternalizedShadowMeshBase mb,
+            boolean                    includeProxies,
+            OutputStream               out )
+        throws
+            IOException,
+            EncodingException
+    {
+        ThresholdOutputStream thresholdOut = new ThresholdOutputStream( out );
+        try {
+            createXmlEncoder().encodeShadowMeshBase( mb, includeProxies, thresholdOut );
+
+            thresholdOut.finish(); // do not close: that would close the underlying stream
+
+        } finally {
+            thresholdOut.end(); // release native memory right away
+        }
+    }
+
+    /**
+     * Deserialize an ExternalizedShadowMeshBase from a stream.
+     *
+     * @param contentAsStream the byte [] stream in which the ExternalizedShadowMeshBase is encoded
+     * @param shadow the ShadowMeshBase on whose behalf the decoding is performed
+     * @return return the just-instantiated ExternalizedShadowMeshBase
+     * @throws DecodingException thrown if a problem occurred during decoding
+     * @throws IOException thrown if an I/O error occurred
+     */
+    public ExternalizedShadowMeshBase decodeShadowMeshBase(
+            InputStream    contentAsStream,
+            ShadowMeshBase shadow )
+        throws
+            DecodingException,
+            IOException
+    {
+        int format = contentAsStream.read();
+        if( format == FORMAT_PLAIN ) {
+            return createXmlEncoder().decodeShadowMeshBase( contentAsStream, shadow );
+
+        } else if( format != FORMAT_DEFLATED ) {
+            throw new IOException( "Unknown format: " + format );
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            InflaterInputStream inflaterIn = new InflaterInputStream( contentAsStream, inflater, BUFFER_SIZE );
+
+            return createXmlEncoder().decodeShadowMeshBase( inflaterIn, shadow );
+
+        } finally {
+            inflater.end(); // release native memory right away
+        }
+    }
+
+    /**
+     * Create the ExternalizedShadowMeshBaseXmlEncoder that encodes or decodes the uncompressed form.
+     * This is invoked for each encode and decode, as the ExternalizedShadowMeshBaseXmlEncoder holds state.
+     * Subclasses may override.
+     *
+     * @return the ExternalizedShadowMeshBaseXmlEncoder
+     */
+    protected ExternalizedShadowMeshBaseXmlEncoder createXmlEncoder()
+    {
+        return new ExternalizedShadowMeshBaseXmlEncoder();
+    }
+
+    /**
+     * The deflate compression level.
+     */
+    protected final int theLevel;
+
+    /**
+     * The size, in bytes, of the XML up to which it is not deflated.
+     */
+    protected final int theThreshold;
+
+    /**
+     * The size of the buffers used by the deflating and inflating streams.
+     */
+    protected static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The default size, in bytes, of the XML up to which it is not deflated.
+     */
+    public static final int DEFAULT_THRESHOLD = 4096;
+
+    /**
+     * First byte of the encoded form if the remainder is the plain XML.
+     */
+    protected static final int FORMAT_PLAIN = 0;
+
+    /**
+     * First byte of the encoded form if the remainder is the deflated XML.
+     */
+    protected static final int FORMAT_DEFLATED = 1;
+
+    /**
+     * The encoding id of the format produced by this encoder. Increment the version suffix
+     * whenever the format changes incompatibly.
+     */
+    public static final String ENCODING_ID = CompressedExternalizedShadowMeshBaseXmlEncoder.class.getName() + "-1";
+
+    /**
+     * Buffers what is written to it until it exceeds the threshold. If it never does, writes
+     * it as is upon {@link #finish}; otherwise deflates everything from then on.
+     */
+    protected class ThresholdOutputStream
+            extends
+                OutputStream
+    {
+        /**
+         * Constructor.
+         *
+         * @param delegate the OutputStream to write to
+         */
+        protected ThresholdOutputStream(
+                OutputStream delegate )
+        {
+            theDelegate = delegate;
+            theBuffer   = new ByteArrayOutputStream( Math.min( theThreshold, BUFFER_SIZE ) + 1 );
+        }
+
+        /**
+         * Write a byte.
+         *
+         * @param b the byte
+         * @throws IOException thrown if an I/O error occurred
+         */
+        @Override
+        public void write(
+                int b )
+            throws
+                IOException
+        {
+            if( theDeflaterOut != null ) {
+                theDeflaterOut.write( b );
+
+            } else {
+                theBuffer.write( b );
+                if( theBuffer.size() > theThreshold ) {
+                    startDeflating();
+                }
+            }
+        }
+
+        /**
+         * Write a section of a byte array.
+         *
+         * @param b the byte array
+         * @param off the offset of the first byte to write
+         * @param len the number of bytes to write
+         * @throws IOException thrown if an I/O error occurred
+         */
+        @Override
+        public void write(
+                byte [] b,
+                int     off,
+                int     len )
+            throws
+                IOException
+        {
+            if( theDeflaterOut != null ) {
+                theDeflaterOut.write( b, off, len );
+
+            } else {
+                theBuffer.write( b, off, len );
+                if( theBuffer.size() > theThreshold ) {
+                    startDeflating();
+                }
+            }
+        }
+
+        /**
+         * Write what remains to be written, without closing the delegate.
+         *
+         * @throws IOException thrown if an I/O error occurred
+         */
+        public void finish()
+            throws
+                IOException
+        {
+            if( theDeflaterOut != null ) {
+                theDeflaterOut.finish();
+
+            } else {
+                theDelegate.write( FORMAT_PLAIN );
+                theBuffer.writeTo( theDelegate );
+                theBuffer = null;
+            }
+        }
+
+        /**
+         * Release the native memory of the Deflater, if any.
+         */
+        public void end()
+        {
+            if( theDeflater != null ) {
+                theDeflater.end();
+            }
+        }
+
+        /**
+         * The threshold has been exceeded: deflate what has been buffered, and everything after.
+         *
+         * @throws IOException thrown if an I/O error occurred
+         */
+        protected void startDeflating()
+            throws
+                IOException
+        {
+            theDelegate.write( FORMAT_DEFLATED );
+
+            theDeflater    = new Deflater( theLevel );
+            theDeflaterOut = new DeflaterOutputStream( theDelegate, theDeflater, BUFFER_SIZE );
+
+            theBuffer.writeTo( theDeflaterOut );
+            theBuffer = null;
+        }
+
+        /**
+         * The OutputStream to write to.
+         */
+        protected final OutputStream theDelegate;
+
+        /**
+         * Buffers what has been written, as long as the threshold has not been exceeded.
+         */
+        protected ByteArrayOutputStream theBuffer;
+
+        /**
+         * The Deflater, once the threshold has been exceeded.
+         */
+        protected Deflater theDeflater;
+
+        /**
+         * Deflates into the delegate, once the threshold has been exceeded.
+         */
+        protected DeflaterOutputStream theDeflaterOut;
+    }
+}
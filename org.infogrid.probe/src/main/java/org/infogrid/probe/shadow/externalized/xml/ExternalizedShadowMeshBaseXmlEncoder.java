@@ -18,7 +18,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.ParseException;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
 import org.infogrid.mesh.net.externalized.ExternalizedNetMeshObject;
 import org.infogrid.meshbase.net.NetMeshBase;
 import org.infogrid.meshbase.net.externalized.ExternalizedProxy;
@@ -30,6 +33,7 @@ import org.infogrid.probe.shadow.externalized.ExternalizedShadowMeshBase;
 import org.infogrid.probe.shadow.externalized.ExternalizedShadowProxy;
 import org.infogrid.probe.shadow.externalized.ParserFriendlyExternalizedShadowMeshBase;
 import org.infogrid.probe.shadow.externalized.ParserFriendlyExternalizedShadowProxy;
+import org.infogrid.probe.xml.XmlParserPool;
 import org.infogrid.util.logging.Log;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -54,7 +58,9 @@ public class ExternalizedShadowMeshBaseXmlEncoder
     }
 
     /**
-     * Serialize an ExternalizedShadowMeshBase to an OutputStream.
+     * Serialize an ExternalizedShadowMeshBase to an OutputStream. This writes one Proxy or
+     * MeshObject at a time, so the encoded ExternalizedShadowMeshBase is never held in memory
+     * in its entirety.
      * 
      * @param mb the ExternalizedShadowMeshBase
      * @param includeProxies if false, do not append the Proxies
@@ -70,15 +76,58 @@ public class ExternalizedShadowMeshBaseXmlEncoder
             IOException,
             EncodingException
     {
-        StringBuilder buf = new StringBuilder();
+        OutputStreamWriter w     = new OutputStreamWriter( out, ENCODING );
+        StringBuilder      buf   = new StringBuilder();
+        char []            chunk = new char[ WRITE_CHUNK_SIZE ];
 
-        appendShadowMeshBase( mb, includeProxies, buf );
+        appendShadowMeshBaseStart( mb, buf );
+        writeAndClear( buf, chunk, w );
+
+        if( includeProxies ) {
+            ExternalizedProxy [] proxies = mb.getExternalizedProxies();
+            for( int i=0 ; i<proxies.length ; ++i ) {
+                appendExternalizedProxy( proxies[i], buf );
+                writeAndClear( buf, chunk, w );
+            }
+        }
+
+        ExternalizedNetMeshObject [] objects = mb.getExternalizedNetMeshObjects();
+        for( int i=0 ; i<objects.length ; ++i ) {
+            appendExternalizedMeshObject( objects[i], buf );
+            writeAndClear( buf, chunk, w );
+        }
+
+        appendShadowMeshBaseEnd( buf );
+        writeAndClear( buf, chunk, w );
 
-        OutputStreamWriter w = new OutputStreamWriter( out, ENCODING );
-        w.write( buf.toString() );
         w.flush();
     }
 
+    /**
+     * Write the content of a StringBuilder to a Writer, and empty the StringBuilder.
+     * This avoids copying the content into a String first.
+     *
+     * @param buf the StringBuilder
+     * @param chunk the buffer to use for copying
+     * @param w the Writer
+     * @throws IOException thrown if an I/O error occurred
+     */
+    protected void writeAndClear(
+            StringBuilder buf,
+            char []       chunk,
+            Writer        w )
+        throws
+            IOException
+    {
+        int length = buf.length();
+        for( int start=0 ; start<length ; start += chunk.length ) {
+            int end = Math.min( start + chunk.length, length );
+            buf.getChars( start, end, chunk, 0 );
+            w.write( chunk, 0, end - start );
+        }
+        buf.setLength( 0 );
+    }
+
     /**
      * Serialize an ExternalizedShadowMeshBase to a StringBuilder.
      * 
@@ -94,10 +143,7 @@ public class ExternalizedShadowMeshBaseXmlEncoder
         throws
             EncodingException
     {
-        buf.append( "<" ).append( SHADOW_TAG );
-        buf.append( " " ).append( SHADOW_IDENTIFIER_TAG ).append( "=\"" );
-        appendNetworkIdentifier( mb.getNetworkIdentifier(), buf );        
-        buf.append( "\">\n" );
+        appendShadowMeshBaseStart( mb, buf );
 
         if( includeProxies ) {
             ExternalizedProxy [] proxies = mb.getExternalizedProxies();
@@ -111,6 +157,53 @@ public class ExternalizedShadowMeshBaseXmlEncoder
             appendExternalizedMeshObject( objects[i], buf );
         }
         
+        appendShadowMeshBaseEnd( buf );
+    }
+
+    /**
+     * Serialize a single ExternalizedNetMeshObject of an ExternalizedShadowMeshBase to a StringBuilder,
+     * in the same form as appendShadowMeshBase does.
+     *
+     * @param obj the ExternalizedNetMeshObject
+     * @param buf the StringBuilder to write to
+     * @throws EncodingException thrown if a problem occurred during encoding
+     */
+    public void appendExternalizedNetMeshObject(
+            ExternalizedNetMeshObject obj,
+            StringBuilder             buf )
+        throws
+            EncodingException
+    {
+        appendExternalizedMeshObject( obj, buf );
+    }
+
+    /**
+     * Serialize the start tag of an ExternalizedShadowMeshBase to a StringBuilder.
+     *
+     * @param mb the ExternalizedShadowMeshBase
+     * @param buf the StringBuilder to write to
+     * @throws EncodingException thrown if a problem occurred during encoding
+     */
+    protected void appendShadowMeshBaseStart(
+            ExternalizedShadowMeshBase mb,
+            StringBuilder              buf )
+        throws
+            EncodingException
+    {
+        buf.append( "<" ).append( SHADOW_TAG );
+        buf.append( " " ).append( SHADOW_IDENTIFIER_TAG ).append( "=\"" );
+        appendNetworkIdentifier( mb.getNetworkIdentifier(), buf );
+        buf.append( "\">\n" );
+    }
+
+    /**
+     * Serialize the end tag of an ExternalizedShadowMeshBase to a StringBuilder.
+     *
+     * @param buf the StringBuilder to write to
+     */
+    protected void appendShadowMeshBaseEnd(
+            StringBuilder buf )
+    {
         buf.append( "</" ).append( SHADOW_TAG ).append( ">\n" );
     }
 
@@ -138,7 +231,8 @@ public class ExternalizedShadowMeshBaseXmlEncoder
     }
 
     /**
-     * Deserialize an ExternalizedShadowMeshBase from a stream.
+     * Deserialize an ExternalizedShadowMeshBase from a stream. This instance holds the parsing
+     * state, so concurrent decodes need to use separate instances.
      * 
      * @param contentAsStream the byte [] stream in which the ExternalizedProxy is encoded
      * @param shadow the ShadowMeshBase on whose behalf the decoding is performed
@@ -146,7 +240,7 @@ public class ExternalizedShadowMeshBaseXmlEncoder
      * @throws DecodingException thrown if a problem occurred during decoding
      * @throws IOException thrown if an I/O error occurred
      */
-    public ExternalizedShadowMeshBase decodeShadowMeshBase(
+    public synchronized ExternalizedShadowMeshBase decodeShadowMeshBase(
             InputStream    contentAsStream,
             ShadowMeshBase shadow )
         throws
@@ -155,17 +249,21 @@ public class ExternalizedShadowMeshBaseXmlEncoder
     {
         theMeshBase = shadow;
 
+        SAXParser parser = null;
         try {
-            synchronized( theParser ) {
-                theParser.parse( contentAsStream, this );
-            }
+            parser = theXmlParserPool.obtainSaxParser();
+            parser.parse( contentAsStream, this );
 
             return this.theParsedShadowMeshBase;
             
+        } catch( ParserConfigurationException ex ) {
+            throw new DecodingException( ex );
+
         } catch( SAXException ex ) {
             throw new DecodingException( ex );
 
         } finally {
+            theXmlParserPool.releaseSaxParser( parser );
             clearState();
         }
     }
@@ -355,8 +453,18 @@ public class ExternalizedShadowMeshBaseXmlEncoder
         super.clearState();
     }
 
+    /**
+     * The number of characters copied from the StringBuilder to the OutputStream at a time.
+     */
+    protected static final int WRITE_CHUNK_SIZE = 8192;
+
     /**
      * The ExternalizedShadowMeshBase being parsed.
      */
     protected ParserFriendlyExternalizedShadowMeshBase theParsedShadowMeshBase = null;
+
+    /**
+     * The pool from which to obtain XML parsers.
+     */
+    protected XmlParserPool theXmlParserPool = XmlParserPool.SINGLETON;
 }
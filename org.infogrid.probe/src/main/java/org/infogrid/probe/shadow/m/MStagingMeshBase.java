@@ -29,6 +29,7 @@ import org.infogrid.meshbase.net.proxy.Proxy;
 import org.infogrid.meshbase.net.proxy.ProxyManager;
 import org.infogrid.meshbase.net.proxy.ProxyPolicyFactory;
 import org.infogrid.meshbase.net.security.NetAccessManager;
+import org.infogrid.probe.EntryRetentionPolicy;
 import org.infogrid.probe.StagingMeshBase;
 import org.infogrid.probe.shadow.ShadowMeshBase;
 import org.infogrid.probe.shadow.a.AStagingMeshBase;
@@ -164,6 +165,29 @@ public class MStagingMeshBase
     {
         return theShadowMeshBase.getCurrentUpdateStartedTime();
     }
+
+    /**
+     * Allow a Probe to tell the framework that, according to the data source, the data
+     * will not change before a certain time.
+     *
+     * @param notChangedBefore the time before which the data will not change, in System.currentTimeMillis() format
+     */
+    public void addFreshnessHint(
+            long notChangedBefore )
+    {
+        theShadowMeshBase.addFreshnessHint( notChangedBefore );
+    }
+
+    /**
+     * Obtain the policy that limits which entries of a data source consisting of a sequence
+     * of entries a Probe instantiates.
+     *
+     * @return the policy, or null if the Probe may apply its own default
+     */
+    public EntryRetentionPolicy getEntryRetentionPolicy()
+    {
+        return theShadowMeshBase.getEntryRetentionPolicy();
+    }
     
     /**
      * Allow a Proxy to tell this StagingMeshBase that it performed an operation that
@@ -164,7 +164,10 @@ public class DefaultShadowProxy
         theMeshBaseIsDirty = false;
 
         super.internalMessageReceived( endpoint, incoming );
-        
+
+        // replicas or locks may have been obtained, pushed or cancelled
+        ((ShadowMeshBase)theMeshBase).replicationMayHaveChanged();
+
         if( theMeshBaseIsDirty ) {
             ((StagingMeshBase)theMeshBase).flushMeshBase();
         }
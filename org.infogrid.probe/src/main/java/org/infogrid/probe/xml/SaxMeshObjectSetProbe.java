@@ -19,8 +19,8 @@ import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import org.diet4j.core.ModuleException;
 import org.infogrid.mesh.BlessedAlreadyException;
 import org.infogrid.mesh.EntityBlessedAlreadyException;
@@ -166,7 +166,17 @@ public class SaxMeshObjectSetProbe
             theBufferedObjects = new ArrayList<ExternalizedMeshObject>();
             
             // first parse
-            theParser.parse( stream, this );
+            SAXParser parser = null;
+            try {
+                parser = XmlParserPool.SINGLETON.obtainValidatingSaxParser();
+                parser.parse( stream, this );
+
+            } catch( ParserConfigurationException ex ) {
+                throw new ProbeException.Other( dataSourceIdentifier, ex );
+
+            } finally {
+                XmlParserPool.SINGLETON.releaseValidatingSaxParser( parser );
+            }
 
             // then instantiate MeshObjects
             
@@ -640,20 +650,4 @@ public class SaxMeshObjectSetProbe
      * The character encoding that we are using.
      */
     public static final String ENCODING = "UTF-8";
-    
-    /**
-     * Our SAX parser.
-     */
-    protected static SAXParser theParser;
-    
-    static {
-        try {
-            SAXParserFactory fact = SAXParserFactory.newInstance(); // FIXME? new SAXParserFactoryImpl();
-            fact.setValidating( true );
-
-            theParser = fact.newSAXParser();
-        } catch( Exception ex ) {
-            log.error( ex );
-        }
-    }
 }
@@ -0,0 +1,347 @@
+//
+// This file is part of InfoGrid(tm). You may not use this file except in
+// compliance with the InfoGrid license. The InfoGrid license and important
+// disclaimers are contained in the file LICENSE.InfoGrid.txt that you should
+// have received with InfoGrid. If you have not received LICENSE.InfoGrid.txt
+// or you do not consent to all aspects of the license and the disclaimers,
+// no license is granted; do not use this file.
+//
+// For more information about InfoGrid go to http://infogrid.org/
+//
+// Copyright 1998-2015 by Johannes Ernst
+// All rights reserved.
+//
+
+package org.infogrid.probe.xml;
+
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.infogrid.util.ResourceHelper;
+import org.infogrid.util.logging.Log;
+import org.xml.sax.SAXException;
+
+/**
+ * <p>Pools the XML parsers used by the Probe framework, so that concurrent Probe runs and
+ *    ShadowMeshBase loads do not contend for a single parser, and so that parser factories
+ *    are only looked up once.</p>
+ * <p>A parser obtained from this pool is used by one thread only, and must be returned with
+ *    the corresponding release method when done, typically in a finally clause. Parsers are
+ *    reset when they are returned; parsers that cannot be reset are discarded.</p>
+ * <p>DocumentBuilders are namespace-aware and ignore comments and element content whitespace.
+ *    SAXParsers are not namespace-aware, and either validating or not.</p>
+ * <p>XMLStreamReaders are not pooled, as they cannot be reset; they are created from a
+ *    shared, namespace-aware factory that does not resolve external entities.</p>
+ */
+public class XmlParserPool
+{
+    private static final Log log = Log.getLogInstance( XmlParserPool.class ); // our own, private logger
+
+    /**
+     * Factory method.
+     *
+     * @param maxIdle the maximum number of idle parsers of each kind kept in the pool
+     * @return the created XmlParserPool
+     */
+    public static XmlParserPool create(
+            int maxIdle )
+    {
+        return new XmlParserPool( maxIdle );
+    }
+
+    /**
+     * Constructor for subclasses only, use factory method.
+     *
+     * @param maxIdle the maximum number of idle parsers of each kind kept in the pool
+     */
+    protected XmlParserPool(
+            int maxIdle )
+    {
+        theMaxIdle = maxIdle;
+
+        // We do this messing thing with the context ClassLoader because otherwise,
+        // there is no chance that our XML parser can be found. The Sun XML classloader
+        // finder is an awful implementation using a broken conceptual model how things
+        // should work, but at least we found this workaround.
+
+        ClassLoader ctxt = Thread.currentThread().getContextClassLoader();
+
+        try {
+            Thread.currentThread().setContextClassLoader( getClass().getClassLoader() );
+
+            theDocumentBuilderFactory = DocumentBuilderFactory.newInstance();
+            theDocumentBuilderFactory.setNamespaceAware( true );
+
+            // FIXME? theDocumentBuilderFactory.setValidating( true );
+            theDocumentBuilderFactory.setIgnoringComments( true );
+            theDocumentBuilderFactory.setIgnoringElementContentWhitespace( true );
+
+            theSaxParserFactory = SAXParserFactory.newInstance();
+
+            theValidatingSaxParserFactory = SAXParserFactory.newInstance();
+            theValidatingSaxParserFactory.setValidating( true );
+
+            theXmlInputFactory = XMLInputFactory.newInstance();
+            theXmlInputFactory.setProperty( XMLInputFactory.IS_NAMESPACE_AWARE,              Boolean.TRUE );
+            theXmlInputFactory.setProperty( XMLInputFactory.IS_COALESCING,                   Boolean.TRUE );
+            theXmlInputFactory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE );
+
+        } finally {
+            Thread.currentThread().setContextClassLoader( ctxt );
+        }
+    }
+
+    /**
+     * Obtain a DocumentBuilder for exclusive use by the calling thread.
+     *
+     * @return the DocumentBuilder
+     * @throws ParserConfigurationException thrown if no DocumentBuilder could be created
+     * @see #releaseDocumentBuilder
+     */
+    public DocumentBuilder obtainDocumentBuilder()
+        throws
+            ParserConfigurationException
+    {
+        DocumentBuilder ret = theDocumentBuilders.poll();
+        if( ret != null ) {
+            theIdleDocumentBuilders.decrementAndGet();
+            return ret;
+        }
+        synchronized( theDocumentBuilderFactory ) { // factories are not guaranteed to be thread-safe
+            ret = theDocumentBuilderFactory.newDocumentBuilder();
+        }
+        return ret;
+    }
+
+    /**
+     * Return a DocumentBuilder obtained with {@link #obtainDocumentBuilder} to the pool.
+     *
+     * @param builder the DocumentBuilder, may be null
+     */
+    public void releaseDocumentBuilder(
+            DocumentBuilder builder )
+    {
+        if( builder == null ) {
+            return;
+        }
+        try {
+            builder.reset(); // also resets the ErrorHandler and EntityResolver
+
+        } catch( UnsupportedOperationException ex ) {
+            return; // cannot be reused
+        }
+        if( theIdleDocumentBuilders.incrementAndGet() <= theMaxIdle ) {
+            theDocumentBuilders.offer( builder );
+        } else {
+            theIdleDocumentBuilders.decrementAndGet();
+        }
+    }
+
+    /**
+     * Obtain a non-validating SAXParser for exclusive use by the calling thread.
+     *
+     * @return the SAXParser
+     * @throws ParserConfigurationException thrown if no SAXParser could be created
+     * @throws SAXException thrown if no SAXParser could be created
+     * @see #releaseSaxParser
+     */
+    public SAXParser obtainSaxParser()
+        throws
+            ParserConfigurationException,
+            SAXException
+    {
+        return obtainSaxParser( theSaxParsers, theIdleSaxParsers, theSaxParserFactory );
+    }
+
+    /**
+     * Return a SAXParser obtained with {@link #obtainSaxParser} to the pool.
+     *
+     * @param parser the SAXParser, may be null
+     */
+    public void releaseSaxParser(
+            SAXParser parser )
+    {
+        releaseSaxParser( parser, theSaxParsers, theIdleSaxParsers );
+    }
+
+    /**
+     * Obtain a validating SAXParser for exclusive use by the calling thread.
+     *
+     * @return the SAXParser
+     * @throws ParserConfigurationException thrown if no SAXParser could be created
+     * @throws SAXException thrown if no SAXParser could be created
+     * @see #releaseValidatingSaxParser
+     */
+    public SAXParser obtainValidatingSaxParser()
+        throws
+            ParserConfigurationException,
+            SAXException
+    {
+        return obtainSaxParser( theValidatingSaxParsers, theIdleValidatingSaxParsers, theValidatingSaxParserFactory );
+    }
+
+    /**
+     * Return a SAXParser obtained with {@link #obtainValidatingSaxParser} to the pool.
+     *
+     * @param parser the SAXParser, may be null
+     */
+    public void releaseValidatingSaxParser(
+            SAXParser parser )
+    {
+        releaseSaxParser( parser, theValidatingSaxParsers, theIdleValidatingSaxParsers );
+    }
+
+    /**
+     * Create an XMLStreamReader for an InputStream. The caller must close it when done.
+     *
+     * @param inStream the InputStream
+     * @return the XMLStreamReader
+     * @throws XMLStreamException thrown if no XMLStreamReader could be created
+     */
+    public XMLStreamReader createXmlStreamReader(
+            InputStream inStream )
+        throws
+            XMLStreamException
+    {
+        synchronized( theXmlInputFactory ) { // factories are not guaranteed to be thread-safe
+            return theXmlInputFactory.createXMLStreamReader( inStream );
+        }
+    }
+
+    /**
+     * Helper to obtain a SAXParser.
+     *
+     * @param pool the pool of idle SAXParsers
+     * @param idle the number of idle SAXParsers in the pool
+     * @param factory the factory to use if the pool is empty
+     * @return the SAXParser
+     * @throws ParserConfigurationException thrown if no SAXParser could be created
+     * @throws SAXException thrown if no SAXParser could be created
+     */
+    protected SAXParser obtainSaxParser(
+            ConcurrentLinkedQueue<SAXParser> pool,
+            AtomicInteger                    idle,
+            SAXParserFactory                 factory )
+        throws
+            ParserConfigurationException,
+            SAXException
+    {
+        SAXParser ret = pool.poll();
+        if( ret != null ) {
+            idle.decrementAndGet();
+            return ret;
+        }
+        synchronized( factory ) { // factories are not guaranteed to be thread-safe
+            ret = factory.newSAXParser();
+        }
+        return ret;
+    }
+
+    /**
+     * Helper to return a SAXParser to the pool.
+     *
+     * @param parser the SAXParser, may be null
+     * @param pool the pool of idle SAXParsers
+     * @param idle the number of idle SAXParsers in the pool
+     */
+    protected void releaseSaxParser(
+            SAXParser                        parser,
+            ConcurrentLinkedQueue<SAXParser> pool,
+            AtomicInteger                    idle )
+    {
+        if( parser == null ) {
+            return;
+        }
+        try {
+            parser.reset();
+
+        } catch( UnsupportedOperationException ex ) {
+            return; // cannot be reused
+        }
+        if( idle.incrementAndGet() <= theMaxIdle ) {
+            pool.offer( parser );
+        } else {
+            idle.decrementAndGet();
+        }
+    }
+
+    /**
+     * The maximum number of idle parsers of each kind kept in the pool.
+     */
+    protected final int theMaxIdle;
+
+    /**
+     * The factory for DocumentBuilders.
+     */
+    protected final DocumentBuilderFactory theDocumentBuilderFactory;
+
+    /**
+     * The factory for non-validating SAXParsers.
+     */
+    protected final SAXParserFactory theSaxParserFactory;
+
+    /**
+     * The factory for validating SAXParsers.
+     */
+    protected final SAXParserFactory theValidatingSaxParserFactory;
+
+    /**
+     * The factory for XMLStreamReaders.
+     */
+    protected final XMLInputFactory theXmlInputFactory;
+
+    /**
+     * The idle DocumentBuilders.
+     */
+    protected final ConcurrentLinkedQueue<DocumentBuilder> theDocumentBuilders = new ConcurrentLinkedQueue<DocumentBuilder>();
+
+    /**
+     * The number of idle DocumentBuilders. ConcurrentLinkedQueue.size() is not constant-time.
+     */
+    protected final AtomicInteger theIdleDocumentBuilders = new AtomicInteger();
+
+    /**
+     * The idle non-validating SAXParsers.
+     */
+    protected final ConcurrentLinkedQueue<SAXParser> theSaxParsers = new ConcurrentLinkedQueue<SAXParser>();
+
+    /**
+     * The number of idle non-validating SAXParsers.
+     */
+    protected final AtomicInteger theIdleSaxParsers = new AtomicInteger();
+
+    /**
+     * The idle validating SAXParsers.
+     */
+    protected final ConcurrentLinkedQueue<SAXParser> theValidatingSaxParsers = new ConcurrentLinkedQueue<SAXParser>();
+
+    /**
+     * The number of idle validating SAXParsers.
+     */
+    protected final AtomicInteger theIdleValidatingSaxParsers = new AtomicInteger();
+
+    /**
+     * Our ResourceHelper.
+     */
+    private static final ResourceHelper theResourceHelper = ResourceHelper.getInstance( XmlParserPool.class );
+
+    /**
+     * The default maximum number of idle parsers of each kind kept in the pool.
+     */
+    public static final int DEFAULT_MAX_IDLE = theResourceHelper.getResourceIntegerOrDefault(
+            "MaxIdle",
+            16 );
+
+    /**
+     * Singleton instance, shared by the Probe framework.
+     */
+    public static final XmlParserPool SINGLETON = create( DEFAULT_MAX_IDLE );
+}
@@ -21,6 +21,7 @@ import java.text.ParseException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.ParserConfigurationException;
 import org.infogrid.lid.model.openid.auth.AuthSubjectArea;
 import org.infogrid.lid.model.yadis.YadisSubjectArea;
 import org.infogrid.mesh.BlessedAlreadyException;
@@ -44,6 +45,7 @@ import org.infogrid.model.primitives.EntityType;
 import org.infogrid.model.primitives.IntegerValue;
 import org.infogrid.probe.StagingMeshBase;
 import org.infogrid.probe.StagingMeshBaseLifecycleManager;
+import org.infogrid.probe.xml.XmlParserPool;
 import org.infogrid.util.logging.Log;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
@@ -63,14 +65,14 @@ public class YadisServiceFactory
      * Constructor.
      *
      * @param meshBaseIdentifierFactory the factory to use for MeshBaseIdentifiers
-     * @param builder the DocumentBuilder to use
+     * @param parserPool the pool from which to obtain XML parsers
      */
     public YadisServiceFactory(
             NetMeshBaseIdentifierFactory meshBaseIdentifierFactory,
-            DocumentBuilder              builder )
+            XmlParserPool                parserPool )
     {
         theMeshBaseIdentifierFactory = meshBaseIdentifierFactory;
-        theDocumentBuilder           = builder;
+        theXmlParserPool             = parserPool;
     }
 
     /**
@@ -90,9 +92,12 @@ public class YadisServiceFactory
         throws
             TransactionException
     {
+        DocumentBuilder builder = null;
         try {
+            builder = theXmlParserPool.obtainDocumentBuilder();
+
             InputSource     source  = new InputSource( new ByteArrayInputStream( yadisBytes ));
-            Document        dom     = theDocumentBuilder.parse( source );
+            Document        dom     = builder.parse( source );
 
             addYadisServicesFromXml( dataSourceIdentifier, yadisBytes, yadisType, dom, base );
 
@@ -112,6 +117,10 @@ public class YadisServiceFactory
             log.warn( ex );
         } catch( ParseException ex ) {
             log.warn( ex );
+        } catch( ParserConfigurationException ex ) {
+            log.error( ex );
+        } finally {
+            theXmlParserPool.releaseDocumentBuilder( builder );
         }
     }
 
@@ -435,9 +444,9 @@ public class YadisServiceFactory
     }
 
     /**
-     * The XML DocumentBuilder to use.
+     * The pool from which to obtain XML parsers.
      */
-    protected DocumentBuilder theDocumentBuilder;
+    protected XmlParserPool theXmlParserPool;
 
     /**
      * Factory for MeshBaseIdentifiers.